@@ -25,6 +25,9 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -35,12 +38,15 @@ import java.nio.file.StandardOpenOption;
  * Utilities to read and write files.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.1 13/02/2015
+ * @version 1.2 17/10/2016
  */
 public final class FileUtil {
 
     /** UTF-8 BOM header (should be removed to use the content as string). */
     private static final int UTF8_BOM_HEADER = 65279;
+
+    /** UTF-8 BOM header bytes. */
+    private static final byte[] UTF8_BOM_HEADER_BYTES = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
     
     /** Backup file extension prefix. */
     private static final String BACKUP_EXTENSION = ".bak_"; //$NON-NLS-1$
@@ -81,6 +87,60 @@ public final class FileUtil {
         return cb.toString();
     }
 
+    /**
+     * Maps a UTF-8 text file into memory (read only). The content is not copied into the heap: the bytes are
+     * read by the operating system as they are accessed. The returned buffer position is set after the UTF-8 BOM
+     * header (if present) and its indexes are the file positions (see {@link #transferTo(String, long, long, WritableByteChannel)}).
+     * The mapping remains valid until the buffer is garbage collected, the file must not be modified meanwhile.
+     * @param fullFileName Path of the file.
+     * @return Buffer with the content of the file.
+     * @throws IOException Exception with the error.
+     */
+    public static MappedByteBuffer mapUTF8(final String fullFileName) throws IOException {
+
+        MappedByteBuffer retValue;
+        try (FileChannel channel = FileChannel.open(Paths.get(fullFileName), StandardOpenOption.READ)) {
+            retValue = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        boolean bom = retValue.remaining() >= UTF8_BOM_HEADER_BYTES.length;
+        for (int cont = 0; bom && cont < UTF8_BOM_HEADER_BYTES.length; cont++) {
+            bom = retValue.get(cont) == UTF8_BOM_HEADER_BYTES[cont];
+        }
+
+        if (bom) {
+            retValue.position(UTF8_BOM_HEADER_BYTES.length);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Transfers a region of a file to the given channel. The bytes are moved by the operating system
+     * (when supported) without being copied into the heap.
+     * @param fullFileName Path of the file.
+     * @param position Position of the first byte to transfer.
+     * @param count Number of bytes to transfer.
+     * @param target Destination channel.
+     * @return Number of bytes transferred (less than <code>count</code> if the file is shorter or the channel accepts no more bytes).
+     * @throws IOException Exception with the error.
+     */
+    public static long transferTo(final String fullFileName, final long position, final long count, final WritableByteChannel target) throws IOException {
+
+        long retValue = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(fullFileName), StandardOpenOption.READ)) {
+            long pending = Math.max(0, Math.min(count, channel.size() - position));
+            long transferred = pending;
+            while (pending > 0 && transferred > 0) {
+                transferred = channel.transferTo(position + retValue, pending, target);
+                retValue += transferred;
+                pending -= transferred;
+            }
+        }
+
+        return retValue;
+    }
+
     /**
      * Reads a text file using the given char set.
      * @param fullFileName Path of the file.
@@ -21,9 +21,9 @@
 
 package es.ree.eemws.core.utils.iec61968100;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.URL;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -35,17 +35,21 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.XMLConstants;
 import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import ch.iec.tc57._2011.schema.message.HeaderType;
@@ -58,26 +62,56 @@ import ch.iec.tc57._2011.schema.message.RequestType.ID;
 import ch.iec.tc57._2011.schema.message.ResponseMessage;
 import es.ree.eemws.core.utils.file.GZIPUtil;
 import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.CharSequenceReader;
 import es.ree.eemws.core.utils.xml.XMLElementUtil;
 import es.ree.eemws.core.utils.xml.XMLGregorianCalendarFactory;
+import es.ree.eemws.core.utils.xml.XMLObjectPool;
+import es.ree.eemws.core.utils.xml.XMLSchemaRegistry;
 import es.ree.eemws.core.utils.xml.XMLUtil;
 
 /**
  * Miscellaneous utilities to handle messages.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.2 11/08/2016
+ * @version 1.6 17/10/2016
  */
 public final class MessageUtil {
 
-    /** IEC 61968-100 schema file (it's included in <code>core.jar</code>. */
-    private static final String IEC_61968_100_SCHEMA_FILE = "http-iec-ch-TC57-2011-schema-message.xsd"; //$NON-NLS-1$
-
     /** System properties to activate pretty print xml message output. */
     private static final String USE_PRETTY_PRINT_OUTPUT_FLAG = "USE_PRETTY_PRINT_OUTPUT";
     
     /** Flag to check if pretty print is active. */
     private static final boolean PRETTY_PRINT_OUTPUT =  System.getProperty(USE_PRETTY_PRINT_OUTPUT_FLAG) != null;
+
+    /** Namespace of the IEC-61968-100 messages. */
+    private static final String MESSAGE_NAMESPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
+
+    /** Prefix of the IEC-61968-100 namespace in the written messages. */
+    private static final String MESSAGE_PREFIX = "msg"; //$NON-NLS-1$
+
+    /** Request message element name. */
+    private static final String REQUEST_MESSAGE_ELEMENT = "RequestMessage"; //$NON-NLS-1$
+
+    /** Header element. */
+    private static final QName HEADER_ELEMENT = new QName(MESSAGE_NAMESPACE, "Header"); //$NON-NLS-1$
+
+    /** Payload element name. */
+    private static final String PAYLOAD_ELEMENT = "Payload"; //$NON-NLS-1$
+
+    /** SOAP envelope namespace prefix. */
+    private static final String SOAP_PREFIX = "soapenv"; //$NON-NLS-1$
+
+    /** SOAP envelope element name. */
+    private static final String SOAP_ENVELOPE_ELEMENT = "Envelope"; //$NON-NLS-1$
+
+    /** SOAP body element name. */
+    private static final String SOAP_BODY_ELEMENT = "Body"; //$NON-NLS-1$
+
+    /** XML version of the written messages. */
+    private static final String XML_VERSION = "1.0"; //$NON-NLS-1$
+
+    /** StAX factory (thread safe). */
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
     
     /**
      * Constructor. Utility classes should not have a public constructor.
@@ -284,6 +318,8 @@ public final class MessageUtil {
 
     /**
      * Creates a request message with a payload.
+     * Note that the payload is parsed into a DOM, see {@link #writeRequestWithPayload(String, String, RawXMLPayload, OutputStream)}
+     * to send big documents.
      * @param verb Message verb.
      * @param noun Message noun.
      * @param xmlMessage Document payload.
@@ -308,6 +344,92 @@ public final class MessageUtil {
 
     }
 
+    /**
+     * Writes a request message with the given pre-serialized payload to the given stream, UTF-8 encoded.
+     * Unlike {@link #createRequestWithPayload(String, String, StringBuilder)} the payload is not parsed into a DOM:
+     * the header is marshalled and the payload bytes are copied verbatim into the <code>Payload</code> element.
+     * The stream is flushed but not closed.
+     * @param verb Message verb.
+     * @param noun Message noun.
+     * @param payload Document payload.
+     * @param out Destination stream.
+     * @throws JAXBException If the message header cannot be written.
+     * @throws XMLStreamException If the message cannot be written.
+     * @throws IOException If the payload cannot be written.
+     */
+    public static void writeRequestWithPayload(final String verb, final String noun, final RawXMLPayload payload,
+            final OutputStream out) throws JAXBException, XMLStreamException, IOException {
+
+        writeRequestWithPayload(verb, noun, payload, null, out);
+    }
+
+    /**
+     * Writes a SOAP envelope with a request message with the given pre-serialized payload in its body, UTF-8 encoded.
+     * See {@link #writeRequestWithPayload(String, String, RawXMLPayload, OutputStream)}.
+     * The stream is flushed but not closed.
+     * @param verb Message verb.
+     * @param noun Message noun.
+     * @param payload Document payload.
+     * @param soapNameSpace SOAP envelope namespace (<code>SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE</code> or
+     * <code>SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE</code>).
+     * @param out Destination stream.
+     * @throws JAXBException If the message header cannot be written.
+     * @throws XMLStreamException If the message cannot be written.
+     * @throws IOException If the payload cannot be written.
+     */
+    public static void writeSoapRequestWithPayload(final String verb, final String noun, final RawXMLPayload payload,
+            final String soapNameSpace, final OutputStream out) throws JAXBException, XMLStreamException, IOException {
+
+        writeRequestWithPayload(verb, noun, payload, soapNameSpace, out);
+    }
+
+    /**
+     * Writes a request message with the given pre-serialized payload, optionally inside a SOAP envelope.
+     * @param verb Message verb.
+     * @param noun Message noun.
+     * @param payload Document payload.
+     * @param soapNameSpace SOAP envelope namespace, <code>null</code> to write only the request message.
+     * @param out Destination stream.
+     * @throws JAXBException If the message header cannot be written.
+     * @throws XMLStreamException If the message cannot be written.
+     * @throws IOException If the payload cannot be written.
+     */
+    private static void writeRequestWithPayload(final String verb, final String noun, final RawXMLPayload payload,
+            final String soapNameSpace, final OutputStream out) throws JAXBException, XMLStreamException, IOException {
+
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        writer.writeStartDocument(StandardCharsets.UTF_8.name(), XML_VERSION);
+        if (soapNameSpace != null) {
+            writer.writeStartElement(SOAP_PREFIX, SOAP_ENVELOPE_ELEMENT, soapNameSpace);
+            writer.writeNamespace(SOAP_PREFIX, soapNameSpace);
+            writer.writeStartElement(SOAP_PREFIX, SOAP_BODY_ELEMENT, soapNameSpace);
+        }
+
+        /* The message namespace is prefixed: a default namespace in scope would be inherited by an unqualified payload. */
+        writer.writeStartElement(MESSAGE_PREFIX, REQUEST_MESSAGE_ELEMENT, MESSAGE_NAMESPACE);
+        writer.writeNamespace(MESSAGE_PREFIX, MESSAGE_NAMESPACE);
+
+        XMLObjectPool<Marshaller, JAXBException> pool = XMLElementUtil.getMarshallerPool(RequestMessage.class);
+        Marshaller marshaller = pool.borrow();
+        try {
+            marshaller.marshal(new JAXBElement<>(HEADER_ELEMENT, HeaderType.class, createHeader(verb, noun)), writer);
+        } finally {
+            pool.release(marshaller);
+        }
+
+        writer.writeStartElement(MESSAGE_PREFIX, PAYLOAD_ELEMENT, MESSAGE_NAMESPACE);
+
+        /* Empty text closes the payload start tag, so the payload bytes can be written right after it. */
+        writer.writeCharacters(""); //$NON-NLS-1$
+        writer.flush();
+        payload.writeTo(out);
+
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+        out.flush();
+    }
+
     /**
      * Creates a request message with compressed xml message.
      * @param xmlMessage Xml document (payload) to be transmited.
@@ -498,27 +620,56 @@ public final class MessageUtil {
 
     /**
      * Validates against schema the given IEC 61968-100 message.
-     * Note that schema validation has impact on the performance.
+     * Note that schema validation has impact on the performance. The schema is compiled only once (see {@link XMLSchemaRegistry}).
+     * If the schema cannot be found in the classpath the message is not validated (a warning is logged).
      * @param stringMessage A String representation of the xml message
      * @throws SAXException If the message is not valid against schema.
      */
     public static void validateMessage(final StringBuilder stringMessage) throws SAXException {
 
         try {
-            ClassLoader loader = Thread.currentThread().getContextClassLoader();
-            URL schemaUrl = loader.getResource(IEC_61968_100_SCHEMA_FILE);
+            XMLSchemaRegistry.validate(XMLSchemaRegistry.IEC_61968_100_SCHEMA, stringMessage);
+
+        } catch (FileNotFoundException e) {
 
-            SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            Schema schema = schemaFactory.newSchema(schemaUrl);
-            Validator validator = schema.newValidator();
-            validator.validate(new StreamSource(new StringReader(stringMessage.toString())));
+            Logger.getLogger(".").log(Level.WARNING, "Unable to find the message schema, message is not validated", e); //$NON-NLS-1$ //$NON-NLS-2$
 
-        } catch (IOException | NullPointerException e) {
+        } catch (IOException e) {
 
             /* Ignore IOException. */
             Logger.getLogger(".").log(Level.FINE, "Unable to read message", e); //$NON-NLS-1$ //$NON-NLS-2$
         }
     }
+
+    /**
+     * Parses the given IEC 61968-100 message into a DOM validating it against schema in the same pass, so the
+     * message is read only once (instead of {@link #validateMessage(StringBuilder)} and then {@link XMLUtil#string2Document(StringBuilder)}).
+     * Note that comments are not included in the returned document.
+     * @param stringMessage A String representation of the xml message.
+     * @return Parsed message.
+     * @throws SAXException If the message is not well formed or it is not valid against schema.
+     * @throws IOException If the message or the schema cannot be read.
+     * @throws ParserConfigurationException If the current configuration does not support xml parsing.
+     */
+    public static Document parseValidMessage(final StringBuilder stringMessage) throws SAXException, IOException, ParserConfigurationException {
+        return XMLSchemaRegistry.parse(XMLSchemaRegistry.IEC_61968_100_SCHEMA, new InputSource(new CharSequenceReader(stringMessage)));
+    }
+
+    /**
+     * Unmarshalls the given IEC 61968-100 message validating it against schema in the same pass, so the
+     * message is read only once (instead of {@link #validateMessage(StringBuilder)} and then unmarshalling it).
+     * @param stringMessage A String representation of the xml message.
+     * @param classType Class of the message (<code>RequestMessage</code>, <code>ResponseMessage</code> or <code>FaultMessage</code>).
+     * @return Unmarshalled message.
+     * @throws SAXException If the message is not well formed or it is not valid against schema.
+     * @throws IOException If the message or the schema cannot be read.
+     * @throws ParserConfigurationException If the current configuration does not support xml parsing.
+     * @throws JAXBException If the message cannot be unmarshalled into the given class.
+     */
+    public static Object unmarshalValidMessage(final StringBuilder stringMessage, final Class<?> classType)
+            throws SAXException, IOException, ParserConfigurationException, JAXBException {
+        return XMLSchemaRegistry.unmarshal(XMLSchemaRegistry.IEC_61968_100_SCHEMA, new InputSource(new CharSequenceReader(stringMessage)), classType);
+    }
     
     /**
      * Returns the operation response's payload content as a String.
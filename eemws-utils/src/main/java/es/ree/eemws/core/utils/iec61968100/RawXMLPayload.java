@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+
+package es.ree.eemws.core.utils.iec61968100;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+import es.ree.eemws.core.utils.xml.ByteBufferInputStream;
+
+/**
+ * XML payload already serialized as UTF-8 bytes. The bytes are written verbatim in the message payload
+ * (see {@link MessageUtil#writeRequestWithPayload(String, String, RawXMLPayload, OutputStream)}) instead of
+ * being parsed into a DOM <code>Element</code> only to be serialized again.
+ * <p>The document is checked to be well formed when the payload is created: it is read once with a
+ * streaming parser, so no tree is built and memory use does not depend on the document size.
+ * The xml declaration (and the byte order mark, if any) is not part of the payload, since the payload
+ * is embedded in another document. Documents with a DTD or with an encoding other than UTF-8 are rejected.
+ * <p>The bytes are not copied and must not be modified while the payload is in use. Big files can be
+ * sent without reading them into the heap using a mapped buffer (see {@link es.ree.eemws.core.utils.file.FileUtil#mapUTF8(String)}).
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class RawXMLPayload {
+
+    /** StAX factory (thread safe). */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    /** Mask to read a byte as an unsigned value. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** UTF-8 byte order mark. */
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    /** Start of the xml declaration. */
+    private static final byte[] XML_DECLARATION_START = "<?xml".getBytes(StandardCharsets.US_ASCII); //$NON-NLS-1$
+
+    /** End of the xml declaration. */
+    private static final byte[] XML_DECLARATION_END = "?>".getBytes(StandardCharsets.US_ASCII); //$NON-NLS-1$
+
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /** Payload bytes (without xml declaration), position zero. */
+    private final ByteBuffer bytes;
+
+    /** Root element local name. */
+    private final String rootTag;
+
+    /**
+     * Creates a new payload with the given UTF-8 encoded document. The bytes are not copied.
+     * @param xml UTF-8 encoded xml document.
+     * @throws SAXException If the document is not well formed, has a DTD or is not UTF-8 encoded.
+     */
+    public RawXMLPayload(final byte[] xml) throws SAXException {
+        this(ByteBuffer.wrap(xml));
+    }
+
+    /**
+     * Creates a new payload with the remaining bytes (UTF-8 encoded document) of the given buffer.
+     * The bytes are not copied and the buffer position and limit are not modified.
+     * @param xml UTF-8 encoded xml document.
+     * @throws SAXException If the document is not well formed, has a DTD or is not UTF-8 encoded.
+     */
+    public RawXMLPayload(final ByteBuffer xml) throws SAXException {
+        rootTag = checkWellFormed(xml.duplicate());
+        ByteBuffer content = xml.duplicate();
+        content.position(content.position() + getPrologLength(content));
+        bytes = content.slice();
+    }
+
+    /**
+     * Returns the payload root element local name.
+     * @return Root element local name.
+     */
+    public String getRootTag() {
+        return rootTag;
+    }
+
+    /**
+     * Returns the payload length in bytes (the xml declaration is not included).
+     * @return Payload length in bytes.
+     */
+    public int getLength() {
+        return bytes.remaining();
+    }
+
+    /**
+     * Returns the payload bytes as a buffer that shares them with this payload (no bytes are copied).
+     * @return Payload bytes (read only).
+     */
+    public ByteBuffer getBytes() {
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the payload bytes to the given stream. The stream is neither flushed nor closed.
+     * @param out Destination stream.
+     * @throws IOException If the payload cannot be written.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+        } else {
+            writeTo(Channels.newChannel(out));
+        }
+    }
+
+    /**
+     * Writes the payload bytes to the given channel. Bytes are written straight from the payload buffer
+     * (no heap copy for direct or mapped buffers).
+     * @param out Destination channel.
+     * @return Number of bytes written.
+     * @throws IOException If the payload cannot be written.
+     */
+    public long writeTo(final WritableByteChannel out) throws IOException {
+        long retValue = 0;
+        ByteBuffer src = bytes.duplicate();
+        while (src.hasRemaining()) {
+            retValue += out.write(src);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the payload as a String.
+     * @return Payload decoded as a String.
+     */
+    @Override
+    public String toString() {
+        String retValue;
+        if (bytes.hasArray()) {
+            retValue = new String(bytes.array(), bytes.arrayOffset(), bytes.remaining(), StandardCharsets.UTF_8);
+        } else {
+            byte[] b = new byte[bytes.remaining()];
+            bytes.duplicate().get(b);
+            retValue = new String(b, StandardCharsets.UTF_8);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Reads the whole document with a streaming parser to check that it is well formed.
+     * @param xml UTF-8 encoded xml document. Its position is modified.
+     * @return Root element local name.
+     * @throws SAXException If the document is not well formed, has a DTD or is not UTF-8 encoded.
+     */
+    private static String checkWellFormed(final ByteBuffer xml) throws SAXException {
+        String retValue = null;
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteBufferInputStream(xml), StandardCharsets.UTF_8.name());
+            String encoding = reader.getCharacterEncodingScheme();
+            if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+                throw new SAXException("Payload must be UTF-8 encoded [encoding=" + encoding + "]"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD) {
+                    throw new SAXException("Payload must not have a DTD"); //$NON-NLS-1$
+                }
+                if (event == XMLStreamConstants.START_ELEMENT && retValue == null) {
+                    retValue = reader.getLocalName();
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new SAXException(e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+
+                    /* Nothing to do, the document has been read. */
+                }
+            }
+        }
+
+        if (retValue == null) {
+            throw new SAXException("Payload has no root element"); //$NON-NLS-1$
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the length of the prolog part that cannot be embedded in another document: byte order mark
+     * and xml declaration (the whitespace after them is included).
+     * @param xml Well formed UTF-8 encoded document.
+     * @return Number of bytes to skip, from the buffer position.
+     */
+    private static int getPrologLength(final ByteBuffer xml) {
+        int start = xml.position();
+        int pos = start;
+        if (startsWith(xml, pos, UTF8_BOM)) {
+            pos += UTF8_BOM.length;
+        }
+
+        if (startsWith(xml, pos, XML_DECLARATION_START)) {
+            while (!startsWith(xml, pos, XML_DECLARATION_END)) {
+                pos++;
+            }
+            pos += XML_DECLARATION_END.length;
+            while (pos < xml.limit() && Character.isWhitespace(xml.get(pos) & BYTE_MASK)) {
+                pos++;
+            }
+        }
+
+        return pos - start;
+    }
+
+    /**
+     * Checks whether the given bytes are found at the given position.
+     * @param xml Buffer to check.
+     * @param pos Absolute position in the buffer.
+     * @param prefix Bytes to look for.
+     * @return <code>true</code> if the buffer has the given bytes at the given position.
+     */
+    private static boolean startsWith(final ByteBuffer xml, final int pos, final byte[] prefix) {
+        boolean retValue = pos + prefix.length <= xml.limit();
+        for (int i = 0; retValue && i < prefix.length; i++) {
+            retValue = xml.get(pos + i) == prefix[i];
+        }
+
+        return retValue;
+    }
+}
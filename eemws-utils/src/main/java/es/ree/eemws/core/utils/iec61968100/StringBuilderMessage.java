@@ -22,6 +22,12 @@
 package es.ree.eemws.core.utils.iec61968100;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.parsers.ParserConfigurationException;
@@ -33,6 +39,8 @@ import org.xml.sax.SAXException;
 import _504.iec62325.wss._1._0.MsgFaultMsg;
 import ch.iec.tc57._2011.schema.message.FaultMessage;
 import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.CharSequenceSlice;
+import es.ree.eemws.core.utils.xml.XMLElementIndex;
 import es.ree.eemws.core.utils.xml.XMLElementUtil;
 import es.ree.eemws.core.utils.xml.XMLUtil;
 
@@ -40,13 +48,16 @@ import es.ree.eemws.core.utils.xml.XMLUtil;
  * Handles IEC-61968-100 messages as a string instead of as a set of beans classes.
  * This is specillay useful for handler procesing where the message is not already modeled as beans.
  * Note that IEC-61968-100 message could be a RequestMessage a ResponseMessage or a FaultMessage
+ * The message is scanned just once (lazily, the first time an element is requested), further
+ * requests use the element offsets found in that scan. Header values (verb and noun) are read scanning
+ * only the message header.
  * @author Red Eléctrica de España S.A.U.
- * @version 1.1 11/10/2015
+ * @version 1.5 17/10/2016
  */
 public final class StringBuilderMessage {
 
     /** Payload element name. */
-    private static final String TAG_MSG_PAYLOAD = "Payload"; //$NON-NLS-1$
+    static final String TAG_MSG_PAYLOAD = "Payload"; //$NON-NLS-1$
 
     /** Format element name. */
     private static final String TAG_MSG_FORMAT = "Format"; //$NON-NLS-1$
@@ -67,22 +78,37 @@ public final class StringBuilderMessage {
     private static final int MAX_LENGTH_TEST = 100;
 
     /** XML start tag character. */
-    private static final int START_TAG_CHAR = '<';
+    private static final char START_TAG_CHAR = '<';
 
-    /** Soap body tag. */
-    private static final String SOAP_BODY_TAG = "Body"; //$NON-NLS-1$
+    /** Header elements read without scanning the whole message (mandatory in every message). */
+    static final Set<String> HEADER_ELEMENTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(EnumVerb.ELEMENT_VERB, EnumNoun.ELEMENT_NOUN)));
 
     /**  IEC-61968-100 message a string. */
     private StringBuilder messageStr = null;
 
+    /** Element offsets of the current message, <code>null</code> until an element is requested. */
+    private XMLElementIndex index = null;
+
+    /** Message length when the index was built, used to detect changes in the message. */
+    private int indexedLength = -1;
+
+    /** Header values of the current message, <code>null</code> until a header value is requested. */
+    private Map<String, String> header = null;
+
+    /** Message from which the header values were read. */
+    private StringBuilder headerMessage = null;
+
+    /** Message length when the header values were read, used to detect changes in the message. */
+    private int headerLength = -1;
+
     /**
-     * Creates a new message from the soap message context.
+     * Creates a new message from the soap message context. Only the soap body content is serialized.
      * @param context Soap message context.
      * @throws SOAPException If it's not possible to transform the incoming message into a string.
      */
     public StringBuilderMessage(final SOAPMessageContext context) throws SOAPException {
         try {
-            messageStr = new StringBuilder(XMLUtil.getNodeValue(SOAP_BODY_TAG, new StringBuilder(XMLUtil.soapMessage2String(context.getMessage()))));
+            messageStr = XMLUtil.soapBody2StringBuilder(context.getMessage());
         } catch (NullPointerException e) {
             throw new SOAPException(Messages.getString("IEC_UNABLE_TO_RETRIEVE_FROM_CONTEXT"), e); //$NON-NLS-1$
         }
@@ -102,6 +128,8 @@ public final class StringBuilderMessage {
      */
     public void setStringMessage(final StringBuilderMessage anotherMessage) {
         messageStr = anotherMessage.getStringMessage();
+        index = null;
+        header = null;
     }
 
     /**
@@ -117,7 +145,7 @@ public final class StringBuilderMessage {
      * @return Message header noun.
      */
     public String getNoun() {
-        return getElement(EnumNoun.ELEMENT_NOUN);
+        return getHeaderElement(EnumNoun.ELEMENT_NOUN);
     }
 
     /**
@@ -125,7 +153,58 @@ public final class StringBuilderMessage {
      * @return Message header verb.
      */
     public String getVerb() {
-        return getElement(EnumVerb.ELEMENT_VERB);
+        return getHeaderElement(EnumVerb.ELEMENT_VERB);
+    }
+
+    /**
+     * Returns the values of the given elements (first occurrence of each one). All the values are retrieved
+     * in one scan of the message, that stops when all the elements are found.
+     * @param elementNames Element (tag) names which values we want to retrieve.
+     * @return Values of the elements found in the current message, by element name. Elements not found are not included.
+     * An empty map if the current message is null.
+     */
+    public Map<String, String> getElements(final Set<String> elementNames) {
+        Map<String, String> retValue;
+        if (messageStr == null) {
+            retValue = Collections.emptyMap();
+        } else if (isIndexed()) {
+            retValue = new HashMap<>();
+            for (String elementName : elementNames) {
+                String value = index.getValue(elementName);
+                if (value != null) {
+                    retValue.put(elementName, value);
+                }
+            }
+        } else {
+            retValue = XMLUtil.getNodeValues(elementNames, messageStr);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the node value of the given header element. Header elements are read together, scanning
+     * only the message header, unless the whole message is already indexed.
+     * @param elementName Header element (tag) name which value we want to retrieve.
+     * @return <code>null</code> if there is no such element in the current xml or
+     * the element value if exists.
+     */
+    private String getHeaderElement(final String elementName) {
+        String retValue = null;
+        if (messageStr != null) {
+            if (isIndexed()) {
+                retValue = index.getValue(elementName);
+            } else {
+                if (header == null || headerMessage != messageStr || headerLength != messageStr.length()) {
+                    headerMessage = messageStr;
+                    headerLength = messageStr.length();
+                    header = XMLUtil.getNodeValues(HEADER_ELEMENTS, messageStr);
+                }
+                retValue = header.get(elementName);
+            }
+        }
+
+        return retValue;
     }
 
     /**
@@ -136,16 +215,41 @@ public final class StringBuilderMessage {
      */
     private String getElement(final String elementName) {
         String retValue = null;
-        if (messageStr != null) {
-            retValue = XMLUtil.getNodeValue(elementName, messageStr);
-
+        XMLElementIndex idx = getIndex();
+        if (idx != null) {
+            retValue = idx.getValue(elementName);
         }
 
         return retValue;
     }
 
+    /**
+     * Returns the element index of the current message. The message is scanned the first time
+     * this method is called and again only if the message length has changed since then.
+     * @return Element index of the current message. <code>null</code> if the current message is null.
+     */
+    private XMLElementIndex getIndex() {
+        if (messageStr == null) {
+            index = null;
+        } else if (!isIndexed()) {
+            indexedLength = messageStr.length();
+            index = new XMLElementIndex(messageStr);
+        }
+
+        return index;
+    }
+
+    /**
+     * Checks whether the current message has an up to date index.
+     * @return <code>true</code> if the index was built from the current message and its length has not changed.
+     */
+    private boolean isIndexed() {
+        return index != null && index.getDocument() == messageStr && indexedLength == messageStr.length();
+    }
+
     /**
      * Returns the current IEC-61968-100 message without payload.
+     * The message is built using the payload position, the payload is neither copied nor searched.
      * @return Current IEC-61968-100 message without payload. 
      * <code>null</code> if the current message is null.
      * @see #getPayload()
@@ -154,16 +258,16 @@ public final class StringBuilderMessage {
         String retValue = null;
         
         if (messageStr != null) {
-            String payLoad = getPayload();
+            CharSequenceSlice payLoad = getPayloadAsCharSequence();
             if (payLoad == null) {
                 retValue = messageStr.toString();
             } else {
-                int pos = messageStr.indexOf(payLoad);
-                if (pos == -1) {
-                    retValue = messageStr.toString();
-                } else {
-                    retValue = messageStr.substring(0, pos) + messageStr.substring(pos + payLoad.length());
-                }
+                int start = payLoad.getOffset();
+                int end = start + payLoad.length();
+                int len = messageStr.length();
+                StringBuilder sb = new StringBuilder(len - payLoad.length());
+                sb.append(messageStr, 0, start).append(messageStr, end, len);
+                retValue = sb.toString();
             }
         }
 
@@ -174,33 +278,96 @@ public final class StringBuilderMessage {
      * Returns this message's payload. Note that for a Fault messages {@link #getFault()} must be used.
      * Note that the Format element (if present) is not returned.
      * @return Message payload or <code>null</code> if the current message has no payload.
+     * @see #getPayloadAsCharSequence()
      */
     public String getPayload() {
-        String payL = getElement(TAG_MSG_PAYLOAD);
+        String retValue = null;
+        CharSequenceSlice payLoad = getPayloadAsCharSequence();
+        if (payLoad != null) {
+            retValue = payLoad.toString();
+        }
 
-        if (payL != null) {
+        return retValue;
+    }
 
-            String testStr;
-            int payLen = payL.length();
-            if (payLen > MAX_LENGTH_TEST) {
-                testStr = payL.substring(payLen - MAX_LENGTH_TEST, payLen).trim();
-            } else {
-                testStr = payL.trim();
-            }
+    /**
+     * Returns this message's payload as a view of the current message, no characters are copied.
+     * Use this method to write large payloads (see {@link CharSequenceSlice#writeTo(java.io.Writer)}) without
+     * creating a String. Note that the view is valid as long as the message is not modified.
+     * Note that the Format element (if present) is not returned.
+     * @return Message payload view or <code>null</code> if the current message has no payload.
+     */
+    public CharSequenceSlice getPayloadAsCharSequence() {
+        CharSequenceSlice retValue = null;
+        XMLElementIndex idx = getIndex();
+
+        if (idx != null && idx.contains(TAG_MSG_PAYLOAD)) {
+            int start = idx.getContentStart(TAG_MSG_PAYLOAD);
+            int end = getPayloadEnd(messageStr, start, idx.getContentEnd(TAG_MSG_PAYLOAD));
+            retValue = new CharSequenceSlice(messageStr, start, end);
+        }
 
-            if (testStr.endsWith(EMPTY_FORMAT_TAG_END)) {
-                payL = payL.substring(0, payL.lastIndexOf(START_TAG_CHAR));
-            } else if (testStr.endsWith(NON_EMPTY_FORMAT_TAG_END)) {
-                int k = payL.lastIndexOf(START_TAG_CHAR) - 1;
-                while (payL.charAt(k) != START_TAG_CHAR && k > 0) {
-                    k--;
-                }
+        return retValue;
+    }
 
-                payL = payL.substring(0, k);
-            }
+    /**
+     * Returns the position where the payload ends, excluding the Format element (if present).
+     * Only the last characters of the payload are checked, the payload is not copied.
+     * @param message Message that contains the payload.
+     * @param start Position of the first payload character.
+     * @param end Position of the payload end tag.
+     * @return Position where the payload ends, excluding the Format element.
+     */
+    static int getPayloadEnd(final CharSequence message, final int start, final int end) {
+        int retValue = end;
+
+        int testEnd = end;
+        int testStart = Math.max(start, end - MAX_LENGTH_TEST);
+        while (testEnd > testStart && Character.isWhitespace(message.charAt(testEnd - 1))) {
+            testEnd--;
+        }
+
+        if (endsWith(message, testStart, testEnd, EMPTY_FORMAT_TAG_END)) {
+            retValue = lastStartTag(message, start, end - 1);
+        } else if (endsWith(message, testStart, testEnd, NON_EMPTY_FORMAT_TAG_END)) {
+            retValue = lastStartTag(message, start, lastStartTag(message, start, end - 1) - 1);
         }
 
-        return payL;
+        return Math.max(start, retValue);
+    }
+
+    /**
+     * Returns the position of the last start tag character before the given position.
+     * @param message Message to search.
+     * @param start Search lower limit.
+     * @param from Search start position (backwards).
+     * @return Position of the last start tag character, <code>start</code> if not found.
+     */
+    private static int lastStartTag(final CharSequence message, final int start, final int from) {
+        int k = from;
+        while (k > start && message.charAt(k) != START_TAG_CHAR) {
+            k--;
+        }
+
+        return k;
+    }
+
+    /**
+     * Checks whether the given message region ends with the given text.
+     * @param message Message to check.
+     * @param start Region start.
+     * @param end Region end (exclusive).
+     * @param text Text to check.
+     * @return <code>true</code> if the region ends with the given text.
+     */
+    private static boolean endsWith(final CharSequence message, final int start, final int end, final String text) {
+        int textLen = text.length();
+        boolean retValue = end - start >= textLen;
+        for (int cont = 1; retValue && cont <= textLen; cont++) {
+            retValue = message.charAt(end - cont) == text.charAt(textLen - cont);
+        }
+
+        return retValue;
     }
 
     /**
@@ -209,13 +376,23 @@ public final class StringBuilderMessage {
      * object otherwise.
      */
     public MsgFaultMsg getFault() {
+        return getFault(getIndex());
+    }
+
+    /**
+     * Returns the Fault of the given message index as a Fault object.
+     * @param idx Element index of a message.
+     * @return <code>null</code> if the index is null or if it is not a Fault message. A <code>MsgFaultMsg</code>
+     * object otherwise.
+     */
+    static MsgFaultMsg getFault(final XMLElementIndex idx) {
         MsgFaultMsg retValue = null;
 
-        if (messageStr != null) {
+        if (idx != null) {
             try {
-                FaultMessage fm = (FaultMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(XMLUtil.getNodeValue(TAG_MSG_FAULT, messageStr)), FaultMessage.class);
+                FaultMessage fm = (FaultMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(idx.getValue(TAG_MSG_FAULT)), FaultMessage.class);
 
-                String msg = XMLUtil.getNodeValue(TAG_DETAILS_FAULT, messageStr);
+                String msg = idx.getValue(TAG_DETAILS_FAULT);
                 if (msg == null) {
                     msg = ""; //$NON-NLS-1$
                 }
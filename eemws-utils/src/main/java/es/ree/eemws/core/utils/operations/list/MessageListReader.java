@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.operations.list;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import _504.iec62325.messages._1._0.MessageList;
+import es.ree.eemws.core.utils.xml.XMLElementUtil;
+import es.ree.eemws.core.utils.xml.XMLObjectPool;
+
+/**
+ * Reads the entries of a List response (<code>MessageList</code>) one by one, without unmarshalling the whole list:
+ * the document is read as a stream and only the current <code>Message</code> entry is unmarshalled. Memory use does
+ * not depend on the number of entries and the first entry is available as soon as it is read.
+ * The input can be the <code>MessageList</code> document or a whole response message that contains it.
+ * <pre>
+ * try (MessageListReader reader = new MessageListReader(in)) {
+ *     for (MessageList.Message msg = reader.read(); msg != null; msg = reader.read()) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Instances are not thread safe.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class MessageListReader implements Closeable {
+
+    /** Namespace of the IEC-62325-504 messages. */
+    private static final String MESSAGES_NAMESPACE = "urn:iec62325.504:messages:1:0"; //$NON-NLS-1$
+
+    /** List entry element name. */
+    private static final String MESSAGE_ELEMENT = "Message"; //$NON-NLS-1$
+
+    /** StAX factory (thread safe once configured). */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    /*
+     * Initializes the StAX factory.
+     */
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /** Document reader. */
+    private final XMLStreamReader reader;
+
+    /** Pool of the unmarshaller used to read the entries. */
+    private final XMLObjectPool<Unmarshaller, JAXBException> pool;
+
+    /** Unmarshaller used to read the entries, <code>null</code> once the reader is closed. */
+    private Unmarshaller unmarshaller;
+
+    /** Number of entries read. */
+    private int count = 0;
+
+    /**
+     * Creates a new reader of the given UTF-8 (or declared encoding) input. The input is not closed by this reader.
+     * @param in List response.
+     * @throws XMLStreamException If the input cannot be read.
+     * @throws JAXBException If the entries unmarshaller cannot be created.
+     */
+    public MessageListReader(final InputStream in) throws XMLStreamException, JAXBException {
+        this(XML_INPUT_FACTORY.createXMLStreamReader(in));
+    }
+
+    /**
+     * Creates a new reader of the given input. The input is not closed by this reader.
+     * @param in List response.
+     * @throws XMLStreamException If the input cannot be read.
+     * @throws JAXBException If the entries unmarshaller cannot be created.
+     */
+    public MessageListReader(final Reader in) throws XMLStreamException, JAXBException {
+        this(XML_INPUT_FACTORY.createXMLStreamReader(in));
+    }
+
+    /**
+     * Creates a new reader of the given document.
+     * @param xmlReader Document reader.
+     * @throws XMLStreamException If the document reader cannot be closed after an error.
+     * @throws JAXBException If the entries unmarshaller cannot be created.
+     */
+    private MessageListReader(final XMLStreamReader xmlReader) throws XMLStreamException, JAXBException {
+        reader = xmlReader;
+        pool = XMLElementUtil.getUnmarshallerPool(MessageList.class);
+        try {
+            unmarshaller = pool.borrow();
+        } catch (JAXBException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next list entry.
+     * @return Next list entry, <code>null</code> if there are no more entries.
+     * @throws XMLStreamException If the input cannot be read or it is not a well formed document.
+     * @throws JAXBException If an entry cannot be unmarshalled.
+     */
+    public MessageList.Message read() throws XMLStreamException, JAXBException {
+        MessageList.Message retValue = null;
+
+        if (unmarshaller != null && moveToNextEntry()) {
+            retValue = unmarshaller.unmarshal(reader, MessageList.Message.class).getValue();
+            count++;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the number of entries read.
+     * @return Number of entries read.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Closes this reader. The input is not closed.
+     * @throws IOException If the document reader cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (unmarshaller != null) {
+            pool.release(unmarshaller);
+            unmarshaller = null;
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Moves the document reader to the start of the next list entry.
+     * @return <code>true</code> if the reader is at the start of an entry, <code>false</code> if the document has no more entries.
+     * @throws XMLStreamException If the input cannot be read or it is not a well formed document.
+     */
+    private boolean moveToNextEntry() throws XMLStreamException {
+        boolean found = isEntryStart();
+        while (!found && reader.hasNext()) {
+            found = reader.next() == XMLStreamConstants.START_ELEMENT && isEntryStart();
+        }
+
+        return found;
+    }
+
+    /**
+     * Checks whether the document reader is at the start of a list entry.
+     * @return <code>true</code> if the reader is at the start of a list entry.
+     */
+    private boolean isEntryStart() {
+        return reader.isStartElement() && MESSAGE_ELEMENT.equals(reader.getLocalName()) && MESSAGES_NAMESPACE.equals(reader.getNamespaceURI());
+    }
+}
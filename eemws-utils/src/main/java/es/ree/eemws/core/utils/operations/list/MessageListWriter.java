@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.operations.list;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import _504.iec62325.messages._1._0.MessageList;
+import ch.iec.tc57._2011.schema.message.HeaderType;
+import ch.iec.tc57._2011.schema.message.ReplyType;
+import ch.iec.tc57._2011.schema.message.ResponseMessage;
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.iec61968100.EnumMessageStatus;
+import es.ree.eemws.core.utils.iec61968100.EnumNoun;
+import es.ree.eemws.core.utils.iec61968100.MessageUtil;
+import es.ree.eemws.core.utils.xml.XMLElementUtil;
+import es.ree.eemws.core.utils.xml.XMLObjectPool;
+
+/**
+ * Writes a List response (<code>MessageList</code>) entry by entry, UTF-8 encoded, as the entries are retrieved:
+ * neither the <code>MessageList</code> object nor a DOM are built, each entry is marshalled straight to the output.
+ * Memory use does not depend on the number of entries and the first bytes are written as soon as the first entry is.
+ * The output can be a whole <code>ResponseMessage</code> (as created by {@link MessageUtil#createResponseWithPayload(EnumNoun, EnumMessageStatus, org.w3c.dom.Element)})
+ * or just the <code>MessageList</code> document. Each namespace is declared once, in the <code>ResponseMessage</code> and
+ * <code>MessageList</code> start tags: the entries are written with the marshallers of their own package.
+ * <pre>
+ * try (MessageListWriter writer = new MessageListWriter(out, true)) {
+ *     for (...) {
+ *         writer.write(msg);
+ *     }
+ * }
+ * </pre>
+ * Instances are not thread safe.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class MessageListWriter implements Closeable {
+
+    /** Namespace of the IEC-61968-100 messages. */
+    private static final String MESSAGE_NAMESPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
+
+    /** Namespace of the IEC-62325-504 messages. */
+    private static final String MESSAGES_NAMESPACE = "urn:iec62325.504:messages:1:0"; //$NON-NLS-1$
+
+    /** Response message element name. */
+    private static final String RESPONSE_MESSAGE_ELEMENT = "ResponseMessage"; //$NON-NLS-1$
+
+    /** Header element. */
+    private static final QName HEADER_ELEMENT = new QName(MESSAGE_NAMESPACE, "Header"); //$NON-NLS-1$
+
+    /** Reply element. */
+    private static final QName REPLY_ELEMENT = new QName(MESSAGE_NAMESPACE, "Reply"); //$NON-NLS-1$
+
+    /** Payload element name. */
+    private static final String PAYLOAD_ELEMENT = "Payload"; //$NON-NLS-1$
+
+    /** List element name. */
+    private static final String MESSAGE_LIST_ELEMENT = "MessageList"; //$NON-NLS-1$
+
+    /** List entry element. */
+    private static final QName MESSAGE_ELEMENT = new QName(MESSAGES_NAMESPACE, "Message"); //$NON-NLS-1$
+
+    /** StAX factory (thread safe). */
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /** Document writer. */
+    private final XMLStreamWriter writer;
+
+    /** Pool of the marshaller used to write the entries. */
+    private final XMLObjectPool<Marshaller, JAXBException> pool;
+
+    /** Marshaller used to write the entries, <code>null</code> once the writer is closed. */
+    private Marshaller marshaller;
+
+    /** Number of entries written. */
+    private int count = 0;
+
+    /**
+     * Creates a new writer and writes the document start: response message header and reply (OK) if
+     * a whole response message is written and the list start tag.
+     * @param out Output. It is not closed by this writer.
+     * @param responseMessage <code>true</code> to write a whole <code>ResponseMessage</code> with the list as payload,
+     * <code>false</code> to write only the <code>MessageList</code> document.
+     * @throws XMLStreamException If the output cannot be written.
+     * @throws JAXBException If the response header cannot be written.
+     */
+    public MessageListWriter(final OutputStream out, final boolean responseMessage) throws XMLStreamException, JAXBException {
+        writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        pool = XMLElementUtil.getMarshallerPool(MessageList.class);
+        marshaller = pool.borrow();
+
+        boolean ok = false;
+        try {
+            if (responseMessage) {
+                ResponseMessage response = MessageUtil.createResponseWithNoPayload(EnumMessageStatus.OK);
+                response.getHeader().setNoun(EnumNoun.MESSAGE_LIST.toString());
+
+                writer.writeStartElement("", RESPONSE_MESSAGE_ELEMENT, MESSAGE_NAMESPACE); //$NON-NLS-1$
+                writer.writeDefaultNamespace(MESSAGE_NAMESPACE);
+                XMLObjectPool<Marshaller, JAXBException> responsePool = XMLElementUtil.getMarshallerPool(ResponseMessage.class);
+                Marshaller responseMarshaller = responsePool.borrow();
+                try {
+                    responseMarshaller.marshal(new JAXBElement<>(HEADER_ELEMENT, HeaderType.class, response.getHeader()), writer);
+                    responseMarshaller.marshal(new JAXBElement<>(REPLY_ELEMENT, ReplyType.class, response.getReply()), writer);
+                } finally {
+                    responsePool.release(responseMarshaller);
+                }
+                writer.writeStartElement("", PAYLOAD_ELEMENT, MESSAGE_NAMESPACE); //$NON-NLS-1$
+            }
+
+            writer.writeStartElement("", MESSAGE_LIST_ELEMENT, MESSAGES_NAMESPACE); //$NON-NLS-1$
+            writer.writeDefaultNamespace(MESSAGES_NAMESPACE);
+            ok = true;
+        } finally {
+            if (!ok) {
+                pool.release(marshaller);
+                marshaller = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a list entry.
+     * @param msg List entry.
+     * @throws JAXBException If the entry cannot be written.
+     * @throws IllegalStateException If the writer is closed.
+     */
+    public void write(final MessageList.Message msg) throws JAXBException {
+        if (marshaller == null) {
+            throw new IllegalStateException(Messages.getString("MESSAGE_LIST_WRITER_CLOSED")); //$NON-NLS-1$
+        }
+
+        marshaller.marshal(new JAXBElement<>(MESSAGE_ELEMENT, MessageList.Message.class, msg), writer);
+        count++;
+    }
+
+    /**
+     * Returns the number of entries written.
+     * @return Number of entries written.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the document end and flushes the output. The output is not closed.
+     * @throws IOException If the output cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (marshaller != null) {
+            pool.release(marshaller);
+            marshaller = null;
+            try {
+                writer.writeEndDocument();
+                writer.flush();
+                writer.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import javax.xml.bind.DatatypeConverter;
+
+import es.ree.eemws.core.utils.i18n.Messages;
+
+/**
+ * Cache of the trust decisions of the system trust store (<code>javax.net.ssl.trustStore</code>, or the java
+ * default one), used by {@link X509Util#checkCertificate(X509Certificate[])}. Validating a certificate path against
+ * the trust store is expensive and messages are signed by a few certificates, so once a certificate (chain) is trusted
+ * the decision is kept, by certificate fingerprint (SHA-256), until the earliest of:
+ * <ul>
+ * <li>The time to live, that can be set in seconds with the system property <code>CERTIFICATE_TRUST_CACHE_TTL</code>
+ * (default: one hour, <code>0</code> disables the cache).</li>
+ * <li>The expiration (<code>notAfter</code>) of the certificates of the chain.</li>
+ * <li>A change of the trust store: its system properties (file, type or password) or its file (modification time or size).
+ * The trust store is then loaded again and all the decisions are discarded.</li>
+ * </ul>
+ * Untrusted certificates are not cached, they are checked against the trust store every time. The number of cached decisions
+ * can be set with the system property <code>CERTIFICATE_TRUST_CACHE_SIZE</code> (default: 1024).
+ * The number of hits and misses is available as a metric ({@link #getHits()}, {@link #getMisses()}).
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class CertificateTrustCache {
+
+    /** TrustFactory algorimth names. */
+    private static final String[] ALGORITHM_NAMES = { "SunX509", "IbmX509" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /** Authentication type. */
+    private static final String AUTHENTICATION_TYPE = "RSA"; //$NON-NLS-1$
+
+    /** Java parameter name to set a trust store file. */
+    private static final String SYSTEM_TRUST_STORE_FILE = "javax.net.ssl.trustStore"; //$NON-NLS-1$
+
+    /** Java parameter name to set a trust store type. */
+    private static final String SYSTEM_TRUST_STORE_TYPE = "javax.net.ssl.trustStoreType"; //$NON-NLS-1$
+
+    /** Java parameter name to set the trust store password. */
+    private static final String SYSTEM_TRUST_STORE_PASSWORD = "javax.net.ssl.trustStorePassword"; //$NON-NLS-1$
+
+    /** Default trust store password. */
+    private static final String DEFAULT_TRUST_STORE_PASSWORD = ""; //$NON-NLS-1$
+
+    /** Java installation directory property. */
+    private static final String JAVA_HOME = "java.home"; //$NON-NLS-1$
+
+    /** Java default trust store (used if it exists). */
+    private static final String JSSE_CA_CERTS = "lib" + File.separator + "security" + File.separator + "jssecacerts"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    /** Java default trust store. */
+    private static final String CA_CERTS = "lib" + File.separator + "security" + File.separator + "cacerts"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    /** Fingerprint digest algorithm. */
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+    /** System property to set the time (seconds) a trust decision is kept. */
+    private static final String TTL_PROPERTY = "CERTIFICATE_TRUST_CACHE_TTL"; //$NON-NLS-1$
+
+    /** Default time (seconds) a trust decision is kept (one hour). */
+    private static final int DEFAULT_TTL = 3600;
+
+    /** System property to set the max number of cached trust decisions. */
+    private static final String SIZE_PROPERTY = "CERTIFICATE_TRUST_CACHE_SIZE"; //$NON-NLS-1$
+
+    /** Default max number of cached trust decisions. */
+    private static final int DEFAULT_SIZE = 1024;
+
+    /** Milliseconds per second. */
+    private static final long MS_PER_SECOND = 1000L;
+
+    /** Time (ms) a trust decision is kept. */
+    private static final long TTL = Integer.getInteger(TTL_PROPERTY, DEFAULT_TTL) * MS_PER_SECOND;
+
+    /** Max number of cached trust decisions. */
+    private static final int SIZE = Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE);
+
+    /** Lock for the trust store loads. */
+    private static final Object LOCK = new Object();
+
+    /** Number of checks answered by the cache. */
+    private static final AtomicLong HITS = new AtomicLong();
+
+    /** Number of checks made against the trust store. */
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /** Current trust store, <code>null</code> if it was not loaded yet. */
+    private static volatile TrustStore trustStore = null;
+
+    /**
+     * Constructor.
+     */
+    private CertificateTrustCache() {
+
+        /* This method should not be implemented. */
+    }
+
+    /**
+     * Checks whether the given certificate chain is trusted by the system trust store.
+     * @param x509Certs Certificates to be validated.
+     * @throws CertificateException If the certificates are not trusted.
+     */
+    static void checkTrusted(final X509Certificate[] x509Certs) throws CertificateException {
+
+        TrustStore store = getTrustStore();
+        String fingerprint = getFingerprint(x509Certs);
+        long now = System.currentTimeMillis();
+
+        Long expiry = null;
+        if (fingerprint != null) {
+            expiry = store.decisions.get(fingerprint);
+        }
+
+        if (expiry != null && now < expiry.longValue()) {
+            HITS.incrementAndGet();
+        } else {
+            MISSES.incrementAndGet();
+            store.trustManager.checkClientTrusted(x509Certs, AUTHENTICATION_TYPE);
+            if (fingerprint != null && TTL > 0) {
+                store.put(fingerprint, getExpiry(x509Certs, now));
+            }
+        }
+    }
+
+    /**
+     * Discards all the trust decisions, the trust store is loaded again on the next check.
+     */
+    public static void invalidate() {
+        trustStore = null;
+    }
+
+    /**
+     * Returns the number of checks answered by the cache.
+     * @return Number of cache hits.
+     */
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * Returns the number of checks made against the trust store (not cached or expired decisions and untrusted certificates).
+     * @return Number of cache misses.
+     */
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    /**
+     * Returns the time when the trust decision of the given chain made at the given time expires.
+     * @param x509Certs Trusted certificates.
+     * @param now Decision time (ms).
+     * @return Decision expiration time (ms): the earliest of the time to live and the certificates expiration.
+     */
+    static long getExpiry(final X509Certificate[] x509Certs, final long now) {
+        long retValue = now + TTL;
+        for (X509Certificate x509Cert : x509Certs) {
+            retValue = Math.min(retValue, x509Cert.getNotAfter().getTime());
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the fingerprint of the given chain.
+     * @param x509Certs Certificates.
+     * @return Fingerprint (hexadecimal) of the chain. <code>null</code> if a certificate has no encoded form.
+     * @throws CertificateException If a certificate cannot be encoded.
+     */
+    private static String getFingerprint(final X509Certificate[] x509Certs) throws CertificateException {
+
+        String retValue = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+            boolean encoded = x509Certs.length > 0;
+            for (int cont = 0; encoded && cont < x509Certs.length; cont++) {
+                byte[] bytes = x509Certs[cont] == null ? null : x509Certs[cont].getEncoded();
+                encoded = bytes != null;
+                if (encoded) {
+                    digest.update(bytes);
+                }
+            }
+
+            if (encoded) {
+                retValue = DatatypeConverter.printHexBinary(digest.digest());
+            }
+
+        } catch (NoSuchAlgorithmException e) { //NOSONAR - We specifically do not want to propagate nor log this exception
+
+            /* No fingerprint, the decision is not cached. */
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the current system trust store, it is loaded again if it has changed.
+     * @return Current system trust store.
+     */
+    private static TrustStore getTrustStore() {
+
+        String trustStoreFile = System.getProperty(SYSTEM_TRUST_STORE_FILE);
+        if (trustStoreFile == null) {
+            String javaHome = System.getProperty(JAVA_HOME);
+            trustStoreFile = javaHome + File.separator + JSSE_CA_CERTS;
+            if (!new File(trustStoreFile).exists()) {
+                trustStoreFile = javaHome + File.separator + CA_CERTS;
+            }
+        }
+
+        String trustStoreType = System.getProperty(SYSTEM_TRUST_STORE_TYPE, KeyStore.getDefaultType());
+        String trustStorePasswd = System.getProperty(SYSTEM_TRUST_STORE_PASSWORD, DEFAULT_TRUST_STORE_PASSWORD);
+        File file = new File(trustStoreFile);
+
+        TrustStore retValue = trustStore;
+        if (retValue == null || !retValue.isLoadedFrom(trustStoreFile, trustStoreType, trustStorePasswd, file.lastModified(), file.length())) {
+            synchronized (LOCK) {
+                retValue = trustStore;
+                if (retValue == null || !retValue.isLoadedFrom(trustStoreFile, trustStoreType, trustStorePasswd, file.lastModified(), file.length())) {
+                    retValue = new TrustStore(trustStoreFile, trustStoreType, trustStorePasswd, file.lastModified(), file.length(), newTrustManager());
+                    trustStore = retValue;
+                }
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Creates a new trust manager with the system trust store.
+     * @return Trust manager that validates that the given certificate was issued by a trusted CA.
+     */
+    private static X509TrustManager newTrustManager() {
+        TrustManagerFactory tmf = null;
+
+        for (int cont = 0; tmf == null && cont < ALGORITHM_NAMES.length; cont++) {
+            try {
+                tmf = TrustManagerFactory.getInstance(ALGORITHM_NAMES[cont]);
+            } catch (NoSuchAlgorithmException e) { //NOSONAR - We specifically do not want to propagate nor log this exception
+
+                /* No algorithm[i] available, try next one... */
+            }
+        }
+
+        if (tmf == null) {
+            throw new IllegalStateException(Messages.getString("SECURITY_NO_TRUST_VALIDATOR")); //$NON-NLS-1$
+
+        }
+
+        try {
+            tmf.init((KeyStore) null);
+            return (X509TrustManager) tmf.getTrustManagers()[0];
+        } catch (KeyStoreException e) {
+            throw new IllegalStateException(Messages.getString("SECURITY_UNABLE_TO_INITIALIZE_TRUST_VALIDATOR", tmf.getAlgorithm()), e); //$NON-NLS-1$
+
+        }
+    }
+
+    /**
+     * Trust manager of a trust store and its trust decisions.
+     */
+    private static final class TrustStore {
+
+        /** Trust store file. */
+        private final String file;
+
+        /** Trust store type. */
+        private final String type;
+
+        /** Trust store password. */
+        private final String password;
+
+        /** Trust store file modification time when it was loaded. */
+        private final long lastModified;
+
+        /** Trust store file size when it was loaded. */
+        private final long length;
+
+        /** Trust manager of the trust store. */
+        private final X509TrustManager trustManager;
+
+        /** Expiration time (ms) of the trusted decisions, by chain fingerprint. */
+        private final Map<String, Long> decisions = new ConcurrentHashMap<>();
+
+        /**
+         * Creates a new trust store.
+         * @param trustStoreFile Trust store file.
+         * @param trustStoreType Trust store type.
+         * @param trustStorePasswd Trust store password.
+         * @param fileLastModified Trust store file modification time.
+         * @param fileLength Trust store file size.
+         * @param manager Trust manager of the trust store.
+         */
+        TrustStore(final String trustStoreFile, final String trustStoreType, final String trustStorePasswd, final long fileLastModified,
+                final long fileLength, final X509TrustManager manager) {
+            file = trustStoreFile;
+            type = trustStoreType;
+            password = trustStorePasswd;
+            lastModified = fileLastModified;
+            length = fileLength;
+            trustManager = manager;
+        }
+
+        /**
+         * Checks whether this trust store was loaded from the given (unchanged) file.
+         * @param trustStoreFile Current trust store file.
+         * @param trustStoreType Current trust store type.
+         * @param trustStorePasswd Current trust store password.
+         * @param fileLastModified Current trust store file modification time.
+         * @param fileLength Current trust store file size.
+         * @return <code>true</code> if this trust store was loaded from the given file, type and password and the file has not changed.
+         */
+        boolean isLoadedFrom(final String trustStoreFile, final String trustStoreType, final String trustStorePasswd, final long fileLastModified,
+                final long fileLength) {
+            return file.equals(trustStoreFile) && type.equals(trustStoreType) && password.equals(trustStorePasswd) && lastModified == fileLastModified
+                && length == fileLength;
+        }
+
+        /**
+         * Keeps a trust decision. If the cache is full the expired decisions are discarded, and all of them if none is expired.
+         * @param fingerprint Chain fingerprint.
+         * @param expiry Decision expiration time (ms).
+         */
+        void put(final String fingerprint, final long expiry) {
+            if (decisions.size() >= SIZE) {
+                long now = System.currentTimeMillis();
+                Iterator<Long> iter = decisions.values().iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().longValue() <= now) {
+                        iter.remove();
+                    }
+                }
+
+                if (decisions.size() >= SIZE) {
+                    decisions.clear();
+                }
+            }
+
+            decisions.put(fingerprint, Long.valueOf(expiry));
+        }
+    }
+}
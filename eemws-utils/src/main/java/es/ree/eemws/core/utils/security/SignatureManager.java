@@ -20,46 +20,26 @@
  */
 package es.ree.eemws.core.utils.security;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.GeneralSecurityException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.Iterator;
-import java.util.List;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.crypto.MarshalException;
-import javax.xml.crypto.dsig.CanonicalizationMethod;
-import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Reference;
-import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.crypto.dsig.SignedInfo;
-import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.crypto.dsig.dom.DOMSignContext;
 import javax.xml.crypto.dsig.dom.DOMValidateContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.keyinfo.X509Data;
-import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
-import javax.xml.crypto.dsig.spec.TransformParameterSpec;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
@@ -76,63 +56,24 @@ import es.ree.eemws.core.utils.xml.XMLUtil;
  * Simple class to deal with xml signature.
  * The signature can be invoked with xml as String or as a Document.
  * If no certitifcate is provided, the class will use the default java ssl key store certificate.
- * The validation can be also invoked with xml as String or as a Document.
+ * The validation can be also invoked with xml as String or as a Document, or with a stream for big documents.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.0 13/06/2014
+ * @version 1.5 17/10/2016
  */
 public final class SignatureManager {
 
-    /** Signature URI ("" = means the whole document). */
-    private static final String SIGNATURE_URI = ""; //$NON-NLS-1$
-
     /** The type of the XML processing mechanism and representation. */
     private static final String SIGNATURE_FACTORY_TYPE = "DOM"; //$NON-NLS-1$
 
-    /** Digest method. */
-    private static final String DIGEST_METHOD = DigestMethod.SHA256;
-    
-    /** SHA1 digest method. Use this only in old enviroments where SHA-2 is not supported. */
-    private static final String LEGACY_SHA1_DIGEST_METHOD = DigestMethod.SHA1;
-
-    /** Canonicalization method. */
-    private static final String CANONICALIZATION_METHOD = CanonicalizationMethod.INCLUSIVE;
-    
     /** Name of the system property to be set in order to to use SHA1 algorithm for digest and signature. */
     private static final String USE_LEGACY_SHA1_SYSTEM_FLAG = "USE_LEGACY_SHA1"; //$NON-NLS-1$
 
-    /** Signature method. */
-    private static final String SIGNATURE_METHOD = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"; //$NON-NLS-1$
-     
-    /** RSA-SHA1 Signature method. Use this only in old enviroments where SHA-2 is not supported. */
-    private static final String LEGACY_SHA1_SIGNATURE_METHOD = SignatureMethod.RSA_SHA1;
-    
-    /** Transform method. */
-    private static final String TRANSFORM = Transform.ENVELOPED;
-
-    /** Tag where the signature result is going to be placed. */
-    private static final String HEADER_TAG = "Header"; //$NON-NLS-1$
-
-    /** Name space of the tag where the signature is going to be placed. */
-    private static final String HEADER_NAME_SPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
-
-    /** Java parameter name to set a key store type. */
-    private static final String SYSTEM_KEY_STORE_TYPE = "javax.net.ssl.keyStoreType"; //$NON-NLS-1$
-
-    /** Default user's key store type. */
-    private static final String DEFAULT_KEY_STORE_TYPE = "PKCS12"; //$NON-NLS-1$
-
-    /** Java parameter name to set the key store password. */
-    private static final String SYSTEM_KEY_STORE_PASSWORD = "javax.net.ssl.keyStorePassword"; //$NON-NLS-1$
-
-    /** Default user's key store password. */
-    private static final String DEFAULT_KEY_STORE_PASSWORD = ""; //$NON-NLS-1$
-
-    /** Java parameter name to set a key store file. */
-    private static final String SYSTEM_KEY_STORE_FILE = "javax.net.ssl.keyStore"; //$NON-NLS-1$
-
     /** Signature tag. */
     private static final String SIGNATURE_TAG = "Signature"; //$NON-NLS-1$
+
+    /** Signing context of the last key and certificate given to sign, <code>null</code> until a document is signed with a given key. */
+    private static volatile SigningContext lastSigningContext = null;
     
     /**
      * Constructor.
@@ -249,6 +190,22 @@ public final class SignatureManager {
         return x509;
     }
 
+    /**
+     * Verifies the signature of the given signed document as it is read, without building its DOM, so the memory
+     * needed does not depend on the document size. Only the signatures created by {@link #signDocument(Document)}
+     * (enveloped, inclusive canonicalization, SHA-256 and RSA-SHA256) are supported, see {@link StreamingSignatureVerifier}.
+     * The stream is not closed.
+     * @param msgAsStream The document to be validated.
+     * @return X509 Key used in signature.
+     * @throws SignatureVerificationException If the document cannot be validated or if its signature is invalid.
+     * @throws SignatureSyntaxException If the given signature has an invalid structure (syntaxis) or it is not supported (other profile or a document with DTD).
+     * @see #verifyDocument(Document)
+     */
+    public static X509Certificate verifyStream(final InputStream msgAsStream) throws SignatureVerificationException, SignatureSyntaxException {
+
+        return StreamingSignatureVerifier.verify(msgAsStream);
+    }
+
     /**
      * Signs the given xml document usign the given private key and certificate.
      * @param msgAsDocument The document to be signed, the result of the process will be returned in this parameter.
@@ -262,71 +219,31 @@ public final class SignatureManager {
     }
 
     /**
-     * Signs the given xml document usign the default keystore.
+     * Signs the given xml document usign the default keystore. The key store is loaded once and
+     * cached, see {@link SigningCredentialCache}.
      * @param msgAsDocument The document to be signed, the result of the process will be returned in this parameter.
      * @throws SignatureManagerException If it's impossible to sign the document.
      * @see #signString(StringBuilder)
      */
     public static void signDocument(final Document msgAsDocument) throws SignatureManagerException {
 
-        RSAPrivateKey privateKey = null;
-        X509Certificate certificate = null;
-
-        String keyStoreFile = System.getProperty(SYSTEM_KEY_STORE_FILE);
-        if (keyStoreFile == null) {
-
-            throw new SignatureManagerException(Messages.getString("SECURITY_NO_SYSTEM_KEY_STORE",  SYSTEM_KEY_STORE_FILE)); //$NON-NLS-1$
-        }
-
-        String keyStorePasswd = System.getProperty(SYSTEM_KEY_STORE_PASSWORD, DEFAULT_KEY_STORE_PASSWORD);
-        String keyStoreType = System.getProperty(SYSTEM_KEY_STORE_TYPE, DEFAULT_KEY_STORE_TYPE);
-
-        try (InputStream keystoreInputStream = new FileInputStream(keyStoreFile)) {
-
-            KeyStore ks = KeyStore.getInstance(keyStoreType);
-            ks.load(keystoreInputStream, keyStorePasswd.toCharArray());
-
-            Enumeration<String> keyAlias = ks.aliases();
-            String entryAlias = null;
-            boolean okAlias = false;
-            Exception cause = null;
-
-            while (!okAlias && keyAlias.hasMoreElements()) {
-
-                try {
-
-                    entryAlias = keyAlias.nextElement();
-                    privateKey = (RSAPrivateKey) ks.getKey(entryAlias, keyStorePasswd.toCharArray());
-                    certificate = (X509Certificate) ks.getCertificate(entryAlias);
-                    certificate.checkValidity();
-                    okAlias = (privateKey != null);                    
-
-                } catch (CertificateException | UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
-
-                    okAlias = false;
-                    cause = e;
-                }
-            }
-
-            if (!okAlias) {
-
-                throw new SignatureManagerException(Messages.getString("SECURITY_NO_USABLE_CERTIFICATE_FOUND"), cause); //$NON-NLS-1$
-            }
-
-        } catch (FileNotFoundException e) {
-
-            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_READ_KEY_STORE", keyStoreFile, SYSTEM_KEY_STORE_FILE), e); //$NON-NLS-1$ 
-
-        } catch (IOException | CertificateException | NoSuchAlgorithmException e) {
-
-            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_LOAD_KEY_STORE", keyStoreFile, SYSTEM_KEY_STORE_TYPE, SYSTEM_KEY_STORE_PASSWORD), e); //$NON-NLS-1$
-
-        } catch (KeyStoreException e) {
+        SigningCredential credential = SigningCredentialCache.getDefault();
+        credential.getSigningContext(System.getProperty(USE_LEGACY_SHA1_SYSTEM_FLAG) != null).sign(msgAsDocument);
+    }
 
-            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_GET_KEY_STORE", keyStoreType, SYSTEM_KEY_STORE_TYPE), e); //$NON-NLS-1$
-        }
+    /**
+     * Signs the given UTF-8 encoded IEC 61968-100 message using the default keystore, without building its DOM.
+     * The signed message is written to the given stream, see {@link SigningContext#sign(ByteBuffer, OutputStream)}.
+     * @param msg The message to be signed (remaining bytes of the buffer), it can be a mapped file.
+     * @param out Destination of the signed message. It is neither flushed nor closed.
+     * @throws SignatureManagerException If it's impossible to sign the message.
+     * @throws IOException If the signed message cannot be written.
+     * @see #verifyStream(InputStream)
+     */
+    public static void signStream(final ByteBuffer msg, final OutputStream out) throws SignatureManagerException, IOException {
 
-        signDocument(msgAsDocument, privateKey, certificate);
+        SigningCredential credential = SigningCredentialCache.getDefault();
+        credential.getSigningContext(System.getProperty(USE_LEGACY_SHA1_SYSTEM_FLAG) != null).sign(msg, out);
     }
 
     /**
@@ -405,6 +322,8 @@ public final class SignatureManager {
 
     /**
      * Signs the given xml document usign the given private key and certificate.
+     * The signing context of the last key and certificate given is kept, so signing several documents in a row with
+     * the same key only creates it once (see {@link SigningContext}).
      * @param msgAsDocument The document to be signed, the result of the process will be returned in this parameter.
      * @param privateKey The private key to be used for signature.
      * @param cert The certificate to be used for signature.
@@ -413,53 +332,26 @@ public final class SignatureManager {
      */
     public static void signDocument(final Document msgAsDocument, final PrivateKey privateKey, final X509Certificate cert) throws SignatureManagerException {
 
-        try {
-
-            XMLSignatureFactory fac = XMLSignatureFactory.getInstance(SIGNATURE_FACTORY_TYPE);
-
-            SignedInfo si;
-            
-            if (System.getProperty(USE_LEGACY_SHA1_SYSTEM_FLAG) == null) {
-                Reference ref = fac.newReference(SIGNATURE_URI, fac.newDigestMethod(DIGEST_METHOD, null), Collections.singletonList(fac.newTransform(TRANSFORM, (TransformParameterSpec) null)), null, null);
-                si = fac.newSignedInfo(fac.newCanonicalizationMethod(CANONICALIZATION_METHOD, (C14NMethodParameterSpec) null), fac.newSignatureMethod(SIGNATURE_METHOD, null), Collections.singletonList(ref));
-            } else {
-                Reference ref = fac.newReference(SIGNATURE_URI, fac.newDigestMethod(LEGACY_SHA1_DIGEST_METHOD, null), Collections.singletonList(fac.newTransform(TRANSFORM, (TransformParameterSpec) null)), null, null);
-                si = fac.newSignedInfo(fac.newCanonicalizationMethod(CANONICALIZATION_METHOD, (C14NMethodParameterSpec) null), fac.newSignatureMethod(LEGACY_SHA1_SIGNATURE_METHOD, null), Collections.singletonList(ref));
-            }
-
-            Node headerNode = null;
-            NodeList nl = msgAsDocument.getElementsByTagNameNS(HEADER_NAME_SPACE, HEADER_TAG);
-            if (nl.getLength() == 1) {
-
-                headerNode = nl.item(0);
-
-            } else {
-
-                throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", HEADER_TAG, HEADER_NAME_SPACE)); //$NON-NLS-1$
-            }
-
-            DOMSignContext dsc = new DOMSignContext(privateKey, headerNode);
-
-            KeyInfoFactory keyInfoFactory = fac.getKeyInfoFactory();
-            List<Object> x509Content = new ArrayList<>();
-            x509Content.add(keyInfoFactory.newX509IssuerSerial(cert.getIssuerDN().getName(), cert.getSerialNumber()));
-            x509Content.add(cert.getSubjectX500Principal().getName());
-            x509Content.add(cert);
-            X509Data xd = keyInfoFactory.newX509Data(x509Content);
-
-            KeyInfo keyInfo = keyInfoFactory.newKeyInfo(Collections.singletonList(xd));
-
-            XMLSignature signature = fac.newXMLSignature(si, keyInfo);
-            signature.sign(dsc);
-
-        } catch (GeneralSecurityException e) {
-
-            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_GENERAL_ERROR"), e); //$NON-NLS-1$
+        getSigningContext(privateKey, cert).sign(msgAsDocument);
+    }
 
-        } catch (MarshalException | XMLSignatureException e) {
+    /**
+     * Returns the signing context of the given key and certificate: the one of the last signature if it was made with
+     * the same key, certificate and algorithm (system property <code>USE_LEGACY_SHA1</code>), a new one otherwise.
+     * @param privateKey The private key to be used for signature.
+     * @param cert The certificate to be used for signature.
+     * @return Signing context of the given key and certificate.
+     * @throws SignatureManagerException If the signature algorithms are not available.
+     */
+    static SigningContext getSigningContext(final PrivateKey privateKey, final X509Certificate cert) throws SignatureManagerException {
 
-            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_CANNOT_SIGN"), e); //$NON-NLS-1$
+        boolean sha1 = System.getProperty(USE_LEGACY_SHA1_SYSTEM_FLAG) != null;
+        SigningContext retValue = lastSigningContext;
+        if (retValue == null || !retValue.isFor(privateKey, cert, sha1)) {
+            retValue = new SigningContext(privateKey, cert, sha1);
+            lastSigningContext = retValue;
         }
+
+        return retValue;
     }
-    
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.XMLObjectPool;
+
+/**
+ * Everything needed to sign messages with a given private key, certificate and algorithm: the signature factory and
+ * the certificate names are set once and the digest, canonicalization and signature methods and the key info
+ * (issuer serial, subject name and certificate) are created once per thread and reused (see <code>SignatureTemplate</code>).
+ * Signing a document only digests it, signs the signed info and inserts the signature in the message header. The reference,
+ * its enveloped transform and the signed info (which hold the values of the signed document) are the only objects created
+ * per signature. The number of templates kept can be set with the system property <code>SIGNING_CONTEXT_POOL_SIZE</code>
+ * (default: two per processor).
+ * <p>Big messages can be signed without building their DOM with {@link #sign(ByteBuffer, OutputStream)} (its signer
+ * is created the first time a buffer is signed).
+ * <p>Instances are thread safe and can be shared among threads to sign any number of documents.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.3 17/10/2016
+ */
+public final class SigningContext {
+
+    /** Signature URI ("" = means the whole document). */
+    private static final String SIGNATURE_URI = ""; //$NON-NLS-1$
+
+    /** The type of the XML processing mechanism and representation. */
+    private static final String SIGNATURE_FACTORY_TYPE = "DOM"; //$NON-NLS-1$
+
+    /** Digest method. */
+    private static final String DIGEST_METHOD = DigestMethod.SHA256;
+
+    /** SHA1 digest method. Use this only in old enviroments where SHA-2 is not supported. */
+    private static final String LEGACY_SHA1_DIGEST_METHOD = DigestMethod.SHA1;
+
+    /** Canonicalization method. */
+    private static final String CANONICALIZATION_METHOD = CanonicalizationMethod.INCLUSIVE;
+
+    /** Name of the system property to be set in order to to use SHA1 algorithm for digest and signature. */
+    private static final String USE_LEGACY_SHA1_SYSTEM_FLAG = "USE_LEGACY_SHA1"; //$NON-NLS-1$
+
+    /** Signature method. */
+    private static final String SIGNATURE_METHOD = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"; //$NON-NLS-1$
+
+    /** RSA-SHA1 Signature method. Use this only in old enviroments where SHA-2 is not supported. */
+    private static final String LEGACY_SHA1_SIGNATURE_METHOD = SignatureMethod.RSA_SHA1;
+
+    /** Transform method. */
+    private static final String TRANSFORM = Transform.ENVELOPED;
+
+    /** Tag where the signature result is going to be placed. */
+    private static final String HEADER_TAG = "Header"; //$NON-NLS-1$
+
+    /** Name space of the tag where the signature is going to be placed. */
+    private static final String HEADER_NAME_SPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
+
+    /** System property to set the max number of signature templates kept by each context. */
+    private static final String POOL_SIZE_PROPERTY = "SIGNING_CONTEXT_POOL_SIZE"; //$NON-NLS-1$
+
+    /** Default max number of signature templates kept by each context (per processor). */
+    private static final int DEFAULT_POOL_SIZE_PER_PROCESSOR = 2;
+
+    /** Max number of signature templates kept by each context. */
+    private static final int POOL_SIZE = Integer.getInteger(POOL_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors() * DEFAULT_POOL_SIZE_PER_PROCESSOR);
+
+    /** Signature private key. */
+    private final PrivateKey privateKey;
+
+    /** Signature certificate. */
+    private final X509Certificate certificate;
+
+    /** Whether SHA1 is used for digest and signature. */
+    private final boolean legacySha1;
+
+    /** Issuer name of the certificate. */
+    private final String issuerName;
+
+    /** Subject name of the certificate. */
+    private final String subjectName;
+
+    /** Signature templates. */
+    private final XMLObjectPool<SignatureTemplate, SignatureManagerException> templates;
+
+    /** Lock for the creation of the streaming signer. */
+    private final Object lock = new Object();
+
+    /** Signer of messages held in buffers, <code>null</code> until a buffer is first signed. */
+    private volatile StreamingSigner streamingSigner = null;
+
+    /**
+     * Creates a new context with the given key and certificate. SHA-256 is used unless the system property
+     * <code>USE_LEGACY_SHA1</code> is set when the context is created.
+     * @param key The private key to be used for signature.
+     * @param cert The certificate to be used for signature.
+     * @throws SignatureManagerException If the signature algorithms are not available.
+     */
+    public SigningContext(final PrivateKey key, final X509Certificate cert) throws SignatureManagerException {
+        this(key, cert, System.getProperty(USE_LEGACY_SHA1_SYSTEM_FLAG) != null);
+    }
+
+    /**
+     * Creates a new context with the given key, certificate and algorithm.
+     * @param key The private key to be used for signature.
+     * @param cert The certificate to be used for signature.
+     * @param sha1 <code>true</code> to use SHA1 for digest and signature (only for old environments where SHA-2 is not supported),
+     * <code>false</code> to use SHA-256.
+     * @throws SignatureManagerException If the signature algorithms are not available.
+     */
+    public SigningContext(final PrivateKey key, final X509Certificate cert, final boolean sha1) throws SignatureManagerException {
+
+        privateKey = key;
+        certificate = cert;
+        legacySha1 = sha1;
+        issuerName = cert.getIssuerDN().getName();
+        subjectName = cert.getSubjectX500Principal().getName();
+
+        templates = new XMLObjectPool<SignatureTemplate, SignatureManagerException>(POOL_SIZE, false) {
+
+            @Override
+            protected SignatureTemplate create() throws SignatureManagerException {
+                return new SignatureTemplate();
+            }
+
+            @Override
+            protected boolean reset(final SignatureTemplate template) {
+                return true;
+            }
+        };
+
+        /* Checks the algorithms now and keeps the first template. */
+        templates.warmUp(1);
+    }
+
+    /**
+     * Returns the certificate used for signature.
+     * @return Signature certificate.
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Returns whether SHA1 is used for digest and signature.
+     * @return <code>true</code> if SHA1 is used, <code>false</code> if SHA-256 is used.
+     */
+    public boolean isLegacySha1() {
+        return legacySha1;
+    }
+
+    /**
+     * Signs the given IEC 61968-100 message. The signature is placed in the message header.
+     * @param msgAsDocument The document to be signed, the result of the process will be returned in this parameter.
+     * @throws SignatureManagerException If it's impossible to sign the document.
+     */
+    public void sign(final Document msgAsDocument) throws SignatureManagerException {
+
+        NodeList nl = msgAsDocument.getElementsByTagNameNS(HEADER_NAME_SPACE, HEADER_TAG);
+        if (nl.getLength() != 1) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", HEADER_TAG, HEADER_NAME_SPACE)); //$NON-NLS-1$
+        }
+
+        SignatureTemplate template = templates.borrow();
+        try {
+
+            XMLSignatureFactory factory = template.factory;
+            /* The enveloped transform keeps the document it was first used with, so it cannot be reused. */
+            Transform transform = factory.newTransform(TRANSFORM, (TransformParameterSpec) null);
+            Reference ref = factory.newReference(SIGNATURE_URI, template.digestMethod, Collections.singletonList(transform), null, null);
+            SignedInfo si = factory.newSignedInfo(template.canonicalizationMethod, template.signatureMethod, Collections.singletonList(ref));
+            factory.newXMLSignature(si, template.keyInfo).sign(new DOMSignContext(privateKey, nl.item(0)));
+
+        } catch (GeneralSecurityException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_GENERAL_ERROR"), e); //$NON-NLS-1$
+
+        } catch (MarshalException | XMLSignatureException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_CANNOT_SIGN"), e); //$NON-NLS-1$
+
+        } finally {
+            templates.release(template);
+        }
+    }
+
+    /**
+     * Signs the given UTF-8 encoded IEC 61968-100 message without building its DOM, writing the signed message to
+     * the given stream. The message bytes are read twice (digest and copy), a mapped file can be given to sign big
+     * messages (see {@link es.ree.eemws.core.utils.file.FileUtil#mapUTF8(String)}). The message bytes are written
+     * unchanged with the signature at the end of the message header, the result is the same signature than
+     * {@link #sign(Document)} creates. The header must be the first <code>Header</code> element of the message
+     * (sign the message before adding a SOAP envelope with header).
+     * @param msg Message to be signed (remaining bytes of the buffer). The buffer position and limit are not modified.
+     * @param out Destination of the signed message. It is neither flushed nor closed.
+     * @throws SignatureManagerException If it's impossible to sign the message.
+     * @throws IOException If the signed message cannot be written.
+     */
+    public void sign(final ByteBuffer msg, final OutputStream out) throws SignatureManagerException, IOException {
+        StreamingSigner signer = streamingSigner;
+        if (signer == null) {
+            synchronized (lock) {
+                signer = streamingSigner;
+                if (signer == null) {
+                    signer = new StreamingSigner(privateKey, certificate, issuerName, subjectName, legacySha1);
+                    streamingSigner = signer;
+                }
+            }
+        }
+
+        signer.sign(msg, out);
+    }
+
+    /**
+     * Checks whether this context signs with the given key, certificate and algorithm.
+     * @param key Private key.
+     * @param cert Certificate.
+     * @param sha1 <code>true</code> for SHA1, <code>false</code> for SHA-256.
+     * @return <code>true</code> if this context was created with the given (equal) key, certificate and algorithm.
+     */
+    boolean isFor(final PrivateKey key, final X509Certificate cert, final boolean sha1) {
+        return legacySha1 == sha1 && (privateKey == key || privateKey.equals(key)) && (certificate == cert || certificate.equals(cert));
+    }
+
+    /**
+     * Returns the signature template pool of this context (to check its metrics).
+     * @return Signature template pool.
+     */
+    XMLObjectPool<SignatureTemplate, SignatureManagerException> getTemplatePool() {
+        return templates;
+    }
+
+    @Override
+    public String toString() {
+        return "[subject=" + certificate.getSubjectX500Principal().getName() + "][sha1=" + legacySha1 + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * Signature parts that do not depend on the signed document: digest, canonicalization and signature
+     * methods and key info. They keep state while a document is signed (signature engines, transform parameters),
+     * so each one is used by one thread at a time.
+     */
+    final class SignatureTemplate {
+
+        /** Signature factory. */
+        private final XMLSignatureFactory factory = XMLSignatureFactory.getInstance(SIGNATURE_FACTORY_TYPE);
+
+        /** Digest method. */
+        private final DigestMethod digestMethod;
+
+        /** Canonicalization method. */
+        private final CanonicalizationMethod canonicalizationMethod;
+
+        /** Signature method. */
+        private final SignatureMethod signatureMethod;
+
+        /** Key info (issuer serial, subject name and certificate). */
+        private final KeyInfo keyInfo;
+
+        /**
+         * Creates the signature parts of this context key, certificate and algorithm.
+         * @throws SignatureManagerException If the signature algorithms are not available.
+         */
+        SignatureTemplate() throws SignatureManagerException {
+
+            try {
+
+                digestMethod = factory.newDigestMethod(legacySha1 ? LEGACY_SHA1_DIGEST_METHOD : DIGEST_METHOD, null);
+                canonicalizationMethod = factory.newCanonicalizationMethod(CANONICALIZATION_METHOD, (C14NMethodParameterSpec) null);
+                signatureMethod = factory.newSignatureMethod(legacySha1 ? LEGACY_SHA1_SIGNATURE_METHOD : SIGNATURE_METHOD, null);
+
+            } catch (GeneralSecurityException e) {
+
+                throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_GENERAL_ERROR"), e); //$NON-NLS-1$
+            }
+
+            KeyInfoFactory keyInfoFactory = factory.getKeyInfoFactory();
+            List<Object> x509Content = new ArrayList<>();
+            x509Content.add(keyInfoFactory.newX509IssuerSerial(issuerName, certificate.getSerialNumber()));
+            x509Content.add(subjectName);
+            x509Content.add(certificate);
+            keyInfo = keyInfoFactory.newKeyInfo(Collections.singletonList(keyInfoFactory.newX509Data(x509Content)));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+/**
+ * Private key and certificate used to sign messages, as loaded from a key store (see {@link SigningCredentialCache}),
+ * with their signing contexts (SHA-256 and legacy SHA1, see {@link SigningContext}). Instances are immutable and can be shared among threads.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class SigningCredential {
+
+    /** Signature private key. */
+    private final PrivateKey privateKey;
+
+    /** Signature certificate. */
+    private final X509Certificate certificate;
+
+    /** Signing context (SHA-256). */
+    private final SigningContext signingContext;
+
+    /** Signing context (legacy SHA1). */
+    private final SigningContext legacySigningContext;
+
+    /** Key store file the credential was loaded from. */
+    private final String keyStoreFile;
+
+    /** Key store type. */
+    private final String keyStoreType;
+
+    /** Key store password. */
+    private final String keyStorePassword;
+
+    /** Key store file modification time when it was loaded. */
+    private final long lastModified;
+
+    /** Key store file size when it was loaded. */
+    private final long length;
+
+    /** Time (ms) when the credential was loaded. */
+    private final long loadTime;
+
+    /**
+     * Creates a new credential.
+     * @param key Signature private key.
+     * @param cert Signature certificate.
+     * @param file Key store file the credential was loaded from.
+     * @param type Key store type.
+     * @param password Key store password.
+     * @param fileModified Key store file modification time.
+     * @param fileLength Key store file size.
+     * @throws SignatureManagerException If the signature algorithms are not available.
+     */
+    SigningCredential(final PrivateKey key, final X509Certificate cert, final String file, final String type,
+            final String password, final long fileModified, final long fileLength) throws SignatureManagerException {
+
+        privateKey = key;
+        certificate = cert;
+        signingContext = new SigningContext(key, cert, false);
+        legacySigningContext = new SigningContext(key, cert, true);
+        keyStoreFile = file;
+        keyStoreType = type;
+        keyStorePassword = password;
+        lastModified = fileModified;
+        length = fileLength;
+        loadTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the signature private key.
+     * @return Signature private key.
+     */
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * Returns the signature certificate.
+     * @return Signature certificate.
+     */
+    public X509Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Returns the context to sign messages with this credential.
+     * @param sha1 <code>true</code> to use SHA1 for digest and signature (only for old environments where SHA-2 is not supported),
+     * <code>false</code> to use SHA-256.
+     * @return Signing context.
+     */
+    public SigningContext getSigningContext(final boolean sha1) {
+        SigningContext retValue;
+        if (sha1) {
+            retValue = legacySigningContext;
+        } else {
+            retValue = signingContext;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the key store file the credential was loaded from.
+     * @return Key store file.
+     */
+    public String getKeyStoreFile() {
+        return keyStoreFile;
+    }
+
+    /**
+     * Returns the time when the credential was loaded.
+     * @return Load time (ms since epoch).
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Checks whether this credential was loaded from the given key store and the key store file has not changed since.
+     * @param file Key store file.
+     * @param type Key store type.
+     * @param password Key store password.
+     * @param fileModified Current key store file modification time.
+     * @param fileLength Current key store file size.
+     * @return <code>true</code> if the credential was loaded with the same parameters and the file is unchanged.
+     */
+    boolean isLoadedFrom(final String file, final String type, final String password, final long fileModified, final long fileLength) {
+        return keyStoreFile.equals(file) && keyStoreType.equals(type) && keyStorePassword.equals(password)
+            && lastModified == fileModified && length == fileLength;
+    }
+
+    @Override
+    public String toString() {
+        return "[keyStore=" + keyStoreFile + "][subject=" + certificate.getSubjectX500Principal().getName() //$NON-NLS-1$ //$NON-NLS-2$
+            + "][notAfter=" + certificate.getNotAfter() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
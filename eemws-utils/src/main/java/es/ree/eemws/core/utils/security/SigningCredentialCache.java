@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ree.eemws.core.utils.i18n.Messages;
+
+/**
+ * Cache of the credential (private key and certificate) of the system key store (<code>javax.net.ssl.keyStore</code>),
+ * used to sign messages. Loading a key store is expensive (PKCS12 key derivation, aliases and certificate checks), so it is
+ * loaded once and shared among threads. The key store is loaded again only when:
+ * <ul>
+ * <li>The key store system properties (file, type or password) change.</li>
+ * <li>The key store file changes (modification time or size).</li>
+ * <li>The certificate is about to expire (the key store could have a renewed one). The margin can be set in seconds with the
+ * system property <code>SIGNING_CREDENTIAL_EXPIRY_MARGIN</code> (default: one day). Meanwhile the key store is checked at most once a minute.</li>
+ * </ul>
+ * The number of key store loads is available as a metric ({@link #getReloads()}).
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class SigningCredentialCache {
+
+    /** Java parameter name to set a key store type. */
+    private static final String SYSTEM_KEY_STORE_TYPE = "javax.net.ssl.keyStoreType"; //$NON-NLS-1$
+
+    /** Default user's key store type. */
+    private static final String DEFAULT_KEY_STORE_TYPE = "PKCS12"; //$NON-NLS-1$
+
+    /** Java parameter name to set the key store password. */
+    private static final String SYSTEM_KEY_STORE_PASSWORD = "javax.net.ssl.keyStorePassword"; //$NON-NLS-1$
+
+    /** Default user's key store password. */
+    private static final String DEFAULT_KEY_STORE_PASSWORD = ""; //$NON-NLS-1$
+
+    /** Java parameter name to set a key store file. */
+    private static final String SYSTEM_KEY_STORE_FILE = "javax.net.ssl.keyStore"; //$NON-NLS-1$
+
+    /** System property to set the time (seconds) before the certificate expiration when the key store is loaded again. */
+    private static final String EXPIRY_MARGIN_PROPERTY = "SIGNING_CREDENTIAL_EXPIRY_MARGIN"; //$NON-NLS-1$
+
+    /** Default time (seconds) before the certificate expiration when the key store is loaded again (one day). */
+    private static final int DEFAULT_EXPIRY_MARGIN = 86400;
+
+    /** Milliseconds per second. */
+    private static final long MS_PER_SECOND = 1000L;
+
+    /** Time (ms) before the certificate expiration when the key store is loaded again. */
+    private static final long EXPIRY_MARGIN = Integer.getInteger(EXPIRY_MARGIN_PROPERTY, DEFAULT_EXPIRY_MARGIN) * MS_PER_SECOND;
+
+    /** Min time (ms) between loads of a key store whose certificate is about to expire. */
+    private static final long EXPIRY_RELOAD_INTERVAL = 60000L;
+
+    /** Lock for the key store loads. */
+    private static final Object LOCK = new Object();
+
+    /** Number of key store loads. */
+    private static final AtomicLong RELOADS = new AtomicLong();
+
+    /** Current credential, <code>null</code> if it was not loaded yet. */
+    private static volatile SigningCredential credential = null;
+
+    /**
+     * Constructor.
+     */
+    private SigningCredentialCache() {
+
+        /* This method should not be implemented. */
+    }
+
+    /**
+     * Returns the credential of the system key store (see system properties <code>javax.net.ssl.keyStore</code>,
+     * <code>javax.net.ssl.keyStoreType</code> and <code>javax.net.ssl.keyStorePassword</code>). The first alias
+     * with a private key and a valid certificate is used.
+     * @return Credential of the system key store.
+     * @throws SignatureManagerException If the key store is not set or it cannot be read, or it has no usable credential.
+     */
+    public static SigningCredential getDefault() throws SignatureManagerException {
+
+        String keyStoreFile = System.getProperty(SYSTEM_KEY_STORE_FILE);
+        if (keyStoreFile == null) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_NO_SYSTEM_KEY_STORE", SYSTEM_KEY_STORE_FILE)); //$NON-NLS-1$
+        }
+
+        String keyStorePasswd = System.getProperty(SYSTEM_KEY_STORE_PASSWORD, DEFAULT_KEY_STORE_PASSWORD);
+        String keyStoreType = System.getProperty(SYSTEM_KEY_STORE_TYPE, DEFAULT_KEY_STORE_TYPE);
+
+        SigningCredential retValue = credential;
+        if (!isCurrent(retValue, keyStoreFile, keyStoreType, keyStorePasswd)) {
+            synchronized (LOCK) {
+                retValue = credential;
+                if (!isCurrent(retValue, keyStoreFile, keyStoreType, keyStorePasswd)) {
+                    retValue = load(keyStoreFile, keyStoreType, keyStorePasswd);
+                    credential = retValue;
+                }
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Discards the cached credential, so the key store is loaded again on the next signature.
+     */
+    public static void invalidate() {
+        credential = null;
+    }
+
+    /**
+     * Returns the number of times the key store was loaded.
+     * @return Number of key store loads.
+     */
+    public static long getReloads() {
+        return RELOADS.get();
+    }
+
+    /**
+     * Checks whether the given credential can still be used.
+     * @param cached Cached credential, can be <code>null</code>.
+     * @param keyStoreFile Current key store file.
+     * @param keyStoreType Current key store type.
+     * @param keyStorePasswd Current key store password.
+     * @return <code>true</code> if the credential was loaded from the current (and unchanged) key store and it is not about to expire.
+     */
+    private static boolean isCurrent(final SigningCredential cached, final String keyStoreFile, final String keyStoreType, final String keyStorePasswd) {
+
+        boolean retValue = false;
+        if (cached != null) {
+            File file = new File(keyStoreFile);
+            retValue = cached.isLoadedFrom(keyStoreFile, keyStoreType, keyStorePasswd, file.lastModified(), file.length());
+
+            if (retValue) {
+                long now = System.currentTimeMillis();
+                long notAfter = cached.getCertificate().getNotAfter().getTime();
+                if (now > notAfter) {
+                    retValue = false;
+                } else if (now + EXPIRY_MARGIN > notAfter) {
+                    retValue = now - cached.getLoadTime() < EXPIRY_RELOAD_INTERVAL;
+                }
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Loads the credential of the given key store.
+     * @param keyStoreFile Key store file.
+     * @param keyStoreType Key store type.
+     * @param keyStorePasswd Key store password.
+     * @return Credential of the given key store.
+     * @throws SignatureManagerException If the key store cannot be read or it has no usable credential.
+     */
+    private static SigningCredential load(final String keyStoreFile, final String keyStoreType, final String keyStorePasswd) throws SignatureManagerException {
+
+        RSAPrivateKey privateKey = null;
+        X509Certificate certificate = null;
+        File file = new File(keyStoreFile);
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        try (InputStream keystoreInputStream = new FileInputStream(file)) {
+
+            RELOADS.incrementAndGet();
+            KeyStore ks = KeyStore.getInstance(keyStoreType);
+            ks.load(keystoreInputStream, keyStorePasswd.toCharArray());
+
+            Enumeration<String> keyAlias = ks.aliases();
+            String entryAlias = null;
+            boolean okAlias = false;
+            Exception cause = null;
+
+            while (!okAlias && keyAlias.hasMoreElements()) {
+
+                try {
+
+                    entryAlias = keyAlias.nextElement();
+                    privateKey = (RSAPrivateKey) ks.getKey(entryAlias, keyStorePasswd.toCharArray());
+                    certificate = (X509Certificate) ks.getCertificate(entryAlias);
+                    certificate.checkValidity();
+                    okAlias = (privateKey != null);
+
+                } catch (CertificateException | UnrecoverableKeyException | KeyStoreException | NoSuchAlgorithmException e) {
+
+                    okAlias = false;
+                    cause = e;
+                }
+            }
+
+            if (!okAlias) {
+
+                throw new SignatureManagerException(Messages.getString("SECURITY_NO_USABLE_CERTIFICATE_FOUND"), cause); //$NON-NLS-1$
+            }
+
+        } catch (FileNotFoundException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_READ_KEY_STORE", keyStoreFile, SYSTEM_KEY_STORE_FILE), e); //$NON-NLS-1$
+
+        } catch (IOException | CertificateException | NoSuchAlgorithmException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_LOAD_KEY_STORE", keyStoreFile, SYSTEM_KEY_STORE_TYPE, SYSTEM_KEY_STORE_PASSWORD), e); //$NON-NLS-1$
+
+        } catch (KeyStoreException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_UNABLE_TO_GET_KEY_STORE", keyStoreType, SYSTEM_KEY_STORE_TYPE), e); //$NON-NLS-1$
+        }
+
+        return new SigningCredential(privateKey, certificate, keyStoreFile, keyStoreType, keyStorePasswd, lastModified, length);
+    }
+}
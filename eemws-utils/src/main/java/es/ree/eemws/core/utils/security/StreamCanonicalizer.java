@@ -0,0 +1,520 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Writes the canonical form (Canonical XML 1.0, inclusive, without comments) of the events read by a
+ * <code>XMLStreamReader</code>, so a document can be canonicalized (and digested) as it is read, without building
+ * its DOM. The caller decides which events are written: the element where the first event is written is the apex
+ * of the canonicalized subtree and gets all the namespaces (and <code>xml:*</code> attributes) in scope, the rest of
+ * elements only get the namespaces that change in respect to their parent. Text and processing instructions out of
+ * the document element follow the canonical XML document rules.
+ * <p>The namespaces in scope of every element read (written or not) must be registered in a {@link Scope}.
+ * Instances are not thread safe.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+final class StreamCanonicalizer {
+
+    /** Size of the buffer of canonical characters. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Destination of the canonical form. */
+    private final Writer writer;
+
+    /** Number of elements open. */
+    private int depth = 0;
+
+    /** <code>true</code> once the (first) top level element is written. */
+    private boolean afterDocumentElement = false;
+
+    /**
+     * Creates a new canonicalizer that writes the canonical form (UTF-8) to the given stream.
+     * @param out Destination of the canonical form.
+     */
+    StreamCanonicalizer(final OutputStream out) {
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new canonicalizer that updates the given digest with the canonical form (UTF-8).
+     * @param digest Digest of the canonical form.
+     */
+    StreamCanonicalizer(final MessageDigest digest) {
+        this(new DigestingOutputStream(digest));
+    }
+
+    /**
+     * Writes the start tag of the reader's current element (<code>START_ELEMENT</code> event). Must be invoked before
+     * registering the element in the scope.
+     * @param reader Reader positioned on a start element.
+     * @param scope Namespaces in scope of the element parent.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    void startElement(final XMLStreamReader reader, final Scope scope) throws IOException {
+        writer.write('<');
+        writeQName(reader.getPrefix(), reader.getLocalName());
+
+        if (depth == 0 || reader.getNamespaceCount() > 0) {
+            writeNameSpaces(reader, scope);
+        }
+
+        /* Elements with one attribute (the most common case) need no sorting. */
+        if (depth > 0 && reader.getAttributeCount() == 1) {
+            writer.write(' ');
+            writeQName(reader.getAttributePrefix(0), reader.getAttributeLocalName(0));
+            writeAttributeValue(reader.getAttributeValue(0));
+        } else if (depth == 0 || reader.getAttributeCount() > 1) {
+            writeAttributes(reader, scope);
+        }
+
+        writer.write('>');
+        depth++;
+    }
+
+    /**
+     * Writes the namespaces of the reader's current element: all the namespaces in scope for the apex element and
+     * the ones that change in respect to the parent for the rest, sorted by prefix.
+     * @param reader Reader positioned on a start element.
+     * @param scope Namespaces in scope of the element parent.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void writeNameSpaces(final XMLStreamReader reader, final Scope scope) throws IOException {
+        Map<String, String> nameSpaces = new TreeMap<>();
+        if (depth == 0) {
+            nameSpaces.putAll(scope.getNameSpaces());
+        }
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = nonNull(reader.getNamespacePrefix(i));
+            String uri = nonNull(reader.getNamespaceURI(i));
+            if (depth == 0 || !uri.equals(scope.getNameSpace(prefix))) {
+                nameSpaces.put(prefix, uri);
+            }
+        }
+
+        /* The empty default namespace is only written to undeclare the parent one. */
+        if (depth == 0 && XMLConstants.DEFAULT_NS_PREFIX.equals(nameSpaces.get(XMLConstants.DEFAULT_NS_PREFIX))) {
+            nameSpaces.remove(XMLConstants.DEFAULT_NS_PREFIX);
+        }
+
+        for (Map.Entry<String, String> nameSpace : nameSpaces.entrySet()) {
+            writer.write(' ');
+            writer.write(XMLConstants.XMLNS_ATTRIBUTE);
+            if (!nameSpace.getKey().isEmpty()) {
+                writer.write(':');
+                writer.write(nameSpace.getKey());
+            }
+            writeAttributeValue(nameSpace.getValue());
+        }
+    }
+
+    /**
+     * Writes the attributes of the reader's current element sorted by namespace and local name. The apex element
+     * also gets the <code>xml:*</code> attributes in scope.
+     * @param reader Reader positioned on a start element.
+     * @param scope Namespaces in scope of the element parent.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void writeAttributes(final XMLStreamReader reader, final Scope scope) throws IOException {
+        List<String[]> attributes = new ArrayList<>();
+        if (depth == 0) {
+            for (Map.Entry<String, String> xmlAttribute : scope.getXmlAttributes().entrySet()) {
+                attributes.add(new String[] {XMLConstants.XML_NS_URI, xmlAttribute.getKey(), XMLConstants.XML_NS_PREFIX, xmlAttribute.getValue()});
+            }
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String uri = nonNull(reader.getAttributeNamespace(i));
+            String localName = reader.getAttributeLocalName(i);
+            if (XMLConstants.XML_NS_URI.equals(uri)) {
+                removeAttribute(attributes, uri, localName);
+            }
+            attributes.add(new String[] {uri, localName, reader.getAttributePrefix(i), reader.getAttributeValue(i)});
+        }
+
+        Collections.sort(attributes, new AttributeComparator());
+
+        for (String[] attribute : attributes) {
+            writer.write(' ');
+            writeQName(attribute[2], attribute[1]);
+            writeAttributeValue(attribute[3]);
+        }
+    }
+
+    /**
+     * Writes the end tag of the reader's current element (<code>END_ELEMENT</code> event).
+     * @param reader Reader positioned on an end element.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    void endElement(final XMLStreamReader reader) throws IOException {
+        writer.write("</"); //$NON-NLS-1$
+        writeQName(reader.getPrefix(), reader.getLocalName());
+        writer.write('>');
+
+        depth--;
+        if (depth == 0) {
+            afterDocumentElement = true;
+        }
+    }
+
+    /**
+     * Writes the reader's current text (<code>CHARACTERS</code>, <code>CDATA</code> or <code>SPACE</code> events).
+     * Text out of the document element is not written.
+     * @param reader Reader positioned on a text event.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    void text(final XMLStreamReader reader) throws IOException {
+        if (depth > 0) {
+            char[] text = reader.getTextCharacters();
+            int start = reader.getTextStart();
+            int end = start + reader.getTextLength();
+            int run = start;
+            for (int i = start; i < end; i++) {
+                String escaped = null;
+                switch (text[i]) {
+                case '&':
+                    escaped = "&amp;"; //$NON-NLS-1$
+                    break;
+                case '<':
+                    escaped = "&lt;"; //$NON-NLS-1$
+                    break;
+                case '>':
+                    escaped = "&gt;"; //$NON-NLS-1$
+                    break;
+                case '\r':
+                    escaped = "&#xD;"; //$NON-NLS-1$
+                    break;
+                default:
+                    break;
+                }
+
+                if (escaped != null) {
+                    writer.write(text, run, i - run);
+                    writer.write(escaped);
+                    run = i + 1;
+                }
+            }
+            writer.write(text, run, end - run);
+        }
+    }
+
+    /**
+     * Writes the reader's current processing instruction (<code>PROCESSING_INSTRUCTION</code> event).
+     * @param reader Reader positioned on a processing instruction.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    void processingInstruction(final XMLStreamReader reader) throws IOException {
+        if (depth == 0 && afterDocumentElement) {
+            writer.write('\n');
+        }
+
+        writer.write("<?"); //$NON-NLS-1$
+        writer.write(reader.getPITarget());
+        String data = reader.getPIData();
+        if (data != null && !data.isEmpty()) {
+            writer.write(' ');
+            writer.write(data);
+        }
+        writer.write("?>"); //$NON-NLS-1$
+
+        if (depth == 0 && !afterDocumentElement) {
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Writes the pending canonical characters to the destination stream.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Writes <code>="value"</code> escaping the attribute value.
+     * @param value Attribute value.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void writeAttributeValue(final String value) throws IOException {
+        writer.write("=\""); //$NON-NLS-1$
+        int len = value.length();
+        int run = 0;
+        for (int i = 0; i < len; i++) {
+            String escaped = null;
+            switch (value.charAt(i)) {
+            case '&':
+                escaped = "&amp;"; //$NON-NLS-1$
+                break;
+            case '<':
+                escaped = "&lt;"; //$NON-NLS-1$
+                break;
+            case '"':
+                escaped = "&quot;"; //$NON-NLS-1$
+                break;
+            case '\t':
+                escaped = "&#x9;"; //$NON-NLS-1$
+                break;
+            case '\n':
+                escaped = "&#xA;"; //$NON-NLS-1$
+                break;
+            case '\r':
+                escaped = "&#xD;"; //$NON-NLS-1$
+                break;
+            default:
+                break;
+            }
+
+            if (escaped != null) {
+                writer.write(value, run, i - run);
+                writer.write(escaped);
+                run = i + 1;
+            }
+        }
+        writer.write(value, run, len - run);
+        writer.write('"');
+    }
+
+    /**
+     * Removes the given attribute from the list.
+     * @param attributes Attributes (namespace, local name, qualified name, value).
+     * @param uri Attribute namespace.
+     * @param localName Attribute local name.
+     */
+    private static void removeAttribute(final List<String[]> attributes, final String uri, final String localName) {
+        for (int i = attributes.size() - 1; i >= 0; i--) {
+            if (attributes.get(i)[0].equals(uri) && attributes.get(i)[1].equals(localName)) {
+                attributes.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Writes the qualified name for the given prefix and local name.
+     * @param prefix Namespace prefix, <code>null</code> or empty if there is no prefix.
+     * @param localName Local name.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void writeQName(final String prefix, final String localName) throws IOException {
+        if (prefix != null && !prefix.isEmpty()) {
+            writer.write(prefix);
+            writer.write(':');
+        }
+        writer.write(localName);
+    }
+
+    /**
+     * Returns the given string or an empty string if it is <code>null</code> (StAX returns <code>null</code> for the
+     * default prefix and for no namespace).
+     * @param value String.
+     * @return The given string, empty string if it is <code>null</code>.
+     */
+    private static String nonNull(final String value) {
+        String retValue = value;
+        if (retValue == null) {
+            retValue = XMLConstants.NULL_NS_URI;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Canonical attribute order: by namespace (attributes without namespace first) and then by local name.
+     */
+    private static final class AttributeComparator implements Comparator<String[]> {
+
+        @Override
+        public int compare(final String[] a, final String[] b) {
+            int retValue = a[0].compareTo(b[0]);
+            if (retValue == 0) {
+                retValue = a[1].compareTo(b[1]);
+            }
+
+            return retValue;
+        }
+    }
+
+    /**
+     * Output stream that only updates a digest with the bytes written.
+     */
+    private static final class DigestingOutputStream extends OutputStream {
+
+        /** Digest to update. */
+        private final MessageDigest digest;
+
+        /**
+         * Creates a new stream that updates the given digest.
+         * @param md Digest to update.
+         */
+        DigestingOutputStream(final MessageDigest md) {
+            digest = md;
+        }
+
+        @Override
+        public void write(final int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            digest.update(b, off, len);
+        }
+    }
+
+    /**
+     * Namespaces and <code>xml:*</code> attributes in scope of the elements being read. Every element read
+     * must be registered with {@link #push(XMLStreamReader)} and removed with {@link #pop()} at its end.
+     */
+    static final class Scope {
+
+        /** Namespaces declared in the open elements (prefix, namespace), outermost first. */
+        private final List<String[]> nameSpaces = new ArrayList<>();
+
+        /** <code>xml:*</code> attributes of the open elements (local name, value), outermost first. */
+        private final List<String[]> xmlAttributes = new ArrayList<>();
+
+        /** Initial number of open elements. */
+        private static final int INITIAL_DEPTH = 32;
+
+        /** Number of namespaces and <code>xml:*</code> attributes before each open element (two values per element). */
+        private int[] elements = new int[2 * INITIAL_DEPTH];
+
+        /** Number of open elements. */
+        private int depth = 0;
+
+        /**
+         * Creates a new empty scope.
+         */
+        Scope() {
+
+            /* Nothing in scope. */
+        }
+
+        /**
+         * Creates a copy of the given scope, later changes of one of them do not affect the other.
+         * @param other Scope to copy.
+         */
+        Scope(final Scope other) {
+            nameSpaces.addAll(other.nameSpaces);
+            xmlAttributes.addAll(other.xmlAttributes);
+            elements = other.elements.clone();
+            depth = other.depth;
+        }
+
+        /**
+         * Registers the namespaces and <code>xml:*</code> attributes of the reader's current element (<code>START_ELEMENT</code> event).
+         * @param reader Reader positioned on a start element.
+         */
+        void push(final XMLStreamReader reader) {
+            if (2 * depth == elements.length) {
+                elements = Arrays.copyOf(elements, 2 * elements.length);
+            }
+            elements[2 * depth] = nameSpaces.size();
+            elements[2 * depth + 1] = xmlAttributes.size();
+            depth++;
+
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                nameSpaces.add(new String[] {nonNull(reader.getNamespacePrefix(i)), nonNull(reader.getNamespaceURI(i))});
+            }
+
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if (XMLConstants.XML_NS_URI.equals(reader.getAttributeNamespace(i))) {
+                    xmlAttributes.add(new String[] {reader.getAttributeLocalName(i), reader.getAttributeValue(i)});
+                }
+            }
+        }
+
+        /**
+         * Removes the innermost open element (<code>END_ELEMENT</code> event).
+         */
+        void pop() {
+            depth--;
+            nameSpaces.subList(elements[2 * depth], nameSpaces.size()).clear();
+            xmlAttributes.subList(elements[2 * depth + 1], xmlAttributes.size()).clear();
+        }
+
+        /**
+         * Returns the namespace bound to the given prefix.
+         * @param prefix Namespace prefix (empty for the default namespace).
+         * @return Namespace bound to the prefix. Empty for the default prefix and <code>null</code> for other
+         * prefixes if they are not bound.
+         */
+        String getNameSpace(final String prefix) {
+            String retValue = null;
+            for (int i = nameSpaces.size() - 1; retValue == null && i >= 0; i--) {
+                if (nameSpaces.get(i)[0].equals(prefix)) {
+                    retValue = nameSpaces.get(i)[1];
+                }
+            }
+
+            if (retValue == null && prefix.isEmpty()) {
+                retValue = XMLConstants.NULL_NS_URI;
+            }
+
+            return retValue;
+        }
+
+        /**
+         * Returns all the namespaces in scope.
+         * @return Namespaces in scope by prefix.
+         */
+        Map<String, String> getNameSpaces() {
+            Map<String, String> retValue = new TreeMap<>();
+            for (String[] nameSpace : nameSpaces) {
+                retValue.put(nameSpace[0], nameSpace[1]);
+            }
+
+            return retValue;
+        }
+
+        /**
+         * Returns all the <code>xml:*</code> attributes in scope.
+         * @return Value of the <code>xml:*</code> attributes in scope by local name.
+         */
+        Map<String, String> getXmlAttributes() {
+            Map<String, String> retValue = new TreeMap<>();
+            for (String[] xmlAttribute : xmlAttributes) {
+                retValue.put(xmlAttribute[0], xmlAttribute[1]);
+            }
+
+            return retValue;
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.security.SignatureVerificationException.SignatureVerificationExceptionDetails;
+
+/**
+ * Verifies the enveloped signature of a document as it is read (StAX), without building its DOM, so the memory
+ * needed does not depend on the document size. The document is canonicalized and digested while it is read; the
+ * <code>Signature</code> element (the only one of the document, that must be a child of the message <code>Header</code>)
+ * is excluded from the digest and its signed info is canonicalized apart to check the signature value.
+ * Signature values are only taken from their place in the signature (<code>Signature/SignedInfo/Reference/DigestValue</code>...),
+ * elements with the same name anywhere else (i.e. inside an <code>Object</code>) are ignored, and a repeated value is rejected.
+ * <p>Only the profile created by {@link SignatureManager#signDocument(org.w3c.dom.Document)} is supported: one
+ * reference to the whole document with the enveloped transform, inclusive canonicalization, SHA-256 digest,
+ * RSA-SHA256 signature and the certificate in the key info. Other signatures are rejected with a
+ * {@link SignatureSyntaxException}, {@link SignatureManager#verifyDocument(org.w3c.dom.Document)} must be used for them.
+ * Results (certificate and exceptions) are the ones of {@link SignatureManager#verifyDocument(org.w3c.dom.Document)}.
+ * Documents with a DTD are rejected with a {@link SignatureSyntaxException}.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.3 17/10/2016
+ */
+final class StreamingSignatureVerifier {
+
+    /** StAX factory (thread safe). */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    /** Message header tag. */
+    private static final String HEADER_TAG = "Header"; //$NON-NLS-1$
+
+    /** Message header namespace. */
+    private static final String HEADER_NAME_SPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
+
+    /** Signature tag. */
+    private static final String SIGNATURE_TAG = "Signature"; //$NON-NLS-1$
+
+    /** Signed info tag. */
+    private static final String SIGNED_INFO_TAG = "SignedInfo"; //$NON-NLS-1$
+
+    /** Canonicalization method tag. */
+    private static final String CANONICALIZATION_METHOD_TAG = "CanonicalizationMethod"; //$NON-NLS-1$
+
+    /** Signature method tag. */
+    private static final String SIGNATURE_METHOD_TAG = "SignatureMethod"; //$NON-NLS-1$
+
+    /** Reference tag. */
+    private static final String REFERENCE_TAG = "Reference"; //$NON-NLS-1$
+
+    /** Transforms tag. */
+    private static final String TRANSFORMS_TAG = "Transforms"; //$NON-NLS-1$
+
+    /** Transform tag. */
+    private static final String TRANSFORM_TAG = "Transform"; //$NON-NLS-1$
+
+    /** Digest method tag. */
+    private static final String DIGEST_METHOD_TAG = "DigestMethod"; //$NON-NLS-1$
+
+    /** Digest value tag. */
+    private static final String DIGEST_VALUE_TAG = "DigestValue"; //$NON-NLS-1$
+
+    /** Signature value tag. */
+    private static final String SIGNATURE_VALUE_TAG = "SignatureValue"; //$NON-NLS-1$
+
+    /** Key info tag. */
+    private static final String KEY_INFO_TAG = "KeyInfo"; //$NON-NLS-1$
+
+    /** X509 data tag. */
+    private static final String X509_DATA_TAG = "X509Data"; //$NON-NLS-1$
+
+    /** X509 certificate tag. */
+    private static final String X509_CERTIFICATE_TAG = "X509Certificate"; //$NON-NLS-1$
+
+    /** Separator of the element names in a signature path. */
+    private static final String PATH_SEPARATOR = "/"; //$NON-NLS-1$
+
+    /** Path of the signed info. */
+    private static final String SIGNED_INFO_PATH = SIGNATURE_TAG + PATH_SEPARATOR + SIGNED_INFO_TAG;
+
+    /** Path of the canonicalization method. */
+    private static final String CANONICALIZATION_METHOD_PATH = SIGNED_INFO_PATH + PATH_SEPARATOR + CANONICALIZATION_METHOD_TAG;
+
+    /** Path of the signature method. */
+    private static final String SIGNATURE_METHOD_PATH = SIGNED_INFO_PATH + PATH_SEPARATOR + SIGNATURE_METHOD_TAG;
+
+    /** Path of the reference. */
+    private static final String REFERENCE_PATH = SIGNED_INFO_PATH + PATH_SEPARATOR + REFERENCE_TAG;
+
+    /** Path of the reference transforms. */
+    private static final String TRANSFORMS_PATH = REFERENCE_PATH + PATH_SEPARATOR + TRANSFORMS_TAG;
+
+    /** Path of a reference transform. */
+    private static final String TRANSFORM_PATH = TRANSFORMS_PATH + PATH_SEPARATOR + TRANSFORM_TAG;
+
+    /** Path of the reference digest method. */
+    private static final String DIGEST_METHOD_PATH = REFERENCE_PATH + PATH_SEPARATOR + DIGEST_METHOD_TAG;
+
+    /** Path of the reference digest value. */
+    private static final String DIGEST_VALUE_PATH = REFERENCE_PATH + PATH_SEPARATOR + DIGEST_VALUE_TAG;
+
+    /** Path of the signature value. */
+    private static final String SIGNATURE_VALUE_PATH = SIGNATURE_TAG + PATH_SEPARATOR + SIGNATURE_VALUE_TAG;
+
+    /** Path of the key info. */
+    private static final String KEY_INFO_PATH = SIGNATURE_TAG + PATH_SEPARATOR + KEY_INFO_TAG;
+
+    /** Path of the signature certificate. */
+    private static final String X509_CERTIFICATE_PATH = KEY_INFO_PATH + PATH_SEPARATOR + X509_DATA_TAG + PATH_SEPARATOR + X509_CERTIFICATE_TAG;
+
+    /** Paths of the elements that must appear once at most. */
+    private static final Set<String> UNIQUE_PATHS = new HashSet<>(Arrays.asList(SIGNED_INFO_PATH, CANONICALIZATION_METHOD_PATH,
+            SIGNATURE_METHOD_PATH, REFERENCE_PATH, TRANSFORMS_PATH, DIGEST_METHOD_PATH, DIGEST_VALUE_PATH, SIGNATURE_VALUE_PATH, KEY_INFO_PATH,
+            X509_CERTIFICATE_PATH));
+
+    /** Algorithm attribute. */
+    private static final String ALGORITHM_ATTRIBUTE = "Algorithm"; //$NON-NLS-1$
+
+    /** URI attribute. */
+    private static final String URI_ATTRIBUTE = "URI"; //$NON-NLS-1$
+
+    /** Reference URI of the whole document. */
+    private static final String DOCUMENT_URI = ""; //$NON-NLS-1$
+
+    /** Supported canonicalization method. */
+    private static final String CANONICALIZATION_METHOD = CanonicalizationMethod.INCLUSIVE;
+
+    /** Supported signature method. */
+    private static final String SIGNATURE_METHOD = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"; //$NON-NLS-1$
+
+    /** Supported digest method. */
+    private static final String DIGEST_METHOD = DigestMethod.SHA256;
+
+    /** Supported transforms: enveloped, optionally followed by the (implicit) inclusive canonicalization. */
+    private static final List<List<String>> TRANSFORMS = Arrays.asList(Collections.singletonList(Transform.ENVELOPED),
+            Arrays.asList(Transform.ENVELOPED, CanonicalizationMethod.INCLUSIVE));
+
+    /** Digest algorithm name. */
+    private static final String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+    /** Signature algorithm name. */
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA"; //$NON-NLS-1$
+
+    /** Certificate type. */
+    private static final String CERTIFICATE_TYPE = "X.509"; //$NON-NLS-1$
+
+    /*
+     * Initializes the StAX factory.
+     */
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /** Digest of the canonical document (without signature). */
+    private final MessageDigest digest;
+
+    /** Canonicalizer of the document (without signature). */
+    private final StreamCanonicalizer documentCanonicalizer;
+
+    /** Namespaces in scope of the current element. */
+    private final StreamCanonicalizer.Scope scope = new StreamCanonicalizer.Scope();
+
+    /** Paths (local names in the signature namespace, empty for others, from the signature element) of the open elements
+     * of the signature, innermost first. */
+    private final Deque<String> signaturePath = new ArrayDeque<>();
+
+    /** Paths of the signature elements read. */
+    private final Set<String> signaturePaths = new HashSet<>();
+
+    /** Transforms of the reference. */
+    private final List<String> transforms = new ArrayList<>();
+
+    /** Number of elements open. */
+    private int depth = 0;
+
+    /** <code>true</code> once the message header (the first one of the document) is found. */
+    private boolean headerFound = false;
+
+    /** Depth of the message header element, <code>-1</code> out of the header. */
+    private int headerDepth = -1;
+
+    /** Depth of the signature element, <code>-1</code> out of the signature. */
+    private int signatureDepth = -1;
+
+    /** Number of signature elements found. */
+    private int signatures = 0;
+
+    /** <code>true</code> if the signature is not a child of the message header. */
+    private boolean signatureOutOfHeader = false;
+
+    /** <code>true</code> if an element of the signature that must be unique is repeated. */
+    private boolean repeated = false;
+
+    /** Canonical signed info, <code>null</code> until the signed info is read. */
+    private ByteArrayOutputStream signedInfo = null;
+
+    /** Canonicalizer of the signed info, <code>null</code> out of the signed info. */
+    private StreamCanonicalizer signedInfoCanonicalizer = null;
+
+    /** Text of the current signature element, <code>null</code> if the text of the element is not needed. */
+    private StringBuilder text = null;
+
+    /** Canonicalization method. */
+    private String canonicalizationMethod = null;
+
+    /** Signature method. */
+    private String signatureMethod = null;
+
+    /** Number of references. */
+    private int references = 0;
+
+    /** Reference URI. */
+    private String referenceURI = null;
+
+    /** Reference digest method. */
+    private String digestMethod = null;
+
+    /** Reference digest value (base 64). */
+    private StringBuilder digestValue = null;
+
+    /** Signature value (base 64). */
+    private StringBuilder signatureValue = null;
+
+    /** Signature certificate (base 64). */
+    private StringBuilder certificate = null;
+
+    /**
+     * Creates a new verifier for one document.
+     * @throws GeneralSecurityException If the digest algorithm is not available.
+     */
+    private StreamingSignatureVerifier() throws GeneralSecurityException {
+        digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        documentCanonicalizer = new StreamCanonicalizer(digest);
+    }
+
+    /**
+     * Verifies the signature of the given signed document. The stream is not closed.
+     * @param in Signed document.
+     * @return X509 Key used in signature.
+     * @throws SignatureVerificationException If the document cannot be validated or if its signature is invalid.
+     * @throws SignatureSyntaxException If the given signature has an invalid structure (syntaxis) or it does not use the supported profile.
+     */
+    static X509Certificate verify(final InputStream in) throws SignatureVerificationException, SignatureSyntaxException {
+
+        StreamingSignatureVerifier verifier;
+        try {
+            verifier = new StreamingSignatureVerifier();
+        } catch (GeneralSecurityException e) {
+            throw new SignatureVerificationException(Messages.getString("SECURITY_UNABLE_TO_VERIFY"), e); //$NON-NLS-1$
+        }
+
+        try {
+            verifier.read(in);
+        } catch (XMLStreamException | IOException e) {
+            throw new SignatureVerificationException(Messages.getString("SECURITY_INVALID_DOCUMENT"), e); //$NON-NLS-1$
+        }
+
+        return verifier.check();
+    }
+
+    /**
+     * Reads the document digesting it and keeping the signature values.
+     * @param in Signed document.
+     * @throws XMLStreamException If the document is not well formed.
+     * @throws IOException If the document cannot be read.
+     * @throws SignatureSyntaxException If the document has a DTD: its attribute defaults and entities are applied by a
+     * DOM parser but not by the streaming canonicalization, so the signed content would not be the one the application gets.
+     */
+    private void read(final InputStream in) throws XMLStreamException, IOException, SignatureSyntaxException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    startElement(reader);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endElement(reader);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text(reader);
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    processingInstruction(reader);
+                    break;
+                case XMLStreamConstants.DTD:
+                    throw new SignatureSyntaxException(Messages.getString("SECURITY_SIGNATURE_DTD_NOT_SUPPORTED"), null); //$NON-NLS-1$
+                default:
+                    break;
+                }
+            }
+
+            documentCanonicalizer.flush();
+
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Handles a start element.
+     * @param reader Reader positioned on a start element.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void startElement(final XMLStreamReader reader) throws IOException {
+        if (XMLSignature.XMLNS.equals(reader.getNamespaceURI()) && SIGNATURE_TAG.equals(reader.getLocalName())) {
+            signatures++;
+            if (signatures == 1) {
+                signatureDepth = depth;
+                signatureOutOfHeader = headerDepth < 0 || headerDepth != depth - 1;
+            }
+        } else if (!headerFound && HEADER_NAME_SPACE.equals(reader.getNamespaceURI()) && HEADER_TAG.equals(reader.getLocalName())) {
+            headerFound = true;
+            headerDepth = depth;
+        }
+
+        if (signatureDepth < 0) {
+            documentCanonicalizer.startElement(reader, scope);
+        } else {
+            startSignatureElement(reader);
+        }
+
+        scope.push(reader);
+        depth++;
+    }
+
+    /**
+     * Handles a start element of the signature: canonicalizes the signed info and keeps the values needed.
+     * @param reader Reader positioned on a start element of the signature.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void startSignatureElement(final XMLStreamReader reader) throws IOException {
+        String name = XMLSignature.XMLNS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : ""; //$NON-NLS-1$
+        String parent = signaturePath.peek();
+        String path = parent == null ? name : parent + PATH_SEPARATOR + name;
+
+        if (!signaturePaths.add(path) && UNIQUE_PATHS.contains(path)) {
+            repeated = true;
+        } else if (SIGNED_INFO_PATH.equals(path)) {
+            signedInfo = new ByteArrayOutputStream();
+            signedInfoCanonicalizer = new StreamCanonicalizer(signedInfo);
+        } else if (CANONICALIZATION_METHOD_PATH.equals(path)) {
+            canonicalizationMethod = reader.getAttributeValue(null, ALGORITHM_ATTRIBUTE);
+        } else if (SIGNATURE_METHOD_PATH.equals(path)) {
+            signatureMethod = reader.getAttributeValue(null, ALGORITHM_ATTRIBUTE);
+        } else if (REFERENCE_PATH.equals(path)) {
+            references++;
+            referenceURI = reader.getAttributeValue(null, URI_ATTRIBUTE);
+        } else if (TRANSFORM_PATH.equals(path)) {
+            transforms.add(reader.getAttributeValue(null, ALGORITHM_ATTRIBUTE));
+        } else if (DIGEST_METHOD_PATH.equals(path)) {
+            digestMethod = reader.getAttributeValue(null, ALGORITHM_ATTRIBUTE);
+        } else if (DIGEST_VALUE_PATH.equals(path)) {
+            digestValue = new StringBuilder();
+            text = digestValue;
+        } else if (SIGNATURE_VALUE_PATH.equals(path)) {
+            signatureValue = new StringBuilder();
+            text = signatureValue;
+        } else if (X509_CERTIFICATE_PATH.equals(path)) {
+            certificate = new StringBuilder();
+            text = certificate;
+        }
+
+        if (signedInfoCanonicalizer != null) {
+            signedInfoCanonicalizer.startElement(reader, scope);
+        }
+
+        signaturePath.push(path);
+    }
+
+    /**
+     * Handles an end element.
+     * @param reader Reader positioned on an end element.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void endElement(final XMLStreamReader reader) throws IOException {
+        scope.pop();
+        depth--;
+
+        if (depth == headerDepth) {
+            headerDepth = -1;
+        }
+
+        if (signatureDepth < 0) {
+            documentCanonicalizer.endElement(reader);
+        } else {
+            String path = signaturePath.pop();
+            text = null;
+            if (signedInfoCanonicalizer != null) {
+                signedInfoCanonicalizer.endElement(reader);
+                if (SIGNED_INFO_PATH.equals(path)) {
+                    signedInfoCanonicalizer.flush();
+                    signedInfoCanonicalizer = null;
+                }
+            }
+
+            if (depth == signatureDepth) {
+                signatureDepth = -1;
+            }
+        }
+    }
+
+    /**
+     * Handles a text event.
+     * @param reader Reader positioned on a text event.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void text(final XMLStreamReader reader) throws IOException {
+        if (signatureDepth < 0) {
+            documentCanonicalizer.text(reader);
+        } else {
+            if (signedInfoCanonicalizer != null) {
+                signedInfoCanonicalizer.text(reader);
+            }
+            if (text != null) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+    }
+
+    /**
+     * Handles a processing instruction.
+     * @param reader Reader positioned on a processing instruction.
+     * @throws IOException If the canonical form cannot be written.
+     */
+    private void processingInstruction(final XMLStreamReader reader) throws IOException {
+        if (signatureDepth < 0) {
+            documentCanonicalizer.processingInstruction(reader);
+        } else if (signedInfoCanonicalizer != null) {
+            signedInfoCanonicalizer.processingInstruction(reader);
+        }
+    }
+
+    /**
+     * Checks the signature once the document is read.
+     * @return X509 Key used in signature.
+     * @throws SignatureVerificationException If the signature is invalid.
+     * @throws SignatureSyntaxException If the signature has an invalid structure or it does not use the supported profile.
+     */
+    private X509Certificate check() throws SignatureVerificationException, SignatureSyntaxException {
+
+        if (signatures != 1 || signatureOutOfHeader) {
+            throw new SignatureVerificationException(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", SIGNATURE_TAG, XMLSignature.XMLNS)); //$NON-NLS-1$
+        }
+
+        if (repeated) {
+            throw new SignatureSyntaxException(Messages.getString("SECURITY_SIGNATURE_SYNTAX_ERROR"), null); //$NON-NLS-1$
+        }
+
+        if (signedInfo == null || digestValue == null || signatureValue == null || references != 1 || !DOCUMENT_URI.equals(referenceURI)
+                || !CANONICALIZATION_METHOD.equals(canonicalizationMethod) || !SIGNATURE_METHOD.equals(signatureMethod)
+                || !DIGEST_METHOD.equals(digestMethod) || !TRANSFORMS.contains(transforms)) {
+
+            throw new SignatureSyntaxException(Messages.getString("SECURITY_SIGNATURE_PROFILE_NOT_SUPPORTED", //$NON-NLS-1$
+                    canonicalizationMethod, signatureMethod, digestMethod, transforms), null);
+        }
+
+        if (certificate == null) {
+            throw new SignatureVerificationException(Messages.getString("SECURITY_UNABLE_TO_VERIFY"), //$NON-NLS-1$
+                    new KeySelectorException(Messages.getString("SECURITY_NO_VALID_KEY"))); //$NON-NLS-1$
+        }
+
+        X509Certificate x509;
+        byte[] providedSignature;
+        byte[] providedDigest;
+        try {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance(CERTIFICATE_TYPE);
+            x509 = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(certificate.toString())));
+            providedSignature = DatatypeConverter.parseBase64Binary(signatureValue.toString());
+            providedDigest = DatatypeConverter.parseBase64Binary(digestValue.toString());
+        } catch (CertificateException | IllegalArgumentException e) {
+            throw new SignatureSyntaxException(Messages.getString("SECURITY_SIGNATURE_SYNTAX_ERROR"), e); //$NON-NLS-1$
+        }
+
+        boolean signatureValid;
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initVerify(x509.getPublicKey());
+            signature.update(signedInfo.toByteArray());
+            signatureValid = signature.verify(providedSignature);
+        } catch (GeneralSecurityException e) {
+            throw new SignatureVerificationException(Messages.getString("SECURITY_UNABLE_TO_VERIFY"), e); //$NON-NLS-1$
+        }
+
+        byte[] calculatedDigest = digest.digest();
+        boolean referenceValid = MessageDigest.isEqual(calculatedDigest, providedDigest);
+        boolean certValidity = true;
+
+        String msgError = Messages.getString("SECURITY_SIGNATURE_VALIDATION_FAILED"); //$NON-NLS-1$
+        Exception cause = null;
+
+        try {
+            X509Util.checkCertificate(x509);
+
+        } catch (CertificateNotYetValidException | CertificateExpiredException e) {
+            certValidity = false;
+            msgError = Messages.getString("SECURITY_SIGNATURE_CERTIFICATE_NOT_VALID", new Date(), x509.getNotBefore(), x509.getNotAfter()); //$NON-NLS-1$
+            cause = e;
+        } catch (CertificateException e) {
+            certValidity = false;
+            msgError = Messages.getString("SECURITY_SIGNATURE_NO_TRUSTED_CERT"); //$NON-NLS-1$
+            cause = e;
+        }
+
+        if (!signatureValid || !referenceValid || !certValidity) {
+            SignatureVerificationException sve = new SignatureVerificationException(msgError, cause);
+
+            SignatureVerificationExceptionDetails details = sve.getDetails();
+            details.setSignatureValid(signatureValid);
+            details.setCertificateValid(certValidity);
+            details.setSignatureCertificate(x509);
+            details.addReferenceStatus(Boolean.valueOf(referenceValid), DatatypeConverter.printBase64Binary(calculatedDigest),
+                    DatatypeConverter.printBase64Binary(providedDigest));
+
+            throw sve;
+        }
+
+        return x509;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.ByteBufferCharSequence;
+import es.ree.eemws.core.utils.xml.ByteBufferInputStream;
+import es.ree.eemws.core.utils.xml.XMLElementIndex;
+
+/**
+ * Signs UTF-8 encoded IEC 61968-100 messages held in a buffer without building their DOM. The message is read twice:
+ * first it is canonicalized and digested (StAX) and then its bytes are written unchanged to the output with the
+ * signature inserted at the end of the message header, so a mapped file can be signed and sent with a memory use
+ * that does not depend on its size. The signature is the one created by {@link SigningContext#sign(org.w3c.dom.Document)}
+ * (enveloped, inclusive canonicalization, SHA-256 or SHA1 and RSA) and can be verified with
+ * {@link SignatureManager#verifyDocument(org.w3c.dom.Document)}.
+ * <p>The header is located in the message bytes as the first <code>Header</code> element, so it must be the IEC
+ * 61968-100 one (sign the message before adding a SOAP envelope with header). Messages with a DTD are rejected: the DOM parser
+ * applies its defaults and entities and the streamed message would not be verified. Instances are immutable and
+ * thread safe.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+final class StreamingSigner {
+
+    /** StAX factory (thread safe). */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    /** Header tag. */
+    private static final String HEADER_TAG = "Header"; //$NON-NLS-1$
+
+    /** Header namespace. */
+    private static final String HEADER_NAME_SPACE = "http://iec.ch/TC57/2011/schema/message"; //$NON-NLS-1$
+
+    /** Supported message encoding. */
+    private static final String ENCODING = StandardCharsets.UTF_8.name();
+
+    /** Signature method. */
+    private static final String SIGNATURE_METHOD = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"; //$NON-NLS-1$
+
+    /** Digest algorithm name. */
+    private static final String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+    /** Signature algorithm name. */
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA"; //$NON-NLS-1$
+
+    /** SHA1 digest algorithm name. */
+    private static final String LEGACY_SHA1_DIGEST_ALGORITHM = "SHA-1"; //$NON-NLS-1$
+
+    /** RSA-SHA1 signature algorithm name. */
+    private static final String LEGACY_SHA1_SIGNATURE_ALGORITHM = "SHA1withRSA"; //$NON-NLS-1$
+
+    /** Signature element start tag. */
+    private static final String SIGNATURE_START = "<Signature xmlns=\"" + XMLSignature.XMLNS + "\">"; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /** Signature element end tag. */
+    private static final String SIGNATURE_END = "</Signature>"; //$NON-NLS-1$
+
+    /*
+     * Initializes the StAX factory.
+     */
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /** Signature private key. */
+    private final PrivateKey privateKey;
+
+    /** Whether SHA1 is used for digest and signature. */
+    private final boolean legacySha1;
+
+    /** Key info element (it does not depend on the signed message). */
+    private final String keyInfo;
+
+    /**
+     * Creates a new signer with the given key, certificate and algorithm.
+     * @param key The private key to be used for signature.
+     * @param cert The certificate to be used for signature.
+     * @param issuerName Certificate issuer name written in the key info.
+     * @param subjectName Certificate subject name written in the key info.
+     * @param sha1 <code>true</code> to use SHA1 for digest and signature, <code>false</code> to use SHA-256.
+     * @throws SignatureManagerException If the certificate cannot be encoded.
+     */
+    StreamingSigner(final PrivateKey key, final X509Certificate cert, final String issuerName, final String subjectName, final boolean sha1)
+            throws SignatureManagerException {
+
+        privateKey = key;
+        legacySha1 = sha1;
+
+        try {
+            keyInfo = "<KeyInfo><X509Data><X509IssuerSerial><X509IssuerName>" + escape(issuerName) //$NON-NLS-1$
+                + "</X509IssuerName><X509SerialNumber>" + cert.getSerialNumber() //$NON-NLS-1$
+                + "</X509SerialNumber></X509IssuerSerial><X509SubjectName>" + escape(subjectName) //$NON-NLS-1$
+                + "</X509SubjectName><X509Certificate>" + DatatypeConverter.printBase64Binary(cert.getEncoded()) //$NON-NLS-1$
+                + "</X509Certificate></X509Data></KeyInfo>"; //$NON-NLS-1$
+        } catch (GeneralSecurityException e) {
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_GENERAL_ERROR"), e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Signs the given message writing the signed message to the given stream. The stream is neither flushed nor closed.
+     * @param msg UTF-8 encoded IEC 61968-100 message (remaining bytes of the buffer). The buffer position and limit are not modified.
+     * @param out Destination of the signed message.
+     * @throws SignatureManagerException If it's impossible to sign the message.
+     * @throws IOException If the signed message cannot be written.
+     */
+    void sign(final ByteBuffer msg, final OutputStream out) throws SignatureManagerException, IOException {
+
+        ByteBuffer bytes = msg.slice();
+        Header header;
+        String signature;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance(legacySha1 ? LEGACY_SHA1_DIGEST_ALGORITHM : DIGEST_ALGORITHM);
+            header = digest(bytes.duplicate(), digest);
+            String signedInfo = getSignedInfo(digest.digest());
+
+            Signature engine = Signature.getInstance(legacySha1 ? LEGACY_SHA1_SIGNATURE_ALGORITHM : SIGNATURE_ALGORITHM);
+            engine.initSign(privateKey);
+            engine.update(canonicalize(signedInfo, header.scope));
+
+            signature = SIGNATURE_START + signedInfo + "<SignatureValue>" + DatatypeConverter.printBase64Binary(engine.sign()) //$NON-NLS-1$
+                + "</SignatureValue>" + keyInfo + SIGNATURE_END; //$NON-NLS-1$
+
+        } catch (GeneralSecurityException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_GENERAL_ERROR"), e); //$NON-NLS-1$
+
+        } catch (XMLStreamException | UnsupportedEncodingException e) {
+
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT"), e); //$NON-NLS-1$
+        }
+
+        XMLElementIndex index = new XMLElementIndex(new ByteBufferCharSequence(bytes), Collections.singleton(HEADER_TAG));
+        int headerEnd = index.getContentEnd(HEADER_TAG);
+        if (headerEnd < 0 || !isStartTag(bytes, index.getStart(HEADER_TAG), header.qName)) {
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", HEADER_TAG, HEADER_NAME_SPACE)); //$NON-NLS-1$
+        }
+
+        WritableByteChannel channel = Channels.newChannel(out);
+        write(bytes, 0, headerEnd, channel);
+        out.write(signature.getBytes(StandardCharsets.UTF_8));
+        write(bytes, headerEnd, bytes.limit(), channel);
+    }
+
+    /**
+     * Canonicalizes and digests the given message.
+     * @param msg UTF-8 encoded message.
+     * @param digest Digest to update.
+     * @return Message header (the signature parent).
+     * @throws XMLStreamException If the message is not well formed.
+     * @throws UnsupportedEncodingException If the message is not UTF-8 encoded.
+     * @throws SignatureManagerException If the message has not one IEC 61968-100 header or it has a DTD (its attribute
+     * defaults and entities are applied by a DOM parser but not by the streaming canonicalization).
+     */
+    private static Header digest(final ByteBuffer msg, final MessageDigest digest)
+            throws XMLStreamException, UnsupportedEncodingException, SignatureManagerException {
+
+        StreamCanonicalizer canonicalizer = new StreamCanonicalizer(digest);
+        StreamCanonicalizer.Scope scope = new StreamCanonicalizer.Scope();
+        Header retValue = null;
+        int headers = 0;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteBufferInputStream(msg));
+        try {
+            if (reader.getEncoding() != null && !ENCODING.equalsIgnoreCase(reader.getEncoding())) {
+                throw new UnsupportedEncodingException(reader.getEncoding());
+            }
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    canonicalizer.startElement(reader, scope);
+                    scope.push(reader);
+                    if (HEADER_TAG.equals(reader.getLocalName()) && HEADER_NAME_SPACE.equals(reader.getNamespaceURI())) {
+                        headers++;
+                        retValue = new Header(reader, scope);
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    scope.pop();
+                    canonicalizer.endElement(reader);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    canonicalizer.text(reader);
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    canonicalizer.processingInstruction(reader);
+                    break;
+                case XMLStreamConstants.DTD:
+                    throw new SignatureManagerException(Messages.getString("SECURITY_SIGNATURE_DTD_NOT_SUPPORTED")); //$NON-NLS-1$
+                default:
+                    break;
+                }
+            }
+
+            canonicalizer.flush();
+
+        } catch (IOException e) {
+
+            /* The canonical form is written to a digest, nothing can fail. */
+            throw new XMLStreamException(e);
+
+        } finally {
+            reader.close();
+        }
+
+        if (headers != 1) {
+            throw new SignatureManagerException(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", HEADER_TAG, HEADER_NAME_SPACE)); //$NON-NLS-1$
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the signed info element for the given digest.
+     * @param digestValue Digest of the canonical message.
+     * @return Signed info element.
+     */
+    private String getSignedInfo(final byte[] digestValue) {
+        return "<SignedInfo><CanonicalizationMethod Algorithm=\"" + CanonicalizationMethod.INCLUSIVE //$NON-NLS-1$
+            + "\"></CanonicalizationMethod><SignatureMethod Algorithm=\"" + (legacySha1 ? SignatureMethod.RSA_SHA1 : SIGNATURE_METHOD) //$NON-NLS-1$
+            + "\"></SignatureMethod><Reference URI=\"\"><Transforms><Transform Algorithm=\"" + Transform.ENVELOPED //$NON-NLS-1$
+            + "\"></Transform></Transforms><DigestMethod Algorithm=\"" + (legacySha1 ? DigestMethod.SHA1 : DigestMethod.SHA256) //$NON-NLS-1$
+            + "\"></DigestMethod><DigestValue>" + DatatypeConverter.printBase64Binary(digestValue) //$NON-NLS-1$
+            + "</DigestValue></Reference></SignedInfo>"; //$NON-NLS-1$
+    }
+
+    /**
+     * Returns the canonical form of the given signed info placed in a signature element child of the header.
+     * @param signedInfo Signed info element.
+     * @param headerScope Namespaces in scope of the header.
+     * @return Canonical signed info.
+     * @throws XMLStreamException If the signed info cannot be read.
+     */
+    private static byte[] canonicalize(final String signedInfo, final StreamCanonicalizer.Scope headerScope) throws XMLStreamException {
+        ByteArrayOutputStream retValue = new ByteArrayOutputStream();
+        StreamCanonicalizer canonicalizer = new StreamCanonicalizer(retValue);
+        StreamCanonicalizer.Scope scope = new StreamCanonicalizer.Scope(headerScope);
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(SIGNATURE_START + signedInfo + SIGNATURE_END));
+        try {
+            /* The signature element is not canonicalized, only its namespaces are in scope. */
+            reader.nextTag();
+            scope.push(reader);
+            int depth = 0;
+            do {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    canonicalizer.startElement(reader, scope);
+                    scope.push(reader);
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    scope.pop();
+                    canonicalizer.endElement(reader);
+                    depth--;
+                } else if (event == XMLStreamConstants.CHARACTERS) {
+                    canonicalizer.text(reader);
+                }
+            } while (depth > 0);
+
+            canonicalizer.flush();
+
+        } catch (IOException e) {
+
+            /* The canonical form is written to memory, nothing can fail. */
+            throw new XMLStreamException(e);
+
+        } finally {
+            reader.close();
+        }
+
+        return retValue.toByteArray();
+    }
+
+    /**
+     * Checks whether the given message has a start tag with the given name at the given position.
+     * @param msg UTF-8 encoded message.
+     * @param pos Position of the start tag.
+     * @param qName Element qualified name.
+     * @return <code>true</code> if there is a start tag with the given name at the given position.
+     */
+    private static boolean isStartTag(final ByteBuffer msg, final int pos, final String qName) {
+        int nameEnd = pos + 1 + qName.length();
+        boolean retValue = pos >= 0 && nameEnd < msg.limit() && msg.get(pos) == '<';
+        for (int i = 0; retValue && i < qName.length(); i++) {
+            retValue = msg.get(pos + 1 + i) == qName.charAt(i);
+        }
+
+        if (retValue) {
+            byte next = msg.get(nameEnd);
+            retValue = next == '>' || next == '/' || next <= ' ';
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Writes a region of the given buffer to the given channel.
+     * @param msg Message bytes.
+     * @param from Region start.
+     * @param to Region end (exclusive).
+     * @param out Destination channel.
+     * @throws IOException If the bytes cannot be written.
+     */
+    private static void write(final ByteBuffer msg, final int from, final int to, final WritableByteChannel out) throws IOException {
+        ByteBuffer region = msg.duplicate();
+        region.limit(to);
+        region.position(from);
+        while (region.hasRemaining()) {
+            out.write(region);
+        }
+    }
+
+    /**
+     * Escapes the given text to be written as element content.
+     * @param text Text to escape.
+     * @return Escaped text.
+     */
+    private static String escape(final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\r", "&#xD;"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+    }
+
+    /**
+     * Message header read while the message is digested.
+     */
+    private static final class Header {
+
+        /** Header qualified name (as written in the message). */
+        private final String qName;
+
+        /** Namespaces in scope of the header (those of the signature parent). */
+        private final StreamCanonicalizer.Scope scope;
+
+        /**
+         * Creates a new header with the reader's current element.
+         * @param reader Reader positioned on the header start element.
+         * @param headerScope Namespaces in scope of the header, including its own declarations. It is copied.
+         */
+        Header(final XMLStreamReader reader, final StreamCanonicalizer.Scope headerScope) {
+            String prefix = reader.getPrefix();
+            qName = prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName(); //$NON-NLS-1$
+            scope = new StreamCanonicalizer.Scope(headerScope);
+        }
+    }
+}
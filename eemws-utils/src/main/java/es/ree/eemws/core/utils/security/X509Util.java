@@ -20,63 +20,18 @@
  */
 package es.ree.eemws.core.utils.security;
 
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
-
-import es.ree.eemws.core.utils.i18n.Messages;
-
 /**
  * Implements simple X509 validations and utilities.
+ * Trust decisions are cached, see {@link CertificateTrustCache}.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.0 13/06/2014
+ * @version 1.1 17/10/2016
  */
 public final class X509Util {
 
-    /** TrustFactory algorimth names. */
-    private static final String[] ALGORITHM_NAMES = { "SunX509", "IbmX509" }; //$NON-NLS-1$ //$NON-NLS-2$
-
-    /** Authentication type. */
-    private static final String AUTHENTICATION_TYPE = "RSA"; //$NON-NLS-1$
-
-    /** Trust manager, validate that the given certificate was issued by a trusted CA. */
-    private static final X509TrustManager X509_TRUST_MANAGER;
-
-    /*
-     * Initializes the x509 trust manager.
-     */
-    static {
-        TrustManagerFactory tmf = null;
-
-        for (int cont = 0; tmf == null && cont < ALGORITHM_NAMES.length; cont++) {
-            try {
-                tmf = TrustManagerFactory.getInstance(ALGORITHM_NAMES[cont]);
-            } catch (NoSuchAlgorithmException e) { //NOSONAR - We specifically do not want to propagate nor log this exception
-
-                /* No algorithm[i] available, try next one... */
-            }
-        }
-
-        if (tmf == null) {
-            throw new IllegalStateException(Messages.getString("SECURITY_NO_TRUST_VALIDATOR")); //$NON-NLS-1$
-
-        }
-
-        try {
-            tmf.init((KeyStore) null);
-            X509_TRUST_MANAGER = (X509TrustManager) tmf.getTrustManagers()[0];
-        } catch (KeyStoreException e) {
-            throw new IllegalStateException(Messages.getString("SECURITY_UNABLE_TO_INITIALIZE_TRUST_VALIDATOR", tmf.getAlgorithm()), e); //$NON-NLS-1$
-
-        }
-    }
-
     /**
      * Constructor.
      */
@@ -96,13 +51,14 @@ public final class X509Util {
     }
 
     /**
-     * Checks the given X509 certificates.
+     * Checks the given X509 certificates. The trust validation is done once per certificate chain (while the trust store
+     * does not change), the certificates validity is checked every time.
      * @param x509Certs Certificates to be validated.
      * @throws CertificateException if certificates are not valid (out of date or untrusted).
      */
     public static void checkCertificate(final X509Certificate[] x509Certs) throws CertificateException {
 
-        X509_TRUST_MANAGER.checkClientTrusted(x509Certs, AUTHENTICATION_TYPE);
+        CertificateTrustCache.checkTrusted(x509Certs);
         for (int cont = 0; cont < x509Certs.length; cont++) {
 
             x509Certs[cont].checkValidity();
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read only character view of UTF-8 encoded bytes, so XML text can be scanned (see {@link XMLElementIndex})
+ * without decoding it. Each byte is seen as one character (positions are byte offsets): XML markup
+ * (<code>&lt;</code>, <code>&gt;</code>, quotes, blanks, ASCII tag names...) is always one byte in UTF-8 and
+ * bytes of multi-byte sequences are never taken as markup. Multi-byte characters are only decoded
+ * when a region is converted to String ({@link #toString()}), so only the values actually retrieved are decoded.
+ * The bytes are not copied, the view shares them with the given buffer.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class ByteBufferCharSequence implements CharSequence {
+
+    /** Mask to read a byte as an unsigned value. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** Underlying bytes (absolute positions are used, buffer position and limit are never changed). */
+    private final ByteBuffer buffer;
+
+    /** View start in the underlying buffer. */
+    private final int offset;
+
+    /** View length (bytes). */
+    private final int len;
+
+    /**
+     * Creates a view of the given bytes.
+     * @param bytes UTF-8 encoded bytes.
+     */
+    public ByteBufferCharSequence(final byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Creates a view of the remaining bytes of the given buffer (from its position to its limit).
+     * The buffer position and limit are not modified.
+     * @param bytes UTF-8 encoded bytes.
+     */
+    public ByteBufferCharSequence(final ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.remaining());
+    }
+
+    /**
+     * Creates a view of a region of the given buffer.
+     * @param bytes UTF-8 encoded bytes.
+     * @param start View start in the buffer.
+     * @param length View length.
+     */
+    private ByteBufferCharSequence(final ByteBuffer bytes, final int start, final int length) {
+        buffer = bytes;
+        offset = start;
+        len = length;
+    }
+
+    /**
+     * Returns the view start position in the underlying buffer.
+     * @return View start position in the underlying buffer.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= len) {
+            throw new IndexOutOfBoundsException("[index=" + index + "][length=" + len + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        return (char) (buffer.get(offset + index) & BYTE_MASK);
+    }
+
+    @Override
+    public ByteBufferCharSequence subSequence(final int start, final int end) {
+        if (start < 0 || end < start || end > len) {
+            throw new IndexOutOfBoundsException("[start=" + start + "][end=" + end + "][length=" + len + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+
+        return new ByteBufferCharSequence(buffer, offset + start, end - start);
+    }
+
+    /**
+     * Returns the bytes of this view as a new buffer that shares them (no bytes are copied).
+     * The returned buffer position is zero and its limit is the view length.
+     * @return Bytes of this view.
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer retValue = buffer.duplicate();
+        retValue.limit(offset + len);
+        retValue.position(offset);
+
+        return retValue.slice();
+    }
+
+    /**
+     * Decodes the bytes of this view as UTF-8.
+     * @return Decoded text.
+     */
+    @Override
+    public String toString() {
+        String retValue;
+        if (buffer.hasArray()) {
+            retValue = new String(buffer.array(), buffer.arrayOffset() + offset, len, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[len];
+            toByteBuffer().get(bytes);
+            retValue = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return retValue;
+    }
+}
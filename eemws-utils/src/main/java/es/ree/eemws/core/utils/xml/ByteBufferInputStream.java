@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that reads the remaining bytes of a buffer, so documents held in buffers (heap, direct or mapped
+ * files, see {@link es.ree.eemws.core.utils.file.FileUtil#mapUTF8(String)}) can be parsed without copying them.
+ * The buffer position is modified as the bytes are read, use a duplicate to keep the original position.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class ByteBufferInputStream extends InputStream {
+
+    /** Mask to read a byte as an unsigned value. */
+    private static final int BYTE_MASK = 0xFF;
+
+    /** Bytes to read. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a new stream that reads the remaining bytes of the given buffer.
+     * @param buf Bytes to read. Its position is modified as the bytes are read.
+     */
+    public ByteBufferInputStream(final ByteBuffer buf) {
+        buffer = buf;
+    }
+
+    @Override
+    public int read() {
+        int retValue = -1;
+        if (buffer.hasRemaining()) {
+            retValue = buffer.get() & BYTE_MASK;
+        }
+
+        return retValue;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        int retValue = -1;
+        if (buffer.hasRemaining()) {
+            retValue = Math.min(len, buffer.remaining());
+            buffer.get(b, off, retValue);
+        }
+
+        return retValue;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
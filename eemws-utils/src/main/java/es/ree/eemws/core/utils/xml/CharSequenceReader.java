@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.Reader;
+
+/**
+ * Reader of the characters of a <code>CharSequence</code> (<code>StringBuilder</code>, <code>String</code>...).
+ * Unlike <code>new StringReader(sb.toString())</code> the characters are not copied. The sequence must not be
+ * modified while it is read. Instances are not thread safe.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class CharSequenceReader extends Reader {
+
+    /** Characters to read. */
+    private final CharSequence chars;
+
+    /** Position of the next character to read. */
+    private int pos = 0;
+
+    /**
+     * Creates a new reader of the given characters.
+     * @param cs Characters to read.
+     */
+    public CharSequenceReader(final CharSequence cs) {
+        chars = cs;
+    }
+
+    @Override
+    public int read() {
+        int retValue = -1;
+        if (pos < chars.length()) {
+            retValue = chars.charAt(pos++);
+        }
+
+        return retValue;
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) {
+        int retValue = -1;
+        int remaining = chars.length() - pos;
+        if (remaining > 0) {
+            retValue = Math.min(len, remaining);
+            if (chars instanceof StringBuilder) {
+                ((StringBuilder) chars).getChars(pos, pos + retValue, cbuf, off);
+            } else if (chars instanceof String) {
+                ((String) chars).getChars(pos, pos + retValue, cbuf, off);
+            } else {
+                for (int i = 0; i < retValue; i++) {
+                    cbuf[off + i] = chars.charAt(pos + i);
+                }
+            }
+            pos += retValue;
+        }
+
+        return retValue;
+    }
+
+    @Override
+    public long skip(final long n) {
+        long retValue = Math.max(0, Math.min(n, chars.length() - pos));
+        pos += retValue;
+
+        return retValue;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+
+        /* Nothing to close. */
+    }
+}
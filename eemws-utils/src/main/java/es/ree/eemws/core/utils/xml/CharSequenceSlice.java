@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Read only window (offset / length) over another character sequence.
+ * No characters are copied when the slice (or a sub sequence of it) is created, the characters
+ * are copied only by {@link #toString()} or written in chunks by {@link #writeTo(Writer)}.
+ * Note that the slice shares the characters with the underlying sequence: if the sequence is modified the
+ * slice reflects the changes and it's no longer valid if the sequence becomes shorter than the slice end.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class CharSequenceSlice implements CharSequence {
+
+    /** Size of the buffer used to write the slice. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Underlying sequence. */
+    private final CharSequence seq;
+
+    /** Slice start in the underlying sequence. */
+    private final int offset;
+
+    /** Slice length. */
+    private final int len;
+
+    /**
+     * Creates a new slice over the given sequence.
+     * @param sequence Underlying sequence.
+     * @param start Slice start position in the given sequence.
+     * @param end Slice end position in the given sequence (exclusive).
+     * @throws IndexOutOfBoundsException If the given positions are out of the sequence bounds.
+     */
+    public CharSequenceSlice(final CharSequence sequence, final int start, final int end) {
+        if (start < 0 || end < start || end > sequence.length()) {
+            throw new IndexOutOfBoundsException("[start=" + start + "][end=" + end + "][length=" + sequence.length() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+
+        if (sequence instanceof CharSequenceSlice) {
+            CharSequenceSlice parent = (CharSequenceSlice) sequence;
+            seq = parent.seq;
+            offset = parent.offset + start;
+        } else {
+            seq = sequence;
+            offset = start;
+        }
+
+        len = end - start;
+    }
+
+    /**
+     * Returns the slice start position in the underlying sequence.
+     * @return Slice start position in the underlying sequence.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public int length() {
+        return len;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= len) {
+            throw new IndexOutOfBoundsException("[index=" + index + "][length=" + len + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        return seq.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return new CharSequenceSlice(this, start, end);
+    }
+
+    /**
+     * Writes the slice characters to the given writer using a small buffer, so the slice
+     * is never copied as a whole.
+     * @param writer Writer where the slice will be written.
+     * @throws IOException If the slice cannot be written.
+     */
+    public void writeTo(final Writer writer) throws IOException {
+        char[] buffer = new char[Math.min(BUFFER_SIZE, Math.max(len, 1))];
+        int pos = offset;
+        int end = offset + len;
+
+        while (pos < end) {
+            int chunk = Math.min(buffer.length, end - pos);
+            getChars(pos, pos + chunk, buffer);
+            writer.write(buffer, 0, chunk);
+            pos += chunk;
+        }
+    }
+
+    /**
+     * Copies a region of the underlying sequence into the given buffer.
+     * @param start Region start in the underlying sequence.
+     * @param end Region end in the underlying sequence (exclusive).
+     * @param buffer Destination buffer.
+     */
+    private void getChars(final int start, final int end, final char[] buffer) {
+        if (seq instanceof StringBuilder) {
+            ((StringBuilder) seq).getChars(start, end, buffer, 0);
+        } else if (seq instanceof String) {
+            ((String) seq).getChars(start, end, buffer, 0);
+        } else {
+            for (int cont = start; cont < end; cont++) {
+                buffer[cont - start] = seq.charAt(cont);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        String retValue;
+        if (seq instanceof StringBuilder) {
+            retValue = ((StringBuilder) seq).substring(offset, offset + len);
+        } else {
+            retValue = seq.subSequence(offset, offset + len).toString();
+        }
+
+        return retValue;
+    }
+}
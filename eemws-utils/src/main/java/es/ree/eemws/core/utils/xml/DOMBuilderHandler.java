@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler that builds a DOM from the (namespace aware) events it receives. Lighter than an identity
+ * <code>TransformerHandler</code>: the document is created by a pooled <code>DocumentBuilder</code> and
+ * no transformer is needed. Comments and CDATA sections (lexical events) are not received, CDATA is kept as text.
+ * Instances build a single document.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+final class DOMBuilderHandler extends DefaultHandler {
+
+    /** Namespace declaration attribute name. */
+    private static final String XMLNS = "xmlns"; //$NON-NLS-1$
+
+    /** Namespace declaration attribute prefix. */
+    private static final String XMLNS_PREFIX = "xmlns:"; //$NON-NLS-1$
+
+    /** Document being built. */
+    private final Document document;
+
+    /** Node the next children are appended to. */
+    private Node current;
+
+    /** Namespace declarations of the next element (prefix, uri pairs). */
+    private final List<String> declarations = new ArrayList<>();
+
+    /**
+     * Creates a new handler that builds the given (empty) document.
+     * @param doc Empty document.
+     */
+    DOMBuilderHandler(final Document doc) {
+        document = doc;
+        current = doc;
+    }
+
+    /**
+     * Returns the document built.
+     * @return Document built.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        declarations.add(prefix);
+        declarations.add(uri);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+        Element element = document.createElementNS(uri.isEmpty() ? null : uri, qName);
+
+        for (int i = 0; i < declarations.size(); i += 2) {
+            String prefix = declarations.get(i);
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix.isEmpty() ? XMLNS : XMLNS_PREFIX + prefix, declarations.get(i + 1));
+        }
+        declarations.clear();
+
+        for (int i = 0; i < atts.getLength(); i++) {
+            String attName = atts.getQName(i);
+            if (!XMLNS.equals(attName) && !attName.startsWith(XMLNS_PREFIX)) {
+                String attUri = atts.getURI(i);
+                element.setAttributeNS(attUri.isEmpty() ? null : attUri, attName, atts.getValue(i));
+            }
+        }
+
+        current.appendChild(element);
+        current = element;
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) {
+        current = current.getParentNode();
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        if (current != document) {
+            Node last = current.getLastChild();
+            if (last instanceof Text) {
+                ((Text) last).appendData(new String(ch, start, length));
+            } else {
+                current.appendChild(document.createTextNode(new String(ch, start, length)));
+            }
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) {
+        current.appendChild(document.createProcessingInstruction(target, data));
+    }
+}
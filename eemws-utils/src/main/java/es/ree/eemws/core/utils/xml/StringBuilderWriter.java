@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.Writer;
+
+/**
+ * Writer that appends the characters to a given <code>StringBuilder</code>.
+ * Unlike <code>StringWriter</code> the characters are not synchronized nor copied when the
+ * written text is retrieved: the caller's builder is used directly.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class StringBuilderWriter extends Writer {
+
+    /** Destination builder. */
+    private final StringBuilder builder;
+
+    /**
+     * Creates a new writer that appends to the given builder.
+     * @param sb Destination builder.
+     */
+    public StringBuilderWriter(final StringBuilder sb) {
+        builder = sb;
+    }
+
+    /**
+     * Returns the destination builder.
+     * @return Destination builder.
+     */
+    public StringBuilder getBuilder() {
+        return builder;
+    }
+
+    @Override
+    public void write(final int c) {
+        builder.append((char) c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        builder.append(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) {
+        builder.append(csq);
+        return this;
+    }
+
+    @Override
+    public Writer append(final CharSequence csq, final int start, final int end) {
+        builder.append(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Writer append(final char c) {
+        builder.append(c);
+        return this;
+    }
+
+    @Override
+    public void flush() {
+
+        /* Nothing to flush. */
+    }
+
+    @Override
+    public void close() {
+
+        /* Nothing to close. */
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+/**
+ * Offset index of the elements of an XML document held as text.
+ * The document is scanned once (linear time) and, for the first occurrence of every element
+ * local name (namespace prefix is ignored), the positions of its start tag, content and end tag are kept.
+ * Later lookups are answered without scanning the document again.
+ * The index can be restricted to a set of element names, in that case the scan stops as soon as all of them
+ * have been found.
+ * Self-closed elements (<code>&lt;tag/&gt;</code>) have no value and are not indexed, as in
+ * {@link XMLUtil#getNodeValue(String, StringBuilder)}.
+ * Note that the index keeps a reference to the given text, if the text is modified the index is no longer valid.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class XMLElementIndex {
+
+    /** Position of the start tag's <code>&lt;</code> in the offsets array. */
+    private static final int START = 0;
+
+    /** Position of the first content character in the offsets array. */
+    private static final int CONTENT_START = 1;
+
+    /** Position of the end tag's <code>&lt;</code> (content end) in the offsets array. */
+    private static final int CONTENT_END = 2;
+
+    /** Position of the character after the end tag in the offsets array. */
+    private static final int END = 3;
+
+    /** Number of offsets kept per element. */
+    private static final int NUM_OFFSETS = 4;
+
+    /** Value for "not found" positions. */
+    private static final int NOT_FOUND = -1;
+
+    /** Stack marker for elements that are not indexed (not the first occurrence of its name). */
+    private static final int[] NOT_INDEXED = new int[0];
+
+    /** XML start tag character. */
+    private static final char START_TAG = '<';
+
+    /** XML end tag character. */
+    private static final char END_TAG = '>';
+
+    /** Slash character. */
+    private static final char SLASH = '/';
+
+    /** Blank character, characters up to this one are considered white spaces. */
+    private static final char BLANK = ' ';
+
+    /** Colon character (namespace prefix separator). */
+    private static final char COLON = ':';
+
+    /** Processing instruction / xml declaration mark. */
+    private static final char QUESTION_MARK = '?';
+
+    /** Comment, CDATA and DOCTYPE mark. */
+    private static final char EXCLAMATION_MARK = '!';
+
+    /** Double quote character. */
+    private static final char DOUBLE_QUOTE = '"';
+
+    /** Simple quote character. */
+    private static final char SIMPLE_QUOTE = '\'';
+
+    /** Comment start. */
+    private static final String COMMENT_START = "<!--"; //$NON-NLS-1$
+
+    /** Comment end. */
+    private static final String COMMENT_END = "-->"; //$NON-NLS-1$
+
+    /** CDATA section start. */
+    private static final String CDATA_START = "<![CDATA["; //$NON-NLS-1$
+
+    /** CDATA section end. */
+    private static final String CDATA_END = "]]>"; //$NON-NLS-1$
+
+    /** Processing instruction end. */
+    private static final String PI_END = "?>"; //$NON-NLS-1$
+
+    /** DOCTYPE internal subset start. */
+    private static final char SUBSET_START = '[';
+
+    /** DOCTYPE internal subset end. */
+    private static final char SUBSET_END = ']';
+
+    /** Initial capacity of the element table (must be a power of two). */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Indexed document. */
+    private final CharSequence doc;
+
+    /**
+     * Element local names. Open addressing hash table, names are looked up while the document is scanned
+     * without creating a String for each tag.
+     */
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /** Offsets of the first occurrence of each element, in the same position as its name. */
+    private int[][] elements = new int[INITIAL_CAPACITY][];
+
+    /** Number of element names in the table. */
+    private int size = 0;
+
+    /** Only the element names in the table are indexed (names are given in the constructor). */
+    private final boolean restricted;
+
+    /** Number of requested elements not found yet. <code>-1</code> if the index is not restricted. */
+    private int pending = NOT_FOUND;
+
+    /**
+     * Creates the index of the given document, the document is scanned once.
+     * @param document XML document as text.
+     */
+    public XMLElementIndex(final CharSequence document) {
+        doc = document;
+        restricted = false;
+        scan();
+    }
+
+    /**
+     * Creates the index of the given elements of the given document. The document is scanned once, until
+     * all the given elements are found (the scan only reaches the end of the document if some of them
+     * are not in the document).
+     * @param document XML document as text.
+     * @param localNames Element (tag) names without namespace prefix to index.
+     */
+    public XMLElementIndex(final CharSequence document, final Collection<String> localNames) {
+        doc = document;
+        restricted = true;
+        pending = 0;
+        for (String localName : localNames) {
+            int slot = slot(localName, 0, localName.length(), localName.hashCode());
+            if (names[slot] == null) {
+                int[] offsets = {NOT_FOUND, NOT_FOUND, NOT_FOUND, NOT_FOUND};
+                put(slot, localName, offsets);
+                pending++;
+            }
+        }
+        scan();
+    }
+
+    /**
+     * Returns the document indexed by this instance.
+     * @return Indexed document.
+     */
+    public CharSequence getDocument() {
+        return doc;
+    }
+
+    /**
+     * Checks whether the document has an element with the given local name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return <code>true</code> if the document has (at least) one non-empty element with the given name.
+     */
+    public boolean contains(final String localName) {
+        return getOffsets(localName) != null;
+    }
+
+    /**
+     * Returns the position of the start tag (<code>&lt;</code> character) of the first element with the given name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Position of the element start tag. <code>-1</code> if there is no such element.
+     */
+    public int getStart(final String localName) {
+        return getOffset(localName, START);
+    }
+
+    /**
+     * Returns the position of the first content character of the first element with the given name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Position of the element content. <code>-1</code> if there is no such element.
+     */
+    public int getContentStart(final String localName) {
+        return getOffset(localName, CONTENT_START);
+    }
+
+    /**
+     * Returns the position where the content of the first element with the given name ends
+     * (that is, the position of its end tag).
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Position of the element content end (exclusive). <code>-1</code> if there is no such element.
+     */
+    public int getContentEnd(final String localName) {
+        return getOffset(localName, CONTENT_END);
+    }
+
+    /**
+     * Returns the position after the end tag of the first element with the given name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Position after the element end tag (exclusive). <code>-1</code> if there is no such element.
+     */
+    public int getEnd(final String localName) {
+        return getOffset(localName, END);
+    }
+
+    /**
+     * Returns the value (content as text) of the first element with the given name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Value of the element. <code>null</code> if there is no such element.
+     */
+    public String getValue(final String localName) {
+        String retValue = null;
+        int[] offsets = getOffsets(localName);
+        if (offsets != null) {
+            retValue = doc.subSequence(offsets[CONTENT_START], offsets[CONTENT_END]).toString();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the content of the first element with the given name as a view of the document (no characters are copied).
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Content of the element. <code>null</code> if there is no such element.
+     */
+    public CharSequenceSlice getContent(final String localName) {
+        CharSequenceSlice retValue = null;
+        int[] offsets = getOffsets(localName);
+        if (offsets != null) {
+            retValue = new CharSequenceSlice(doc, offsets[CONTENT_START], offsets[CONTENT_END]);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the requested offset of the given element.
+     * @param localName Element (tag) name without namespace prefix.
+     * @param offset Offset to retrieve.
+     * @return Requested offset. <code>-1</code> if there is no such element.
+     */
+    private int getOffset(final String localName, final int offset) {
+        int retValue = NOT_FOUND;
+        int[] offsets = getOffsets(localName);
+        if (offsets != null) {
+            retValue = offsets[offset];
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the offsets of the first element with the given name.
+     * @param localName Element (tag) name without namespace prefix.
+     * @return Offsets of the element. <code>null</code> if there is no such element or it has no end tag.
+     */
+    private int[] getOffsets(final String localName) {
+        int[] retValue = elements[slot(localName, 0, localName.length(), localName.hashCode())];
+        if (retValue != null && retValue[CONTENT_END] == NOT_FOUND) {
+            retValue = null;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the table position of the given name, or the free position where it should be stored.
+     * @param text Text that contains the name.
+     * @param start Name start position in the text.
+     * @param end Name end position in the text (exclusive).
+     * @param hash Name hash code (as <code>String.hashCode()</code>).
+     * @return Table position for the given name.
+     */
+    private int slot(final CharSequence text, final int start, final int end, final int hash) {
+        int mask = names.length - 1;
+        int pos = hash & mask;
+        while (names[pos] != null && !sameName(names[pos], text, start, end)) {
+            pos = (pos + 1) & mask;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Checks whether the given name is equal to the given text region.
+     * @param name Name to compare.
+     * @param text Text that contains the name to compare with.
+     * @param start Region start.
+     * @param end Region end (exclusive).
+     * @return <code>true</code> if both names are equal.
+     */
+    private static boolean sameName(final String name, final CharSequence text, final int start, final int end) {
+        boolean retValue = name.length() == end - start;
+        for (int cont = 0; retValue && cont < name.length(); cont++) {
+            retValue = name.charAt(cont) == text.charAt(start + cont);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Stores a new name in the table, the table is resized when it's half full.
+     * @param slot Free position for the name.
+     * @param name Name to store.
+     * @param offsets Offsets of the element.
+     */
+    private void put(final int slot, final String name, final int[] offsets) {
+        names[slot] = name;
+        elements[slot] = offsets;
+        size++;
+
+        if (size * 2 > names.length) {
+            String[] oldNames = names;
+            int[][] oldElements = elements;
+            names = new String[oldNames.length * 2];
+            elements = new int[oldNames.length * 2][];
+            for (int cont = 0; cont < oldNames.length; cont++) {
+                if (oldNames[cont] != null) {
+                    String key = oldNames[cont];
+                    int newSlot = slot(key, 0, key.length(), key.hashCode());
+                    names[newSlot] = key;
+                    elements[newSlot] = oldElements[cont];
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans the document once, indexing the first occurrence of each element.
+     * Elements whose end tag is not found (not well formed document) keep <code>-1</code> as content end
+     * and are considered as not found. If the index is restricted, only the elements already in the table
+     * are indexed and the scan stops when all of them are found.
+     */
+    private void scan() {
+        Deque<int[]> openElements = new ArrayDeque<>();
+        int len = doc.length();
+        int pos = indexOf(START_TAG, 0);
+
+        while (pos != NOT_FOUND && pos + 1 < len && pending != 0) {
+            char next = doc.charAt(pos + 1);
+            int end;
+
+            if (next == QUESTION_MARK) {
+                end = skipTo(PI_END, pos + 2);
+            } else if (next == EXCLAMATION_MARK) {
+                end = skipMarkupDeclaration(pos);
+            } else if (next == SLASH) {
+                end = indexOf(END_TAG, pos + 2);
+                if (end != NOT_FOUND) {
+                    end++;
+                    if (!openElements.isEmpty()) {
+                        int[] offsets = openElements.pop();
+                        if (offsets != NOT_INDEXED) {
+                            offsets[CONTENT_END] = pos;
+                            offsets[END] = end;
+                            if (restricted) {
+                                pending--;
+                            }
+                        }
+                    }
+                }
+            } else {
+                int nameEnd = pos + 1;
+                int prefixEnd = pos;
+                int hash = 0;
+                char c = doc.charAt(nameEnd);
+                while (c != END_TAG && c != SLASH && c > BLANK) {
+                    if (c == COLON) {
+                        prefixEnd = nameEnd;
+                        hash = 0;
+                    } else {
+                        hash = 31 * hash + c;
+                    }
+                    nameEnd++;
+                    c = nameEnd < len ? doc.charAt(nameEnd) : END_TAG;
+                }
+
+                end = skipStartTag(nameEnd);
+                if (end != NOT_FOUND) {
+                    end++;
+                    if (doc.charAt(end - 2) != SLASH) {
+                        int slot = slot(doc, prefixEnd + 1, nameEnd, hash);
+                        if (names[slot] == null && !restricted) {
+                            int[] offsets = new int[NUM_OFFSETS];
+                            offsets[START] = pos;
+                            offsets[CONTENT_START] = end;
+                            offsets[CONTENT_END] = NOT_FOUND;
+                            offsets[END] = NOT_FOUND;
+                            put(slot, doc.subSequence(prefixEnd + 1, nameEnd).toString(), offsets);
+                            openElements.push(offsets);
+                        } else if (names[slot] != null && elements[slot][START] == NOT_FOUND) {
+                            int[] offsets = elements[slot];
+                            offsets[START] = pos;
+                            offsets[CONTENT_START] = end;
+                            openElements.push(offsets);
+                        } else {
+                            openElements.push(NOT_INDEXED);
+                        }
+                    }
+                }
+            }
+
+            if (end == NOT_FOUND) {
+                pos = NOT_FOUND;
+            } else {
+                pos = indexOf(START_TAG, end);
+            }
+        }
+    }
+
+    /**
+     * Skips a start tag attribute list, attribute values may contain the <code>&gt;</code> character.
+     * @param from Position after the element name.
+     * @return Position of the <code>&gt;</code> that closes the tag. <code>-1</code> if not found.
+     */
+    private int skipStartTag(final int from) {
+        int len = doc.length();
+        int pos = from;
+        char quote = 0;
+        int retValue = NOT_FOUND;
+
+        while (retValue == NOT_FOUND && pos < len) {
+            char c = doc.charAt(pos);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == DOUBLE_QUOTE || c == SIMPLE_QUOTE) {
+                quote = c;
+            } else if (c == END_TAG) {
+                retValue = pos;
+            }
+            pos++;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Skips comments, CDATA sections and DOCTYPE declarations.
+     * @param from Position of the <code>&lt;</code> character.
+     * @return Position after the declaration. <code>-1</code> if the declaration is not closed.
+     */
+    private int skipMarkupDeclaration(final int from) {
+        int retValue;
+
+        if (startsWith(COMMENT_START, from)) {
+            retValue = skipTo(COMMENT_END, from + COMMENT_START.length());
+        } else if (startsWith(CDATA_START, from)) {
+            retValue = skipTo(CDATA_END, from + CDATA_START.length());
+        } else {
+            int len = doc.length();
+            int pos = from + 2;
+            int subset = 0;
+            retValue = NOT_FOUND;
+            while (retValue == NOT_FOUND && pos < len) {
+                char c = doc.charAt(pos);
+                if (c == SUBSET_START) {
+                    subset++;
+                } else if (c == SUBSET_END) {
+                    subset--;
+                } else if (c == END_TAG && subset <= 0) {
+                    retValue = pos + 1;
+                }
+                pos++;
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the position after the next occurrence of the given text.
+     * @param text Text to search.
+     * @param from Search start position.
+     * @return Position after the given text. <code>-1</code> if the text is not found.
+     */
+    private int skipTo(final String text, final int from) {
+        int retValue = NOT_FOUND;
+        char first = text.charAt(0);
+        int pos = indexOf(first, from);
+        while (retValue == NOT_FOUND && pos != NOT_FOUND) {
+            if (startsWith(text, pos)) {
+                retValue = pos + text.length();
+            } else {
+                pos = indexOf(first, pos + 1);
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Checks whether the document has the given text at the given position.
+     * @param text Text to check.
+     * @param pos Document position.
+     * @return <code>true</code> if the document has the given text at the given position.
+     */
+    private boolean startsWith(final String text, final int pos) {
+        int textLen = text.length();
+        boolean retValue = pos + textLen <= doc.length();
+        for (int cont = 0; retValue && cont < textLen; cont++) {
+            retValue = doc.charAt(pos + cont) == text.charAt(cont);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the position of the next occurrence of the given character.
+     * @param c Character to search.
+     * @param from Search start position.
+     * @return Position of the character. <code>-1</code> if not found.
+     */
+    private int indexOf(final char c, final int from) {
+        int len = doc.length();
+        int pos = from;
+        while (pos < len && doc.charAt(pos) != c) {
+            pos++;
+        }
+
+        return pos < len ? pos : NOT_FOUND;
+    }
+}
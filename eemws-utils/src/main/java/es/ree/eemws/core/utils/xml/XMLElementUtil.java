@@ -20,10 +20,15 @@
  */
 package es.ree.eemws.core.utils.xml;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -33,38 +38,68 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import _504.iec62325.messages._1._0.MessageList;
+import _504.iec62325.messages._1._0.QueryData;
+import ch.iec.tc57._2011.schema.message.FaultMessage;
+import ch.iec.tc57._2011.schema.message.RequestMessage;
+import ch.iec.tc57._2011.schema.message.ResponseMessage;
 
 /**
  * Utilities to use the XML Element class.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.0 13/06/2014
+ * @version 1.6 17/10/2016
  */
 public final class XMLElementUtil {
 
-    /** Keeps thread safe JAXBContext in order to re-build them. */
+    /**
+     * Keeps thread safe JAXBContext in order to re-build them: by class, or by object factory for the classes
+     * generated from the eemws-core schemas.
+     */
     private static final Map<Class<?>, JAXBContext> JAXB_CONTEXT_CACHE = new ConcurrentHashMap<>();
 
-    /** Keeps a pool (just 1 instance per class of Unmarshaller. Note UnMarshallers are not thread safe. */
-    private static final ConcurrentMap<Class<?>, Unmarshaller> UNMARSHALLER_CACHE = new ConcurrentHashMap<>();
+    /**
+     * Object factories of the packages generated from the eemws-core schemas, by package name. Each package has its own
+     * context, so a message is marshalled only with the namespaces of its package (as with a context per class).
+     */
+    private static final Map<String, Class<?>> CORE_OBJECT_FACTORIES = new HashMap<>();
+
+    /*
+     * Registers the object factories of the eemws-core packages.
+     */
+    static {
+        for (Class<?> objectFactory : Arrays.<Class<?>>asList(ch.iec.tc57._2011.schema.message.ObjectFactory.class,
+                _504.iec62325.messages._1._0.ObjectFactory.class)) {
+            CORE_OBJECT_FACTORIES.put(getPackageName(objectFactory), objectFactory);
+        }
+    }
 
-    /** Keeps a pool (just 1 instance per class of Marshaller. Note Marshallers are not thread safe. */
-    private static final ConcurrentMap<Class<?>, Marshaller> MARSHALLER_CACHE = new ConcurrentHashMap<>();
+    /** System property to set the number of marshallers (and unmarshallers) kept per class. */
+    private static final String JAXB_POOL_SIZE_PROPERTY = "JAXB_POOL_SIZE"; //$NON-NLS-1$
+
+    /**
+     * Default number of marshallers (and unmarshallers) kept per class. Pools do not make callers wait, so this is
+     * just the max number of idle instances kept: new instances are only created while all of them are in use.
+     */
+    private static final int DEFAULT_JAXB_POOL_SIZE = 64;
+
+    /** Number of marshallers (and unmarshallers) kept per class, it should be the number of worker threads. */
+    private static final int JAXB_POOL_SIZE = Integer.getInteger(JAXB_POOL_SIZE_PROPERTY, DEFAULT_JAXB_POOL_SIZE);
+
+    /** Pools of Unmarshallers by class. Note UnMarshallers are not thread safe. */
+    private static final ConcurrentMap<Class<?>, XMLObjectPool<Unmarshaller, JAXBException>> UNMARSHALLER_POOLS = new ConcurrentHashMap<>();
+
+    /** Pools of Marshallers by class. Note Marshallers are not thread safe. */
+    private static final ConcurrentMap<Class<?>, XMLObjectPool<Marshaller, JAXBException>> MARSHALLER_POOLS = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -83,18 +118,15 @@ public final class XMLElementUtil {
      */
     public static Object element2Obj(final Element element, final Class<?> classType) throws JAXBException {
 
-        /* Remove the instance, so only the current thread could use it. Others will create their own. */
-        Unmarshaller jaxbUnmarshaller = UNMARSHALLER_CACHE.remove(classType);
-
-        if (jaxbUnmarshaller == null) {
-            jaxbUnmarshaller = getJAXBContext(classType).createUnmarshaller();
+        Object retValue;
+        XMLObjectPool<Unmarshaller, JAXBException> pool = getUnmarshallerPool(classType);
+        Unmarshaller jaxbUnmarshaller = pool.borrow();
+        try {
+            retValue = (jaxbUnmarshaller.unmarshal(element, classType)).getValue();
+        } finally {
+            pool.release(jaxbUnmarshaller);
         }
 
-        Object retValue = (jaxbUnmarshaller.unmarshal(element, classType)).getValue();
-
-        /* Other thread could put an instance before. */
-        UNMARSHALLER_CACHE.putIfAbsent(classType, jaxbUnmarshaller);
-
         return retValue;
     }
 
@@ -109,17 +141,19 @@ public final class XMLElementUtil {
     public static Element string2Element(final String xml)  //NOSONAR - We do not want to encapsulate these exceptions
             throws ParserConfigurationException, SAXException, IOException  {
 
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        docFactory.setNamespaceAware(true);
-        docFactory.setValidating(false);
+        Document doc;
+        DocumentBuilder docBuilder = XMLEngine.getDocumentBuilder();
+        try {
+            doc = docBuilder.parse(new InputSource(new StringReader(xml)));
+        } finally {
+            XMLEngine.release(docBuilder);
+        }
 
-        DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-        Document doc = docBuilder.parse(new InputSource(new StringReader(xml)));
         return doc.getDocumentElement();
     }
 
     /**
-     * Transforms an Element to a String.
+     * Transforms an Element to a String (see {@link #element2Writer(Element, Writer)}).
      * @param element Element with the XML.
      * @return String with the XML.
      * @throws TransformerException Exception transforms XML.
@@ -128,24 +162,42 @@ public final class XMLElementUtil {
     public static String element2String(final Element element)
             throws TransformerException, ParserConfigurationException {
 
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document document = builder.newDocument();
-        document.appendChild(document.importNode(element, true));
+        StringBuilderWriter writer = new StringBuilderWriter(new StringBuilder());
+        try {
+            element2Writer(element, writer);
+        } catch (IOException e) {
 
-        DOMSource domSource = new DOMSource(document);
+            /* Writing into a StringBuilder cannot fail. */
+            throw new TransformerException(e);
+        }
 
-        StringWriter stringWriter = new StringWriter();
-        StreamResult result = new StreamResult(stringWriter);
+        return writer.toString();
+    }
 
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.METHOD, "xml"); //$NON-NLS-1$
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes"); //$NON-NLS-1$
-        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");  //$NON-NLS-1$
+    /**
+     * Writes an Element (and its descendants) to the given writer. The element is written as is, it is not copied
+     * into a new document. The namespaces declared by the element ancestors are declared in the element
+     * start tag, so the output is a standalone XML document (without XML declaration).
+     * @param element Element with the XML.
+     * @param writer Output. It is neither flushed nor closed.
+     * @throws IOException If the output cannot be written.
+     */
+    public static void element2Writer(final Element element, final Writer writer) throws IOException {
 
-        transformer.transform(domSource, result);
-        return stringWriter.toString();
+        XMLElementWriter.write(element, writer);
+    }
+
+    /**
+     * Writes an Element (and its descendants) to the given stream, UTF-8 encoded (see {@link #element2Writer(Element, Writer)}).
+     * @param element Element with the XML.
+     * @param out Output. It is flushed but not closed.
+     * @throws IOException If the output cannot be written.
+     */
+    public static void element2OutputStream(final Element element, final OutputStream out) throws IOException {
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        element2Writer(element, writer);
+        writer.flush();
     }
 
     /**
@@ -156,68 +208,178 @@ public final class XMLElementUtil {
      */
     public static Element obj2Element(final Object obj) throws JAXBException {
 
-        Class<?> classType = obj.getClass();
-
-        Marshaller jaxbMarshaller = getMarshaller(classType);
         DOMResult res = new DOMResult();
-        jaxbMarshaller.marshal(obj, res);
-        MARSHALLER_CACHE.putIfAbsent(classType, jaxbMarshaller);
+        XMLObjectPool<Marshaller, JAXBException> pool = getMarshallerPool(obj.getClass());
+        Marshaller jaxbMarshaller = pool.borrow();
+        try {
+            jaxbMarshaller.marshal(obj, res);
+        } finally {
+            pool.release(jaxbMarshaller);
+        }
 
         return ((Document) res.getNode()).getDocumentElement();
     }
 
     /**
-     * Transforms an Object into a String.
+     * Transforms an Object into a String. The object is marshalled straight into the returned builder.
      * @param obj Object to transform.
      * @return StringBuilder String with the object.
      * @throws JAXBException Exception marshal the object.
      */
     public static StringBuilder object2StringBuilder(final Object obj) throws JAXBException {
 
-        Class<?> classType = obj.getClass();
-
-        Marshaller jaxbMarshaller = getMarshaller(classType);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        jaxbMarshaller.marshal(obj, baos);
-        MARSHALLER_CACHE.putIfAbsent(classType, jaxbMarshaller);
+        StringBuilder retValue = new StringBuilder();
+        XMLObjectPool<Marshaller, JAXBException> pool = getMarshallerPool(obj.getClass());
+        Marshaller jaxbMarshaller = pool.borrow();
+        try {
+            jaxbMarshaller.marshal(obj, new StringBuilderWriter(retValue));
+        } finally {
+            pool.release(jaxbMarshaller);
+        }
 
-        return new StringBuilder(baos.toString());
+        return retValue;
     }
 
     /**
-     * Returns a Marshaller for a given class.
-     * If there is an instance in the cache, this will be removed from the cache and returned.
-     * @param classType The class which the marshaller will be created for.
-     * @return Marshaller for the given class.
-     * @throws JAXBException If cannot create a marshaller for the given class.
+     * Writes an Object into the given stream, UTF-8 encoded (without XML declaration).
+     * The object is marshalled straight to the stream, with no intermediate String.
+     * @param obj Object to transform.
+     * @param out Output. It is neither flushed nor closed.
+     * @throws JAXBException Exception marshal the object.
+     */
+    public static void object2OutputStream(final Object obj, final OutputStream out) throws JAXBException {
+
+        XMLObjectPool<Marshaller, JAXBException> pool = getMarshallerPool(obj.getClass());
+        Marshaller jaxbMarshaller = pool.borrow();
+        try {
+            jaxbMarshaller.marshal(obj, out);
+        } finally {
+            pool.release(jaxbMarshaller);
+        }
+    }
 
+    /**
+     * Returns the pool of Marshallers for the given class, see {@link XMLObjectPool}.
+     * Marshallers write no formatted fragments (without XML declaration), UTF-8 encoded.
+     * @param classType The class which the marshallers are created for.
+     * @return Marshaller pool for the given class.
      */
-    private static Marshaller getMarshaller(final Class<?> classType) throws JAXBException {
+    public static XMLObjectPool<Marshaller, JAXBException> getMarshallerPool(final Class<?> classType) {
+
+        XMLObjectPool<Marshaller, JAXBException> retValue = MARSHALLER_POOLS.get(classType);
+        if (retValue == null) {
+            retValue = new XMLObjectPool<Marshaller, JAXBException>(JAXB_POOL_SIZE, false) {
+
+                @Override
+                protected Marshaller create() throws JAXBException {
+                    Marshaller jaxbMarshaller = getJAXBContext(classType).createMarshaller();
+                    jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+                    jaxbMarshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+                    jaxbMarshaller.setProperty(Marshaller.JAXB_ENCODING, StandardCharsets.UTF_8.name());
+                    return jaxbMarshaller;
+                }
+
+                @Override
+                protected boolean reset(final Marshaller jaxbMarshaller) {
+                    return true;
+                }
+            };
+
+            XMLObjectPool<Marshaller, JAXBException> previous = MARSHALLER_POOLS.putIfAbsent(classType, retValue);
+            if (previous != null) {
+                retValue = previous;
+            }
+        }
 
-        Marshaller jaxbMarshaller = MARSHALLER_CACHE.remove(classType);
+        return retValue;
+    }
 
-        if (jaxbMarshaller == null) {
-            jaxbMarshaller = getJAXBContext(classType).createMarshaller();
-            jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
-            jaxbMarshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+    /**
+     * Returns the pool of Unmarshallers for the given class, see {@link XMLObjectPool}.
+     * @param classType The class which the unmarshallers are created for.
+     * @return Unmarshaller pool for the given class.
+     */
+    public static XMLObjectPool<Unmarshaller, JAXBException> getUnmarshallerPool(final Class<?> classType) {
+
+        XMLObjectPool<Unmarshaller, JAXBException> retValue = UNMARSHALLER_POOLS.get(classType);
+        if (retValue == null) {
+            retValue = new XMLObjectPool<Unmarshaller, JAXBException>(JAXB_POOL_SIZE, false) {
+
+                @Override
+                protected Unmarshaller create() throws JAXBException {
+                    return getJAXBContext(classType).createUnmarshaller();
+                }
+
+                @Override
+                protected boolean reset(final Unmarshaller jaxbUnmarshaller) {
+                    return true;
+                }
+            };
+
+            XMLObjectPool<Unmarshaller, JAXBException> previous = UNMARSHALLER_POOLS.putIfAbsent(classType, retValue);
+            if (previous != null) {
+                retValue = previous;
+            }
         }
 
-        return jaxbMarshaller;
+        return retValue;
+    }
+
+    /**
+     * Builds the JAXBContext of the packages generated from the eemws-core schemas and the marshallers and
+     * unmarshallers of the message root classes (<code>RequestMessage</code>, <code>ResponseMessage</code>,
+     * <code>FaultMessage</code>, <code>MessageList</code> and <code>QueryData</code>) ahead of traffic,
+     * so the first request does not pay for them. Should be called on application start up.
+     * @param instances Number of marshallers (and unmarshallers) created per class (at most the pool size are kept).
+     * @throws JAXBException If the context or the marshallers cannot be created.
+     */
+    public static void warmUp(final int instances) throws JAXBException {
+
+        for (Object obj : Arrays.asList(new RequestMessage(), new ResponseMessage(), new FaultMessage(), new MessageList(), new QueryData())) {
+            Class<?> classType = obj.getClass();
+            getMarshallerPool(classType).warmUp(instances);
+            getUnmarshallerPool(classType).warmUp(instances);
+
+            /* First conversions initialize the class accessors. */
+            element2Obj(obj2Element(obj), classType);
+        }
     }
 
     /**
-     * Returns a JAXBContext for the given class.
-     * If there is an instance in the cache, this will be removed from the cache and returned.
+     * Returns a JAXBContext for the given class. Classes generated from the eemws-core schemas share the context of their
+     * package (built from its <code>ObjectFactory</code>), other classes have their own context. Contexts are built only
+     * once and then reused.
      * @param classType The class which the context will be created for.
      * @return JAXBContext for the given class.
      * @throws JAXBException if cannot create an instance for the given class
      */
     private static JAXBContext getJAXBContext(final Class<?> classType) throws JAXBException {
-        JAXBContext jaxbContext = JAXB_CONTEXT_CACHE.get(classType);
+        Class<?> contextClass = CORE_OBJECT_FACTORIES.get(getPackageName(classType));
+        if (contextClass == null) {
+            contextClass = classType;
+        }
+
+        JAXBContext jaxbContext = JAXB_CONTEXT_CACHE.get(contextClass);
         if (jaxbContext == null) {
-            jaxbContext = JAXBContext.newInstance(classType);
-            JAXB_CONTEXT_CACHE.put(classType, jaxbContext);
+            synchronized (JAXB_CONTEXT_CACHE) {
+                jaxbContext = JAXB_CONTEXT_CACHE.get(contextClass);
+                if (jaxbContext == null) {
+                    jaxbContext = JAXBContext.newInstance(contextClass);
+                    JAXB_CONTEXT_CACHE.put(contextClass, jaxbContext);
+                }
+            }
         }
+
         return jaxbContext;
     }
+
+    /**
+     * Returns the package name of the given class.
+     * @param classType Class.
+     * @return Package name of the class (empty for the default package).
+     */
+    private static String getPackageName(final Class<?> classType) {
+        String name = classType.getName();
+        return name.substring(0, Math.max(0, name.lastIndexOf('.')));
+    }
 }
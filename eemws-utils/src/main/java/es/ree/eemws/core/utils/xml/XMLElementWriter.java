@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serializes a DOM element (and its descendants) straight to a <code>Writer</code>, without copying it into a new
+ * document. The namespace declarations in scope (declared by the element ancestors) are written in the element start
+ * tag, and any namespace used by an element or attribute but not declared is declared where it is first used,
+ * so the output is a standalone document. No XML declaration is written.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+final class XMLElementWriter {
+
+    /** Namespace declaration attribute name. */
+    private static final String XMLNS = XMLConstants.XMLNS_ATTRIBUTE;
+
+    /** Namespace declaration attribute prefix. */
+    private static final String XMLNS_PREFIX = XMLNS + ':';
+
+    /** Default namespace prefix. */
+    private static final String DEFAULT_PREFIX = XMLConstants.DEFAULT_NS_PREFIX;
+
+    /** CDATA section end token. */
+    private static final String CDATA_END = "]]>"; //$NON-NLS-1$
+
+    /** Output. */
+    private final Writer out;
+
+    /** Prefixes of the namespace declarations in scope (innermost last). */
+    private final List<String> prefixes = new ArrayList<>();
+
+    /** Namespaces of the declarations in scope (same order as <code>prefixes</code>). */
+    private final List<String> nameSpaces = new ArrayList<>();
+
+    /**
+     * Creates a new element writer.
+     * @param output Output.
+     */
+    private XMLElementWriter(final Writer output) {
+        out = output;
+    }
+
+    /**
+     * Writes the given element to the given output.
+     * @param element Element to write.
+     * @param output Output. It is neither flushed nor closed.
+     * @throws IOException If the output cannot be written.
+     */
+    static void write(final Node element, final Writer output) throws IOException {
+        XMLElementWriter writer = new XMLElementWriter(output);
+        writer.writeElement(element, true);
+    }
+
+    /**
+     * Writes a node and its descendants.
+     * @param node Node to write.
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeNode(final Node node) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(node, false);
+                break;
+
+            case Node.TEXT_NODE:
+                writeEscaped(node.getNodeValue(), false);
+                break;
+
+            case Node.CDATA_SECTION_NODE:
+                writeCData(node.getNodeValue());
+                break;
+
+            case Node.COMMENT_NODE:
+                out.write("<!--"); //$NON-NLS-1$
+                out.write(node.getNodeValue());
+                out.write("-->"); //$NON-NLS-1$
+                break;
+
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                out.write("<?"); //$NON-NLS-1$
+                out.write(node.getNodeName());
+                String data = node.getNodeValue();
+                if (data != null && !data.isEmpty()) {
+                    out.write(' ');
+                    out.write(data);
+                }
+                out.write("?>"); //$NON-NLS-1$
+                break;
+
+            case Node.ENTITY_REFERENCE_NODE:
+                if (node.hasChildNodes()) {
+                    writeChildren(node);
+                } else {
+                    out.write('&');
+                    out.write(node.getNodeName());
+                    out.write(';');
+                }
+                break;
+
+            default:
+
+                /* Other nodes (document type, notations...) cannot be element descendants. */
+                break;
+        }
+    }
+
+    /**
+     * Writes an element and its descendants.
+     * @param element Element to write.
+     * @param root <code>true</code> for the first element written (namespace declarations of its ancestors are written too).
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeElement(final Node element, final boolean root) throws IOException {
+        int scope = prefixes.size();
+        String name = element.getNodeName();
+        out.write('<');
+        out.write(name);
+
+        NamedNodeMap attributes = element.getAttributes();
+        int numAttributes = attributes.getLength();
+        for (int cont = 0; cont < numAttributes; cont++) {
+            Attr attribute = (Attr) attributes.item(cont);
+            String prefix = getDeclaredPrefix(attribute);
+            if (prefix != null) {
+                declare(prefix, attribute.getValue());
+            }
+        }
+
+        if (root) {
+            declareInScope(element);
+        }
+
+        if (element.getLocalName() != null) {
+            fixNameSpace(element.getPrefix(), element.getNamespaceURI());
+        }
+
+        for (int cont = 0; cont < numAttributes; cont++) {
+            Attr attribute = (Attr) attributes.item(cont);
+            if (getDeclaredPrefix(attribute) == null) {
+                if (attribute.getPrefix() != null) {
+                    fixNameSpace(attribute.getPrefix(), attribute.getNamespaceURI());
+                }
+                writeAttribute(attribute.getName(), attribute.getValue());
+            }
+        }
+
+        if (element.hasChildNodes()) {
+            out.write('>');
+            writeChildren(element);
+            out.write("</"); //$NON-NLS-1$
+            out.write(name);
+            out.write('>');
+        } else {
+            out.write("/>"); //$NON-NLS-1$
+        }
+
+        prefixes.subList(scope, prefixes.size()).clear();
+        nameSpaces.subList(scope, nameSpaces.size()).clear();
+    }
+
+    /**
+     * Writes the children of a node.
+     * @param node Parent node.
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeChildren(final Node node) throws IOException {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            writeNode(child);
+        }
+    }
+
+    /**
+     * Declares the namespaces in scope of the given element (declared by its ancestors) not declared yet.
+     * @param element Element being written.
+     * @throws IOException If the output cannot be written.
+     */
+    private void declareInScope(final Node element) throws IOException {
+        for (Node ancestor = element.getParentNode(); ancestor != null && ancestor.getNodeType() == Node.ELEMENT_NODE; ancestor = ancestor.getParentNode()) {
+            NamedNodeMap attributes = ancestor.getAttributes();
+            int numAttributes = attributes.getLength();
+            for (int cont = 0; cont < numAttributes; cont++) {
+                Attr attribute = (Attr) attributes.item(cont);
+                String prefix = getDeclaredPrefix(attribute);
+                if (prefix != null && !prefixes.contains(prefix) && !(prefix.isEmpty() && attribute.getValue().isEmpty())) {
+                    declare(prefix, attribute.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Declares the given namespace if the given prefix is not bound to it in the current scope.
+     * @param prefix Namespace prefix, <code>null</code> for the default namespace.
+     * @param nameSpace Namespace, <code>null</code> for no namespace.
+     * @throws IOException If the output cannot be written.
+     */
+    private void fixNameSpace(final String prefix, final String nameSpace) throws IOException {
+        String pre = prefix == null ? DEFAULT_PREFIX : prefix;
+        String ns = nameSpace == null ? "" : nameSpace; //$NON-NLS-1$
+        String current = lookup(pre);
+        if (!XMLConstants.XML_NS_PREFIX.equals(pre) && !ns.equals(current == null ? "" : current)) { //$NON-NLS-1$
+            declare(pre, ns);
+        }
+    }
+
+    /**
+     * Returns the namespace bound to the given prefix in the current scope.
+     * @param prefix Namespace prefix.
+     * @return Namespace, <code>null</code> if the prefix is not bound.
+     */
+    private String lookup(final String prefix) {
+        String retValue = null;
+        for (int cont = prefixes.size() - 1; retValue == null && cont >= 0; cont--) {
+            if (prefixes.get(cont).equals(prefix)) {
+                retValue = nameSpaces.get(cont);
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Adds a namespace declaration to the current scope.
+     * @param prefix Namespace prefix (empty for the default namespace).
+     * @param nameSpace Namespace.
+     * @throws IOException If the output cannot be written.
+     */
+    private void declare(final String prefix, final String nameSpace) throws IOException {
+        prefixes.add(prefix);
+        nameSpaces.add(nameSpace);
+        writeAttribute(prefix.isEmpty() ? XMLNS : XMLNS_PREFIX + prefix, nameSpace);
+    }
+
+    /**
+     * Returns the prefix declared by the given attribute.
+     * @param attribute Attribute.
+     * @return Declared prefix (empty for the default namespace), <code>null</code> if the attribute is not a namespace declaration.
+     */
+    private static String getDeclaredPrefix(final Attr attribute) {
+        String retValue = null;
+        String name = attribute.getName();
+        if (XMLNS.equals(name)) {
+            retValue = DEFAULT_PREFIX;
+        } else if (name.startsWith(XMLNS_PREFIX)) {
+            retValue = name.substring(XMLNS_PREFIX.length());
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Writes an attribute.
+     * @param name Attribute name.
+     * @param value Attribute value.
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeAttribute(final String name, final String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\""); //$NON-NLS-1$
+        writeEscaped(value, true);
+        out.write('"');
+    }
+
+    /**
+     * Writes a CDATA section. Section end tokens in the data are split in two sections.
+     * @param data Section data.
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeCData(final String data) throws IOException {
+        out.write("<![CDATA["); //$NON-NLS-1$
+        int start = 0;
+        int pos = data.indexOf(CDATA_END);
+        while (pos != -1) {
+            out.write(data, start, pos + 2 - start);
+            out.write("]]><![CDATA["); //$NON-NLS-1$
+            start = pos + 2;
+            pos = data.indexOf(CDATA_END, start);
+        }
+        out.write(data, start, data.length() - start);
+        out.write(CDATA_END);
+    }
+
+    /**
+     * Writes text escaping markup characters. Runs of characters that need no escaping are written at once.
+     * @param text Text to write.
+     * @param attribute <code>true</code> if the text is an attribute value (quotes and blanks other than space are escaped too).
+     * @throws IOException If the output cannot be written.
+     */
+    private void writeEscaped(final String text, final boolean attribute) throws IOException {
+        int len = text.length();
+        int start = 0;
+        for (int cont = 0; cont < len; cont++) {
+            String entity = getEntity(text.charAt(cont), attribute);
+            if (entity != null) {
+                out.write(text, start, cont - start);
+                out.write(entity);
+                start = cont + 1;
+            }
+        }
+        out.write(text, start, len - start);
+    }
+
+    /**
+     * Returns the entity that must be written instead of the given character.
+     * @param c Character.
+     * @param attribute <code>true</code> if the character belongs to an attribute value.
+     * @return Entity, <code>null</code> if the character can be written as is.
+     */
+    private static String getEntity(final char c, final boolean attribute) {
+        String retValue = null;
+        switch (c) {
+            case '&':
+                retValue = "&amp;"; //$NON-NLS-1$
+                break;
+            case '<':
+                retValue = "&lt;"; //$NON-NLS-1$
+                break;
+            case '>':
+                retValue = "&gt;"; //$NON-NLS-1$
+                break;
+            case '\r':
+                retValue = "&#13;"; //$NON-NLS-1$
+                break;
+            case '"':
+                retValue = attribute ? "&quot;" : null; //$NON-NLS-1$
+                break;
+            case '\n':
+                retValue = attribute ? "&#10;" : null; //$NON-NLS-1$
+                break;
+            case '\t':
+                retValue = attribute ? "&#9;" : null; //$NON-NLS-1$
+                break;
+            default:
+                break;
+        }
+
+        return retValue;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Pools of DOM parsers, SAX parsers and transformers. Factories are looked up and created only once and the parsers and
+ * transformers (which are not thread safe) are reused through bounded pools (see {@link XMLObjectPool}).
+ * The pool size can be set with the system property <code>XML_ENGINE_POOL_SIZE</code> (default: two instances per processor).
+ * <p>Parsers (DOM and SAX) are namespace aware and non validating. Transformers write XML, UTF-8 encoded, without XML declaration.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class XMLEngine {
+
+    /** System property to set the max number of instances of each pool. */
+    private static final String POOL_SIZE_PROPERTY = "XML_ENGINE_POOL_SIZE"; //$NON-NLS-1$
+
+    /** Default max number of instances of each pool (per processor). */
+    private static final int DEFAULT_POOL_SIZE_PER_PROCESSOR = 2;
+
+    /** Max number of instances of each pool. */
+    private static final int POOL_SIZE = Integer.getInteger(POOL_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors() * DEFAULT_POOL_SIZE_PER_PROCESSOR);
+
+    /** Transform the document as XML (not text). */
+    private static final String STRING_XML_METHOD = "xml"; //$NON-NLS-1$
+
+    /** String format of a Document will be have UTF-8 codification. */
+    private static final String STRING_XML_CODIFICATION = "UTF-8"; //$NON-NLS-1$
+
+    /** Do not add xml declaration, the xml will be included into another!. */
+    private static final String STRING_XML_OMIT_DECLARATION = "yes"; //$NON-NLS-1$
+
+    /** Factory of DOM parsers (factories are not thread safe, access must be synchronized). */
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+
+    /** Factory of SAX parsers (factories are not thread safe, access must be synchronized). */
+    private static final SAXParserFactory SAX_PARSER_FACTORY = SAXParserFactory.newInstance();
+
+    /** Factory of transformers (factories are not thread safe, access must be synchronized). */
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+    static {
+        DOCUMENT_BUILDER_FACTORY.setNamespaceAware(true);
+        DOCUMENT_BUILDER_FACTORY.setValidating(false);
+        SAX_PARSER_FACTORY.setNamespaceAware(true);
+        SAX_PARSER_FACTORY.setValidating(false);
+    }
+
+    /** Pool of DOM parsers. */
+    private static final XMLObjectPool<DocumentBuilder, ParserConfigurationException> DOCUMENT_BUILDERS = new XMLObjectPool<DocumentBuilder, ParserConfigurationException>(POOL_SIZE) {
+
+        @Override
+        protected DocumentBuilder create() throws ParserConfigurationException {
+            synchronized (DOCUMENT_BUILDER_FACTORY) {
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+        }
+
+        @Override
+        protected boolean reset(final DocumentBuilder builder) {
+            boolean retValue = true;
+            try {
+                builder.reset();
+            } catch (UnsupportedOperationException e) { // NOSONAR The builder cannot be reused, discard it.
+                retValue = false;
+            }
+
+            return retValue;
+        }
+    };
+
+    /** Pool of SAX parsers. */
+    private static final XMLObjectPool<SAXParser, ParserConfigurationException> SAX_PARSERS = new XMLObjectPool<SAXParser, ParserConfigurationException>(POOL_SIZE) {
+
+        @Override
+        protected SAXParser create() throws ParserConfigurationException {
+            synchronized (SAX_PARSER_FACTORY) {
+                try {
+                    return SAX_PARSER_FACTORY.newSAXParser();
+                } catch (SAXException e) {
+                    throw new ParserConfigurationException(e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        protected boolean reset(final SAXParser parser) {
+            boolean retValue = true;
+            try {
+                parser.reset();
+            } catch (UnsupportedOperationException e) { // NOSONAR The parser cannot be reused, discard it.
+                retValue = false;
+            }
+
+            return retValue;
+        }
+    };
+
+    /** Pool of transformers. */
+    private static final XMLObjectPool<Transformer, TransformerConfigurationException> TRANSFORMERS = new XMLObjectPool<Transformer, TransformerConfigurationException>(POOL_SIZE) {
+
+        @Override
+        protected Transformer create() throws TransformerConfigurationException {
+            Transformer retValue;
+            synchronized (TRANSFORMER_FACTORY) {
+                retValue = TRANSFORMER_FACTORY.newTransformer();
+            }
+
+            setOutputProperties(retValue);
+            return retValue;
+        }
+
+        @Override
+        protected boolean reset(final Transformer transformer) {
+            boolean retValue = true;
+            try {
+                transformer.reset();
+                setOutputProperties(transformer);
+            } catch (UnsupportedOperationException e) { // NOSONAR The transformer cannot be reused, discard it.
+                retValue = false;
+            }
+
+            return retValue;
+        }
+    };
+
+    /**
+     * Constructor.
+     */
+    private XMLEngine() {
+
+        /* This method should not be implemented. */
+    }
+
+    /**
+     * Takes a DOM parser from the pool. It must be given back with {@link #release(DocumentBuilder)}.
+     * @return Namespace aware, non validating DOM parser for the exclusive use of the caller.
+     * @throws ParserConfigurationException If a new parser cannot be created.
+     */
+    public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        return DOCUMENT_BUILDERS.borrow();
+    }
+
+    /**
+     * Gives back a DOM parser taken with {@link #getDocumentBuilder()}.
+     * @param builder DOM parser to release, <code>null</code> values are ignored.
+     */
+    public static void release(final DocumentBuilder builder) {
+        DOCUMENT_BUILDERS.release(builder);
+    }
+
+    /**
+     * Takes a SAX parser from the pool. It must be given back with {@link #release(SAXParser)}.
+     * @return Namespace aware, non validating SAX parser for the exclusive use of the caller.
+     * @throws ParserConfigurationException If a new parser cannot be created.
+     */
+    public static SAXParser getSAXParser() throws ParserConfigurationException {
+        return SAX_PARSERS.borrow();
+    }
+
+    /**
+     * Gives back a SAX parser taken with {@link #getSAXParser()}.
+     * @param parser SAX parser to release, <code>null</code> values are ignored.
+     */
+    public static void release(final SAXParser parser) {
+        SAX_PARSERS.release(parser);
+    }
+
+    /**
+     * Takes a transformer from the pool. It must be given back with {@link #release(Transformer)}.
+     * @return Transformer (XML method, UTF-8 encoding, no XML declaration) for the exclusive use of the caller.
+     * @throws TransformerConfigurationException If a new transformer cannot be created.
+     */
+    public static Transformer getTransformer() throws TransformerConfigurationException {
+        return TRANSFORMERS.borrow();
+    }
+
+    /**
+     * Gives back a transformer taken with {@link #getTransformer()}.
+     * @param transformer Transformer to release, <code>null</code> values are ignored.
+     */
+    public static void release(final Transformer transformer) {
+        TRANSFORMERS.release(transformer);
+    }
+
+    /**
+     * Returns the DOM parser pool (to check its metrics).
+     * @return DOM parser pool.
+     */
+    public static XMLObjectPool<DocumentBuilder, ParserConfigurationException> getDocumentBuilderPool() {
+        return DOCUMENT_BUILDERS;
+    }
+
+    /**
+     * Returns the SAX parser pool (to check its metrics).
+     * @return SAX parser pool.
+     */
+    public static XMLObjectPool<SAXParser, ParserConfigurationException> getSAXParserPool() {
+        return SAX_PARSERS;
+    }
+
+    /**
+     * Returns the transformer pool (to check its metrics).
+     * @return Transformer pool.
+     */
+    public static XMLObjectPool<Transformer, TransformerConfigurationException> getTransformerPool() {
+        return TRANSFORMERS;
+    }
+
+    /**
+     * Sets the output properties of the given transformer.
+     * @param transformer Transformer to configure.
+     */
+    private static void setOutputProperties(final Transformer transformer) {
+        transformer.setOutputProperty(OutputKeys.METHOD, STRING_XML_METHOD);
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, STRING_XML_OMIT_DECLARATION);
+        transformer.setOutputProperty(OutputKeys.ENCODING, STRING_XML_CODIFICATION);
+    }
+}
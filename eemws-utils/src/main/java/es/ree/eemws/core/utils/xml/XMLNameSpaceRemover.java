@@ -0,0 +1,489 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.IOException;
+
+/**
+ * Removes the target namespace prefix of a document in one pass, see {@link XMLUtil#removeNameSpaces(String)}.
+ * The root tag is rewritten declaring the target namespace as the default one (the rest of namespace declarations
+ * of the root tag are removed) and the target namespace prefix is removed from element names. Character data,
+ * attributes, comments and CDATA sections are copied as they are. Text between markup is copied in regions,
+ * the document is never copied as a whole.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+final class XMLNameSpaceRemover {
+
+    /** Not found position. */
+    private static final int NOT_FOUND = -1;
+
+    /** XML start tag character. */
+    private static final char START_TAG = '<';
+
+    /** XML end tag character. */
+    private static final char END_TAG = '>';
+
+    /** Slash character. */
+    private static final char SLASH = '/';
+
+    /** Blank character. */
+    private static final char BLANK = ' ';
+
+    /** Colon character (prefix separator). */
+    private static final char COLON = ':';
+
+    /** Equals character (attribute value separator). */
+    private static final char EQUALS = '=';
+
+    /** Processing instruction / xml declaration mark. */
+    private static final char QUESTION_MARK = '?';
+
+    /** Comment, CDATA and DOCTYPE mark. */
+    private static final char EXCLAMATION_MARK = '!';
+
+    /** Double quote character. */
+    private static final char DOUBLE_QUOTE = '"';
+
+    /** Simple quote character. */
+    private static final char SIMPLE_QUOTE = '\'';
+
+    /** DOCTYPE internal subset start. */
+    private static final char SUBSET_START = '[';
+
+    /** DOCTYPE internal subset end. */
+    private static final char SUBSET_END = ']';
+
+    /** Comment start. */
+    private static final String COMMENT_START = "<!--"; //$NON-NLS-1$
+
+    /** Comment end. */
+    private static final String COMMENT_END = "-->"; //$NON-NLS-1$
+
+    /** CDATA section start. */
+    private static final String CDATA_START = "<![CDATA["; //$NON-NLS-1$
+
+    /** CDATA section end. */
+    private static final String CDATA_END = "]]>"; //$NON-NLS-1$
+
+    /** Processing instruction end. */
+    private static final String PI_END = "?>"; //$NON-NLS-1$
+
+    /** Namespace declaration attribute. */
+    private static final String XMLNS = "xmlns"; //$NON-NLS-1$
+
+    /** Default namespace declaration (with the value start). */
+    private static final String XMLNS_DECLARATION = " xmlns=\""; //$NON-NLS-1$
+
+    /** Source document. */
+    private final CharSequence doc;
+
+    /** Output. */
+    private final Appendable out;
+
+    /** Document length without trailing white spaces. */
+    private final int len;
+
+    /** Target namespace prefix start in the document (root tag). */
+    private int prefixStart = NOT_FOUND;
+
+    /** Target namespace prefix end in the document (root tag), exclusive. */
+    private int prefixEnd = NOT_FOUND;
+
+    /**
+     * Creates a new remover.
+     * @param document Source document.
+     * @param output Output where the document without the target namespace prefix will be written.
+     */
+    private XMLNameSpaceRemover(final CharSequence document, final Appendable output) {
+        doc = document;
+        out = output;
+        int end = document.length();
+        while (end > 0 && document.charAt(end - 1) <= BLANK) {
+            end--;
+        }
+        len = end;
+    }
+
+    /**
+     * Writes the given document without the target namespace prefix to the given output.
+     * Leading and trailing white spaces are not written.
+     * @param document Source document.
+     * @param output Output where the document will be written.
+     * @throws IOException If the output cannot be written.
+     */
+    static void removeNameSpaces(final CharSequence document, final Appendable output) throws IOException {
+        new XMLNameSpaceRemover(document, output).process();
+    }
+
+    /**
+     * Processes the document.
+     * @throws IOException If the output cannot be written.
+     */
+    private void process() throws IOException {
+        int pos = skipBlanks(0);
+        boolean rootFound = false;
+        int tag = indexOf(START_TAG, pos);
+
+        while (tag != NOT_FOUND && tag + 1 < len) {
+            out.append(doc, pos, tag);
+            char next = doc.charAt(tag + 1);
+
+            if (next == QUESTION_MARK) {
+                pos = skipTo(PI_END, tag + 2);
+                out.append(doc, tag, pos);
+            } else if (next == EXCLAMATION_MARK) {
+                pos = skipMarkupDeclaration(tag);
+                out.append(doc, tag, pos);
+            } else if (next == SLASH) {
+                pos = writeEndTag(tag);
+            } else if (rootFound) {
+                pos = writeStartTag(tag);
+            } else {
+                pos = writeRootTag(tag);
+                rootFound = true;
+            }
+
+            tag = indexOf(START_TAG, pos);
+        }
+
+        out.append(doc, pos, len);
+    }
+
+    /**
+     * Writes the root tag declaring the target namespace as the default namespace.
+     * @param from Position of the <code>&lt;</code> character.
+     * @return Position after the tag.
+     * @throws IOException If the output cannot be written.
+     */
+    private int writeRootTag(final int from) throws IOException {
+        int nameEnd = nameEnd(from + 1);
+        int localStart = from + 1;
+        for (int cont = from + 1; cont < nameEnd; cont++) {
+            if (doc.charAt(cont) == COLON) {
+                prefixStart = from + 1;
+                prefixEnd = cont;
+                localStart = cont + 1;
+            }
+        }
+
+        out.append(START_TAG).append(doc, localStart, nameEnd);
+
+        /* First the target namespace declaration... */
+        int pos = skipBlanks(nameEnd);
+        while (isAttribute(pos)) {
+            int attrNameEnd = attributeNameEnd(pos);
+            int attrEnd = attributeEnd(attrNameEnd);
+            if (isTargetDeclaration(pos, attrNameEnd) && attrEnd - 1 > attrNameEnd) {
+                int valueStart = indexOf(doc.charAt(attrEnd - 1), attrNameEnd) + 1;
+                out.append(XMLNS_DECLARATION).append(doc, valueStart, attrEnd - 1).append(DOUBLE_QUOTE);
+            }
+            pos = skipBlanks(attrEnd);
+        }
+
+        /* ...then the rest of attributes, without namespace declarations. */
+        pos = skipBlanks(nameEnd);
+        while (isAttribute(pos)) {
+            int attrNameEnd = attributeNameEnd(pos);
+            int attrEnd = attributeEnd(attrNameEnd);
+            if (!startsWith(XMLNS, pos)) {
+                out.append(BLANK).append(doc, pos, attrEnd);
+            }
+            pos = skipBlanks(attrEnd);
+        }
+
+        int end = indexOf(END_TAG, pos);
+        end = end == NOT_FOUND ? len : end + 1;
+        out.append(doc, pos, end);
+
+        return end;
+    }
+
+    /**
+     * Checks whether there is an attribute at the given position of a start tag.
+     * @param pos Tag position.
+     * @return <code>true</code> if an attribute starts at the given position.
+     */
+    private boolean isAttribute(final int pos) {
+        return pos < len && doc.charAt(pos) != END_TAG && doc.charAt(pos) != SLASH;
+    }
+
+    /**
+     * Returns the end position of the attribute name that starts at the given position.
+     * @param from Attribute name start.
+     * @return Attribute name end (exclusive).
+     */
+    private int attributeNameEnd(final int from) {
+        int pos = from;
+        while (pos < len && doc.charAt(pos) > BLANK && doc.charAt(pos) != EQUALS && doc.charAt(pos) != END_TAG) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Returns the end position of the attribute value that follows the given position.
+     * @param from Attribute name end.
+     * @return Position after the attribute value closing quote.
+     */
+    private int attributeEnd(final int from) {
+        int pos = from;
+        while (pos < len && doc.charAt(pos) != DOUBLE_QUOTE && doc.charAt(pos) != SIMPLE_QUOTE && doc.charAt(pos) != END_TAG) {
+            pos++;
+        }
+
+        int retValue = pos;
+        if (pos < len && doc.charAt(pos) != END_TAG) {
+            retValue = indexOf(doc.charAt(pos), pos + 1);
+            retValue = retValue == NOT_FOUND ? len : retValue + 1;
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Skips white spaces.
+     * @param from Start position.
+     * @return Position of the first non white space character.
+     */
+    private int skipBlanks(final int from) {
+        int pos = from;
+        while (pos < len && doc.charAt(pos) <= BLANK) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Checks whether the given attribute declares the target namespace.
+     * @param start Attribute name start.
+     * @param end Attribute name end (exclusive).
+     * @return <code>true</code> if the attribute is <code>xmlns:prefix</code> or <code>xmlns</code> if the root
+     * tag has no prefix.
+     */
+    private boolean isTargetDeclaration(final int start, final int end) {
+        boolean retValue;
+        if (prefixStart == NOT_FOUND) {
+            retValue = end - start == XMLNS.length() && startsWith(XMLNS, start);
+        } else {
+            int prefixLen = prefixEnd - prefixStart;
+            retValue = end - start == XMLNS.length() + 1 + prefixLen && startsWith(XMLNS, start)
+                    && doc.charAt(start + XMLNS.length()) == COLON && hasPrefix(start + XMLNS.length() + 1);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Writes a start tag removing the target namespace prefix from the element name.
+     * @param from Position of the <code>&lt;</code> character.
+     * @return Position after the tag.
+     * @throws IOException If the output cannot be written.
+     */
+    private int writeStartTag(final int from) throws IOException {
+        out.append(START_TAG);
+        int nameStart = skipPrefix(from + 1);
+        int end = skipStartTag(nameStart);
+        out.append(doc, nameStart, end);
+
+        return end;
+    }
+
+    /**
+     * Writes an end tag removing the target namespace prefix from the element name.
+     * @param from Position of the <code>&lt;</code> character.
+     * @return Position after the tag.
+     * @throws IOException If the output cannot be written.
+     */
+    private int writeEndTag(final int from) throws IOException {
+        out.append(START_TAG).append(SLASH);
+        int nameStart = skipPrefix(from + 2);
+        int end = indexOf(END_TAG, nameStart);
+        end = end == NOT_FOUND ? len : end + 1;
+        out.append(doc, nameStart, end);
+
+        return end;
+    }
+
+    /**
+     * Returns the position after the target namespace prefix (and the colon) if the element name at the given
+     * position has it.
+     * @param nameStart Element name start.
+     * @return Position of the local name.
+     */
+    private int skipPrefix(final int nameStart) {
+        int retValue = nameStart;
+        if (prefixStart != NOT_FOUND) {
+            int colon = nameStart + prefixEnd - prefixStart;
+            if (colon < len && doc.charAt(colon) == COLON && hasPrefix(nameStart)) {
+                retValue = colon + 1;
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Checks whether the target namespace prefix is at the given position.
+     * @param pos Document position.
+     * @return <code>true</code> if the target namespace prefix is at the given position.
+     */
+    private boolean hasPrefix(final int pos) {
+        int prefixLen = prefixEnd - prefixStart;
+        boolean retValue = pos + prefixLen <= len;
+        for (int cont = 0; retValue && cont < prefixLen; cont++) {
+            retValue = doc.charAt(pos + cont) == doc.charAt(prefixStart + cont);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the end position of the element name that starts at the given position.
+     * @param from Element name start.
+     * @return Element name end (exclusive).
+     */
+    private int nameEnd(final int from) {
+        int pos = from;
+        while (pos < len && doc.charAt(pos) > BLANK && doc.charAt(pos) != END_TAG && doc.charAt(pos) != SLASH) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Skips a start tag, attribute values may contain the <code>&gt;</code> character.
+     * @param from Position after the <code>&lt;</code> character.
+     * @return Position after the tag.
+     */
+    private int skipStartTag(final int from) {
+        int pos = from;
+        char quote = 0;
+        int retValue = NOT_FOUND;
+
+        while (retValue == NOT_FOUND && pos < len) {
+            char c = doc.charAt(pos);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == DOUBLE_QUOTE || c == SIMPLE_QUOTE) {
+                quote = c;
+            } else if (c == END_TAG) {
+                retValue = pos + 1;
+            }
+            pos++;
+        }
+
+        return retValue == NOT_FOUND ? len : retValue;
+    }
+
+    /**
+     * Skips comments, CDATA sections and DOCTYPE declarations.
+     * @param from Position of the <code>&lt;</code> character.
+     * @return Position after the declaration.
+     */
+    private int skipMarkupDeclaration(final int from) {
+        int retValue;
+
+        if (startsWith(COMMENT_START, from)) {
+            retValue = skipTo(COMMENT_END, from + COMMENT_START.length());
+        } else if (startsWith(CDATA_START, from)) {
+            retValue = skipTo(CDATA_END, from + CDATA_START.length());
+        } else {
+            int pos = from + 2;
+            int subset = 0;
+            retValue = NOT_FOUND;
+            while (retValue == NOT_FOUND && pos < len) {
+                char c = doc.charAt(pos);
+                if (c == SUBSET_START) {
+                    subset++;
+                } else if (c == SUBSET_END) {
+                    subset--;
+                } else if (c == END_TAG && subset <= 0) {
+                    retValue = pos + 1;
+                }
+                pos++;
+            }
+            if (retValue == NOT_FOUND) {
+                retValue = len;
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the position after the next occurrence of the given text.
+     * @param text Text to search.
+     * @param from Search start position.
+     * @return Position after the given text. The document length if the text is not found.
+     */
+    private int skipTo(final String text, final int from) {
+        int retValue = NOT_FOUND;
+        char first = text.charAt(0);
+        int pos = indexOf(first, from);
+        while (retValue == NOT_FOUND && pos != NOT_FOUND) {
+            if (startsWith(text, pos)) {
+                retValue = pos + text.length();
+            } else {
+                pos = indexOf(first, pos + 1);
+            }
+        }
+
+        return retValue == NOT_FOUND ? len : retValue;
+    }
+
+    /**
+     * Checks whether the document has the given text at the given position.
+     * @param text Text to check.
+     * @param pos Document position.
+     * @return <code>true</code> if the document has the given text at the given position.
+     */
+    private boolean startsWith(final String text, final int pos) {
+        int textLen = text.length();
+        boolean retValue = pos + textLen <= len;
+        for (int cont = 0; retValue && cont < textLen; cont++) {
+            retValue = doc.charAt(pos + cont) == text.charAt(cont);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the position of the next occurrence of the given character.
+     * @param c Character to search.
+     * @param from Search start position.
+     * @return Position of the character. <code>-1</code> if not found.
+     */
+    private int indexOf(final char c, final int from) {
+        int pos = from;
+        while (pos < len && doc.charAt(pos) != c) {
+            pos++;
+        }
+
+        return pos < len ? pos : NOT_FOUND;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of non thread safe XML objects (parsers, transformers, marshallers...). At most <code>size</code>
+ * instances are kept, when all of them are in use the callers either wait until one is released or get a new
+ * instance which is discarded when it is released (see {@link #XMLObjectPool(int, boolean)}). Objects are reset when
+ * they are released. Keeps usage metrics: hits (an idle instance was reused), misses (a new instance was created),
+ * waits and total wait time.
+ * <p>The number of instances in use is bounded with a semaphore of <code>size</code> permits: a permit is taken when an
+ * instance is borrowed and given back when it is released (kept for reuse or discarded), so waiting callers are woken
+ * up as soon as there is an instance or room for a new one.
+ * <p>Objects must be released in a <code>finally</code> block once they are no longer used.
+ *
+ * @param <T> Type of the pooled objects.
+ * @param <E> Exception thrown when a new object cannot be created.
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.4 17/10/2016
+ */
+public abstract class XMLObjectPool<T, E extends Exception> {
+
+    /** Idle instances. */
+    private final BlockingQueue<T> idle;
+
+    /** Permits to use an instance, one per instance that can be in use. */
+    private final Semaphore permits;
+
+    /** Max number of instances. */
+    private final int size;
+
+    /** Whether callers wait for an instance when all of them are in use (a new one is created otherwise). */
+    private final boolean waitWhenFull;
+
+    /** Number of instances created and not discarded (in use or idle). */
+    private final AtomicInteger created = new AtomicInteger();
+
+    /** Number of instances in use without permit (the pool does not wait or the waiting caller was interrupted). */
+    private final AtomicInteger extra = new AtomicInteger();
+
+    /** Number of times an idle instance was reused. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of times a new instance was created. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of times a caller had to wait for an instance. */
+    private final AtomicLong waits = new AtomicLong();
+
+    /** Total time waiting for instances (nanoseconds). */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /**
+     * Creates a new pool whose callers wait when all the instances are in use.
+     * @param poolSize Max number of instances.
+     */
+    protected XMLObjectPool(final int poolSize) {
+        this(poolSize, true);
+    }
+
+    /**
+     * Creates a new pool.
+     * @param poolSize Max number of instances kept.
+     * @param wait <code>true</code> if callers must wait when all the instances are in use, <code>false</code>
+     * to create new instances instead (discarded when they are released if the pool is full).
+     */
+    protected XMLObjectPool(final int poolSize, final boolean wait) {
+        size = Math.max(1, poolSize);
+        idle = new ArrayBlockingQueue<>(size);
+        permits = new Semaphore(size);
+        waitWhenFull = wait;
+    }
+
+    /**
+     * Creates a new instance.
+     * @return New instance.
+     * @throws E If the instance cannot be created.
+     */
+    protected abstract T create() throws E;
+
+    /**
+     * Restores the given instance to its initial state so it can be reused.
+     * @param obj Instance to reset.
+     * @return <code>true</code> if the instance can be reused, <code>false</code> if it must be discarded.
+     */
+    protected abstract boolean reset(T obj);
+
+    /**
+     * Takes an instance from the pool. An idle instance is returned if there is any, otherwise a new one is created
+     * unless the pool is full, in this case the current thread waits until an instance is released or there is room for
+     * a new one because an instance was discarded (or a new instance is created if the pool does not wait).
+     * The instance must be given back with {@link #release(Object)}.
+     * @return Instance for the exclusive use of the caller.
+     * @throws E If a new instance cannot be created.
+     */
+    public final T borrow() throws E {
+        T retValue;
+
+        if (permits.tryAcquire()) {
+            retValue = take();
+        } else if (!waitWhenFull) {
+            retValue = takeExtra();
+        } else {
+            long start = System.nanoTime();
+            waits.incrementAndGet();
+            boolean acquired = false;
+            try {
+                permits.acquire();
+                acquired = true;
+            } catch (InterruptedException e) {
+
+                /* Do not fail the caller, use an instance without permit (discarded when it is released if the pool is full). */
+                Thread.currentThread().interrupt();
+            } finally {
+                waitTime.addAndGet(System.nanoTime() - start);
+            }
+
+            if (acquired) {
+                retValue = take();
+            } else {
+                retValue = takeExtra();
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Gives back an instance taken with {@link #borrow()}. The instance is reset and kept for reuse, or discarded if it
+     * cannot be reset (callers waiting for an instance will create a new one).
+     * @param obj Instance to release, <code>null</code> values are ignored.
+     */
+    public final void release(final T obj) {
+        if (obj != null) {
+            if (!(reset(obj) && idle.offer(obj))) {
+                created.decrementAndGet();
+            }
+
+            if (!releaseExtra()) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Creates instances ahead of use, so the pool has (at least) the given number of idle instances.
+     * @param count Number of idle instances wanted (no more than the pool size are kept).
+     * @throws E If a new instance cannot be created.
+     */
+    public final void warmUp(final int count) throws E {
+        int wanted = Math.min(count, size);
+        List<T> instances = new ArrayList<>(wanted);
+        try {
+            while (instances.size() < wanted) {
+                instances.add(borrow());
+            }
+        } finally {
+            for (T obj : instances) {
+                release(obj);
+            }
+        }
+    }
+
+    /**
+     * Returns the max number of instances of this pool.
+     * @return Max number of instances.
+     */
+    public final int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of instances (in use or idle). It can be greater than the pool size if the pool does not wait.
+     * @return Number of instances.
+     */
+    public final int getInstances() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of idle instances.
+     * @return Number of idle instances.
+     */
+    public final int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of times an idle instance was reused.
+     * @return Number of hits.
+     */
+    public final long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times a new instance was created.
+     * @return Number of misses.
+     */
+    public final long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of times a caller had to wait for an instance because all of them were in use.
+     * @return Number of waits.
+     */
+    public final long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * Returns the total time callers have waited for an instance.
+     * @return Total wait time in milliseconds.
+     */
+    public final long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    /**
+     * Takes an idle instance or creates a new one, once the caller has a permit. The permit is given back if the
+     * instance cannot be created.
+     * @return Instance for the caller.
+     * @throws E If a new instance cannot be created.
+     */
+    private T take() throws E {
+        T retValue = null;
+        try {
+            retValue = pollOrCreate();
+        } finally {
+            if (retValue == null) {
+                permits.release();
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Takes an idle instance or creates a new one without permit.
+     * @return Instance for the caller.
+     * @throws E If a new instance cannot be created.
+     */
+    private T takeExtra() throws E {
+        T retValue = pollOrCreate();
+        extra.incrementAndGet();
+
+        return retValue;
+    }
+
+    /**
+     * Accounts a released instance for one of the instances in use without permit, if there is any.
+     * @return <code>true</code> if there was an instance in use without permit, <code>false</code> if the caller must
+     * give back a permit.
+     */
+    private boolean releaseExtra() {
+        boolean retValue = false;
+        int current = extra.get();
+        while (!retValue && current > 0) {
+            retValue = extra.compareAndSet(current, current - 1);
+            current = extra.get();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Takes an idle instance or creates a new one if there is none.
+     * @return Instance for the caller.
+     * @throws E If a new instance cannot be created.
+     */
+    private T pollOrCreate() throws E {
+        T retValue = idle.poll();
+
+        if (retValue != null) {
+            hits.incrementAndGet();
+        } else {
+            retValue = create();
+            created.incrementAndGet();
+            misses.incrementAndGet();
+        }
+
+        return retValue;
+    }
+
+    @Override
+    public String toString() {
+        return "[size=" + size + "][instances=" + getInstances() + "][idle=" + getIdle() + "][hits=" + getHits() //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+            + "][misses=" + getMisses() + "][waits=" + getWaits() + "][waitTime=" + getWaitTime() + " ms]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+/**
+ * Streaming XML pretty printer. Characters are pushed one by one and the formatted document
+ * is written to the output as soon as possible, in one pass. Only the current tag and the current run of
+ * white spaces are kept in memory, so extra memory does not depend on the document size.
+ * Format rules are the ones of {@link XMLUtil#prettyPrint(String)}: each element in a new line indented
+ * four blanks per level, text only elements in one line, elements with no content collapsed
+ * (<code>&lt;tag/&gt;</code>), white spaces between tags and before text removed and new lines replaced by blanks.
+ * Instances are not thread safe and must be used for one document only.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+final class XMLPrettyPrinter {
+
+    /** State: reading text (between tags). */
+    private static final int STATE_TEXT = 0;
+
+    /** State: reading a tag. */
+    private static final int STATE_TAG = 1;
+
+    /** State: reading an attribute value of a tag. */
+    private static final int STATE_TAG_QUOTE = 2;
+
+    /** State: reading a comment. */
+    private static final int STATE_COMMENT = 3;
+
+    /** State: reading a CDATA section. */
+    private static final int STATE_CDATA = 4;
+
+    /** Blanks per indentation level. */
+    private static final int TAB_SIZE = 4;
+
+    /** Blanks written at once when indenting. */
+    private static final String BLANKS = "                                                                "; //$NON-NLS-1$
+
+    /** New line character. */
+    private static final char NEW_LINE = '\n';
+
+    /** Blank character. */
+    private static final char BLANK = ' ';
+
+    /** XML start tag character. */
+    private static final char START_TAG = '<';
+
+    /** XML end tag character. */
+    private static final char END_TAG = '>';
+
+    /** Slash character. */
+    private static final char SLASH = '/';
+
+    /** Processing instruction / xml declaration mark. */
+    private static final char QUESTION_MARK = '?';
+
+    /** Comment, CDATA and DOCTYPE mark. */
+    private static final char EXCLAMATION_MARK = '!';
+
+    /** Double quote character. */
+    private static final char DOUBLE_QUOTE = '"';
+
+    /** Simple quote character. */
+    private static final char SIMPLE_QUOTE = '\'';
+
+    /** Dash character (comment end). */
+    private static final char DASH = '-';
+
+    /** DOCTYPE internal subset start / CDATA end character. */
+    private static final char SUBSET_START = '[';
+
+    /** DOCTYPE internal subset end / CDATA end character. */
+    private static final char SUBSET_END = ']';
+
+    /** Comment start (without the initial <code>&lt;</code>). */
+    private static final String COMMENT_START = "!--"; //$NON-NLS-1$
+
+    /** CDATA section start (without the initial <code>&lt;</code>). */
+    private static final String CDATA_START = "![CDATA["; //$NON-NLS-1$
+
+    /** Formatted output. */
+    private final Appendable out;
+
+    /** Current tag (without <code>&lt;</code> and <code>&gt;</code>). */
+    private final StringBuilder tag = new StringBuilder();
+
+    /** White spaces found after text, written only if more text or an end tag follows. */
+    private final StringBuilder blanks = new StringBuilder();
+
+    /** Current state. */
+    private int state = STATE_TEXT;
+
+    /** Current quote character when reading an attribute value. */
+    private char quote;
+
+    /** DOCTYPE internal subset depth. */
+    private int subset = 0;
+
+    /** Number of consecutive dashes / brackets read (comment and CDATA end detection). */
+    private int endMarks = 0;
+
+    /** Current indentation level. */
+    private int level = 0;
+
+    /** A start tag has been written without its <code>&gt;</code>, it's closed as empty if no content follows. */
+    private boolean pendingStart = false;
+
+    /** Text has been written since the last tag. */
+    private boolean afterText = false;
+
+    /** Something has been written to the output. */
+    private boolean started = false;
+
+    /** The document tags are balanced (so far). */
+    private boolean wellFormed = true;
+
+    /**
+     * Creates a new pretty printer.
+     * @param output Formatted output.
+     */
+    XMLPrettyPrinter(final Appendable output) {
+        out = output;
+    }
+
+    /**
+     * Processes the given characters.
+     * @param chars Characters buffer.
+     * @param start First character to process.
+     * @param end Last character to process (exclusive).
+     * @throws IOException If the output cannot be written.
+     */
+    void write(final char[] chars, final int start, final int end) throws IOException {
+        write(CharBuffer.wrap(chars, start, end - start));
+    }
+
+    /**
+     * Processes the given characters. Runs of plain text and tag characters are copied at once,
+     * the rest of characters go through the state machine one by one.
+     * @param chars Characters to process.
+     * @throws IOException If the output cannot be written.
+     */
+    void write(final CharSequence chars) throws IOException {
+        int len = chars.length();
+        int pos = 0;
+        while (pos < len) {
+            int end = pos;
+            if (state == STATE_TAG) {
+                while (end < len && !isTagMark(chars.charAt(end))) {
+                    end++;
+                }
+                tag.append(chars, pos, end);
+            } else if (state == STATE_TEXT && afterText && blanks.length() == 0) {
+                while (end < len && chars.charAt(end) > BLANK && chars.charAt(end) != START_TAG) {
+                    end++;
+                }
+                out.append(chars, pos, end);
+            }
+
+            if (end < len) {
+                write(chars.charAt(end));
+                end++;
+            }
+            pos = end;
+        }
+    }
+
+    /**
+     * Checks whether the given character changes the state when reading a tag.
+     * @param c Character to check.
+     * @return <code>true</code> if the character must be processed by the state machine.
+     */
+    private static boolean isTagMark(final char c) {
+        return c == END_TAG || c == DOUBLE_QUOTE || c == SIMPLE_QUOTE || c == SUBSET_START
+                || c == SUBSET_END || c == DASH || c == NEW_LINE;
+    }
+
+    /**
+     * Ends the document.
+     * @return <code>true</code> if the document tags were balanced. <code>false</code> otherwise (the output is
+     * a best effort formatting).
+     * @throws IOException If the output cannot be written.
+     */
+    boolean close() throws IOException {
+        if (state != STATE_TEXT || level != 0) {
+            wellFormed = false;
+        }
+
+        if (pendingStart) {
+            out.append(END_TAG);
+            pendingStart = false;
+        }
+
+        if (started) {
+            out.append(NEW_LINE);
+        }
+
+        return wellFormed;
+    }
+
+    /**
+     * Processes one character.
+     * @param c Character to process.
+     * @throws IOException If the output cannot be written.
+     */
+    private void write(final char c) throws IOException {
+        switch (state) {
+        case STATE_TEXT:
+            text(c);
+            break;
+        case STATE_TAG:
+            tag(c);
+            break;
+        case STATE_TAG_QUOTE:
+            tag.append(c == NEW_LINE ? BLANK : c);
+            if (c == quote) {
+                state = STATE_TAG;
+            }
+            break;
+        case STATE_COMMENT:
+            out.append(c);
+            if (c == END_TAG && endMarks >= 2) {
+                state = STATE_TEXT;
+            }
+            endMarks = c == DASH ? endMarks + 1 : 0;
+            break;
+        default:
+            out.append(c);
+            if (c == END_TAG && endMarks >= 2) {
+                state = STATE_TEXT;
+                afterText = true;
+            }
+            endMarks = c == SUBSET_END ? endMarks + 1 : 0;
+            break;
+        }
+    }
+
+    /**
+     * Processes a text character.
+     * @param c Character to process.
+     * @throws IOException If the output cannot be written.
+     */
+    private void text(final char c) throws IOException {
+        if (c == START_TAG) {
+            tag.setLength(0);
+            subset = 0;
+            state = STATE_TAG;
+        } else if (c <= BLANK) {
+            if (afterText) {
+                blanks.append(c == NEW_LINE ? BLANK : c);
+            }
+        } else {
+            startText();
+            out.append(c);
+        }
+    }
+
+    /**
+     * Prepares the output for a text character.
+     * @throws IOException If the output cannot be written.
+     */
+    private void startText() throws IOException {
+        if (pendingStart) {
+            out.append(END_TAG);
+            pendingStart = false;
+        }
+
+        if (blanks.length() > 0) {
+            out.append(blanks);
+            blanks.setLength(0);
+        }
+
+        afterText = true;
+        started = true;
+    }
+
+    /**
+     * Processes a tag character.
+     * @param c Character to process.
+     * @throws IOException If the output cannot be written.
+     */
+    private void tag(final char c) throws IOException {
+        if (c == END_TAG && subset <= 0) {
+            endTag();
+        } else {
+            tag.append(c == NEW_LINE ? BLANK : c);
+
+            if (c == DOUBLE_QUOTE || c == SIMPLE_QUOTE) {
+                quote = c;
+                state = STATE_TAG_QUOTE;
+            } else if (c == SUBSET_START && tag.charAt(0) == EXCLAMATION_MARK) {
+                if (tag.length() == CDATA_START.length() && CDATA_START.contentEquals(tag)) {
+                    startText();
+                    out.append(START_TAG).append(tag);
+                    endMarks = 0;
+                    state = STATE_CDATA;
+                } else {
+                    subset++;
+                }
+            } else if (c == SUBSET_END) {
+                subset--;
+            } else if (c == DASH && tag.length() == COMMENT_START.length() && COMMENT_START.contentEquals(tag)) {
+                newLine();
+                out.append(START_TAG).append(tag);
+                endMarks = 0;
+                state = STATE_COMMENT;
+            }
+        }
+    }
+
+    /**
+     * Writes the tag just read.
+     * @throws IOException If the output cannot be written.
+     */
+    private void endTag() throws IOException {
+        state = STATE_TEXT;
+        int len = tag.length();
+
+        if (len > 0 && tag.charAt(0) == SLASH) {
+            level--;
+            if (level < 0) {
+                wellFormed = false;
+                level = 0;
+            }
+
+            if (pendingStart) {
+                out.append(SLASH).append(END_TAG);
+                pendingStart = false;
+            } else {
+                if (afterText) {
+                    out.append(blanks);
+                    blanks.setLength(0);
+                } else {
+                    newLine();
+                }
+                out.append(START_TAG).append(tag).append(END_TAG);
+            }
+            afterText = false;
+
+        } else if (len > 0 && (tag.charAt(len - 1) == SLASH || tag.charAt(0) == QUESTION_MARK || tag.charAt(0) == EXCLAMATION_MARK)) {
+            newLine();
+            out.append(START_TAG).append(tag).append(END_TAG);
+
+        } else {
+            newLine();
+            out.append(START_TAG).append(tag);
+            pendingStart = true;
+            level++;
+        }
+    }
+
+    /**
+     * Starts a new indented line (unless nothing has been written yet).
+     * @throws IOException If the output cannot be written.
+     */
+    private void newLine() throws IOException {
+        if (pendingStart) {
+            out.append(END_TAG);
+            pendingStart = false;
+        }
+
+        if (started) {
+            blanks.setLength(0);
+            out.append(NEW_LINE);
+            int blanksToWrite = level * TAB_SIZE;
+            while (blanksToWrite > 0) {
+                int chunk = Math.min(blanksToWrite, BLANKS.length());
+                out.append(BLANKS, 0, chunk);
+                blanksToWrite -= chunk;
+            }
+        }
+
+        afterText = false;
+        started = true;
+    }
+}
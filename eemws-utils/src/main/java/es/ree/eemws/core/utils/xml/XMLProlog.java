@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+/**
+ * Information of a XML document taken from its first bytes: root tag, namespace prefix, target namespace
+ * and declared encoding. See {@link XMLUtil#getProlog(java.io.InputStream)}.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class XMLProlog {
+
+    /** Root tag local name. */
+    private final String rootTag;
+
+    /** Root tag namespace prefix. */
+    private final String prefix;
+
+    /** Root tag namespace. */
+    private final String nameSpace;
+
+    /** Encoding declared in the xml declaration. */
+    private final String encoding;
+
+    /**
+     * Creates a new prolog.
+     * @param rootTagName Root tag local name.
+     * @param rootPrefix Root tag namespace prefix, <code>null</code> if the root tag has no prefix.
+     * @param rootNameSpace Root tag namespace, <code>null</code> if the root tag has no namespace.
+     * @param declaredEncoding Encoding declared in the xml declaration, <code>null</code> if not declared.
+     */
+    XMLProlog(final String rootTagName, final String rootPrefix, final String rootNameSpace, final String declaredEncoding) {
+        rootTag = rootTagName;
+        prefix = rootPrefix;
+        nameSpace = rootNameSpace;
+        encoding = declaredEncoding;
+    }
+
+    /**
+     * Returns the root tag local name (without namespace prefix).
+     * @return Root tag local name.
+     */
+    public String getRootTag() {
+        return rootTag;
+    }
+
+    /**
+     * Returns the root tag namespace prefix.
+     * @return Root tag namespace prefix. <code>null</code> if the root tag has no prefix (default namespace).
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the root tag namespace (the document target namespace).
+     * @return Root tag namespace. <code>null</code> if the root tag has no namespace.
+     */
+    public String getNameSpace() {
+        return nameSpace;
+    }
+
+    /**
+     * Returns the encoding declared in the xml declaration.
+     * @return Declared encoding. <code>null</code> if the document has no xml declaration or it has no encoding.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public String toString() {
+        return "[rootTag=" + rootTag + "][prefix=" + prefix + "][nameSpace=" + nameSpace + "][encoding=" + encoding + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Registry of compiled XML schemas. Each schema file (looked up in the classpath, such as the schemas included
+ * in <code>core.jar</code>) is compiled only once and the (thread safe) <code>Schema</code> is kept, so messages
+ * are validated without reading and compiling the schema again. Validators (which are not thread safe) are
+ * reused through a pool per schema (see {@link XMLObjectPool}). The pool size can be set with the system property
+ * <code>XML_SCHEMA_POOL_SIZE</code> (default: two instances per processor).
+ * <p>Documents can also be validated while they are parsed into a DOM ({@link #parse(String, InputSource)}) or
+ * unmarshalled ({@link #unmarshal(String, InputSource, Class)}): a <code>ValidatorHandler</code> is placed between the
+ * SAX parser and the DOM builder or the JAXB unmarshaller, so the document is read only once.
+ * <p>Keeps cache metrics: hits (an already compiled schema was used) and misses (a schema was compiled).
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.2 17/10/2016
+ */
+public final class XMLSchemaRegistry {
+
+    /** IEC 61968-100 schema file (it's included in <code>core.jar</code>). */
+    public static final String IEC_61968_100_SCHEMA = "http-iec-ch-TC57-2011-schema-message.xsd"; //$NON-NLS-1$
+
+    /** IEC 62325-504 messages schema file (it's included in <code>core.jar</code>). */
+    public static final String IEC_62325_504_SCHEMA = "urn-iec62325-504-messages-1-0.xsd"; //$NON-NLS-1$
+
+    /** System property to set the max number of validators of each schema. */
+    private static final String POOL_SIZE_PROPERTY = "XML_SCHEMA_POOL_SIZE"; //$NON-NLS-1$
+
+    /** Default max number of validators of each schema (per processor). */
+    private static final int DEFAULT_POOL_SIZE_PER_PROCESSOR = 2;
+
+    /** Max number of validators of each schema. */
+    private static final int POOL_SIZE = Integer.getInteger(POOL_SIZE_PROPERTY, Runtime.getRuntime().availableProcessors() * DEFAULT_POOL_SIZE_PER_PROCESSOR);
+
+    /** Classpath folder of the schema files in <code>core.jar</code>. */
+    private static final String SCHEMA_FOLDER = "xsd/"; //$NON-NLS-1$
+
+    /** Factory of schemas (factories are not thread safe, access must be synchronized). */
+    private static final SchemaFactory SCHEMA_FACTORY = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+    /** Compiled schemas by file name. */
+    private static final ConcurrentMap<String, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    /** Pools of validators by schema file name. */
+    private static final ConcurrentMap<String, XMLObjectPool<Validator, SAXException>> VALIDATOR_POOLS = new ConcurrentHashMap<>();
+
+    /** Pools of validator handlers by schema file name. */
+    private static final ConcurrentMap<String, XMLObjectPool<ValidatorHandler, SAXException>> VALIDATOR_HANDLER_POOLS = new ConcurrentHashMap<>();
+
+    /** Number of times an already compiled schema was used. */
+    private static final AtomicLong HITS = new AtomicLong();
+
+    /** Number of times a schema was compiled. */
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    private XMLSchemaRegistry() {
+
+        /* This method should not be implemented. */
+    }
+
+    /**
+     * Returns the compiled schema of the given file. The schema is compiled the first time it is requested.
+     * @param schemaFile Schema file name, looked up in the classpath root and in the <code>xsd</code> folder.
+     * @return Compiled schema (thread safe).
+     * @throws FileNotFoundException If the schema file cannot be found in the classpath.
+     * @throws SAXException If the schema cannot be compiled.
+     */
+    public static Schema getSchema(final String schemaFile) throws FileNotFoundException, SAXException {
+        Schema retValue = SCHEMAS.get(schemaFile);
+        if (retValue == null) {
+            synchronized (SCHEMA_FACTORY) {
+                retValue = SCHEMAS.get(schemaFile);
+                if (retValue == null) {
+                    retValue = SCHEMA_FACTORY.newSchema(getSchemaURL(schemaFile));
+                    SCHEMAS.put(schemaFile, retValue);
+                    MISSES.incrementAndGet();
+                } else {
+                    HITS.incrementAndGet();
+                }
+            }
+        } else {
+            HITS.incrementAndGet();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the validator pool of the given schema (to take validators or to check its metrics).
+     * @param schemaFile Schema file name.
+     * @return Validator pool of the given schema.
+     * @throws FileNotFoundException If the schema file cannot be found in the classpath.
+     * @throws SAXException If the schema cannot be compiled.
+     */
+    public static XMLObjectPool<Validator, SAXException> getValidatorPool(final String schemaFile) throws FileNotFoundException, SAXException {
+        XMLObjectPool<Validator, SAXException> retValue = VALIDATOR_POOLS.get(schemaFile);
+        if (retValue == null) {
+            final Schema schema = getSchema(schemaFile);
+            retValue = new XMLObjectPool<Validator, SAXException>(POOL_SIZE, false) {
+
+                @Override
+                protected Validator create() {
+                    return schema.newValidator();
+                }
+
+                @Override
+                protected boolean reset(final Validator validator) {
+                    boolean reusable = true;
+                    try {
+                        validator.reset();
+                    } catch (UnsupportedOperationException e) { // NOSONAR The validator cannot be reused, discard it.
+                        reusable = false;
+                    }
+
+                    return reusable;
+                }
+            };
+
+            XMLObjectPool<Validator, SAXException> previous = VALIDATOR_POOLS.putIfAbsent(schemaFile, retValue);
+            if (previous != null) {
+                retValue = previous;
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the validator handler pool of the given schema (to take handlers or to check its metrics).
+     * @param schemaFile Schema file name.
+     * @return Validator handler pool of the given schema.
+     * @throws FileNotFoundException If the schema file cannot be found in the classpath.
+     * @throws SAXException If the schema cannot be compiled.
+     */
+    public static XMLObjectPool<ValidatorHandler, SAXException> getValidatorHandlerPool(final String schemaFile) throws FileNotFoundException, SAXException {
+        XMLObjectPool<ValidatorHandler, SAXException> retValue = VALIDATOR_HANDLER_POOLS.get(schemaFile);
+        if (retValue == null) {
+            final Schema schema = getSchema(schemaFile);
+            retValue = new XMLObjectPool<ValidatorHandler, SAXException>(POOL_SIZE, false) {
+
+                @Override
+                protected ValidatorHandler create() {
+                    return schema.newValidatorHandler();
+                }
+
+                @Override
+                protected boolean reset(final ValidatorHandler handler) {
+                    handler.setContentHandler(null);
+                    handler.setErrorHandler(null);
+
+                    return true;
+                }
+            };
+
+            XMLObjectPool<ValidatorHandler, SAXException> previous = VALIDATOR_HANDLER_POOLS.putIfAbsent(schemaFile, retValue);
+            if (previous != null) {
+                retValue = previous;
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Validates the given source against the given schema.
+     * Supported sources are the ones supported by <code>Validator</code>: <code>StreamSource</code>, <code>SAXSource</code>,
+     * <code>DOMSource</code> and <code>StAXSource</code>.
+     * @param schemaFile Schema file name.
+     * @param source Document to validate.
+     * @throws SAXException If the document is not valid against the schema or the schema cannot be compiled.
+     * @throws IOException If the document or the schema file cannot be read.
+     */
+    public static void validate(final String schemaFile, final Source source) throws SAXException, IOException {
+        XMLObjectPool<Validator, SAXException> pool = getValidatorPool(schemaFile);
+        Validator validator = pool.borrow();
+        try {
+            validator.validate(source);
+        } finally {
+            pool.release(validator);
+        }
+    }
+
+    /**
+     * Validates the given document against the given schema.
+     * @param schemaFile Schema file name.
+     * @param in Document to validate. It is not closed.
+     * @throws SAXException If the document is not valid against the schema or the schema cannot be compiled.
+     * @throws IOException If the document or the schema file cannot be read.
+     */
+    public static void validate(final String schemaFile, final InputStream in) throws SAXException, IOException {
+        validate(schemaFile, new StreamSource(in));
+    }
+
+    /**
+     * Validates the given document against the given schema. The document characters are not copied.
+     * @param schemaFile Schema file name.
+     * @param xml Document to validate.
+     * @throws SAXException If the document is not valid against the schema or the schema cannot be compiled.
+     * @throws IOException If the schema file cannot be read.
+     */
+    public static void validate(final String schemaFile, final StringBuilder xml) throws SAXException, IOException {
+        validate(schemaFile, new StreamSource(new CharSequenceReader(xml)));
+    }
+
+    /**
+     * Parses the given document into a DOM validating it against the given schema, reading it only once.
+     * Note that comments are not included in the returned document and CDATA sections are kept as text.
+     * @param schemaFile Schema file name.
+     * @param in Document to parse.
+     * @return Parsed (and valid) document.
+     * @throws SAXException If the document is not well formed or not valid against the schema, or the schema cannot be compiled.
+     * @throws IOException If the document or the schema file cannot be read.
+     * @throws ParserConfigurationException If the parser or the DOM builder cannot be created.
+     */
+    public static Document parse(final String schemaFile, final InputSource in) throws SAXException, IOException, ParserConfigurationException {
+        Document retValue;
+        DocumentBuilder builder = XMLEngine.getDocumentBuilder();
+        try {
+            retValue = builder.newDocument();
+        } finally {
+            XMLEngine.release(builder);
+        }
+
+        parse(schemaFile, in, new DOMBuilderHandler(retValue));
+
+        return retValue;
+    }
+
+    /**
+     * Unmarshalls the given document validating it against the given schema, reading it only once.
+     * @param schemaFile Schema file name.
+     * @param in Document to unmarshall.
+     * @param classType Class of the root element.
+     * @return Unmarshalled (and valid) document.
+     * @throws SAXException If the document is not well formed or not valid against the schema, or the schema cannot be compiled.
+     * @throws IOException If the document or the schema file cannot be read.
+     * @throws ParserConfigurationException If the parser cannot be created.
+     * @throws JAXBException If the document cannot be unmarshalled into the given class.
+     */
+    public static Object unmarshal(final String schemaFile, final InputSource in, final Class<?> classType)
+            throws SAXException, IOException, ParserConfigurationException, JAXBException {
+
+        Object retValue;
+        XMLObjectPool<Unmarshaller, JAXBException> pool = XMLElementUtil.getUnmarshallerPool(classType);
+        Unmarshaller unmarshaller = pool.borrow();
+        try {
+            UnmarshallerHandler handler = unmarshaller.getUnmarshallerHandler();
+            parse(schemaFile, in, handler);
+            retValue = handler.getResult();
+        } finally {
+            pool.release(unmarshaller);
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Parses the given document sending its events, once validated, to the given handler.
+     * @param schemaFile Schema file name.
+     * @param in Document to parse.
+     * @param handler Handler of the validated document events.
+     * @throws SAXException If the document is not well formed or not valid against the schema, or the schema cannot be compiled.
+     * @throws IOException If the document or the schema file cannot be read.
+     * @throws ParserConfigurationException If the parser cannot be created.
+     */
+    private static void parse(final String schemaFile, final InputSource in, final ContentHandler handler)
+            throws SAXException, IOException, ParserConfigurationException {
+
+        XMLObjectPool<ValidatorHandler, SAXException> pool = getValidatorHandlerPool(schemaFile);
+        ValidatorHandler validator = pool.borrow();
+        SAXParser parser = null;
+        try {
+            parser = XMLEngine.getSAXParser();
+            validator.setContentHandler(handler);
+            XMLReader reader = parser.getXMLReader();
+            reader.setContentHandler(validator);
+            reader.parse(in);
+        } finally {
+            XMLEngine.release(parser);
+            pool.release(validator);
+        }
+    }
+
+    /**
+     * Returns the number of times an already compiled schema was used.
+     * @return Number of schema cache hits.
+     */
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * Returns the number of times a schema was compiled.
+     * @return Number of schema cache misses.
+     */
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    /**
+     * Returns the URL of the given schema file, looked up in the classpath root and in the <code>xsd</code> folder.
+     * @param schemaFile Schema file name.
+     * @return URL of the given schema file.
+     * @throws FileNotFoundException If the schema file cannot be found in the classpath.
+     */
+    static URL getSchemaURL(final String schemaFile) throws FileNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = XMLSchemaRegistry.class.getClassLoader();
+        }
+
+        URL retValue = loader.getResource(schemaFile);
+        if (retValue == null) {
+            retValue = loader.getResource(SCHEMA_FOLDER + schemaFile);
+        }
+
+        if (retValue == null) {
+            throw new FileNotFoundException(schemaFile);
+        }
+
+        return retValue;
+    }
+}
@@ -20,25 +20,39 @@
  */
 package es.ree.eemws.core.utils.xml;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.soap.SOAPBody;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
@@ -48,28 +62,10 @@ import es.ree.eemws.core.utils.i18n.Messages;
  * Class that contains utilities for XML messages.
  *
  * @author Red Eléctrica de España S.A.U.
- * @version 1.0 13/06/2014
+ * @version 1.7 17/10/2016
  */
 public final class XMLUtil {
 
-    /** Transform the document as XML (not text). */
-    private static final String STRING_XML_METHOD = "xml"; //$NON-NLS-1$
-
-    /** String format of a Document will be have UTF-8 codification. */
-    private static final String STRING_XML_CODIFICATION = "UTF-8"; //$NON-NLS-1$
-
-    /** Do not add xml declaration, the xml will be included into another!. */
-    private static final String STRING_XML_OMIT_DECLARATION = "yes"; //$NON-NLS-1$
-
-    /** XML namespace. */
-    private static final String XMLNS = "xmlns"; //$NON-NLS-1$
-
-    /** Double quote constant. */
-    private static final char DOUBLE_QUOTE = '"';
-
-    /** Simple quote constant. */
-    private static final char SIMPLE_QUOTE = '\'';
-
     /** XML end tag character. */
     private static final String END_TAG = ">"; //$NON-NLS-1$
 
@@ -94,17 +90,36 @@ public final class XMLUtil {
     /** Colon character constant as character. */
     private static final char COLON_CHAR = COLON.charAt(0);
 
-    /** New line constant. */
-    private static final String NEW_LINE = "\n"; //$NON-NLS-1$
-
     /** Slash character constant. */
     private static final String SLASH = "/"; //$NON-NLS-1$
 
-    /** Tab size. */
-    private static final int TAB_SIZE = 4;
+    /** Bytes read from the beginning of a document to get its prolog and root tag. */
+    private static final int PROLOG_HEAD_SIZE = 4096;
+
+    /** Maximum bytes read from the beginning of a document to get its prolog and root tag. */
+    private static final int PROLOG_MAX_HEAD_SIZE = 65536;
 
-    /** Size of header where namespaces are searched. */
-    private static final int TNSNAME_SEARCH_SIZE = 3000;
+    /** MIME header with the size of a SOAP message. */
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length"; //$NON-NLS-1$
+
+    /** Initial size of the buffer for a SOAP message body if the message size is unknown. */
+    private static final int DEFAULT_MESSAGE_SIZE = 8192;
+
+    /** Size of the buffer used to read documents from a reader. */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** StAX factory for streaming lookups (namespace aware, no DTD processing). Thread safe once configured. */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    /*
+     * Initializes the StAX factory.
+     */
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
 
     /**
      * Constructor.
@@ -114,6 +129,33 @@ public final class XMLUtil {
         /* This method should not be implemented. */
     }
 
+    /**
+     * Gets the values of the given nodes scanning the document once. The scan stops as soon as all the given
+     * nodes are found, so nodes at the beginning of a large document (header) are retrieved without reading the rest.
+     * The value of each tag is the content of the first element with that local name (namespace prefix is ignored) up
+     * to its own end tag, nested elements with the same name are matched by depth. Elements in comments and CDATA
+     * sections are not matched and self-closed elements have no value (see {@link XMLElementIndex}).
+     * Note that {@link #getNodeValue(String, StringBuilder)} looks for the tag as text and takes the first end tag
+     * with that name in the document, so its value can differ for nested elements with the same name or for tags
+     * that appear in a comment or a CDATA section before the element.
+     * @param tags Tag names (without namespace prefix).
+     * @param doc XML document in string.
+     * @return Values of the nodes found in the document, by tag name. Tags not found are not included.
+     */
+    public static Map<String, String> getNodeValues(final Set<String> tags, final StringBuilder doc) {
+
+        Map<String, String> retValue = new HashMap<>();
+        XMLElementIndex index = new XMLElementIndex(doc, tags);
+        for (String tag : tags) {
+            String value = index.getValue(tag);
+            if (value != null) {
+                retValue.put(tag, value);
+            }
+        }
+
+        return retValue;
+    }
+
     /**
      * Gets the value of the node.
      * @param tag Tag name.
@@ -165,6 +207,209 @@ public final class XMLUtil {
         return retValue;
     }
 
+    /**
+     * Gets the value of the first element with the given name reading the document as a stream.
+     * The document is read only until the element is found, so memory usage does not depend on the document size.
+     * Unlike {@link #getNodeValue(String, StringBuilder)}, elements are matched by namespace and local name
+     * (prefixes are not relevant) and text that looks like an element is never matched.
+     * This method is intended for simple (text only) elements, for elements with child elements only the
+     * character data is returned.
+     * The given stream is not closed.
+     * @param nameSpace Element namespace. <code>null</code> to match the local name in any namespace.
+     * @param tag Element local name.
+     * @param in Stream with the XML document, the encoding is taken from the xml declaration.
+     * @return Value of the node. <code>null</code> if there is no such element in the document.
+     * @throws XMLStreamException If the document cannot be read or is not well formed until the element is found.
+     */
+    public static String getNodeValue(final String nameSpace, final String tag, final InputStream in) throws XMLStreamException {
+
+        return getNodeValue(nameSpace, tag, XML_INPUT_FACTORY.createXMLStreamReader(in));
+    }
+
+    /**
+     * Gets the value of the first element with the given name reading the document as a stream.
+     * See {@link #getNodeValue(String, String, InputStream)}.
+     * The given reader is not closed.
+     * @param nameSpace Element namespace. <code>null</code> to match the local name in any namespace.
+     * @param tag Element local name.
+     * @param in Reader with the XML document.
+     * @return Value of the node. <code>null</code> if there is no such element in the document.
+     * @throws XMLStreamException If the document cannot be read or is not well formed until the element is found.
+     */
+    public static String getNodeValue(final String nameSpace, final String tag, final Reader in) throws XMLStreamException {
+
+        return getNodeValue(nameSpace, tag, XML_INPUT_FACTORY.createXMLStreamReader(in));
+    }
+
+    /**
+     * Reads the given stream until the first element with the given name is found and returns its value.
+     * @param nameSpace Element namespace. <code>null</code> to match the local name in any namespace.
+     * @param tag Element local name.
+     * @param reader StAX reader positioned at the beginning of the document. It's closed by this method.
+     * @return Value of the node. <code>null</code> if there is no such element in the document.
+     * @throws XMLStreamException If the document cannot be read or is not well formed until the element is found.
+     */
+    private static String getNodeValue(final String nameSpace, final String tag, final XMLStreamReader reader) throws XMLStreamException {
+
+        String retValue = null;
+
+        try {
+            while (retValue == null && reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && tag.equals(reader.getLocalName())
+                        && (nameSpace == null || nameSpace.equals(reader.getNamespaceURI()))) {
+
+                    retValue = readText(reader);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Reads the root tag, its namespace prefix, the target namespace and the declared encoding of the given XML file.
+     * Only the first bytes of the file (the prolog and the root tag) are read, so the cost does not depend on the file size.
+     * @param path XML file.
+     * @return Information of the document. <code>null</code> if the file head is not a XML document.
+     * @throws IOException If the file cannot be read.
+     */
+    public static XMLProlog getProlog(final Path path) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return getProlog(channel);
+        }
+    }
+
+    /**
+     * Reads the root tag, its namespace prefix, the target namespace and the declared encoding of the XML document
+     * of the given channel. Only the first bytes of the channel are read, from the beginning of the channel.
+     * The channel position is not modified and the channel is not closed.
+     * @param channel Channel with a XML document.
+     * @return Information of the document. <code>null</code> if the channel head is not a XML document.
+     * @throws IOException If the channel cannot be read.
+     */
+    public static XMLProlog getProlog(final FileChannel channel) throws IOException {
+
+        long position = channel.position();
+        try {
+            channel.position(0);
+            return getProlog(Channels.newInputStream(channel));
+        } finally {
+            channel.position(position);
+        }
+    }
+
+    /**
+     * Reads the root tag, its namespace prefix, the target namespace and the declared encoding of the XML document
+     * of the given stream. Only the first bytes of the stream are read (usually 4 KB, up to 64 KB if the
+     * root tag is very long). If the stream supports mark, it is reset
+     * to its initial position, otherwise the bytes read are consumed. The stream is not closed.
+     * @param in Stream with a XML document.
+     * @return Information of the document. <code>null</code> if the stream head is not a XML document.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static XMLProlog getProlog(final InputStream in) throws IOException {
+
+        XMLProlog retValue = null;
+        boolean markSupported = in.markSupported();
+        if (markSupported) {
+            in.mark(PROLOG_MAX_HEAD_SIZE);
+        }
+
+        try {
+            byte[] head = new byte[PROLOG_HEAD_SIZE];
+            int len = 0;
+            boolean incomplete = true;
+
+            while (incomplete) {
+                int read = 0;
+                while (read != -1 && len < head.length) {
+                    read = in.read(head, len, head.length - len);
+                    if (read != -1) {
+                        len += read;
+                    }
+                }
+
+                try {
+                    retValue = getProlog(head, len);
+                    incomplete = false;
+                } catch (XMLStreamException e) { // NOSONAR The root tag is not complete or the content is not XML
+
+                    if (read == -1 || head.length >= PROLOG_MAX_HEAD_SIZE) {
+                        incomplete = false;
+                    } else {
+                        head = Arrays.copyOf(head, head.length * 2);
+                    }
+                }
+            }
+
+        } finally {
+            if (markSupported) {
+                in.reset();
+            }
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Reads the prolog and the root tag of a document head.
+     * @param head First bytes of the document.
+     * @param len Number of bytes of the head.
+     * @return Information of the document. <code>null</code> if there is no root tag.
+     * @throws XMLStreamException If the prolog or the root tag cannot be read (not XML or the head is too short).
+     */
+    private static XMLProlog getProlog(final byte[] head, final int len) throws XMLStreamException {
+
+        XMLProlog retValue = null;
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(head, 0, len));
+
+        try {
+            while (retValue == null && reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String prefix = reader.getPrefix();
+                    String nameSpace = reader.getNamespaceURI();
+                    retValue = new XMLProlog(reader.getLocalName(),
+                            prefix == null || prefix.isEmpty() ? null : prefix,
+                            nameSpace == null || nameSpace.isEmpty() ? null : nameSpace,
+                            reader.getCharacterEncodingScheme());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the character data of the current element, the reader is left at the element's end tag.
+     * @param reader StAX reader positioned at an element start tag.
+     * @return Character data of the current element (and its child elements).
+     * @throws XMLStreamException If the document cannot be read.
+     */
+    private static String readText(final XMLStreamReader reader) throws XMLStreamException {
+
+        StringBuilder value = new StringBuilder();
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+
+        return value.toString();
+    }
+
     /**
      * Returns the element value from the current possition or <code>null</code> if the current possition is not an element (it's text).
      * @param doc Document with the value to extract
@@ -215,10 +460,15 @@ public final class XMLUtil {
      */
     public static Document string2Document(final StringBuilder msgAsString) throws ParserConfigurationException, SAXException, IOException {
 
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(new InputSource(new StringReader(msgAsString.toString())));
+        Document retValue;
+        DocumentBuilder builder = XMLEngine.getDocumentBuilder();
+        try {
+            retValue = builder.parse(new InputSource(new StringReader(msgAsString.toString())));
+        } finally {
+            XMLEngine.release(builder);
+        }
+
+        return retValue;
     }
 
     /**
@@ -234,14 +484,13 @@ public final class XMLUtil {
 
         StreamResult result = new StreamResult(stringWriter);
 
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer transformer = tFactory.newTransformer();
-
-        transformer.setOutputProperty(OutputKeys.METHOD, STRING_XML_METHOD);
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, STRING_XML_OMIT_DECLARATION);
-        transformer.setOutputProperty(OutputKeys.ENCODING, STRING_XML_CODIFICATION);
-        DOMSource domSource = new DOMSource(doc);
-        transformer.transform(domSource, result);
+        Transformer transformer = XMLEngine.getTransformer();
+        try {
+            DOMSource domSource = new DOMSource(doc);
+            transformer.transform(domSource, result);
+        } finally {
+            XMLEngine.release(transformer);
+        }
 
         return stringWriter.toString();
     }
@@ -249,67 +498,19 @@ public final class XMLUtil {
     /**
      * Gets a pretty print document using the format of the opening and closing tags.
      * @param whatToPretty Text formatting.
-     * @return Document formatted as.
+     * @return Document formatted as. If the given text is not an XML document (its tags are not balanced)
+     * the text is returned unchanged.
      */
     public static StringBuilder prettyPrint(final String whatToPretty) {
 
-        StringBuilder output = new StringBuilder();
+        StringBuilder output = new StringBuilder(whatToPretty.length() + (whatToPretty.length() >> 2));
 
         try {
-            String tab = NEW_LINE;
-
-            String tabBlanks = EMPTY;
-            StringBuilder buf = new StringBuilder();
-            for (int cont = 0; cont < TAB_SIZE; cont++) {
-                buf.append(BLANK);
-            }
-            tabBlanks = buf.toString();
-
-            String[] text = whatToPretty.trim().split(END_TAG);
-
-            String current = EMPTY;
-            String previous = BLANK;
-            int pos = 0;
-
-            for (int cont = 0; cont < text.length; cont++) {
-
-                current = text[cont].trim().replaceAll(NEW_LINE, BLANK);
-
-                if (!current.endsWith(SLASH) && !current.startsWith(START_CLOSE_TAG)) {
-
-                    if (current.startsWith(START_TAG)) {
-
-                        tab += tabBlanks;
-
-                    } else {
-
-                        int k = output.length();
-                        output.delete(k - tab.length(), k);
-                        tab = tab.substring(0, tab.length() - TAB_SIZE);
-                    }
-
-                } else if (current.startsWith(START_CLOSE_TAG)) {
-
-                    tab = tab.substring(0, tab.length() - TAB_SIZE);
-                    int k = output.length();
-                    output.delete(k - TAB_SIZE, k);
-
-                    if (isSameTag(previous, current)) {
-
-                        output.setLength(pos - 1);
-                        current = SLASH;
-                    }
-                }
-
-                previous = current;
-                output.append(current);
-                output.append(END_TAG);
-                pos = output.length();
-                output.append(tab);
+            if (!prettyPrint(whatToPretty, output)) {
+                output.setLength(0);
+                output.append(whatToPretty);
             }
-
-        } catch (IndexOutOfBoundsException e) { // NOSONAR The input string is not an XML
-            
+        } catch (IOException e) { // NOSONAR StringBuilder does not throw IOException
             output.setLength(0);
             output.append(whatToPretty);
         }
@@ -318,26 +519,41 @@ public final class XMLUtil {
     }
 
     /**
-     * This method checks whether two XML tags are equal.
-     * @param previousTag Previous tag.
-     * @param currentTag Current tag.
-     * @return true if both labels are equal.
+     * Writes a pretty print version of the given document to the given output, in one pass and
+     * without building intermediate strings. Format is the one of {@link #prettyPrint(String)}.
+     * @param whatToPretty Text formatting.
+     * @param output Output where the formatted document will be written (a <code>Writer</code>, a <code>StringBuilder</code>...).
+     * @return <code>true</code> if the given text is an XML document with balanced tags. <code>false</code>
+     * otherwise, in that case the output contains a best effort formatting.
+     * @throws IOException If the output cannot be written.
      */
-    private static boolean isSameTag(final String previousTag, final String currentTag) {
-
-        String tag1 = previousTag.substring(1);
-        if (tag1.indexOf(BLANK) > 0) {
+    public static boolean prettyPrint(final CharSequence whatToPretty, final Appendable output) throws IOException {
 
-            tag1 = tag1.substring(0, tag1.indexOf(BLANK));
-        }
+        XMLPrettyPrinter printer = new XMLPrettyPrinter(output);
+        printer.write(whatToPretty);
+        return printer.close();
+    }
 
-        String tag2 = currentTag.substring(2);
-        if (tag2.indexOf(BLANK) > 0) {
+    /**
+     * Writes a pretty print version of the document read from the given reader to the given output, in one pass.
+     * Memory used does not depend on the document size so it is suitable for very large documents.
+     * Format is the one of {@link #prettyPrint(String)}. The reader is not closed.
+     * @param in Reader with the text formatting.
+     * @param output Output where the formatted document will be written (a <code>Writer</code>, a <code>StringBuilder</code>...).
+     * @return <code>true</code> if the given text is an XML document with balanced tags. <code>false</code>
+     * otherwise, in that case the output contains a best effort formatting.
+     * @throws IOException If the document cannot be read or the output cannot be written.
+     */
+    public static boolean prettyPrint(final Reader in, final Appendable output) throws IOException {
 
-            tag2 = tag2.substring(0, tag2.indexOf(BLANK));
+        XMLPrettyPrinter printer = new XMLPrettyPrinter(output);
+        char[] buffer = new char[READ_BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            printer.write(buffer, 0, len);
         }
 
-        return tag1.equals(tag2);
+        return printer.close();
     }
 
     /**
@@ -363,128 +579,34 @@ public final class XMLUtil {
      * }
      * </pre>
      *
+     * Only element names are changed, character data (that could contain the prefix) is kept as it is.
      * @param xml XML document to remove references to prefixes of namespaces.
      * @return XML document without namespaces.
      */
     public static StringBuilder removeNameSpaces(final String xml) {
 
-        StringBuilder xmlOut = new StringBuilder(xml.trim());
-        xmlOut = removeExtraNS(xmlOut.toString());
-
-        String prefix = getTargetNameSpacePrefix(xmlOut);
-        if (prefix != null) {
+        StringBuilder xmlOut = new StringBuilder(xml.length());
 
-            String retXml = xmlOut.toString();
-            retXml = retXml.replaceAll(prefix + COLON, EMPTY);
-            retXml = retXml.replaceFirst(XMLNS + COLON + prefix, XMLNS);
-            xmlOut = new StringBuilder(retXml);
+        try {
+            removeNameSpaces(xml, xmlOut);
+        } catch (IOException e) { // NOSONAR StringBuilder does not throw IOException
+            xmlOut.setLength(0);
+            xmlOut.append(xml.trim());
         }
 
         return xmlOut;
     }
 
     /**
-     * This method removes the given document, namespaces that are not referred to the document.
-     * Example:
-     *
-     * input
-     * <code>
-     *   <n1:Tag xmlns:n1="http...." xmlns:n2="http...." xmlns:n3="http...">
-     *   ...
-     *   </n1:Tag>
-     * </code>
-     *
-     * output
-     * <code>
-     * <n1:Tag xmlns:n1="http....">
-     *   ...
-     * </n1:Tag>
-     * </code>
-     *
-     * @param xml XML document.
-     * @return XML document without namespaces.
+     * Writes the given document without references to prefixes of namespaces in the given output, in one pass and
+     * without intermediate copies of the document. See {@link #removeNameSpaces(String)}.
+     * @param xml XML document to remove references to prefixes of namespaces.
+     * @param output Output where the document will be written (a <code>Writer</code>, a <code>StringBuilder</code>...).
+     * @throws IOException If the output cannot be written.
      */
-    private static StringBuilder removeExtraNS(final String xml) {
-
-        StringBuilder xmlOut = new StringBuilder(xml.trim());
-
-        String ns = getTargetNameSpace(xmlOut);
-        String prefix = getTargetNameSpacePrefix(xmlOut);
-
-        if (prefix == null) {
-            prefix = EMPTY;
-        } else {
-            prefix = COLON + prefix;
-        }
-
-        String newDoc = xml;
-
-        int posEndTag = newDoc.indexOf(END_TAG);
-        if (newDoc.charAt(posEndTag - 1) == '/') {
-            posEndTag--;
-        }
-
-        String rootTag = newDoc.substring(0, posEndTag);
-        String[] rootTags = rootTag.split("\\s"); //$NON-NLS-1$
-        StringBuilder sb = new StringBuilder(rootTags[0]);
-        sb.append(BLANK + XMLNS + prefix + "=\"" + ns + DOUBLE_QUOTE + BLANK); //$NON-NLS-1$
+    public static void removeNameSpaces(final CharSequence xml, final Appendable output) throws IOException {
 
-        int len = rootTags.length;
-        for (int i = 1; i < len; i++) {
-            if (rootTags[i].indexOf(XMLNS) == -1) {
-                sb.append(rootTags[i]);
-                sb.append(BLANK);
-            }
-        }
-        sb.setLength(sb.length() - 1);
-        sb.append(xml.substring(posEndTag));
-
-        return sb;
-    }
-
-    /**
-     * This method gets the namespace prefix of the given XML document.
-     * @param xml XML document.
-     * @return null if there is no prefix (default namespace).
-     * A string with the namespace prefix otherwise.
-     */
-    private static String getTargetNameSpacePrefix(final StringBuilder xml) {
-
-        String prefix = null;
-
-        String subXml;
-        if (xml.length() > TNSNAME_SEARCH_SIZE) {
-            subXml = xml.substring(0, TNSNAME_SEARCH_SIZE);
-        } else {
-            subXml = xml.toString();
-        }
-        subXml += END_TAG;
-
-        int startPos = subXml.indexOf(START_TAG);
-        int endPos1 = subXml.indexOf(BLANK);
-        int endPos2 = subXml.indexOf(END_TAG);
-
-        if (endPos1 == -1) {
-            endPos1 = endPos2;
-        }
-
-        if (endPos2 == -1) {
-            endPos2 = endPos1;
-        }
-
-        try {
-
-            String tag = subXml.substring(startPos, Math.min(endPos1, endPos2));
-            if (tag.indexOf(COLON) != -1) {
-                prefix = tag.substring(tag.indexOf(START_TAG) + 1, tag.indexOf(COLON));
-            }
-
-        } catch (IndexOutOfBoundsException e) { // NOSONAR Do not throw exception, there is no prefix
-
-            prefix = null;
-        }
-
-        return prefix;
+        XMLNameSpaceRemover.removeNameSpaces(xml, output);
     }
 
     /**
@@ -542,93 +664,79 @@ public final class XMLUtil {
     }
 
     /**
-     * This method gets the "targetNamespace" XML document given.
-     * Find if the root tag has space prefixed names or default and returns the string that defines the namespace accordingly.
-     * @param xml XML document.
-     * @return null if no namespace is. The value of the "targetNamespace" otherwise.
+     * Transforms a SOAP message into a String.
+     * @param message SOAP message.
+     * @return String with the content of the SOAP message.
+     * @throws SOAPException Exception transform the message.
      */
-    private static String getTargetNameSpace(final StringBuilder xml) {
-
-        String targetNamespace = null;
-
-        String subXml;
-        if (xml.length() > TNSNAME_SEARCH_SIZE) {
-            subXml = xml.substring(0, TNSNAME_SEARCH_SIZE);
-        } else {
-            subXml = xml.toString();
-        }
+    public static String soapMessage2String(final SOAPMessage message) throws SOAPException {
 
-        String prefix = getTargetNameSpacePrefix(xml);
         try {
 
-            if (prefix == null) {
-
-                int pos = subXml.indexOf(XMLNS);
-                int pos2 = subXml.indexOf(XMLNS + COLON);
-
-                if (pos != -1) {
-
-                    while (pos == pos2 && pos != -1) {
-                        pos = subXml.indexOf(XMLNS, pos + 1);
-                        pos2 = subXml.indexOf(XMLNS + COLON, pos2 + 1);
-                    }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            message.writeTo(baos);
+            return baos.toString(StandardCharsets.UTF_8.name()); 
 
-                    if (pos != -1) {
+        } catch (IOException e) {
 
-                        pos = subXml.indexOf(DOUBLE_QUOTE, pos);
-                        pos2 = subXml.indexOf(DOUBLE_QUOTE, pos + 1);
-                        if (pos == -1) {
+            throw new SOAPException(Messages.getString("SOAP_UNABLE_TO_TRANSFORM"), e); //$NON-NLS-1$
+        }
+    }
 
-                            pos = subXml.indexOf(SIMPLE_QUOTE, pos);
-                            pos2 = subXml.indexOf(SIMPLE_QUOTE, pos + 1);
-                        }
+    /**
+     * Serializes the child elements of the given SOAP message body into a new <code>StringBuilder</code>.
+     * Neither the envelope nor the headers are serialized and no intermediate copies (bytes, strings) of the
+     * message are made: the body elements are written straight into the returned builder, pre-sized with the
+     * message <code>Content-Length</code> if it is known.
+     * @param message SOAP message.
+     * @return Content of the SOAP message body.
+     * @throws SOAPException If the message has no body or the body cannot be serialized.
+     */
+    public static StringBuilder soapBody2StringBuilder(final SOAPMessage message) throws SOAPException {
 
-                        targetNamespace = subXml.substring(pos + 1, pos2);
-                    }
-                }
+        StringBuilder retValue = new StringBuilder(getContentLength(message));
+        SOAPBody body = message.getSOAPBody();
 
-            } else {
+        Transformer transformer = null;
+        try {
 
-                prefix = XMLNS + COLON + prefix;
-                int posIni = subXml.indexOf(prefix) + prefix.length();
-                posIni = subXml.indexOf(DOUBLE_QUOTE, posIni) + 1;
-                int posFin = subXml.indexOf(DOUBLE_QUOTE, posIni);
-                if (posIni == -1) {
+            transformer = XMLEngine.getTransformer();
+            StreamResult result = new StreamResult(new StringBuilderWriter(retValue));
 
-                    posIni = subXml.indexOf(prefix) + prefix.length();
-                    posIni = subXml.indexOf(SIMPLE_QUOTE, posIni) + 1;
-                    posFin = subXml.indexOf(SIMPLE_QUOTE, posIni);
+            for (Node node = body.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    transformer.transform(new DOMSource(node), result);
                 }
-
-                targetNamespace = subXml.substring(posIni, posFin);
             }
 
-        } catch (IndexOutOfBoundsException e) { // NOSONAR Do not throw exception, tns is null
+        } catch (TransformerException e) {
 
-            targetNamespace = null;
+            throw new SOAPException(Messages.getString("SOAP_UNABLE_TO_TRANSFORM"), e); //$NON-NLS-1$
+        } finally {
+            XMLEngine.release(transformer);
         }
 
-        return targetNamespace;
+        return retValue;
     }
-    
-    
+
     /**
-     * Transforms a SOAP message into a String.
+     * Returns the size declared in the <code>Content-Length</code> MIME header of the given message.
      * @param message SOAP message.
-     * @return String with the content of the SOAP message.
-     * @throws SOAPException Exception transform the message.
+     * @return Message size. A default size if the header is not set or it is not valid.
      */
-    public static String soapMessage2String(final SOAPMessage message) throws SOAPException {
-
-        try {
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            message.writeTo(baos);
-            return baos.toString(StandardCharsets.UTF_8.name()); 
+    private static int getContentLength(final SOAPMessage message) {
 
-        } catch (IOException e) {
+        int retValue = DEFAULT_MESSAGE_SIZE;
+        String[] values = message.getMimeHeaders() == null ? null : message.getMimeHeaders().getHeader(CONTENT_LENGTH_HEADER);
+        if (values != null && values.length > 0) {
+            try {
+                retValue = Math.max(Integer.parseInt(values[0].trim()), DEFAULT_MESSAGE_SIZE);
+            } catch (NumberFormatException e) { // NOSONAR Use the default size
 
-            throw new SOAPException(Messages.getString("SOAP_UNABLE_TO_TRANSFORM"), e); //$NON-NLS-1$
+                retValue = DEFAULT_MESSAGE_SIZE;
+            }
         }
+
+        return retValue;
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks of the test classes (methods named <code>benchmark...</code>). They only log times, so they are skipped
+ * unless the system property <code>RUN_BENCHMARKS</code> is set to <code>true</code> (<code>gradle test -DRUN_BENCHMARKS=true</code>).
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class Benchmarks {
+
+    /** System property to run the benchmarks. */
+    private static final String RUN_BENCHMARKS = "RUN_BENCHMARKS"; //$NON-NLS-1$
+
+    /**
+     * Constructor.
+     */
+    private Benchmarks() {
+
+        /* This method should not be implemented. */
+    }
+
+    /**
+     * Skips the current test unless benchmarks are enabled.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(RUN_BENCHMARKS));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.iec61968100;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.file.FileUtil;
+import es.ree.eemws.core.utils.xml.XMLElementIndex;
+
+/**
+ * Test class for ByteBufferMessage.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class ByteBufferMessageTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(ByteBufferMessageTest.class);
+
+    /** UTF-8 BOM header. */
+    private static final String BOM = "\uFEFF"; //$NON-NLS-1$
+
+    /** Number of payload copies of the big message file. */
+    private static final int BIG_MESSAGE_COPIES = 100000;
+
+    /** Sample payload (with non ASCII characters). */
+    private static final String PAYLOAD = ""
+        + "<Acknowledgement_MarketDocument xmlns=\"urn:iec62325.351:tc57wg16:451-1:acknowledgementdocument:7:0\">"
+        + "<mRID>ack_código</mRID>"
+        + "<Reason><code>A02</code><text>Red Eléctrica de España: &lt;Verb&gt; € ✓</text></Reason>"
+        + "</Acknowledgement_MarketDocument>";
+
+    /** Sample request message with payload and Format element. */
+    private static final String REQUEST = ""
+        + "<msg:RequestMessage xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\">"
+        + "<msg:Header><msg:Verb>create</msg:Verb><msg:Noun>Acknowledgement_MarketDocument</msg:Noun>"
+        + "<msg:Comment>Petición</msg:Comment></msg:Header>"
+        + "<msg:Payload>" + PAYLOAD + "<msg:Format>XML</msg:Format></msg:Payload>"
+        + "</msg:RequestMessage>";
+
+    /** Sample response message. */
+    private static final String RESPONSE = ""
+        + "<ResponseMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">"
+        + "<Header><Verb>reply</Verb><Noun>MessageList</Noun></Header>"
+        + "<Reply><Result>OK</Result></Reply>"
+        + "<Payload/>"
+        + "</ResponseMessage>";
+
+    /**
+     * Element accessors on a request message, values with non ASCII characters.
+     */
+    @Test
+    public void testRequestAccessors() {
+
+        byte[] bytes = REQUEST.getBytes(StandardCharsets.UTF_8);
+        ByteBufferMessage msg = new ByteBufferMessage(bytes);
+
+        assertThat(msg.getVerb(), is("create"));
+        assertThat(msg.getNoun(), is("Acknowledgement_MarketDocument"));
+        assertThat(msg.getStatus(), is((EnumMessageStatus) null));
+        assertThat(msg.getPayload(), is(PAYLOAD));
+
+        Map<String, String> values = msg.getElements(new HashSet<>(Arrays.asList("Comment", "mRID", "text", "Result")));
+        assertThat(values.get("Comment"), is("Petición"));
+        assertThat(values.get("mRID"), is("ack_código"));
+        assertThat(values.get("text"), is("Red Eléctrica de España: &lt;Verb&gt; € ✓"));
+        assertThat(values.containsKey("Result"), is(false));
+
+        logger.debug("Payload bytes are shared with the message");
+        ByteBuffer payload = msg.getPayloadAsByteBuffer();
+        byte[] payloadBytes = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+        assertThat(payload.remaining(), is(payloadBytes.length));
+        byte[] read = new byte[payload.remaining()];
+        payload.get(read);
+        assertThat(read, is(payloadBytes));
+        assertThat(payload.isReadOnly(), is(true));
+    }
+
+    /**
+     * Element accessors on a response message held in a direct buffer with an offset.
+     */
+    @Test
+    public void testResponseAccessors() {
+
+        byte[] bytes = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 10);
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.position(10);
+
+        ByteBufferMessage msg = new ByteBufferMessage(buffer);
+        assertThat(msg.getStatus(), is(EnumMessageStatus.OK));
+        assertThat(msg.getVerb(), is("reply"));
+        assertThat(msg.getNoun(), is("MessageList"));
+        assertThat(msg.getPayload(), is((String) null));
+        assertThat(msg.getMessage().remaining(), is(bytes.length));
+        assertThat(buffer.position(), is(10));
+    }
+
+    /**
+     * Reads a message from a mapped file (with BOM) and transfers its payload from the file.
+     * @throws IOException If the temporary file cannot be handled.
+     */
+    @Test
+    public void testMappedFile() throws IOException {
+
+        Path file = Files.createTempFile("mapped", ".xml"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            FileUtil.writeUTF8(file.toString(), BOM + REQUEST);
+
+            ByteBufferMessage msg = new ByteBufferMessage(FileUtil.mapUTF8(file.toString()));
+            assertThat(msg.getVerb(), is("create"));
+            assertThat(msg.getNoun(), is("Acknowledgement_MarketDocument"));
+            assertThat(msg.getPayload(), is(PAYLOAD));
+
+            byte[] payloadBytes = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (WritableByteChannel channel = Channels.newChannel(out)) {
+                long count = FileUtil.transferTo(file.toString(), msg.getPayloadPosition(), msg.getPayloadAsByteBuffer().remaining(), channel);
+                assertThat(count, is((long) payloadBytes.length));
+            }
+            assertThat(out.toByteArray(), is(payloadBytes));
+
+            out.reset();
+            try (WritableByteChannel channel = Channels.newChannel(out)) {
+                assertThat(msg.writePayload(channel), is((long) payloadBytes.length));
+            }
+            assertThat(out.toByteArray(), is(payloadBytes));
+
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Compares reading the header and payload size of a big message file as a String and as a mapped file.
+     * @throws IOException If the temporary file cannot be handled.
+     */
+    @Test
+    public void benchmarkMappedFile() throws IOException {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder sb = new StringBuilder(REQUEST.length() + PAYLOAD.length() * BIG_MESSAGE_COPIES);
+        int payloadPos = REQUEST.indexOf(PAYLOAD);
+        sb.append(REQUEST, 0, payloadPos).append("<list>"); //$NON-NLS-1$
+        for (int cont = 0; cont < BIG_MESSAGE_COPIES; cont++) {
+            sb.append(PAYLOAD);
+        }
+        sb.append("</list>").append(REQUEST, payloadPos + PAYLOAD.length(), REQUEST.length()); //$NON-NLS-1$
+
+        Path file = Files.createTempFile("big", ".xml"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            FileUtil.writeUTF8(file.toString(), sb.toString());
+            sb = null;
+            String fileName = file.toString();
+
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                XMLElementIndex idx = new XMLElementIndex(new StringBuilder(FileUtil.readUTF8(fileName)));
+                String verb = idx.getValue(EnumVerb.ELEMENT_VERB);
+                int length = idx.getContentEnd(StringBuilderMessage.TAG_MSG_PAYLOAD) - idx.getContentStart(StringBuilderMessage.TAG_MSG_PAYLOAD);
+                long readTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                ByteBufferMessage bbMsg = new ByteBufferMessage(FileUtil.mapUTF8(fileName));
+                assertThat(bbMsg.getVerb(), is(verb));
+                int bytes = bbMsg.getPayloadAsByteBuffer().remaining();
+                long mapTime = System.nanoTime() - start;
+
+                logger.debug("Big message [file size=" + Files.size(file) + "][payload chars=" + length + "][payload bytes=" + bytes //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                    + "][read + index=" + readTime / 1000000 + " ms][map + ByteBufferMessage=" + mapTime / 1000000 + " ms]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
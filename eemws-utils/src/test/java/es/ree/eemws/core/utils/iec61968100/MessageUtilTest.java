@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.iec61968100;
+
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Test class for MessageUtil.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class MessageUtilTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(MessageUtilTest.class);
+
+    /**
+     * Messages are validated against the IEC 61968-100 schema: valid ones are accepted, invalid ones are rejected.
+     * @throws Exception If the valid message is rejected.
+     */
+    @Test
+    public void testValidateMessage() throws Exception {
+
+        MessageUtil.validateMessage(new StringBuilder("<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">"
+            + "<Header><Verb>get</Verb><Noun>MessageList</Noun></Header></RequestMessage>"));
+
+        String[] invalid = {
+            "<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\"><Header><Verb>get</Verb><Unknown/></Header></RequestMessage>",
+            "<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\"><Header><Verb>get</Verb><Noun>MessageList</Noun></Header>"
+                + "<Payload/><Request/></RequestMessage>",
+            "<RequestMessage><Header><Verb>get</Verb><Noun>MessageList</Noun></Header></RequestMessage>"
+        };
+
+        for (String message : invalid) {
+            try {
+                MessageUtil.validateMessage(new StringBuilder(message));
+                fail("Invalid message accepted: " + message);
+            } catch (SAXException e) {
+                logger.debug("Rejected: " + e.getMessage());
+            }
+        }
+    }
+}
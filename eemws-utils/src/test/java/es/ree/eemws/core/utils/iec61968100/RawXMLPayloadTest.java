@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.iec61968100;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.soap.SOAPConstants;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import ch.iec.tc57._2011.schema.message.RequestMessage;
+import es.ree.eemws.core.utils.xml.XMLElementUtil;
+
+/**
+ * Test class for RawXMLPayload.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class RawXMLPayloadTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(RawXMLPayloadTest.class);
+
+    /** Sample payload (with non ASCII characters). */
+    private static final String PAYLOAD = ""
+        + "<Acknowledgement_MarketDocument xmlns=\"urn:iec62325.351:tc57wg16:451-1:acknowledgementdocument:7:0\">"
+        + "<mRID>ack_código</mRID>"
+        + "<Reason><code>A02</code><text>Red Eléctrica de España: &lt;Verb&gt; € ✓</text></Reason>"
+        + "</Acknowledgement_MarketDocument>";
+
+    /**
+     * The xml declaration and the BOM are not part of the payload.
+     * @throws Exception If the payload cannot be created.
+     */
+    @Test
+    public void testProlog() throws Exception {
+
+        RawXMLPayload payload = new RawXMLPayload(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        assertThat(payload.toString(), is(PAYLOAD));
+        assertThat(payload.getRootTag(), is("Acknowledgement_MarketDocument"));
+        assertThat(payload.getLength(), is(PAYLOAD.getBytes(StandardCharsets.UTF_8).length));
+
+        String doc = "﻿<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + PAYLOAD;
+        payload = new RawXMLPayload(doc.getBytes(StandardCharsets.UTF_8));
+        assertThat(payload.toString(), is(PAYLOAD));
+
+        logger.debug("Buffer with offset, position and limit are not modified");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(doc.length() * 4);
+        buffer.put("garbage".getBytes(StandardCharsets.UTF_8));
+        int start = buffer.position();
+        buffer.put(doc.getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        buffer.position(start);
+        payload = new RawXMLPayload(buffer);
+        assertThat(payload.toString(), is(PAYLOAD));
+        assertThat(buffer.position(), is(start));
+        assertThat(payload.getBytes().isReadOnly(), is(true));
+    }
+
+    /**
+     * Documents that cannot be embedded are rejected.
+     */
+    @Test
+    public void testInvalidPayloads() {
+
+        String[] invalid = {
+            "<a><b></a>",
+            "<a>",
+            "",
+            "text",
+            "<a/><b/>",
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>",
+            "<!DOCTYPE a [<!ENTITY e \"x\">]><a>&e;</a>"
+        };
+
+        for (String doc : invalid) {
+            try {
+                new RawXMLPayload(doc.getBytes(StandardCharsets.UTF_8));
+                fail("Invalid payload accepted: " + doc);
+            } catch (SAXException e) {
+                logger.debug("Rejected [" + doc + "]: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The payload is written verbatim in the request message and the message is valid.
+     * @throws Exception If the message cannot be written.
+     */
+    @Test
+    public void testWriteRequest() throws Exception {
+
+        RawXMLPayload payload = new RawXMLPayload(("<?xml version=\"1.0\"?>" + PAYLOAD).getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageUtil.writeRequestWithPayload(EnumVerb.CREATE.toString(), "Acknowledgement_MarketDocument", payload, out);
+        byte[] bytes = out.toByteArray();
+
+        StringBuilder request = new StringBuilder(new String(bytes, StandardCharsets.UTF_8));
+        logger.debug(request.toString());
+        MessageUtil.validateMessage(request);
+
+        ByteBufferMessage msg = new ByteBufferMessage(bytes);
+        assertThat(msg.getVerb(), is("create"));
+        assertThat(msg.getNoun(), is("Acknowledgement_MarketDocument"));
+        assertThat(msg.getPayload(), is(PAYLOAD));
+
+        RequestMessage message = (RequestMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(request.toString()), RequestMessage.class);
+        assertThat(message.getPayload().getAnies().get(0).getLocalName(), is("Acknowledgement_MarketDocument"));
+        assertThat(message.getHeader().getTimestamp() != null, is(true));
+    }
+
+    /**
+     * The request message is written in the SOAP body.
+     * @throws Exception If the message cannot be written.
+     */
+    @Test
+    public void testWriteSoapRequest() throws Exception {
+
+        RawXMLPayload payload = new RawXMLPayload(PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageUtil.writeSoapRequestWithPayload(EnumVerb.CREATE.toString(), "Acknowledgement_MarketDocument", payload,
+                SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE, out);
+
+        String soap = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        logger.debug(soap);
+        assertThat(soap.contains("<soapenv:Envelope xmlns:soapenv=\"" + SOAPConstants.URI_NS_SOAP_1_1_ENVELOPE + "\"><soapenv:Body>"), is(true));
+        assertThat(soap.contains("<msg:Payload>" + PAYLOAD + "</msg:Payload></msg:RequestMessage></soapenv:Body></soapenv:Envelope>"), is(true));
+
+        ByteBufferMessage msg = new ByteBufferMessage(out.toByteArray());
+        assertThat(msg.getPayload(), is(PAYLOAD));
+    }
+
+    /**
+     * A payload without namespace keeps it in the written message, as in the message created with its DOM.
+     * @throws Exception If the message cannot be written.
+     */
+    @Test
+    public void testWriteNoNameSpacePayload() throws Exception {
+
+        String doc = "<Doc><mRID>1</mRID></Doc>";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageUtil.writeRequestWithPayload(EnumVerb.CREATE.toString(), "Doc", new RawXMLPayload(doc.getBytes(StandardCharsets.UTF_8)), out);
+        String request = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        logger.debug(request);
+
+        Element written = XMLElementUtil.string2Element(request);
+        Element payload = (Element) written.getElementsByTagNameNS("*", "Doc").item(0);
+        assertThat(payload.getNamespaceURI(), is(nullValue()));
+        assertThat(payload.getFirstChild().getNamespaceURI(), is(nullValue()));
+
+        RequestMessage created = MessageUtil.createRequestWithPayload(EnumVerb.CREATE.toString(), "Doc", new StringBuilder(doc));
+        assertThat(created.getPayload().getAnies().get(0).getNamespaceURI(), is(nullValue()));
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.iec61968100;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.MimeHeaders;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.xml.CharSequenceSlice;
+import es.ree.eemws.core.utils.xml.XMLElementIndex;
+import es.ree.eemws.core.utils.xml.XMLUtil;
+
+/**
+ * Test class for StringBuilderMessage.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class StringBuilderMessageTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(StringBuilderMessageTest.class);
+
+    /** Sample payload. */
+    private static final String PAYLOAD = ""
+        + "<Acknowledgement_MarketDocument xmlns=\"urn:iec62325.351:tc57wg16:451-1:acknowledgementdocument:7:0\">"
+        + "<mRID>ack_code</mRID>"
+        + "<Reason><code>A02</code><text>Verb and Noun inside text: &lt;Verb&gt;</text></Reason>"
+        + "</Acknowledgement_MarketDocument>";
+
+    /** Sample request message with payload and Format element. */
+    private static final String REQUEST = ""
+        + "<msg:RequestMessage xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\">"
+        + "<msg:Header><msg:Verb>create</msg:Verb><msg:Noun>Acknowledgement_MarketDocument</msg:Noun>"
+        + "<msg:Timestamp>2016-10-17T10:00:00Z</msg:Timestamp><msg:MessageID>id_001</msg:MessageID></msg:Header>"
+        + "<msg:Payload>" + PAYLOAD + "<msg:Format>XML</msg:Format></msg:Payload>"
+        + "</msg:RequestMessage>";
+
+    /** Sample response message. */
+    private static final String RESPONSE = ""
+        + "<ResponseMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">"
+        + "<Header><Verb>reply</Verb><Noun>MessageList</Noun></Header>"
+        + "<Reply><Result>OK</Result></Reply>"
+        + "<Payload/>"
+        + "</ResponseMessage>";
+
+    /** Number of elements of the payload used in the benchmark. */
+    private static final int BENCHMARK_PAYLOAD_ELEMENTS = 100000;
+
+    /** Number of messages processed in the benchmark. */
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    /** Elements read by a handler from every message. */
+    private static final Set<String> HANDLER_ELEMENTS = new HashSet<>(Arrays.asList(EnumVerb.ELEMENT_VERB, EnumNoun.ELEMENT_NOUN,
+            "Timestamp", "MessageID", "mRID", EnumMessageStatus.ELEMENT_RESULT, "code"));
+
+    /**
+     * Element accessors on a request message.
+     * @throws Exception in case of error.
+     */
+    @Test
+    public void testRequestAccessors() throws Exception {
+
+        StringBuilderMessage msg = createMessage(REQUEST);
+
+        assertThat(msg.getVerb(), is("create"));
+        assertThat(msg.getNoun(), is("Acknowledgement_MarketDocument"));
+        assertThat(msg.getPayload(), is(PAYLOAD));
+        assertThat(msg.getStatus(), is((EnumMessageStatus) null));
+        assertThat(msg.getStringMessageNoPayload().indexOf("Acknowledgement_MarketDocument xmlns"), is(-1));
+    }
+
+    /**
+     * Only the soap body content is kept, with the namespace declarations made in the envelope.
+     * @throws Exception in case of error.
+     */
+    @Test
+    public void testSoapBodyContent() throws Exception {
+
+        String envelope = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\">"
+                + "<soapenv:Header><msg:Other>x</msg:Other></soapenv:Header><soapenv:Body>"
+                + REQUEST.replace(" xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\"", "") + "</soapenv:Body></soapenv:Envelope>";
+
+        StringBuilderMessage msg = createMessageFromEnvelope(envelope);
+        String body = msg.getStringMessage().toString();
+        assertThat(body.startsWith("<msg:RequestMessage"), is(true));
+        assertThat(body.indexOf("Envelope"), is(-1));
+        assertThat(body.indexOf("<msg:Other>"), is(-1));
+        assertThat(body.indexOf("xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\"") != -1, is(true));
+        assertThat(XMLUtil.string2Document(body).getDocumentElement().getLocalName(), is("RequestMessage"));
+        assertThat(msg.getVerb(), is("create"));
+        assertThat(msg.getPayload(), is(PAYLOAD));
+    }
+
+    /**
+     * Payload as a view of the message (no copy) and message without payload.
+     * @throws Exception in case of error.
+     */
+    @Test
+    public void testPayloadSlice() throws Exception {
+
+        StringBuilderMessage msg = createMessage(REQUEST);
+
+        CharSequenceSlice payload = msg.getPayloadAsCharSequence();
+        assertThat(payload.length(), is(PAYLOAD.length()));
+        assertThat(payload.toString(), is(PAYLOAD));
+        assertThat(payload.subSequence(1, 31).toString(), is(PAYLOAD.substring(1, 31)));
+
+        StringWriter writer = new StringWriter();
+        payload.writeTo(writer);
+        assertThat(writer.toString(), is(PAYLOAD));
+
+        String noPayload = msg.getStringMessageNoPayload();
+        StringBuilder expected = new StringBuilder(msg.getStringMessage());
+        int pos = expected.indexOf(PAYLOAD);
+        expected.delete(pos, pos + PAYLOAD.length());
+        assertThat(noPayload, is(expected.toString()));
+        assertThat(noPayload.indexOf("<msg:Format>XML</msg:Format>") != -1, is(true));
+
+        assertThat(createMessage(RESPONSE).getPayloadAsCharSequence(), is((CharSequenceSlice) null));
+    }
+
+    /**
+     * Element accessors on a response message with an empty payload.
+     * @throws Exception in case of error.
+     */
+    @Test
+    public void testResponseAccessors() throws Exception {
+
+        StringBuilderMessage msg = createMessage(RESPONSE);
+
+        assertThat(msg.getVerb(), is("reply"));
+        assertThat(msg.getNoun(), is("MessageList"));
+        assertThat(msg.getStatus(), is(EnumMessageStatus.OK));
+        assertThat(msg.getPayload(), is((String) null));
+
+        logger.debug("Changing the message content must rebuild the index");
+        msg.getStringMessage().insert(msg.getStringMessage().indexOf("<Reply>"), "<Extra>x</Extra>");
+        assertThat(msg.getStatus(), is(EnumMessageStatus.OK));
+        assertThat(msg.getVerb(), is("reply"));
+    }
+
+    /**
+     * Several elements retrieved at once, header values scanning only the header.
+     * @throws Exception in case of error.
+     */
+    @Test
+    public void testGetElements() throws Exception {
+
+        StringBuilderMessage msg = createMessage(REQUEST);
+        Map<String, String> values = msg.getElements(HANDLER_ELEMENTS);
+        assertThat(values.get("Timestamp"), is("2016-10-17T10:00:00Z"));
+        assertThat(values.get("MessageID"), is("id_001"));
+        assertThat(values.get("code"), is("A02"));
+        assertThat(values.containsKey(EnumMessageStatus.ELEMENT_RESULT), is(false));
+
+        logger.debug("Same values once the message is indexed");
+        assertThat(msg.getPayload(), is(PAYLOAD));
+        assertThat(msg.getElements(HANDLER_ELEMENTS), is(values));
+
+        logger.debug("Header values are read without scanning the payload");
+        StringBuilder sb = createBigMessage();
+        CountingCharSequence counter = new CountingCharSequence(sb);
+        XMLElementIndex index = new XMLElementIndex(counter, Arrays.asList(EnumVerb.ELEMENT_VERB, EnumNoun.ELEMENT_NOUN));
+        assertThat(index.getValue(EnumVerb.ELEMENT_VERB), is("create"));
+        assertThat(index.getValue(EnumNoun.ELEMENT_NOUN), is("Acknowledgement_MarketDocument"));
+        logger.debug("Message length: " + sb.length() + " characters read: " + counter.getCount());
+        assertTrue(counter.getCount() < sb.indexOf("<msg:Payload>"));
+    }
+
+    /**
+     * Compares the time needed to retrieve the values a handler needs with one <code>XMLUtil.getNodeValue</code>
+     * call per element and with one <code>XMLUtil.getNodeValues</code> call.
+     */
+    @Test
+    public void benchmarkGetNodeValues() {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder sb = createBigMessage();
+        Map<String, String> values = XMLUtil.getNodeValues(HANDLER_ELEMENTS, sb);
+        for (String tag : HANDLER_ELEMENTS) {
+            assertThat(values.get(tag), is(XMLUtil.getNodeValue(tag, sb)));
+        }
+
+        long nodeValueTime = 0;
+        long nodeValuesTime = 0;
+
+        /* First round is just a warm up. */
+        for (int round = 0; round < 2; round++) {
+            long time = System.nanoTime();
+            for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+                for (String tag : HANDLER_ELEMENTS) {
+                    XMLUtil.getNodeValue(tag, sb);
+                }
+            }
+            nodeValueTime = System.nanoTime() - time;
+
+            time = System.nanoTime();
+            for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+                XMLUtil.getNodeValues(HANDLER_ELEMENTS, sb);
+            }
+            nodeValuesTime = System.nanoTime() - time;
+        }
+
+        logger.debug("XMLUtil.getNodeValue: " + nodeValueTime / BENCHMARK_ITERATIONS / 1000 + " us/message (" + HANDLER_ELEMENTS.size() + " scans)");
+        logger.debug("XMLUtil.getNodeValues: " + nodeValuesTime / BENCHMARK_ITERATIONS / 1000 + " us/message (1 scan)");
+    }
+
+    /**
+     * Compares the number of scans and the time needed to retrieve header values and payload
+     * using <code>XMLUtil.getNodeValue</code> (one scan per value) and the element index (one scan per message).
+     */
+    @Test
+    public void benchmarkElementIndex() {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder sb = createBigMessage();
+        String[] tags = {EnumVerb.ELEMENT_VERB, EnumNoun.ELEMENT_NOUN, EnumMessageStatus.ELEMENT_RESULT, "Payload", "details"};
+
+        CountingCharSequence counter = new CountingCharSequence(sb);
+        XMLElementIndex index = new XMLElementIndex(counter);
+        long afterBuild = counter.getCount();
+        for (String tag : tags) {
+            assertThat(index.getValue(tag), is(XMLUtil.getNodeValue(tag, sb)));
+        }
+
+        logger.debug("Message length: " + sb.length() + " characters read: " + counter.getCount() + " (" + tags.length + " values)");
+        assertThat(counter.getCount(), is(afterBuild));
+        assertTrue(counter.getCount() < sb.length() * 2L);
+
+        long nodeValueTime = 0;
+        long indexTime = 0;
+
+        /* First round is just a warm up. */
+        for (int round = 0; round < 2; round++) {
+            long time = System.nanoTime();
+            for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+                for (String tag : tags) {
+                    XMLUtil.getNodeValue(tag, sb);
+                }
+            }
+            nodeValueTime = System.nanoTime() - time;
+
+            time = System.nanoTime();
+            for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+                XMLElementIndex idx = new XMLElementIndex(sb);
+                for (String tag : tags) {
+                    idx.getValue(tag);
+                }
+            }
+            indexTime = System.nanoTime() - time;
+        }
+
+        logger.debug("XMLUtil.getNodeValue: " + nodeValueTime / BENCHMARK_ITERATIONS / 1000 + " us/message (" + tags.length + " scans)");
+        logger.debug("XMLElementIndex: " + indexTime / BENCHMARK_ITERATIONS / 1000 + " us/message (1 scan)");
+    }
+
+    /**
+     * Creates a request message with a large payload.
+     * @return Request message with a large payload.
+     */
+    private static StringBuilder createBigMessage() {
+        StringBuilder sb = new StringBuilder(REQUEST);
+        StringBuilder bigPayload = new StringBuilder();
+        for (int cont = 0; cont < BENCHMARK_PAYLOAD_ELEMENTS; cont++) {
+            bigPayload.append("<Point><position>").append(cont).append("</position><quantity>1.0</quantity></Point>");
+        }
+        sb.insert(sb.indexOf("<msg:Format>"), bigPayload);
+
+        return sb;
+    }
+
+    /**
+     * Creates a StringBuilderMessage wrapping the given IEC-61968-100 message in a SOAP envelope.
+     * @param message IEC-61968-100 message.
+     * @return StringBuilderMessage with the given message.
+     * @throws Exception If the SOAP message cannot be created.
+     */
+    private StringBuilderMessage createMessage(final String message) throws Exception {
+
+        return createMessageFromEnvelope("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soapenv:Header/><soapenv:Body>" + message + "</soapenv:Body></soapenv:Envelope>");
+    }
+
+    /**
+     * Creates a StringBuilderMessage from the given SOAP envelope.
+     * @param envelope SOAP envelope.
+     * @return StringBuilderMessage with the body content of the given envelope.
+     * @throws Exception If the SOAP message cannot be created.
+     */
+    private StringBuilderMessage createMessageFromEnvelope(final String envelope) throws Exception {
+
+        SOAPMessage soapMessage = MessageFactory.newInstance().createMessage(new MimeHeaders(),
+                new ByteArrayInputStream(envelope.getBytes(StandardCharsets.UTF_8)));
+
+        SOAPMessageContext context = mock(SOAPMessageContext.class);
+        when(context.getMessage()).thenReturn(soapMessage);
+
+        return new StringBuilderMessage(context);
+    }
+
+    /**
+     * Character sequence that counts the characters read.
+     */
+    private static final class CountingCharSequence implements CharSequence {
+
+        /** Counted sequence. */
+        private final CharSequence seq;
+
+        /** Number of characters read. */
+        private long count = 0;
+
+        /**
+         * Creates a new counting sequence.
+         * @param sequence Counted sequence.
+         */
+        CountingCharSequence(final CharSequence sequence) {
+            seq = sequence;
+        }
+
+        /**
+         * Returns the number of characters read.
+         * @return Number of characters read.
+         */
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int length() {
+            return seq.length();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            count++;
+            return seq.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return seq.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return seq.toString();
+        }
+    }
+}
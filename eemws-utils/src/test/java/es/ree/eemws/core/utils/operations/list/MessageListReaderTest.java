@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.operations.list;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import _504.iec62325.messages._1._0.MessageList;
+import _504.iec62325.messages._1._0.StatusType;
+import _504.iec62325.messages._1._0.TimeIntervalType;
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.xml.XMLElementUtil;
+import es.ree.eemws.core.utils.xml.XMLGregorianCalendarFactory;
+
+/**
+ * Test class for MessageListReader.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class MessageListReaderTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(MessageListReaderTest.class);
+
+    /** Entries of the sample list. */
+    private static final int ENTRIES = 25;
+
+    /** Entries of the benchmark list. */
+    private static final int BENCHMARK_ENTRIES = 20000;
+
+    /** Response message start (the list is the payload). */
+    private static final String RESPONSE_START = "<ResponseMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">" //$NON-NLS-1$
+        + "<Header><Verb>reply</Verb><Noun>MessageList</Noun></Header><Reply><Result>OK</Result></Reply><Payload>"; //$NON-NLS-1$
+
+    /** Response message end. */
+    private static final String RESPONSE_END = "</Payload></ResponseMessage>"; //$NON-NLS-1$
+
+    /**
+     * Creates a list with the given number of entries.
+     * @param entries Number of entries.
+     * @return List with the given number of entries.
+     */
+    static MessageList createList(final int entries) {
+        MessageList retValue = new MessageList();
+        Date now = new Date();
+        for (int cont = 1; cont <= entries; cont++) {
+            retValue.getMessages().add(createEntry(cont, now));
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Creates a list entry.
+     * @param code Entry code.
+     * @param date Entry dates.
+     * @return New list entry.
+     */
+    static MessageList.Message createEntry(final int code, final Date date) {
+        MessageList.Message retValue = new MessageList.Message();
+        retValue.setCode(BigInteger.valueOf(code));
+        retValue.setMessageIdentification("Id_" + code); //$NON-NLS-1$
+        retValue.setMessageVersion(BigInteger.ONE);
+        retValue.setStatus(StatusType.OK);
+        TimeIntervalType interval = new TimeIntervalType();
+        interval.setStart(XMLGregorianCalendarFactory.getGMTInstance(date));
+        interval.setEnd(XMLGregorianCalendarFactory.getGMTInstance(date));
+        retValue.setApplicationTimeInterval(interval);
+        retValue.setServerTimestamp(XMLGregorianCalendarFactory.getGMTInstance(date));
+        retValue.setType("A01"); //$NON-NLS-1$
+        retValue.setOwner("Red Eléctrica"); //$NON-NLS-1$
+
+        return retValue;
+    }
+
+    /**
+     * Reads the entries of a response message one by one.
+     * @throws Exception If the list cannot be read.
+     */
+    @Test
+    public void testRead() throws Exception {
+        MessageList list = createList(ENTRIES);
+        String xml = RESPONSE_START + XMLElementUtil.element2String(XMLElementUtil.obj2Element(list)) + RESPONSE_END;
+
+        try (MessageListReader reader = new MessageListReader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))) {
+            for (MessageList.Message expected : list.getMessages()) {
+                MessageList.Message msg = reader.read();
+                assertThat(msg.getCode(), is(expected.getCode()));
+                assertThat(msg.getMessageIdentification(), is(expected.getMessageIdentification()));
+                assertThat(msg.getStatus(), is(expected.getStatus()));
+                assertThat(msg.getApplicationTimeInterval().getStart(), is(expected.getApplicationTimeInterval().getStart()));
+                assertThat(msg.getServerTimestamp(), is(expected.getServerTimestamp()));
+                assertThat(msg.getOwner(), is(expected.getOwner()));
+            }
+
+            assertThat(reader.read() == null, is(true));
+            assertThat(reader.getCount(), is(ENTRIES));
+        }
+
+        try (MessageListReader reader = new MessageListReader(new StringReader("<MessageList xmlns=\"urn:iec62325.504:messages:1:0\"/>"))) { //$NON-NLS-1$
+            assertThat(reader.read() == null, is(true));
+        }
+    }
+
+    /**
+     * Compares unmarshalling a big list as a whole against reading it entry by entry.
+     * @throws Exception If the list cannot be read.
+     */
+    @Test
+    public void benchmarkRead() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        String xml = XMLElementUtil.element2String(XMLElementUtil.obj2Element(createList(BENCHMARK_ENTRIES)));
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            MessageList list = (MessageList) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(xml), MessageList.class);
+            long wholeTime = System.nanoTime() - start;
+            assertThat(list.getMessages().size(), is(BENCHMARK_ENTRIES));
+            list = null;
+
+            start = System.nanoTime();
+            long firstEntryTime = 0;
+            try (MessageListReader reader = new MessageListReader(new StringReader(xml))) {
+                MessageList.Message msg = reader.read();
+                firstEntryTime = System.nanoTime() - start;
+                while (msg != null) {
+                    msg = reader.read();
+                }
+                assertThat(reader.getCount(), is(BENCHMARK_ENTRIES));
+            }
+            long streamTime = System.nanoTime() - start;
+
+            logger.debug("benchmarkRead [entries=" + BENCHMARK_ENTRIES + "][whole list=" + wholeTime / 1000000 + " ms][streaming=" + streamTime / 1000000 //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                + " ms, first entry after " + firstEntryTime / 1000000 + " ms]"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+}
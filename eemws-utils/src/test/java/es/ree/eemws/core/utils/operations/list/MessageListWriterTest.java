@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.operations.list;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import _504.iec62325.messages._1._0.MessageList;
+import ch.iec.tc57._2011.schema.message.ResponseMessage;
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.iec61968100.EnumMessageStatus;
+import es.ree.eemws.core.utils.iec61968100.EnumNoun;
+import es.ree.eemws.core.utils.iec61968100.MessageUtil;
+import es.ree.eemws.core.utils.xml.XMLElementUtil;
+
+/**
+ * Test class for MessageListWriter.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class MessageListWriterTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(MessageListWriterTest.class);
+
+    /** Entries of the sample list. */
+    private static final int ENTRIES = 25;
+
+    /** Entries of the benchmark list. */
+    private static final int BENCHMARK_ENTRIES = 20000;
+
+    /**
+     * Writes a response message entry by entry: the output is a valid response message with all the entries.
+     * @throws Exception If the list cannot be written.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        MessageList list = MessageListReaderTest.createList(ENTRIES);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MessageListWriter writer = new MessageListWriter(out, true)) {
+            for (MessageList.Message msg : list.getMessages()) {
+                writer.write(msg);
+            }
+            assertThat(writer.getCount(), is(ENTRIES));
+        }
+
+        String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        logger.debug("testWrite " + xml.substring(0, Math.min(xml.length(), 1000))); //$NON-NLS-1$
+        MessageUtil.validateMessage(new StringBuilder(xml));
+        assertThat(xml.split("xmlns").length - 1, is(2)); //$NON-NLS-1$
+        assertThat(xml.contains("<ResponseMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\"><Header>"), is(true)); //$NON-NLS-1$
+        assertThat(xml.contains("<MessageList xmlns=\"urn:iec62325.504:messages:1:0\"><Message>"), is(true)); //$NON-NLS-1$
+
+        ResponseMessage response = (ResponseMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(xml), ResponseMessage.class);
+        assertThat(response.getHeader().getNoun(), is(EnumNoun.MESSAGE_LIST.toString()));
+        assertThat(response.getReply().getResult(), is(EnumMessageStatus.OK.getStatus()));
+
+        try (MessageListReader reader = new MessageListReader(new ByteArrayInputStream(out.toByteArray()))) {
+            for (MessageList.Message expected : list.getMessages()) {
+                MessageList.Message msg = reader.read();
+                assertThat(msg.getCode(), is(expected.getCode()));
+                assertThat(msg.getOwner(), is(expected.getOwner()));
+                assertThat(msg.getServerTimestamp(), is(expected.getServerTimestamp()));
+            }
+            assertThat(reader.read() == null, is(true));
+        }
+
+        out.reset();
+        MessageListWriter closed;
+        try (MessageListWriter writer = new MessageListWriter(out, false)) {
+            writer.write(list.getMessages().get(0));
+            closed = writer;
+        }
+
+        try {
+            closed.write(list.getMessages().get(1));
+            fail("Entry written after close"); //$NON-NLS-1$
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is(Messages.getString("MESSAGE_LIST_WRITER_CLOSED"))); //$NON-NLS-1$
+        }
+        MessageList copy = (MessageList) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(new String(out.toByteArray(), StandardCharsets.UTF_8)), MessageList.class);
+        assertThat(copy.getMessages().size(), is(1));
+    }
+
+    /**
+     * Compares building a big list response (object, DOM and serialization) against writing it entry by entry.
+     * @throws Exception If the list cannot be written.
+     */
+    @Test
+    public void benchmarkWrite() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        Date now = new Date();
+        for (int round = 0; round < 2; round++) {
+            CountingOutputStream out = new CountingOutputStream();
+            long start = System.nanoTime();
+            MessageList list = new MessageList();
+            for (int cont = 1; cont <= BENCHMARK_ENTRIES; cont++) {
+                list.getMessages().add(MessageListReaderTest.createEntry(cont, now));
+            }
+            ResponseMessage response = MessageUtil.createResponseWithPayload(EnumNoun.MESSAGE_LIST, EnumMessageStatus.OK, XMLElementUtil.obj2Element(list));
+            XMLElementUtil.element2OutputStream(XMLElementUtil.obj2Element(response), out);
+            long objectTime = System.nanoTime() - start;
+            long objectSize = out.count;
+            list = null;
+            response = null;
+
+            out = new CountingOutputStream();
+            long firstByteTime = 0;
+            start = System.nanoTime();
+            try (MessageListWriter writer = new MessageListWriter(out, true)) {
+                for (int cont = 1; cont <= BENCHMARK_ENTRIES; cont++) {
+                    writer.write(MessageListReaderTest.createEntry(cont, now));
+                    if (firstByteTime == 0 && out.count > 0) {
+                        firstByteTime = System.nanoTime() - start;
+                    }
+                }
+            }
+            long streamTime = System.nanoTime() - start;
+
+            logger.debug("benchmarkWrite [entries=" + BENCHMARK_ENTRIES + "][object + DOM=" + objectTime / 1000000 + " ms, " + objectSize + " bytes]" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+                + "[streaming=" + streamTime / 1000000 + " ms, " + out.count + " bytes, first byte after " + firstByteTime / 1000000 + " ms]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+    }
+
+    /**
+     * Output stream that only counts the bytes written.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        /** Number of bytes written. */
+        private long count = 0;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+}
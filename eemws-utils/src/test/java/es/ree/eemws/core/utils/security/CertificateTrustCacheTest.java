@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.ree.eemws.core.utils.Benchmarks;
+
+/**
+ * Test class for CertificateTrustCache.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class CertificateTrustCacheTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(CertificateTrustCacheTest.class);
+
+    /** Test key store alias. */
+    private static final String KEY_STORE_ALIAS = "1";
+
+    /** Key store (expired certificate) that does not trust the test certificate. */
+    private static final String UNTRUSTED_KEY_STORE_FILE = "test.p12";
+
+    /** Password of the key store that does not trust the test certificate. */
+    private static final String UNTRUSTED_KEY_STORE_PASSWORD = "test";
+
+    /** Checks made in the benchmark. */
+    private static final int ITERATIONS = 1000;
+
+    /** Copy of the test key store used as trust store (so its modification time can be changed). */
+    private File trustStore;
+
+    /** Test certificate (trusted by the trust store). */
+    private X509Certificate cert;
+
+    /**
+     * Sets the system trust store to a copy of the test key store.
+     * @throws Exception If the key store cannot be copied.
+     */
+    @Before
+    public void setup() throws Exception {
+
+        trustStore = File.createTempFile("trust", ".p12");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(SigningCredentialCacheTest.KEY_STORE_FILE)) {
+            Files.copy(in, trustStore.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        KeyStore ks = KeyStore.getInstance(SigningCredentialCacheTest.KEY_STORE_TYPE);
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(SigningCredentialCacheTest.KEY_STORE_FILE)) {
+            ks.load(in, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        }
+        cert = (X509Certificate) ks.getCertificate(KEY_STORE_ALIAS);
+
+        System.setProperty("javax.net.ssl.trustStore", trustStore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStoreType", SigningCredentialCacheTest.KEY_STORE_TYPE);
+        System.setProperty("javax.net.ssl.trustStorePassword", SigningCredentialCacheTest.KEY_STORE_PASSWORD);
+        CertificateTrustCache.invalidate();
+    }
+
+    /**
+     * Removes the trust store copy.
+     */
+    @After
+    public void tearDown() {
+
+        System.clearProperty("javax.net.ssl.trustStore");
+        System.clearProperty("javax.net.ssl.trustStoreType");
+        System.clearProperty("javax.net.ssl.trustStorePassword");
+        CertificateTrustCache.invalidate();
+        trustStore.delete();
+    }
+
+    /**
+     * A trusted certificate is checked against the trust store once, then the decision is taken from the cache.
+     * @throws Exception If the certificate is not trusted.
+     */
+    @Test
+    public void testHit() throws Exception {
+
+        long hits = CertificateTrustCache.getHits();
+        long misses = CertificateTrustCache.getMisses();
+
+        X509Util.checkCertificate(cert);
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 1));
+        assertThat(CertificateTrustCache.getHits(), is(hits));
+
+        X509Util.checkCertificate(cert);
+        X509Util.checkCertificate(new X509Certificate[] { cert });
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 1));
+        assertThat(CertificateTrustCache.getHits(), is(hits + 2));
+    }
+
+    /**
+     * Untrusted certificates are not cached.
+     */
+    @Test
+    public void testUntrusted() {
+
+        System.setProperty("javax.net.ssl.trustStore", getClass().getClassLoader().getResource(UNTRUSTED_KEY_STORE_FILE).getFile());
+        System.setProperty("javax.net.ssl.trustStorePassword", UNTRUSTED_KEY_STORE_PASSWORD);
+        long hits = CertificateTrustCache.getHits();
+        long misses = CertificateTrustCache.getMisses();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                X509Util.checkCertificate(cert);
+                fail("Certificate trusted by a trust store that does not have it");
+            } catch (CertificateException e) {
+                logger.debug("Expected: " + e.getMessage());
+            }
+        }
+
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 2));
+        assertThat(CertificateTrustCache.getHits(), is(hits));
+    }
+
+    /**
+     * The decisions are discarded when the trust store changes.
+     * @throws Exception If the certificate is not trusted.
+     */
+    @Test
+    public void testTrustStoreChange() throws Exception {
+
+        X509Util.checkCertificate(cert);
+        long misses = CertificateTrustCache.getMisses();
+
+        logger.debug("Trust store file modified");
+        assertThat(trustStore.setLastModified(trustStore.lastModified() - 10000), is(true));
+        X509Util.checkCertificate(cert);
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 1));
+        X509Util.checkCertificate(cert);
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 1));
+
+        logger.debug("Trust store changed");
+        System.setProperty("javax.net.ssl.trustStore", getClass().getClassLoader().getResource(UNTRUSTED_KEY_STORE_FILE).getFile());
+        System.setProperty("javax.net.ssl.trustStorePassword", UNTRUSTED_KEY_STORE_PASSWORD);
+        try {
+            X509Util.checkCertificate(cert);
+            fail("Trusted decision kept after the trust store change");
+        } catch (CertificateException e) {
+            logger.debug("Expected: " + e.getMessage());
+        }
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 2));
+
+        logger.debug("Cache invalidated");
+        System.setProperty("javax.net.ssl.trustStore", trustStore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStorePassword", SigningCredentialCacheTest.KEY_STORE_PASSWORD);
+        X509Util.checkCertificate(cert);
+        CertificateTrustCache.invalidate();
+        X509Util.checkCertificate(cert);
+        assertThat(CertificateTrustCache.getMisses(), is(misses + 4));
+    }
+
+    /**
+     * Decisions expire at the earliest of the time to live and the certificate expiration.
+     */
+    @Test
+    public void testExpiry() {
+
+        X509Certificate[] chain = new X509Certificate[] { cert };
+        long notAfter = cert.getNotAfter().getTime();
+        long now = System.currentTimeMillis();
+
+        assertThat(CertificateTrustCache.getExpiry(chain, now) > now, is(true));
+        assertThat(CertificateTrustCache.getExpiry(chain, now) < notAfter, is(true));
+        assertThat(CertificateTrustCache.getExpiry(chain, notAfter - 1), is(notAfter));
+    }
+
+    /**
+     * Compares checking the certificate against the trust store each time and the cached decision.
+     * @throws Exception If the certificate is not trusted.
+     */
+    @Test
+    public void benchmarkCheckCertificate() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                CertificateTrustCache.invalidate();
+                X509Util.checkCertificate(cert);
+            }
+            long checkEach = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                X509Util.checkCertificate(cert);
+            }
+            long cached = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + ITERATIONS + " checks. Trust store each time: " + checkEach / 1000000
+                + " ms. Cached decision: " + cached / 1000000 + " ms.");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import es.ree.eemws.core.utils.Benchmarks;
+
+/**
+ * Test class for SigningContext.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class SigningContextTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(SigningContextTest.class);
+
+    /** Number of concurrent threads. */
+    private static final int THREADS = 8;
+
+    /** Signatures made by each thread and in the benchmark. */
+    private static final int ITERATIONS = 50;
+
+    /** Test private key. */
+    private static PrivateKey privateKey;
+
+    /** Test certificate. */
+    private static X509Certificate certificate;
+
+    /**
+     * Loads the test key and certificate.
+     * @throws Exception If the test key store cannot be read.
+     */
+    @BeforeClass
+    public static void loadKey() throws Exception {
+
+        KeyStore ks = KeyStore.getInstance(SigningCredentialCacheTest.KEY_STORE_TYPE);
+        try (InputStream in = SigningContextTest.class.getClassLoader().getResourceAsStream(SigningCredentialCacheTest.KEY_STORE_FILE)) {
+            ks.load(in, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        }
+
+        String alias = ks.aliases().nextElement();
+        privateKey = (PrivateKey) ks.getKey(alias, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        certificate = (X509Certificate) ks.getCertificate(alias);
+    }
+
+    /**
+     * A context signs with the algorithm it was created with.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testAlgorithms() throws Exception {
+
+        SigningContext context = new SigningContext(privateKey, certificate, false);
+        Document doc = SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml");
+        context.sign(doc);
+        assertThat(getSignatureMethod(doc), is("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256"));
+        assertThat(SigningCredentialCacheTest.isSignatureValid(doc, certificate), is(true));
+
+        SigningContext legacy = new SigningContext(privateKey, certificate, true);
+        assertThat(legacy.isLegacySha1(), is(true));
+        doc = SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml");
+        legacy.sign(doc);
+        assertThat(getSignatureMethod(doc), is("http://www.w3.org/2000/09/xmldsig#rsa-sha1"));
+        logger.debug("Contexts: " + context + " " + legacy);
+    }
+
+    /**
+     * Signing with a given key keeps its context: documents signed in a row with the same (equal) key and certificate
+     * only digest, sign and insert the signature.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testReusedContext() throws Exception {
+
+        SignatureManager.signDocument(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"), privateKey, certificate);
+        SigningContext context = SignatureManager.getSigningContext(privateKey, certificate);
+        long created = context.getTemplatePool().getMisses();
+
+        X509Certificate copy = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+            new ByteArrayInputStream(certificate.getEncoded()));
+        Document doc = SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml");
+        SignatureManager.signDocument(doc, privateKey, copy);
+        assertThat(SigningCredentialCacheTest.isSignatureValid(doc, certificate), is(true));
+        assertThat(SignatureManager.getSigningContext(privateKey, copy) == context, is(true));
+        assertThat(context.getTemplatePool().getMisses(), is(created));
+
+        System.setProperty("USE_LEGACY_SHA1", "");
+        try {
+            assertThat(SignatureManager.getSigningContext(privateKey, certificate).isLegacySha1(), is(true));
+        } finally {
+            System.clearProperty("USE_LEGACY_SHA1");
+        }
+        assertThat(SignatureManager.getSigningContext(privateKey, certificate).isLegacySha1(), is(false));
+    }
+
+    /**
+     * A context is shared by several threads signing different documents.
+     * @throws Exception If a document cannot be signed.
+     */
+    @Test
+    public void testConcurrentSign() throws Exception {
+
+        final SigningContext context = new SigningContext(privateKey, certificate, false);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean valid = true;
+                        for (int i = 0; i < ITERATIONS / THREADS; i++) {
+                            Document doc = SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml");
+                            context.sign(doc);
+                            valid &= SigningCredentialCacheTest.isSignatureValid(doc, certificate);
+                        }
+
+                        return Boolean.valueOf(valid);
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(), is(Boolean.TRUE));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compares signing with a new context each time and with the context kept by SignatureManager.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void benchmarkSign() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        List<Document> docs = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            docs.clear();
+            for (int i = 0; i < 2 * ITERATIONS; i++) {
+                docs.add(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                new SigningContext(privateKey, certificate, false).sign(docs.get(i));
+            }
+            long newEach = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = ITERATIONS; i < 2 * ITERATIONS; i++) {
+                SignatureManager.signDocument(docs.get(i), privateKey, certificate);
+            }
+            long reused = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + ITERATIONS + " signatures. New context: " + newEach / 1000000
+                + " ms. Reused context: " + reused / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Returns the signature method algorithm of the given signed document.
+     * @param doc Signed document.
+     * @return Signature method algorithm.
+     */
+    private static String getSignatureMethod(final Document doc) {
+        Element method = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "SignatureMethod").item(0);
+        return method.getAttribute("Algorithm");
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import es.ree.eemws.core.utils.Benchmarks;
+
+/**
+ * Test class for SigningCredentialCache.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.0 17/10/2016
+ */
+public final class SigningCredentialCacheTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(SigningCredentialCacheTest.class);
+
+    /** Test keystore type. */
+    static final String KEY_STORE_TYPE = "PKCS12";
+
+    /** Test keystore file name (certificate valid until 2126). */
+    static final String KEY_STORE_FILE = "test-signing.p12";
+
+    /** Test keystore password. */
+    static final String KEY_STORE_PASSWORD = "testtest";
+
+    /** Signatures made in the benchmark. */
+    private static final int ITERATIONS = 50;
+
+    /** Copy of the test key store (so its modification time can be changed). */
+    private File keyStore;
+
+    /**
+     * Sets the system key store to a copy of the test key store.
+     * @throws Exception If the key store cannot be copied.
+     */
+    @Before
+    public void setup() throws Exception {
+
+        keyStore = File.createTempFile("signing", ".p12");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(KEY_STORE_FILE)) {
+            Files.copy(in, keyStore.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        System.setProperty("javax.net.ssl.keyStore", keyStore.getAbsolutePath());
+        System.setProperty("javax.net.ssl.keyStoreType", KEY_STORE_TYPE);
+        System.setProperty("javax.net.ssl.keyStorePassword", KEY_STORE_PASSWORD);
+    }
+
+    /**
+     * Removes the key store copy.
+     */
+    @After
+    public void tearDown() {
+
+        SigningCredentialCache.invalidate();
+        keyStore.delete();
+    }
+
+    /**
+     * The key store is loaded once and again only when it changes.
+     * @throws Exception If the key store cannot be loaded.
+     */
+    @Test
+    public void testReload() throws Exception {
+
+        SigningCredentialCache.invalidate();
+        long reloads = SigningCredentialCache.getReloads();
+
+        SigningCredential credential = SigningCredentialCache.getDefault();
+        logger.debug("Credential: " + credential);
+        assertThat(SigningCredentialCache.getDefault() == credential, is(true));
+        assertThat(SigningCredentialCache.getReloads(), is(reloads + 1));
+
+        logger.debug("Key store file modified");
+        assertThat(keyStore.setLastModified(keyStore.lastModified() - 10000), is(true));
+        SigningCredential reloaded = SigningCredentialCache.getDefault();
+        assertThat(reloaded == credential, is(false));
+        assertThat(reloaded.getCertificate(), is(credential.getCertificate()));
+        assertThat(SigningCredentialCache.getDefault() == reloaded, is(true));
+        assertThat(SigningCredentialCache.getReloads(), is(reloads + 2));
+
+        logger.debug("Key store password changed");
+        System.setProperty("javax.net.ssl.keyStorePassword", "wrong");
+        try {
+            SigningCredentialCache.getDefault();
+            fail("Key store loaded with a wrong password");
+        } catch (SignatureManagerException e) {
+            logger.debug("Expected: " + e.getMessage());
+        }
+        assertThat(SigningCredentialCache.getReloads(), is(reloads + 3));
+    }
+
+    /**
+     * Documents are signed with the cached credential.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testSignDocument() throws Exception {
+
+        Document doc = getDocumentFromFile("signature-test-1.xml");
+        SignatureManager.signDocument(doc);
+
+        X509Certificate cert = SigningCredentialCache.getDefault().getCertificate();
+        assertThat(isSignatureValid(doc, cert), is(true));
+    }
+
+    /**
+     * Compares signing with the cached credential and loading the key store for each signature.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void benchmarkSignDocument() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                SigningCredentialCache.invalidate();
+                SignatureManager.signDocument(getDocumentFromFile("signature-test-1.xml"));
+            }
+            long loadEach = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                SignatureManager.signDocument(getDocumentFromFile("signature-test-1.xml"));
+            }
+            long cached = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + ITERATIONS + " signatures. Loading key store each time: " + loadEach / 1000000
+                + " ms. Cached credential: " + cached / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Validates the signature of the given document with the public key of the given certificate (the certificate
+     * trust is not checked).
+     * @param doc Signed document.
+     * @param cert Signer certificate.
+     * @return <code>true</code> if the signature and its references are valid.
+     * @throws Exception If the signature cannot be read.
+     */
+    static boolean isSignatureValid(final Document doc, final X509Certificate cert) throws Exception {
+
+        Node signatureNode = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0);
+        DOMValidateContext valContext = new DOMValidateContext(cert.getPublicKey(), signatureNode);
+        XMLSignature signature = XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(valContext);
+
+        return signature.validate(valContext);
+    }
+
+    /**
+     * Returns a Document object given its file name.
+     * @param fileName The file name of the document to be retrieved.
+     * @return A Document object.
+     * @throws Exception If the document is not an xml or cannot be read.
+     */
+    static Document getDocumentFromFile(final String fileName) throws Exception {
+
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        try (InputStream in = SigningCredentialCacheTest.class.getClassLoader().getResourceAsStream(fileName)) {
+            return dBuilder.parse(in);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.XMLUtil;
+
+/**
+ * Test class for the streaming signature verification: its results must be the ones of the DOM verification.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class StreamingSignatureVerifierTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(StreamingSignatureVerifierTest.class);
+
+    /** Document with the constructions handled by the canonicalization (namespaces, attributes, escaping...). */
+    static final String CANONICALIZATION_DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<?before-root data?>\n<!-- comment before root -->\n"
+        + "<msg:RequestMessage xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\" xmlns:b=\"urn:b\" xmlns:a=\"urn:a\" xml:lang=\"es\">\r\n"
+        + "  <msg:Header xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\" xml:space=\"preserve\">\n"
+        + "    <msg:Verb>create</msg:Verb>\n    <msg:Noun>Test</msg:Noun>\n"
+        + "  </msg:Header>\n"
+        + "  <msg:Payload>\n"
+        + "    <Data xmlns=\"urn:data\" z=\"1\" b:y=\"2\" a:x=\"3\" a=\"4\">\n"
+        + "      <Empty/>\n"
+        + "      <NoNameSpace xmlns=\"\"><Inner xmlns=\"\" attr='&lt;&amp;&gt;&quot;&#9;&#10;&#13; \t'/></NoNameSpace>\n"
+        + "      <Text>a &amp; b &lt; c &gt; d &#13; <![CDATA[<cdata> & ]]> ñ € 😀</Text>\n"
+        + "      <?inside data?><!-- comment -->\n"
+        + "      <c:Other xmlns:c=\"urn:c\" xmlns:a=\"urn:a\" xml:lang=\"en\"><c:In xmlns:c=\"urn:c2\"/></c:Other>\n"
+        + "    </Data>\n"
+        + "  </msg:Payload>\n"
+        + "</msg:RequestMessage>\n"
+        + "<!-- comment after root --><?after-root?>\n";
+
+    /** Test private key. */
+    private static PrivateKey privateKey;
+
+    /** Test certificate. */
+    private static X509Certificate certificate;
+
+    /**
+     * Loads the test key and certificate.
+     * @throws Exception If the test key store cannot be read.
+     */
+    @BeforeClass
+    public static void loadKey() throws Exception {
+
+        KeyStore ks = KeyStore.getInstance(SigningCredentialCacheTest.KEY_STORE_TYPE);
+        try (InputStream in = StreamingSignatureVerifierTest.class.getClassLoader().getResourceAsStream(SigningCredentialCacheTest.KEY_STORE_FILE)) {
+            ks.load(in, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        }
+
+        String alias = ks.aliases().nextElement();
+        privateKey = (PrivateKey) ks.getKey(alias, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        certificate = (X509Certificate) ks.getCertificate(alias);
+    }
+
+    /**
+     * A signed message has the same result with both verifications.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testSignedMessage() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        assertSameResult(signed);
+        assertValidSignature(signed);
+    }
+
+    /**
+     * The canonical form of the stream is the one of the DOM signature.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testCanonicalization() throws Exception {
+
+        String signed = sign(XMLUtil.string2Document(CANONICALIZATION_DOCUMENT));
+        assertSameResult(signed);
+        assertValidSignature(signed);
+    }
+
+    /**
+     * A modified payload and a modified signed info are detected, with the same details.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testTamperedMessage() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+
+        String tampered = signed.replace("schedules_i7_REE_20140326", "schedules_i7_REE_20140327");
+        assertSameResult(tampered);
+        SignatureVerificationException sve = verifyStreamFailure(tampered);
+        assertThat(sve.getDetails().isSignatureValid(), is(true));
+        assertThat(sve.getDetails().isRefereceValid(0), is(Boolean.FALSE));
+
+        tampered = signed.replace("<DigestValue>", "<DigestValue>AAAA");
+        assertSameResult(tampered);
+        sve = verifyStreamFailure(tampered);
+        assertThat(sve.getDetails().isSignatureValid(), is(false));
+        assertThat(sve.getDetails().isRefereceValid(0), is(Boolean.FALSE));
+    }
+
+    /**
+     * Values out of their place in the signature (i.e. inside an <code>Object</code>) are ignored: a payload modified
+     * with the digest of the modified document in a decoy reference is detected.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testDecoyReference() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String modified = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"))
+            .replace("schedules_i7_REE_20140326", "schedules_i7_REE_20140327");
+        String modifiedDigest = getElementText(sign(XMLUtil.string2Document(modified)), "DigestValue");
+
+        String tampered = signed.replace("schedules_i7_REE_20140326", "schedules_i7_REE_20140327")
+            .replace("</Signature>", "<Object><Reference URI=\"\"><DigestValue>" + modifiedDigest + "</DigestValue></Reference></Object></Signature>");
+        assertSameResult(tampered);
+        SignatureVerificationException sve = verifyStreamFailure(tampered);
+        assertThat(sve.getDetails().isSignatureValid(), is(true));
+        assertThat(sve.getDetails().isRefereceValid(0), is(Boolean.FALSE));
+
+        tampered = signed.replace("</Signature>", "<Object><X509Data><X509Certificate>AAAA</X509Certificate></X509Data></Object></Signature>");
+        assertValidSignature(tampered);
+    }
+
+    /**
+     * Repeated signature values are rejected.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testRepeatedValues() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String digest = getElementText(signed, "DigestValue");
+        String cert = getElementText(signed, "X509Certificate");
+
+        assertSyntaxError(signed.replace("</DigestValue>", "</DigestValue><DigestValue>" + digest + "</DigestValue>"));
+        assertSyntaxError(signed.replace("</X509Certificate>", "</X509Certificate><X509Certificate>" + cert + "</X509Certificate>"));
+        assertSyntaxError(signed.replace("</X509Data>", "</X509Data><X509Data><X509Certificate>" + cert + "</X509Certificate></X509Data>"));
+    }
+
+    /**
+     * The signature must be in the message header.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testSignatureOutOfHeader() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String signature = signed.substring(signed.indexOf("<Signature "), signed.indexOf("</Signature>") + "</Signature>".length());
+        String moved = signed.replace(signature, "").replace("</msg:Payload>", signature + "</msg:Payload>");
+        assertThat(moved.contains(signature), is(true));
+
+        SignatureVerificationException sve = verifyStreamFailure(moved);
+        assertThat(sve.getMessage(), is(Messages.getString("SECURITY_INVALID_DOCUMENT_NO_HEADER", "Signature", XMLSignature.XMLNS)));
+    }
+
+    /**
+     * A DTD changes the document the DOM parser gives (attribute defaults, entities) but not the streamed one,
+     * so documents with a DTD are rejected.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testTamperedDTD() throws Exception {
+
+        String signed = sign(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String tampered = "<!DOCTYPE RequestMessage [<!ATTLIST MessageIdentification evil CDATA \"injected\">]>\n" + signed;
+        assertThat(XMLUtil.document2String(XMLUtil.string2Document(tampered)).contains("evil=\"injected\""), is(true));
+
+        try {
+            SignatureManager.verifyStream(toStream(tampered));
+            fail("Document with DTD verified.");
+        } catch (SignatureSyntaxException e) {
+            assertThat(e.getMessage(), is(Messages.getString("SECURITY_SIGNATURE_DTD_NOT_SUPPORTED")));
+        }
+    }
+
+    /**
+     * Documents without signature or not well formed have the same result with both verifications.
+     * @throws Exception If the test document cannot be read.
+     */
+    @Test
+    public void testInvalidDocuments() throws Exception {
+
+        assertSameResult(XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml")));
+        assertSameResult("<RequestMessage><Header></RequestMessage>");
+    }
+
+    /**
+     * Signatures with other algorithms are not supported.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void testUnsupportedProfile() throws Exception {
+
+        Document doc = SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml");
+        new SigningContext(privateKey, certificate, true).sign(doc);
+        try {
+            SignatureManager.verifyStream(toStream(XMLUtil.document2String(doc)));
+            fail("SHA-1 signature must not be verified.");
+        } catch (SignatureSyntaxException e) {
+            logger.debug("Expected exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the DOM and the streaming verification of a big message.
+     * @throws Exception If the document cannot be signed.
+     */
+    @Test
+    public void benchmarkVerify() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            payload.append("<Interval><Pos v=\"").append(i).append("\"/><Qty v=\"").append(i * 7).append(".5\"/></Interval>\n");
+        }
+        String message = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"))
+            .replace("<ScheduleTimeSeries>", "<ScheduleTimeSeries>" + payload);
+        String signed = sign(XMLUtil.string2Document(message));
+        assertValidSignature(signed);
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            getResult(signed, false);
+            long dom = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            getResult(signed, true);
+            long stream = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + signed.length() + " chars. DOM: " + dom / 1000000 + " ms. Stream: " + stream / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Signs the given document with the test key.
+     * @param doc Document to sign.
+     * @return Signed document as String.
+     * @throws Exception If the document cannot be signed.
+     */
+    private static String sign(final Document doc) throws Exception {
+        new SigningContext(privateKey, certificate, false).sign(doc);
+        return XMLUtil.document2String(doc);
+    }
+
+    /**
+     * Checks that the signature and its reference are valid for the streaming verification (the test
+     * certificate is not trusted, so the certificate result depends on the trust store).
+     * @param signed Signed document.
+     */
+    private static void assertValidSignature(final String signed) {
+        try {
+            assertThat(SignatureManager.verifyStream(toStream(signed)), is(certificate));
+        } catch (SignatureVerificationException e) {
+            assertThat(e.getDetails().isSignatureValid(), is(true));
+            assertThat(e.getDetails().isRefereceValid(0), is(Boolean.TRUE));
+            assertThat(e.getDetails().getSignatureCertificate(), is(certificate));
+        } catch (SignatureSyntaxException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the streaming verification rejects the given document as a syntax error.
+     * @param xml Document to verify.
+     */
+    private void assertSyntaxError(final String xml) {
+        try {
+            SignatureManager.verifyStream(toStream(xml));
+            fail("Verification must fail.");
+        } catch (SignatureVerificationException e) {
+            fail(e.getMessage());
+        } catch (SignatureSyntaxException e) {
+            logger.debug("Expected exception: " + e.getMessage());
+            assertThat(e.getMessage(), is(Messages.getString("SECURITY_SIGNATURE_SYNTAX_ERROR")));
+        }
+    }
+
+    /**
+     * Returns the text of the first element with the given name.
+     * @param xml Document.
+     * @param tag Element name (without prefix).
+     * @return Element text.
+     */
+    private static String getElementText(final String xml, final String tag) {
+        int start = xml.indexOf("<" + tag + ">") + tag.length() + 2;
+        return xml.substring(start, xml.indexOf("</" + tag + ">", start));
+    }
+
+    /**
+     * Checks that both verifications have the same result.
+     * @param xml Document to verify.
+     */
+    private void assertSameResult(final String xml) {
+        String dom = getResult(xml, false);
+        String stream = getResult(xml, true);
+        logger.debug("Result: " + stream);
+        assertThat(stream, is(dom));
+    }
+
+    /**
+     * Verifies the given document and returns its result: certificate, exception message and details.
+     * @param xml Document to verify.
+     * @param streaming <code>true</code> to use the streaming verification, <code>false</code> to use the DOM one.
+     * @return Verification result.
+     */
+    private static String getResult(final String xml, final boolean streaming) {
+        String retValue;
+        try {
+            X509Certificate x509;
+            if (streaming) {
+                x509 = SignatureManager.verifyStream(toStream(xml));
+            } else {
+                x509 = SignatureManager.verifyString(new StringBuilder(xml));
+            }
+            retValue = "Valid " + x509.getSubjectX500Principal();
+        } catch (SignatureVerificationException e) {
+            retValue = e.getMessage() + " " + e.getDetails();
+        } catch (SignatureSyntaxException e) {
+            retValue = e.getMessage();
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Verifies the given document with the streaming verification, which must fail.
+     * @param xml Document to verify.
+     * @return Verification exception.
+     */
+    private static SignatureVerificationException verifyStreamFailure(final String xml) {
+        SignatureVerificationException retValue = null;
+        try {
+            SignatureManager.verifyStream(toStream(xml));
+            fail("Verification must fail.");
+        } catch (SignatureVerificationException e) {
+            retValue = e;
+        } catch (SignatureSyntaxException e) {
+            fail(e.getMessage());
+        }
+
+        return retValue;
+    }
+
+    /**
+     * Returns the UTF-8 bytes of the given document as a stream.
+     * @param xml Document.
+     * @return Document stream.
+     */
+    private static InputStream toStream(final String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.security;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.file.FileUtil;
+import es.ree.eemws.core.utils.i18n.Messages;
+import es.ree.eemws.core.utils.xml.XMLUtil;
+
+/**
+ * Test class for the streaming signature: signed messages must be verified by the DOM verification.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.1 17/10/2016
+ */
+public final class StreamingSignerTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(StreamingSignerTest.class);
+
+    /** UTF-8 byte order mark. */
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    /** Test signing context. */
+    private static SigningContext context;
+
+    /** Test certificate. */
+    private static X509Certificate certificate;
+
+    /**
+     * Loads the test key and certificate.
+     * @throws Exception If the test key store cannot be read.
+     */
+    @BeforeClass
+    public static void loadKey() throws Exception {
+
+        KeyStore ks = KeyStore.getInstance(SigningCredentialCacheTest.KEY_STORE_TYPE);
+        try (InputStream in = StreamingSignerTest.class.getClassLoader().getResourceAsStream(SigningCredentialCacheTest.KEY_STORE_FILE)) {
+            ks.load(in, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray());
+        }
+
+        String alias = ks.aliases().nextElement();
+        certificate = (X509Certificate) ks.getCertificate(alias);
+        context = new SigningContext((PrivateKey) ks.getKey(alias, SigningCredentialCacheTest.KEY_STORE_PASSWORD.toCharArray()), certificate, false);
+    }
+
+    /**
+     * A message signed while streamed is verified by the DOM verification and the rest of the message is not modified.
+     * @throws Exception If the message cannot be signed.
+     */
+    @Test
+    public void testSignMessage() throws Exception {
+
+        String message = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String signed = sign(message.getBytes(StandardCharsets.UTF_8));
+        assertVerified(signed);
+
+        int signatureStart = signed.indexOf("<Signature ");
+        int signatureEnd = signed.indexOf("</Signature>") + "</Signature>".length();
+        assertThat(signed.substring(0, signatureStart) + signed.substring(signatureEnd), is(message));
+        assertThat(signed.substring(signatureEnd).startsWith("</msg:Header>"), is(true));
+    }
+
+    /**
+     * The canonical form digested while streaming is the one of the DOM verification (namespaces, attributes,
+     * escaping, xml attributes in scope of the signature...).
+     * @throws Exception If the message cannot be signed.
+     */
+    @Test
+    public void testCanonicalization() throws Exception {
+
+        assertVerified(sign(StreamingSignatureVerifierTest.CANONICALIZATION_DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * A mapped file (with byte order mark) is signed without modifying the buffer.
+     * @throws Exception If the message cannot be signed.
+     */
+    @Test
+    public void testMappedFile() throws Exception {
+
+        File file = File.createTempFile("streaming-signer", ".xml");
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            content.write(UTF8_BOM);
+            content.write(StreamingSignatureVerifierTest.CANONICALIZATION_DOCUMENT.getBytes(StandardCharsets.UTF_8));
+            FileUtil.write(file.getAbsolutePath(), content.toByteArray());
+
+            ByteBuffer mapped = FileUtil.mapUTF8(file.getAbsolutePath());
+            int position = mapped.position();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            context.sign(mapped, out);
+            assertThat(mapped.position(), is(position));
+            assertVerified(new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Messages without IEC 61968-100 header or with another header before it cannot be signed.
+     * @throws Exception If the test message cannot be read.
+     */
+    @Test
+    public void testNoHeader() throws Exception {
+
+        String message = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String soap = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Header><Id>1</Id></soapenv:Header>"
+            + "<soapenv:Body>" + message + "</soapenv:Body></soapenv:Envelope>";
+        String noHeader = message.replace("msg:Header", "msg:Heading");
+
+        for (String invalid : new String[] {soap, noHeader, "<RequestMessage><Header></RequestMessage>"}) {
+            try {
+                sign(invalid.getBytes(StandardCharsets.UTF_8));
+                fail("Message must not be signed.");
+            } catch (SignatureManagerException e) {
+                logger.debug("Expected exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Messages with a DTD cannot be signed: their DOM would not match the streamed message.
+     * @throws Exception If the test message cannot be read.
+     */
+    @Test
+    public void testDTD() throws Exception {
+
+        String message = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"));
+        String withDTD = "<!DOCTYPE RequestMessage [<!ATTLIST MessageIdentification evil CDATA \"injected\">]>\n" + message;
+
+        try {
+            sign(withDTD.getBytes(StandardCharsets.UTF_8));
+            fail("Message with DTD must not be signed.");
+        } catch (SignatureManagerException e) {
+            assertThat(e.getMessage(), is(Messages.getString("SECURITY_SIGNATURE_DTD_NOT_SUPPORTED")));
+        }
+    }
+
+    /**
+     * Compares signing a big message with its DOM and while streaming it.
+     * @throws Exception If the message cannot be signed.
+     */
+    @Test
+    public void benchmarkSign() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            payload.append("<Interval><Pos v=\"").append(i).append("\"/><Qty v=\"").append(i * 7).append(".5\"/></Interval>\n");
+        }
+        String message = XMLUtil.document2String(SigningCredentialCacheTest.getDocumentFromFile("signature-test-1.xml"))
+            .replace("<ScheduleTimeSeries>", "<ScheduleTimeSeries>" + payload);
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        assertVerified(sign(bytes));
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            Document doc = XMLUtil.string2Document(message);
+            context.sign(doc);
+            XMLUtil.document2String(doc);
+            long dom = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            context.sign(ByteBuffer.wrap(bytes), new ByteArrayOutputStream(bytes.length + 4096));
+            long stream = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + bytes.length + " bytes. DOM: " + dom / 1000000 + " ms. Stream: " + stream / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Signs the given message with the test context.
+     * @param message UTF-8 encoded message.
+     * @return Signed message.
+     * @throws Exception If the message cannot be signed.
+     */
+    private static String sign(final byte[] message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.sign(ByteBuffer.wrap(message), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks that the given signed message is verified by the DOM verification (the test certificate is not
+     * trusted, so the certificate result depends on the trust store) and by the streaming verification.
+     * @param signed Signed message.
+     * @throws Exception If the message cannot be read.
+     */
+    private static void assertVerified(final String signed) throws Exception {
+        Document doc = XMLUtil.string2Document(signed);
+        assertThat(SigningCredentialCacheTest.isSignatureValid(doc, certificate), is(true));
+
+        try {
+            assertThat(SignatureManager.verifyDocument(doc), is(certificate));
+        } catch (SignatureVerificationException e) {
+            assertThat(e.getDetails().isSignatureValid(), is(true));
+            assertThat(e.getDetails().isRefereceValid(0), is(Boolean.TRUE));
+        }
+
+        try {
+            assertThat(SignatureManager.verifyStream(new ByteArrayInputStream(signed.getBytes(StandardCharsets.UTF_8))), is(certificate));
+        } catch (SignatureVerificationException e) {
+            assertThat(e.getDetails().isSignatureValid(), is(true));
+            assertThat(e.getDetails().isRefereceValid(0), is(Boolean.TRUE));
+        }
+    }
+}
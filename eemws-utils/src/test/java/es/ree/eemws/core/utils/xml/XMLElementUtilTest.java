@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import _504.iec62325.messages._1._0.MessageList;
+import _504.iec62325.messages._1._0.Parameter;
+import _504.iec62325.messages._1._0.QueryData;
+import ch.iec.tc57._2011.schema.message.FaultMessage;
+import ch.iec.tc57._2011.schema.message.RequestMessage;
+import ch.iec.tc57._2011.schema.message.ResponseMessage;
+import es.ree.eemws.core.utils.Benchmarks;
+import es.ree.eemws.core.utils.iec61968100.EnumMessageStatus;
+import es.ree.eemws.core.utils.iec61968100.MessageUtil;
+
+/**
+ * Test class for XMLElementUtil.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.4 17/10/2016
+ */
+public final class XMLElementUtilTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(XMLElementUtilTest.class);
+
+    /** Number of concurrent threads. */
+    private static final int THREADS = 64;
+
+    /** Conversions made by each thread. */
+    private static final int ITERATIONS = 200;
+
+    /** Messages of the sample list. */
+    private static final int MESSAGES = 10;
+
+    /** Marshallers created per class in the warm up. */
+    private static final int WARM_UP_INSTANCES = 4;
+
+    /** Sample request message. */
+    private static final String REQUEST = "<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">" //$NON-NLS-1$
+        + "<Header><Verb>get</Verb><Noun>MessageList</Noun></Header>" //$NON-NLS-1$
+        + "<Request><Option><name>IntervalType</name><value>Server</value></Option></Request>" //$NON-NLS-1$
+        + "</RequestMessage>"; //$NON-NLS-1$
+
+    /**
+     * Concurrent conversions reuse the pooled marshallers: new ones are only created while all of them are in use.
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void testMarshallerPool() throws Exception {
+        final MessageList list = new MessageList();
+        for (int cont = 0; cont < MESSAGES; cont++) {
+            MessageList.Message msg = new MessageList.Message();
+            msg.setCode(BigInteger.valueOf(cont));
+            msg.setMessageIdentification("message_" + cont); //$NON-NLS-1$
+            msg.setType("A01"); //$NON-NLS-1$
+            list.getMessages().add(msg);
+        }
+
+        XMLObjectPool<Marshaller, JAXBException> marshallers = XMLElementUtil.getMarshallerPool(MessageList.class);
+        XMLObjectPool<Unmarshaller, JAXBException> unmarshallers = XMLElementUtil.getUnmarshallerPool(MessageList.class);
+        long marshallerUses = marshallers.getHits() + marshallers.getMisses();
+        long unmarshallerUses = unmarshallers.getHits() + unmarshallers.getMisses();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int retValue = 0;
+                        for (int cont = 0; cont < ITERATIONS; cont++) {
+                            MessageList copy = (MessageList) XMLElementUtil.element2Obj(XMLElementUtil.obj2Element(list), MessageList.class);
+                            retValue += copy.getMessages().size();
+                        }
+
+                        return retValue;
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results) {
+                assertThat(result.get(), is(ITERATIONS * MESSAGES));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        logger.debug("Marshaller pool " + marshallers + " unmarshaller pool " + unmarshallers); //$NON-NLS-1$ //$NON-NLS-2$
+        assertThat(marshallers.getHits() + marshallers.getMisses() - marshallerUses, is((long) THREADS * ITERATIONS));
+        assertThat(unmarshallers.getHits() + unmarshallers.getMisses() - unmarshallerUses, is((long) THREADS * ITERATIONS));
+        assertThat(marshallers.getMisses() <= THREADS, is(true));
+        assertThat(unmarshallers.getMisses() <= THREADS, is(true));
+        assertThat(marshallers.getIdle() <= marshallers.getSize(), is(true));
+    }
+
+    /**
+     * The warm up builds the contexts and fills the pools, so the first request only converts the message.
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        XMLElementUtil.warmUp(WARM_UP_INSTANCES);
+
+        assertThat(XMLElementUtil.getMarshallerPool(RequestMessage.class).getIdle() >= WARM_UP_INSTANCES, is(true));
+        assertThat(XMLElementUtil.getUnmarshallerPool(QueryData.class).getIdle() >= WARM_UP_INSTANCES, is(true));
+
+        RequestMessage request = (RequestMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(REQUEST), RequestMessage.class);
+        assertThat(request.getHeader().getNoun(), is("MessageList")); //$NON-NLS-1$
+    }
+
+    /**
+     * Logs the time of building one context per class (previous behavior), one context per package, the warm up and the first request.
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void benchmarkWarmUp() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        long start = System.nanoTime();
+        for (Class<?> classType : Arrays.<Class<?>>asList(RequestMessage.class, ResponseMessage.class, FaultMessage.class, MessageList.class, QueryData.class)) {
+            JAXBContext.newInstance(classType);
+        }
+        long perClassTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        JAXBContext.newInstance(ch.iec.tc57._2011.schema.message.ObjectFactory.class);
+        JAXBContext.newInstance(_504.iec62325.messages._1._0.ObjectFactory.class);
+        long perPackageTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        XMLElementUtil.warmUp(WARM_UP_INSTANCES);
+        long warmUpTime = System.nanoTime() - start;
+
+        assertThat(XMLElementUtil.getMarshallerPool(RequestMessage.class).getIdle() >= WARM_UP_INSTANCES, is(true));
+        assertThat(XMLElementUtil.getUnmarshallerPool(QueryData.class).getIdle() >= WARM_UP_INSTANCES, is(true));
+
+        start = System.nanoTime();
+        RequestMessage request = (RequestMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(REQUEST), RequestMessage.class);
+        long firstRequestTime = System.nanoTime() - start;
+        assertThat(request.getHeader().getNoun(), is("MessageList")); //$NON-NLS-1$
+
+        logger.debug("benchmarkWarmUp [one context per class=" + perClassTime / 1000000 + " ms][one context per package=" + perPackageTime / 1000000 //$NON-NLS-1$ //$NON-NLS-2$
+            + " ms][warm up=" + warmUpTime / 1000000 + " ms][first request after warm up=" + firstRequestTime / 1000000 + " ms]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * Messages are marshalled as with a context per class: only the namespace of the message package is declared.
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void testMarshalledNameSpaces() throws Exception {
+        RequestMessage request = (RequestMessage) XMLElementUtil.element2Obj(XMLElementUtil.string2Element(REQUEST), RequestMessage.class);
+        ResponseMessage response = MessageUtil.createResponseWithNoPayload(EnumMessageStatus.OK);
+        FaultMessage fault = new FaultMessage();
+        fault.setReply(response.getReply());
+
+        MessageList list = new MessageList();
+        MessageList.Message msg = new MessageList.Message();
+        msg.setCode(BigInteger.ONE);
+        msg.setMessageIdentification("message_1"); //$NON-NLS-1$
+        list.getMessages().add(msg);
+
+        QueryData query = new QueryData();
+        query.setRequestParameters(new QueryData.RequestParameters());
+        Parameter parameter = new Parameter();
+        parameter.setName("name"); //$NON-NLS-1$
+        parameter.setValue("value"); //$NON-NLS-1$
+        query.getRequestParameters().getParameters().add(parameter);
+
+        for (Object obj : Arrays.asList(request, response, fault, list, query)) {
+            Marshaller perClass = JAXBContext.newInstance(obj.getClass()).createMarshaller();
+            perClass.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            StringBuilderWriter expected = new StringBuilderWriter(new StringBuilder());
+            perClass.marshal(obj, expected);
+
+            String xml = XMLElementUtil.object2StringBuilder(obj).toString();
+            logger.debug("testMarshalledNameSpaces " + xml); //$NON-NLS-1$
+            assertThat(xml, is(expected.toString()));
+        }
+
+        assertThat(XMLElementUtil.object2StringBuilder(request).toString(), is(REQUEST));
+        assertThat(XMLElementUtil.object2StringBuilder(list).toString(), is("<MessageList xmlns=\"urn:iec62325.504:messages:1:0\">" //$NON-NLS-1$
+            + "<Message><Code>1</Code><MessageIdentification>message_1</MessageIdentification></Message></MessageList>")); //$NON-NLS-1$
+    }
+
+    /**
+     * Objects are written as UTF-8 bytes to a stream and as characters to a builder, whatever the platform charset is.
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void testObject2OutputStream() throws Exception {
+        MessageList list = createList();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLElementUtil.object2OutputStream(list, out);
+        String xml = XMLElementUtil.object2StringBuilder(list).toString();
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8), is(xml));
+        assertThat(xml.contains("Red Eléctrica de España €0"), is(true)); //$NON-NLS-1$
+        assertThat(xml.startsWith("<?xml"), is(false)); //$NON-NLS-1$
+    }
+
+    /**
+     * Logs the time of the previous conversion of an object (bytes decoded with the platform charset and copied) and
+     * of the current ones (to a builder and to a stream).
+     * @throws Exception If a conversion fails.
+     */
+    @Test
+    public void benchmarkObject2OutputStream() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        MessageList list = createList();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            Marshaller marshaller = XMLElementUtil.getMarshallerPool(MessageList.class).borrow();
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            marshaller.marshal(list, legacy);
+            XMLElementUtil.getMarshallerPool(MessageList.class).release(marshaller);
+            StringBuilder legacyXml = new StringBuilder(legacy.toString());
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            StringBuilder sb = XMLElementUtil.object2StringBuilder(list);
+            long builderTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            out.reset();
+            XMLElementUtil.object2OutputStream(list, out);
+            long streamTime = System.nanoTime() - start;
+
+            logger.debug("benchmarkObject2OutputStream [chars=" + sb.length() + " (legacy " + legacyXml.length() + ")][legacy bytes + decode + copy=" + legacyTime / 1000000 //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                + " ms][object2StringBuilder=" + builderTime / 1000000 + " ms][object2OutputStream=" + streamTime / 1000000 + " ms]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+    }
+
+    /**
+     * Creates a message list with non ASCII characters.
+     * @return Message list.
+     */
+    private static MessageList createList() {
+        MessageList retValue = new MessageList();
+        for (int cont = 0; cont < MESSAGES * ITERATIONS; cont++) {
+            MessageList.Message msg = new MessageList.Message();
+            msg.setCode(BigInteger.valueOf(cont + 1));
+            msg.setMessageIdentification("Red Eléctrica de España €" + cont); //$NON-NLS-1$
+            retValue.getMessages().add(msg);
+        }
+
+        return retValue;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Red Eléctrica de España, S.A.U.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation, version 3 of the license.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTIBIILTY or FITNESS FOR A PARTICULAR PURPOSE. See GNU Lesser General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * Any redistribution and/or modification of this program has to make
+ * reference to Red Eléctrica de España, S.A.U. as the copyright owner of
+ * the program.
+ */
+package es.ree.eemws.core.utils.xml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import ch.iec.tc57._2011.schema.message.RequestMessage;
+
+import es.ree.eemws.core.utils.Benchmarks;
+
+/**
+ * Test class for XMLSchemaRegistry.
+ *
+ * @author Red Eléctrica de España S.A.U.
+ * @version 1.2 17/10/2016
+ */
+public final class XMLSchemaRegistryTest {
+
+    /** Logger messages. */
+    private final Logger logger = LoggerFactory.getLogger(XMLSchemaRegistryTest.class);
+
+    /** Validations made in the benchmark. */
+    private static final int ITERATIONS = 200;
+
+    /** Sample request message. */
+    private static final String REQUEST = "<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">" //$NON-NLS-1$
+        + "<Header><Verb>get</Verb><Noun>MessageList</Noun></Header>" //$NON-NLS-1$
+        + "<Request><Option><name>IntervalType</name><value>Server</value></Option></Request>" //$NON-NLS-1$
+        + "</RequestMessage>"; //$NON-NLS-1$
+
+    /** Sample request message, not valid (unknown element). */
+    private static final String INVALID_REQUEST = "<RequestMessage xmlns=\"http://iec.ch/TC57/2011/schema/message\">" //$NON-NLS-1$
+        + "<Header><Verb>get</Verb><Noun>MessageList</Noun><Unknown/></Header>" //$NON-NLS-1$
+        + "</RequestMessage>"; //$NON-NLS-1$
+
+    /**
+     * The schema is compiled once and validates all the supported sources.
+     * @throws Exception If the message cannot be validated.
+     */
+    @Test
+    public void testValidate() throws Exception {
+
+        String schemaFile = XMLSchemaRegistry.IEC_61968_100_SCHEMA;
+        Schema schema = XMLSchemaRegistry.getSchema(schemaFile);
+        long misses = XMLSchemaRegistry.getMisses();
+        long hits = XMLSchemaRegistry.getHits();
+
+        XMLSchemaRegistry.validate(schemaFile, new StringBuilder(REQUEST));
+        XMLSchemaRegistry.validate(schemaFile, new ByteArrayInputStream(REQUEST.getBytes(StandardCharsets.UTF_8)));
+        XMLSchemaRegistry.validate(schemaFile, new DOMSource(XMLUtil.string2Document(REQUEST)));
+        XMLSchemaRegistry.validate(schemaFile, new StAXSource(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(REQUEST))));
+
+        assertThat(XMLSchemaRegistry.getSchema(schemaFile) == schema, is(true));
+        assertThat(XMLSchemaRegistry.getMisses(), is(misses));
+        assertThat(XMLSchemaRegistry.getHits() > hits, is(true));
+
+        XMLObjectPool<Validator, SAXException> pool = XMLSchemaRegistry.getValidatorPool(schemaFile);
+        logger.debug("Validator pool: " + pool);
+        assertThat(pool.getHits() >= 3, is(true));
+
+        logger.debug("Messages schema");
+        XMLSchemaRegistry.getSchema(XMLSchemaRegistry.IEC_62325_504_SCHEMA);
+    }
+
+    /**
+     * Invalid documents and unknown schemas are reported.
+     * @throws Exception If the test cannot be run.
+     */
+    @Test
+    public void testInvalid() throws Exception {
+
+        try {
+            XMLSchemaRegistry.validate(XMLSchemaRegistry.IEC_61968_100_SCHEMA, new StringBuilder(INVALID_REQUEST));
+            fail("Invalid message accepted");
+        } catch (SAXException e) {
+            logger.debug("Rejected: " + e.getMessage());
+        }
+
+        logger.debug("The validator is reusable after an error");
+        XMLSchemaRegistry.validate(XMLSchemaRegistry.IEC_61968_100_SCHEMA, new StringBuilder(REQUEST));
+
+        try {
+            XMLSchemaRegistry.getSchema("unknown.xsd");
+            fail("Unknown schema found");
+        } catch (FileNotFoundException e) {
+            logger.debug("Not found: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One pass parse and unmarshal give the validated document.
+     * @throws Exception If the message cannot be parsed.
+     */
+    @Test
+    public void testParseAndValidate() throws Exception {
+
+        String schemaFile = XMLSchemaRegistry.IEC_61968_100_SCHEMA;
+        Document doc = XMLSchemaRegistry.parse(schemaFile, new InputSource(new CharSequenceReader(new StringBuilder(REQUEST))));
+        assertThat(doc.getDocumentElement().getLocalName(), is("RequestMessage"));
+        assertThat(doc.getDocumentElement().getNamespaceURI(), is("http://iec.ch/TC57/2011/schema/message"));
+        assertThat(XMLUtil.document2String(doc), is(XMLUtil.document2String(XMLUtil.string2Document(REQUEST))));
+
+        RequestMessage request = (RequestMessage) XMLSchemaRegistry.unmarshal(schemaFile,
+                new InputSource(new CharSequenceReader(new StringBuilder(REQUEST))), RequestMessage.class);
+        assertThat(request.getHeader().getNoun(), is("MessageList"));
+        assertThat(request.getRequest().getOptions().get(0).getValue(), is("Server"));
+
+        for (String invalid : new String[] {INVALID_REQUEST, "<RequestMessage>"}) {
+            try {
+                XMLSchemaRegistry.parse(schemaFile, new InputSource(new StringReader(invalid)));
+                fail("Invalid message parsed");
+            } catch (SAXException e) {
+                logger.debug("Rejected: " + e.getMessage());
+            }
+            try {
+                XMLSchemaRegistry.unmarshal(schemaFile, new InputSource(new StringReader(invalid)), RequestMessage.class);
+                fail("Invalid message unmarshalled");
+            } catch (SAXException e) {
+                logger.debug("Rejected: " + e.getMessage());
+            }
+        }
+
+        logger.debug("Handlers are reused after an error");
+        XMLSchemaRegistry.parse(schemaFile, new InputSource(new StringReader(REQUEST)));
+        logger.debug("Validator handler pool: " + XMLSchemaRegistry.getValidatorHandlerPool(schemaFile));
+        logger.debug("SAX parser pool: " + XMLEngine.getSAXParserPool());
+    }
+
+    /**
+     * Compares validating and then parsing (two passes) with parsing and validating in one pass.
+     * @throws Exception If the message cannot be parsed.
+     */
+    @Test
+    public void benchmarkParseAndValidate() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder request = new StringBuilder(REQUEST);
+        String schemaFile = XMLSchemaRegistry.IEC_61968_100_SCHEMA;
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                XMLSchemaRegistry.validate(schemaFile, request);
+                XMLUtil.string2Document(request);
+            }
+            long twoPasses = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                XMLSchemaRegistry.parse(schemaFile, new InputSource(new CharSequenceReader(request)));
+            }
+            long onePass = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + ITERATIONS + " messages. Validate and parse: " + twoPasses / 1000000
+                + " ms. One pass: " + onePass / 1000000 + " ms.");
+        }
+    }
+
+    /**
+     * Compares validating with the registry and compiling the schema for each message.
+     * @throws Exception If the message cannot be validated.
+     */
+    @Test
+    public void benchmarkValidate() throws Exception {
+        Benchmarks.assumeEnabled();
+
+        StringBuilder request = new StringBuilder(REQUEST);
+        URL schemaUrl = XMLSchemaRegistry.getSchemaURL(XMLSchemaRegistry.IEC_61968_100_SCHEMA);
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaUrl);
+                Validator validator = schema.newValidator();
+                validator.validate(new StreamSource(new StringReader(request.toString())));
+            }
+            long compileEach = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                XMLSchemaRegistry.validate(XMLSchemaRegistry.IEC_61968_100_SCHEMA, request);
+            }
+            long registry = System.nanoTime() - start;
+
+            logger.debug("Round " + round + ": " + ITERATIONS + " validations. Compiling each time: " + compileEach / 1000000
+                + " ms. Registry: " + registry / 1000000 + " ms.");
+        }
+    }
+}
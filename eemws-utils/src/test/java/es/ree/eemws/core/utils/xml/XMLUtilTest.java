@@ -23,9 +23,38 @@ package es.ree.eemws.core.utils.xml;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import es.ree.eemws.core.utils.Benchmarks;
 
 
 /**
@@ -47,6 +76,24 @@ public final class XMLUtilTest {
 	
 	/** Sample code */
 	private static final String CODE = "A02";	
+
+	/** Sample document namespace. */
+	private static final String NAME_SPACE = "urn:iec62325.351:tc57wg16:451-1:acknowledgementdocument:7:0";
+
+	/** Number of copies of the sample document used in the pretty print benchmark. */
+	private static final int BENCHMARK_COPIES = 2000;
+
+	/** Number of documents formatted in the pretty print benchmark. */
+	private static final int BENCHMARK_ITERATIONS = 10;
+
+	/** Document sizes (characters) used in the namespace removal benchmark: 1 KB, 100 KB and 10 MB. */
+	private static final int[] BENCHMARK_SIZES = {1024, 100 * 1024, 10 * 1024 * 1024};
+
+	/** Characters processed in each size of the namespace removal benchmark. */
+	private static final long BENCHMARK_CHARACTERS = 20L * 1024 * 1024;
+
+	/** Payload size (characters) of the element serialization benchmark (use -DBENCHMARK_PAYLOAD_SIZE=52428800 for a 50 MB payload). */
+	private static final int BENCHMARK_PAYLOAD_SIZE = Integer.getInteger("BENCHMARK_PAYLOAD_SIZE", 5 * 1024 * 1024);
 	  
     /** Sample xml. */
 	private static final StringBuilder NO_NAME_SPACE_PREFIX = new StringBuilder(""
@@ -158,6 +205,27 @@ public final class XMLUtilTest {
 		assertThat(tmp, is(CODE));
     }
 
+	/**
+	 * Test method for {@link es.ree.eemws.core.utils.xml.XMLUtil#getNodeValues(Set, StringBuilder)}
+	 * Values must be the same as the ones returned by getNodeValue, but elements are matched by their whole
+	 * local name (getNodeValue("mRID") matches sender_MarketParticipant.mRID).
+	 */
+	@Test
+	public void testGetNodeValues() {
+		Set<String> tags = new HashSet<>(Arrays.asList("received_MarketDocument.type", "code", "text", "non_existent_element", "schedule_Period.timeInterval"));
+
+		for (StringBuilder xml : Arrays.asList(NO_NAME_SPACE_PREFIX, NAME_SPACE_PREFIX, NAME_SPACE_PREFIX_DECLARATION_IN_EACH_ELEMENT)) {
+			logger.debug("testGetNodeValues " + xml.substring(0, xml.indexOf(" ")));
+			Map<String, String> values = XMLUtil.getNodeValues(tags, xml);
+			for (String tag : tags) {
+				assertThat(values.get(tag), is(XMLUtil.getNodeValue(tag, xml)));
+			}
+			assertThat(values.size(), is(3));
+			assertThat(values.get("code"), is(CODE));
+			assertThat(XMLUtil.getNodeValues(new HashSet<>(Arrays.asList("mRID")), xml).get("mRID"), is("ack_code"));
+		}
+	}
+
 	/**
 	 * Get the root tag using different document's configurations.
 	 */
@@ -179,4 +247,671 @@ public final class XMLUtilTest {
 	}
 
 	
+	/**
+	 * Test method for {@link es.ree.eemws.core.utils.xml.XMLUtil#getNodeValue(String, String, java.io.InputStream)}
+	 * Will extract document values reading the document as a stream.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void testGetNodeValueFromStream() throws Exception {
+
+		testGetNodeValueFromStream("testGetNodeValueFromStream with no namespace prefix", NO_NAME_SPACE_PREFIX);
+		testGetNodeValueFromStream("testGetNodeValueFromStream with namespace prefix", NAME_SPACE_PREFIX);
+		testGetNodeValueFromStream("testGetNodeValueFromStream with namespace prefix and declaration", NAME_SPACE_PREFIX_DECLARATION_IN_EACH_ELEMENT);
+	}
+
+	/**
+	 * Extract different XML node values reading the document as a stream.
+	 * @param idCase Case identification (for log pourposes)
+	 * @param xml Test xml instance.
+	 * @throws Exception in case of error.
+	 */
+	private void testGetNodeValueFromStream(final String idCase, final StringBuilder xml) throws Exception {
+		String tmp;
+
+		logger.debug(idCase + " (existent element)");
+		tmp = XMLUtil.getNodeValue(NAME_SPACE, "received_MarketDocument.createdDateTime", new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)));
+		assertThat(tmp, is(CREATED_DATE_TIME));
+
+		logger.debug(idCase + " (existent element, any namespace)");
+		tmp = XMLUtil.getNodeValue(null, "received_MarketDocument.type", new StringReader(xml.toString()));
+		assertThat(tmp, is(DOC_TYPE));
+
+		logger.debug(idCase + " (existent element, other namespace)");
+		tmp = XMLUtil.getNodeValue("urn:other", "received_MarketDocument.type", new StringReader(xml.toString()));
+		assertThat(tmp, is((String) null));
+
+		logger.debug(idCase + " (nonexistent element but in text)");
+		tmp = XMLUtil.getNodeValue(NAME_SPACE, "schedule_Period.timeInterval", new StringReader(xml.toString()));
+		assertThat(tmp, is((String) null));
+
+		logger.debug(idCase + " (existent element and text)");
+		tmp = XMLUtil.getNodeValue(NAME_SPACE, "code", new StringReader(xml.toString()));
+		assertThat(tmp, is(CODE));
+	}
+
+	/**
+	 * Test method for {@link es.ree.eemws.core.utils.xml.XMLUtil#prettyPrint(String)}
+	 * The streaming pretty printer must give the same output as the previous (split based) implementation.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void testPrettyPrint() throws Exception {
+
+		testPrettyPrint("testPrettyPrint with no namespace prefix", NO_NAME_SPACE_PREFIX.toString());
+		testPrettyPrint("testPrettyPrint with namespace prefix", NAME_SPACE_PREFIX.toString());
+		testPrettyPrint("testPrettyPrint with namespace prefix and declaration", NAME_SPACE_PREFIX_DECLARATION_IN_EACH_ELEMENT.toString());
+
+		logger.debug("testPrettyPrint (empty elements)");
+		assertThat(XMLUtil.prettyPrint("<a><b></b><c x=\"1\"/><d>\n</d></a>").toString(), is("<a>\n    <b/>\n    <c x=\"1\"/>\n    <d/>\n</a>\n"));
+
+		logger.debug("testPrettyPrint (comments, CDATA and special characters in attributes)");
+		assertThat(XMLUtil.prettyPrint("<?xml version=\"1.0\"?><a><!-- <b> --><c y=\"a>b\"><![CDATA[<x>]]></c></a>").toString(),
+				is("<?xml version=\"1.0\"?>\n<a>\n    <!-- <b> -->\n    <c y=\"a>b\"><![CDATA[<x>]]></c>\n</a>\n"));
+
+		logger.debug("testPrettyPrint (not an xml document)");
+		assertThat(XMLUtil.prettyPrint("</a>text").toString(), is("</a>text"));
+		assertThat(XMLUtil.prettyPrint("<a>text").toString(), is("<a>text"));
+	}
+
+	/**
+	 * Formats the given document with the wrapper and the streaming methods and compares them with the previous implementation.
+	 * @param idCase Case identification (for log pourposes)
+	 * @param xml Test xml instance.
+	 * @throws Exception in case of error.
+	 */
+	private void testPrettyPrint(final String idCase, final String xml) throws Exception {
+
+		logger.debug(idCase);
+		String expected = legacyPrettyPrint(xml).toString();
+		assertThat(XMLUtil.prettyPrint(xml).toString(), is(expected));
+
+		StringWriter writer = new StringWriter();
+		assertThat(XMLUtil.prettyPrint(new StringReader(xml), writer), is(true));
+		assertThat(writer.toString(), is(expected));
+	}
+
+	/**
+	 * Compares the time needed to format a large document with the previous (split based) implementation
+	 * and with the streaming one.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void benchmarkPrettyPrint() throws Exception {
+		Benchmarks.assumeEnabled();
+
+		StringBuilder sb = new StringBuilder("<list>");
+		for (int cont = 0; cont < BENCHMARK_COPIES; cont++) {
+			sb.append(NAME_SPACE_PREFIX);
+		}
+		sb.append("</list>");
+		String xml = sb.toString();
+
+		assertThat(XMLUtil.prettyPrint(xml).toString(), is(legacyPrettyPrint(xml).toString()));
+
+		long legacyTime = 0;
+		long streamingTime = 0;
+
+		/* First round is just a warm up. */
+		for (int round = 0; round < 2; round++) {
+			long time = System.nanoTime();
+			for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+				legacyPrettyPrint(xml);
+			}
+			legacyTime = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+				XMLUtil.prettyPrint(xml, new StringBuilder(xml.length() + (xml.length() >> 2)));
+			}
+			streamingTime = System.nanoTime() - time;
+		}
+
+		long mb = (long) xml.length() * BENCHMARK_ITERATIONS * 1000 / (1024 * 1024);
+		logger.debug("Document length: " + xml.length() + " characters");
+		logger.debug("Split based pretty print: " + mb / Math.max(legacyTime / 1000000, 1) + " MB/s");
+		logger.debug("Streaming pretty print: " + mb / Math.max(streamingTime / 1000000, 1) + " MB/s");
+	}
+
+	/**
+	 * Previous (split based, quadratic on output deletions) pretty print implementation, kept as reference.
+	 * @param whatToPretty Text formatting.
+	 * @return Document formatted as.
+	 */
+	private static StringBuilder legacyPrettyPrint(final String whatToPretty) {
+		StringBuilder output = new StringBuilder();
+		String tab = "\n";
+		String[] text = whatToPretty.trim().split(">");
+		String previous = " ";
+		int pos = 0;
+
+		for (int cont = 0; cont < text.length; cont++) {
+			String current = text[cont].trim().replaceAll("\n", " ");
+			if (!current.endsWith("/") && !current.startsWith("</")) {
+				if (current.startsWith("<")) {
+					tab += "    ";
+				} else {
+					int k = output.length();
+					output.delete(k - tab.length(), k);
+					tab = tab.substring(0, tab.length() - 4);
+				}
+			} else if (current.startsWith("</")) {
+				tab = tab.substring(0, tab.length() - 4);
+				int k = output.length();
+				output.delete(k - 4, k);
+				String tag1 = previous.substring(1).split(" ")[0];
+				String tag2 = current.substring(2).split(" ")[0];
+				if (tag1.equals(tag2)) {
+					output.setLength(pos - 1);
+					current = "/";
+				}
+			}
+
+			previous = current;
+			output.append(current).append(">");
+			pos = output.length();
+			output.append(tab);
+		}
+
+		return output;
+	}
+
+	/**
+	 * Test method for {@link es.ree.eemws.core.utils.xml.XMLUtil#removeNameSpaces(String)}
+	 * The target namespace prefix must be removed from element names only.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void testRemoveNameSpaces() throws Exception {
+
+		logger.debug("testRemoveNameSpaces with namespace prefix");
+		assertThat(XMLUtil.removeNameSpaces(NAME_SPACE_PREFIX.toString()).toString(), is(NO_NAME_SPACE_PREFIX.toString()));
+
+		logger.debug("testRemoveNameSpaces with no namespace prefix");
+		assertThat(XMLUtil.removeNameSpaces(NO_NAME_SPACE_PREFIX.toString()).toString(), is(NO_NAME_SPACE_PREFIX.toString()));
+
+		logger.debug("testRemoveNameSpaces with namespace prefix and declaration in each element");
+		String xml = XMLUtil.removeNameSpaces(NAME_SPACE_PREFIX_DECLARATION_IN_EACH_ELEMENT.toString()).toString();
+		assertThat(xml.indexOf("<n1:"), is(-1));
+		assertThat(xml.indexOf("</n1:"), is(-1));
+		assertThat(XMLUtil.getNodeValue("received_MarketDocument.type", new StringBuilder(xml)), is(DOC_TYPE));
+
+		logger.debug("testRemoveNameSpaces with prefix in text, attributes and other namespaces");
+		StringWriter writer = new StringWriter();
+		XMLUtil.removeNameSpaces("  <?xml version=\"1.0\"?>\n<n1:a  xmlns:xsi=\"urn:xsi\" v=\"n1:x\" xmlns:n1=\"" + NAME_SPACE + "\">"
+				+ "<n1:b>n1:text</n1:b><!-- <n1:c> --><n1b>x</n1b><n1:d/></n1:a>\n", writer);
+		assertThat(writer.toString(), is("<?xml version=\"1.0\"?>\n<a xmlns=\"" + NAME_SPACE + "\" v=\"n1:x\">"
+				+ "<b>n1:text</b><!-- <n1:c> --><n1b>x</n1b><d/></a>"));
+	}
+
+	/**
+	 * Compares the time and memory allocated to remove namespace prefixes of documents from 1 KB to 10 MB with the
+	 * previous (regular expression based) implementation and with the single pass one.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void benchmarkRemoveNameSpaces() throws Exception {
+		Benchmarks.assumeEnabled();
+
+		for (int size : BENCHMARK_SIZES) {
+			String xml = createPrefixedDocument(size);
+			assertThat(XMLUtil.removeNameSpaces(xml).toString(), is(legacyRemoveNameSpaces(xml, "n1", NAME_SPACE).toString()));
+
+			int iterations = (int) Math.max(1, BENCHMARK_CHARACTERS / xml.length());
+			StringBuilder output = new StringBuilder(xml.length());
+			long legacyTime = 0;
+			long legacyBytes = 0;
+			long singlePassTime = 0;
+			long singlePassBytes = 0;
+
+			/* First round is just a warm up. */
+			for (int round = 0; round < 2; round++) {
+				long bytes = allocatedBytes();
+				long time = System.nanoTime();
+				for (int cont = 0; cont < iterations; cont++) {
+					legacyRemoveNameSpaces(xml, "n1", NAME_SPACE);
+				}
+				legacyTime = System.nanoTime() - time;
+				legacyBytes = allocatedBytes() - bytes;
+
+				bytes = allocatedBytes();
+				time = System.nanoTime();
+				for (int cont = 0; cont < iterations; cont++) {
+					output.setLength(0);
+					XMLUtil.removeNameSpaces(xml, output);
+				}
+				singlePassTime = System.nanoTime() - time;
+				singlePassBytes = allocatedBytes() - bytes;
+			}
+
+			logger.debug("Document length: " + xml.length() + " characters (" + iterations + " iterations)");
+			logger.debug("Regular expression based: " + legacyTime / iterations / 1000 + " us/document, " + legacyBytes / iterations + " bytes allocated/document");
+			logger.debug("Single pass: " + singlePassTime / iterations / 1000 + " us/document, " + singlePassBytes / iterations + " bytes allocated/document");
+		}
+	}
+
+	/**
+	 * Creates a document with namespace prefix of (at least) the given size.
+	 * @param size Document size.
+	 * @return Document with namespace prefix.
+	 */
+	private static String createPrefixedDocument(final int size) {
+		String root = NAME_SPACE_PREFIX.substring(0, NAME_SPACE_PREFIX.indexOf(">") + 1);
+		String element = NAME_SPACE_PREFIX.substring(NAME_SPACE_PREFIX.indexOf("<n1:Reason>"), NAME_SPACE_PREFIX.lastIndexOf("</n1:Acknowledgement_MarketDocument>"));
+		String end = "</n1:Acknowledgement_MarketDocument>";
+
+		StringBuilder sb = new StringBuilder(size + element.length() + root.length() + end.length());
+		sb.append(root);
+		while (sb.length() + end.length() < size) {
+			sb.append(element);
+		}
+		sb.append(end);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the memory allocated by the current thread, if the virtual machine supports it.
+	 * @return Bytes allocated by the current thread. <code>0</code> if the virtual machine does not support it.
+	 */
+	private static long allocatedBytes() {
+		long retValue = 0;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			retValue = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return retValue;
+	}
+
+	/**
+	 * Previous (regular expression based) namespace removal, kept as reference. The target namespace and its prefix
+	 * are given instead of being searched in the document header.
+	 * @param xml XML document to remove references to prefixes of namespaces.
+	 * @param prefix Target namespace prefix.
+	 * @param ns Target namespace.
+	 * @return XML document without namespaces.
+	 */
+	private static StringBuilder legacyRemoveNameSpaces(final String xml, final String prefix, final String ns) {
+		String trimmed = new StringBuilder(xml.trim()).toString();
+		int posEndTag = trimmed.indexOf(">");
+		String[] rootTags = trimmed.substring(0, posEndTag).split("\\s");
+		StringBuilder sb = new StringBuilder(rootTags[0]);
+		sb.append(" xmlns:" + prefix + "=\"" + ns + "\" ");
+		for (int i = 1; i < rootTags.length; i++) {
+			if (rootTags[i].indexOf("xmlns") == -1) {
+				sb.append(rootTags[i]).append(" ");
+			}
+		}
+		sb.setLength(sb.length() - 1);
+		sb.append(trimmed.substring(posEndTag));
+
+		String retXml = sb.toString();
+		retXml = retXml.replaceAll(prefix + ":", "");
+		retXml = retXml.replaceFirst("xmlns:" + prefix, "xmlns");
+		return new StringBuilder(retXml);
+	}
+
+	/**
+	 * Test method for {@link es.ree.eemws.core.utils.xml.XMLUtil#getProlog(InputStream)}
+	 * Root tag, prefix, namespace and encoding must be read from the first bytes of the document only.
+	 * @throws Exception in case of error.
+	 */
+	@Test
+	public void testGetProlog() throws Exception {
+		XMLProlog prolog;
+
+		logger.debug("testGetProlog with namespace prefix");
+		String big = createPrefixedDocument(1024 * 1024);
+		byte[] xml = ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<!-- Comment -->\n" + big).getBytes(StandardCharsets.ISO_8859_1);
+		CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(xml));
+		prolog = XMLUtil.getProlog(counter);
+		assertThat(prolog.getRootTag(), is("Acknowledgement_MarketDocument"));
+		assertThat(prolog.getPrefix(), is("n1"));
+		assertThat(prolog.getNameSpace(), is(NAME_SPACE));
+		assertThat(prolog.getEncoding(), is("ISO-8859-1"));
+		logger.debug("Document length: " + xml.length + " bytes read: " + counter.getCount());
+		assertTrue(counter.getCount() <= 4096);
+
+		logger.debug("testGetProlog with no namespace prefix, stream must be reset");
+		InputStream in = new ByteArrayInputStream(NO_NAME_SPACE_PREFIX.toString().getBytes(StandardCharsets.UTF_8));
+		prolog = XMLUtil.getProlog(in);
+		assertThat(prolog.getRootTag(), is("Acknowledgement_MarketDocument"));
+		assertThat(prolog.getPrefix(), is((String) null));
+		assertThat(prolog.getNameSpace(), is(NAME_SPACE));
+		assertThat(prolog.getEncoding(), is((String) null));
+		assertThat(in.available(), is(NO_NAME_SPACE_PREFIX.length()));
+
+		logger.debug("testGetProlog with a root tag longer than the head");
+		StringBuilder longRoot = new StringBuilder("<root");
+		for (int cont = 0; longRoot.length() < 10000; cont++) {
+			longRoot.append(" a").append(cont).append("=\"value\"");
+		}
+		longRoot.append("><child/></root>");
+		prolog = XMLUtil.getProlog(new ByteArrayInputStream(longRoot.toString().getBytes(StandardCharsets.UTF_8)));
+		assertThat(prolog.getRootTag(), is("root"));
+		assertThat(prolog.getNameSpace(), is((String) null));
+
+		logger.debug("testGetProlog with no xml content");
+		assertThat(XMLUtil.getProlog(new ByteArrayInputStream("no xml".getBytes(StandardCharsets.UTF_8))), is((XMLProlog) null));
+
+		logger.debug("testGetProlog from a file");
+		Path path = Files.createTempFile("prolog", ".xml");
+		try {
+			Files.write(path, xml);
+			assertThat(XMLUtil.getProlog(path).getPrefix(), is("n1"));
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				channel.position(100);
+				assertThat(XMLUtil.getProlog(channel).getRootTag(), is("Acknowledgement_MarketDocument"));
+				assertThat(channel.position(), is(100L));
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Conversions reuse the pooled parsers and transformers.
+	 * @throws Exception If the document cannot be converted.
+	 */
+	@Test
+	public void testXMLEngine() throws Exception {
+		String xml = XMLUtil.document2String(XMLUtil.string2Document(NAME_SPACE_PREFIX));
+		XMLObjectPool<?, ?> builders = XMLEngine.getDocumentBuilderPool();
+		XMLObjectPool<?, ?> transformers = XMLEngine.getTransformerPool();
+		long builderMisses = builders.getMisses();
+		long transformerMisses = transformers.getMisses();
+		long builderHits = builders.getHits();
+
+		for (int cont = 0; cont < BENCHMARK_ITERATIONS; cont++) {
+			assertThat(XMLUtil.document2String(XMLUtil.string2Document(xml)), is(xml));
+			assertThat(XMLElementUtil.element2String(XMLElementUtil.string2Element(xml)), is(xml));
+		}
+
+		logger.debug("Document builder pool " + builders + " transformer pool " + transformers);
+		assertThat(builders.getMisses(), is(builderMisses));
+		assertThat(transformers.getMisses(), is(transformerMisses));
+		assertThat(builders.getHits() - builderHits, is(2L * BENCHMARK_ITERATIONS));
+		assertThat(builders.getInstances() <= builders.getSize(), is(true));
+	}
+
+	/**
+	 * A full pool makes callers wait until an instance is released.
+	 * @throws Exception If the waiting thread fails.
+	 */
+	@Test
+	public void testXMLObjectPoolWait() throws Exception {
+		final XMLObjectPool<StringBuilder, RuntimeException> pool = new XMLObjectPool<StringBuilder, RuntimeException>(1) {
+
+			@Override
+			protected StringBuilder create() {
+				return new StringBuilder();
+			}
+
+			@Override
+			protected boolean reset(final StringBuilder obj) {
+				obj.setLength(0);
+				return true;
+			}
+		};
+
+		final StringBuilder first = pool.borrow();
+		first.append("used");
+		final StringBuilder[] second = new StringBuilder[1];
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				second[0] = pool.borrow();
+			}
+		};
+		waiting.start();
+		while (pool.getWaits() == 0) {
+			Thread.sleep(1);
+		}
+		pool.release(first);
+		waiting.join();
+
+		assertThat(second[0] == first, is(true));
+		assertThat(second[0].length(), is(0));
+		assertThat(pool.getMisses(), is(1L));
+		assertThat(pool.getHits(), is(1L));
+		assertThat(pool.getInstances(), is(1));
+		logger.debug("Pool " + pool);
+	}
+
+	/**
+	 * A caller waiting for an instance gets a new one when the instance in use is discarded on release.
+	 * @throws Exception If the waiting thread fails.
+	 */
+	@Test
+	public void testXMLObjectPoolWaitDiscarded() throws Exception {
+		final XMLObjectPool<StringBuilder, RuntimeException> pool = new XMLObjectPool<StringBuilder, RuntimeException>(1) {
+
+			@Override
+			protected StringBuilder create() {
+				return new StringBuilder();
+			}
+
+			@Override
+			protected boolean reset(final StringBuilder obj) {
+				return obj.length() == 0;
+			}
+		};
+
+		final StringBuilder first = pool.borrow();
+		first.append("cannot be reset");
+		final StringBuilder[] second = new StringBuilder[1];
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				second[0] = pool.borrow();
+			}
+		};
+		waiting.start();
+		while (pool.getWaits() == 0) {
+			Thread.sleep(1);
+		}
+		pool.release(first);
+		waiting.join(10000);
+
+		assertThat(waiting.isAlive(), is(false));
+		assertThat(second[0] != null && second[0] != first, is(true));
+		assertThat(pool.getMisses(), is(2L));
+		assertThat(pool.getInstances(), is(1));
+		pool.release(second[0]);
+		assertThat(pool.getIdle(), is(1));
+		logger.debug("Pool " + pool);
+	}
+
+	/**
+	 * A full pool that does not wait gives new instances, which are discarded when they are released.
+	 */
+	@Test
+	public void testXMLObjectPoolNoWait() {
+		XMLObjectPool<StringBuilder, RuntimeException> pool = new XMLObjectPool<StringBuilder, RuntimeException>(1, false) {
+
+			@Override
+			protected StringBuilder create() {
+				return new StringBuilder();
+			}
+
+			@Override
+			protected boolean reset(final StringBuilder obj) {
+				obj.setLength(0);
+				return true;
+			}
+		};
+
+		StringBuilder first = pool.borrow();
+		StringBuilder second = pool.borrow();
+		assertThat(second != first, is(true));
+		assertThat(pool.getInstances(), is(2));
+		assertThat(pool.getWaits(), is(0L));
+
+		pool.release(first);
+		pool.release(second);
+		assertThat(pool.getInstances(), is(1));
+		assertThat(pool.getIdle(), is(1));
+
+		StringBuilder third = pool.borrow();
+		assertThat(pool.borrow() != third, is(true));
+		assertThat(pool.getMisses(), is(3L));
+		assertThat(pool.getHits(), is(1L));
+		logger.debug("Pool " + pool);
+	}
+
+	/**
+	 * Compares parsing and serializing with new factories each time against the pooled ones.
+	 * @throws Exception If the document cannot be converted.
+	 */
+	@Test
+	public void benchmarkXMLEngine() throws Exception {
+		Benchmarks.assumeEnabled();
+
+		String xml = NAME_SPACE_PREFIX.toString();
+		int iterations = BENCHMARK_COPIES;
+
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int cont = 0; cont < iterations; cont++) {
+				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+				factory.setNamespaceAware(true);
+				Document doc = factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+				StringWriter writer = new StringWriter();
+				TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(writer));
+			}
+			long factoryTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int cont = 0; cont < iterations; cont++) {
+				XMLUtil.document2String(XMLUtil.string2Document(xml));
+			}
+			long poolTime = System.nanoTime() - start;
+
+			logger.debug("benchmarkXMLEngine [iterations=" + iterations + "][new factories=" + factoryTime / 1000000 + " ms][pooled=" + poolTime / 1000000 + " ms]");
+		}
+	}
+
+	/**
+	 * An element nested in a document is written with the namespaces declared by its ancestors, escaping markup characters.
+	 * @throws Exception If the element cannot be written.
+	 */
+	@Test
+	public void testElement2Writer() throws Exception {
+		String payload = "<n1:Doc xmlns:n1=\"urn:n1\" a=\"&quot;x&amp;y&#10;\">"
+			+ "<n1:v xsi:type=\"n1:T\">1 &lt; 2 &amp; 3 &gt; 0 España</n1:v><![CDATA[a]]]]><![CDATA[>b]]><!--c--><empty/>"
+			+ "</n1:Doc>";
+		Document doc = XMLUtil.string2Document("<msg:Message xmlns:msg=\"urn:msg\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"urn:default\">"
+			+ "<msg:Payload>" + payload + "</msg:Payload></msg:Message>");
+		Element element = (Element) doc.getDocumentElement().getFirstChild().getFirstChild();
+
+		String xml = XMLElementUtil.element2String(element);
+		logger.debug("testElement2Writer " + xml);
+		assertThat(xml.startsWith("<n1:Doc "), is(true));
+		for (String declaration : Arrays.asList("xmlns:n1=\"urn:n1\"", "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"", "xmlns:msg=\"urn:msg\"", "xmlns=\"urn:default\"")) {
+			assertThat(xml.contains(declaration), is(true));
+		}
+		assertThat(xml.substring(xml.indexOf(" a=")), is(" a=\"&quot;x&amp;y&#10;\"><n1:v xsi:type=\"n1:T\">1 &lt; 2 &amp; 3 &gt; 0 España</n1:v>"
+			+ "<![CDATA[a]]]]><![CDATA[>b]]><!--c--><empty/></n1:Doc>"));
+
+		Element copy = XMLElementUtil.string2Element(xml);
+		assertThat(copy.getNamespaceURI(), is("urn:n1"));
+		assertThat(copy.getAttribute("a"), is(element.getAttribute("a")));
+		assertThat(copy.getTextContent(), is(element.getTextContent()));
+		assertThat(copy.getLastChild().getNamespaceURI(), is("urn:default"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XMLElementUtil.element2OutputStream(element, out);
+		assertThat(out.toByteArray(), is(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Compares writing a big payload element copying it into a new document against writing it in place.
+	 * @throws Exception If the element cannot be written.
+	 */
+	@Test
+	public void benchmarkElement2Writer() throws Exception {
+		Benchmarks.assumeEnabled();
+
+		StringBuilder xml = new StringBuilder(BENCHMARK_PAYLOAD_SIZE + NAME_SPACE_PREFIX.length());
+		xml.append("<msg:ResponseMessage xmlns:msg=\"http://iec.ch/TC57/2011/schema/message\"><msg:Payload><list>");
+		while (xml.length() < BENCHMARK_PAYLOAD_SIZE) {
+			xml.append(NAME_SPACE_PREFIX);
+		}
+		xml.append("</list></msg:Payload></msg:ResponseMessage>");
+		Element element = (Element) XMLUtil.string2Document(xml).getDocumentElement().getFirstChild().getFirstChild();
+		xml = null;
+
+		for (int round = 0; round < 2; round++) {
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			document.appendChild(document.importNode(element, true));
+			StringWriter legacy = new StringWriter();
+			TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(legacy));
+			long legacyTime = System.nanoTime() - start;
+			long legacyAllocated = allocatedBytes() - allocated;
+			int legacyLength = legacy.getBuffer().length();
+			legacy = null;
+			document = null;
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			String current = XMLElementUtil.element2String(element);
+			long time = System.nanoTime() - start;
+			long currentAllocated = allocatedBytes() - allocated;
+
+			logger.debug("benchmarkElement2Writer [payload=" + current.length() + " chars (legacy " + legacyLength + ")][importNode + transformer=" + legacyTime / 1000000 + " ms, "
+				+ legacyAllocated / (1024 * 1024) + " MB allocated][element2String=" + time / 1000000 + " ms, " + currentAllocated / (1024 * 1024) + " MB allocated]");
+		}
+	}
+
+	/**
+	 * Input stream that counts the bytes read (with no mark support).
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		/** Number of bytes read. */
+		private long count = 0;
+
+		/**
+		 * Creates a new counting stream.
+		 * @param in Counted stream.
+		 */
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * Returns the number of bytes read.
+		 * @return Number of bytes read.
+		 */
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int retValue = super.read();
+			if (retValue != -1) {
+				count++;
+			}
+			return retValue;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			int retValue = super.read(b, off, len);
+			if (retValue != -1) {
+				count += retValue;
+			}
+			return retValue;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }